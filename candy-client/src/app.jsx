@@ -43,8 +43,15 @@ export default function App() {
   const fetchInventory = useCallback(async () => {
     setLoading(true)
     try {
-      const data = await api.get('/inventory')
-      setInventory(data.sort((a, b) => a.id - b.id))
+      // pages arrive in id order, so there's nothing to sort
+      const rows = []
+      let after = null
+      do {
+        const page = await api.get('/inventory?limit=500' + (after ? '&after=' + encodeURIComponent(after) : ''))
+        rows.push(...page.data)
+        after = page.next
+      } while (after)
+      setInventory(rows)
       setError('')
     } catch (e) {
       setError(e.message)
@@ -68,6 +75,20 @@ export default function App() {
         console.warn('Bad SSE payload', e)
       }
     }
+    // between snapshots the server only sends the rows that changed
+    es.addEventListener('delta', ({ data }) => {
+      try {
+        const { upserted, deleted } = JSON.parse(data)
+        setInventory((rows) => {
+          const byId = new Map(rows.map((r) => [r.id, r]))
+          deleted.forEach((id) => byId.delete(id))
+          upserted.forEach((r) => byId.set(r.id, r))
+          return [...byId.values()].sort((a, b) => a.id - b.id)
+        })
+      } catch (e) {
+        console.warn('Bad SSE payload', e)
+      }
+    })
     return () => es.close()
   }, [])
 
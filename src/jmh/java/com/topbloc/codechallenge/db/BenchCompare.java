@@ -0,0 +1,68 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Diffs two JMH JSON result files and exits 1 if any benchmark present in both got
+ * slower by more than the threshold percentage (default 10).
+ *
+ *   BenchCompare baseline.json candidate.json [thresholdPercent]
+ */
+public final class BenchCompare {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: BenchCompare <baseline.json> <candidate.json> [thresholdPercent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, JSONObject> base = load(args[0]);
+        Map<String, JSONObject> cand = load(args[1]);
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "benchmark", "baseline", "candidate", "change");
+        for (Map.Entry<String, JSONObject> e : cand.entrySet()) {
+            JSONObject before = base.get(e.getKey());
+            if (before == null) continue;
+            double was = score(before), now = score(e.getValue());
+            // throughput is better when higher; the time modes are better when lower
+            boolean higherIsBetter = "thrpt".equals(e.getValue().get("mode"));
+            double change = (now - was) / was * 100.0;
+            double worse = higherIsBetter ? -change : change;
+            boolean regressed = worse > threshold;
+            if (regressed) regressions++;
+            String unit = (String) ((JSONObject) e.getValue().get("primaryMetric")).get("scoreUnit");
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%% %s%s%n", e.getKey(), was, now, change, unit,
+                    regressed ? "  REGRESSION" : "");
+        }
+        System.out.println(regressions == 0 ? "no regressions over " + threshold + "%"
+                : regressions + " regression(s) over " + threshold + "%");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    // benchmark name plus its params -> result entry
+    private static Map<String, JSONObject> load(String path) throws Exception {
+        Map<String, JSONObject> out = new TreeMap<>();
+        try (Reader r = new FileReader(path)) {
+            for (Object o : (JSONArray) new JSONParser().parse(r)) {
+                JSONObject result = (JSONObject) o;
+                StringBuilder key = new StringBuilder((String) result.get("benchmark"));
+                JSONObject params = (JSONObject) result.get("params");
+                if (params != null) new TreeMap<Object, Object>(params).forEach((k, v) -> key.append(' ').append(k).append('=').append(v));
+                out.put(key.toString(), result);
+            }
+        }
+        return out;
+    }
+
+    private static double score(JSONObject result) {
+        return ((Number) ((JSONObject) result.get("primaryMetric")).get("score")).doubleValue();
+    }
+}
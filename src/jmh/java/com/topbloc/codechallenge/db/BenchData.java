@@ -0,0 +1,83 @@
+package com.topbloc.codechallenge.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Synthetic datasets for the benchmarks: the seed data plus N generated items, each with
+ * one inventory row and three distributor prices across 100 generated distributors.
+ *
+ * Each dataset is generated once into target/bench-data/&lt;name&gt;.db and copied to a
+ * scratch file per trial, so write benchmarks never leak into the next run. Must be
+ * called before anything touches DatabaseManager, which reads db.path once.
+ */
+final class BenchData {
+
+    static final String DIR = System.getProperty("bench.dataDir", "target/bench-data");
+
+    private BenchData() {
+    }
+
+    // generated rows on top of the seed data
+    static int size(String dataset) {
+        switch (dataset) {
+            case "seed": return 0;
+            case "10k":  return 10_000;
+            case "1m":   return 1_000_000;
+            default:     throw new IllegalArgumentException("unknown dataset " + dataset);
+        }
+    }
+
+    // first generated item id; seed items are 1..17
+    static final int FIRST_ID = 1_000;
+
+    static void open(String dataset) throws IOException, SQLException {
+        File dir = new File(DIR);
+        dir.mkdirs();
+        File pristine = new File(dir, dataset + ".db");
+        File scratch = new File(dir, dataset + "-run.db");
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            Files.deleteIfExists(new File(scratch.getPath() + suffix).toPath());
+        }
+        System.setProperty("db.path", scratch.getPath());
+
+        if (pristine.exists()) {
+            Files.copy(pristine.toPath(), scratch.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            DatabaseManager.connect();
+            return;
+        }
+
+        long start = System.nanoTime();
+        DatabaseManager.resetDatabase();
+        int n = size(dataset);
+        if (n > 0) {
+            try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + scratch.getAbsolutePath());
+                 Statement st = c.createStatement()) {
+                int last = FIRST_ID + n - 1;
+                st.execute("WITH RECURSIVE n(x) AS (SELECT " + FIRST_ID + " UNION ALL SELECT x + 1 FROM n WHERE x < " + last + ")"
+                        + " INSERT INTO items(id, name) SELECT x, 'Synthetic candy ' || x FROM n");
+                st.execute("INSERT INTO inventory(item, stock, capacity)"
+                        + " SELECT id, (id * 37) % 120, 100 FROM items WHERE id >= " + FIRST_ID);
+                st.execute("WITH RECURSIVE n(x) AS (SELECT " + FIRST_ID + " UNION ALL SELECT x + 1 FROM n WHERE x < " + (FIRST_ID + 99) + ")"
+                        + " INSERT INTO distributors(id, name) SELECT x, 'Synthetic distributor ' || x FROM n");
+                st.execute("WITH k(j) AS (VALUES (0), (1), (2))"
+                        + " INSERT INTO distributor_prices(distributor, item, cost)"
+                        + " SELECT " + FIRST_ID + " + (i.id * 7 + k.j * 31) % 100, i.id, ((i.id * 13 + k.j * 17) % 500) / 100.0"
+                        + "   FROM items i CROSS JOIN k WHERE i.id >= " + FIRST_ID);
+            }
+        }
+        // snapshot before the benchmark mutates anything, then load the models from the scratch copy
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + scratch.getAbsolutePath());
+             Statement st = c.createStatement()) {
+            st.execute("VACUUM INTO '" + pristine.getAbsolutePath().replace("'", "''") + "'");
+        }
+        DatabaseManager.connect();
+        System.out.printf("generated dataset %s (%d rows) in %d ms%n", dataset, n, (System.nanoTime() - start) / 1_000_000);
+    }
+}
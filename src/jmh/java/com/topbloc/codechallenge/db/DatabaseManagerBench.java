@@ -0,0 +1,132 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot paths of DatabaseManager at three dataset sizes. Reads go through the public
+ * entry points the routes call (so the read model and price book are included);
+ * sqlToJsonArray / sqlToJsonStream measure the raw SQL + serialization paths they replace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class DatabaseManagerBench {
+
+    @Param({"seed", "10k", "1m"})
+    public String dataset;
+
+    private static final String INVENTORY_SQL =
+            "SELECT i.id, i.item AS item_id, it.name AS item_name, i.stock AS amount_in_stock, i.capacity AS total_capacity"
+                    + " FROM inventory i JOIN items it ON it.id = i.item";
+
+    private int firstItem, lastItem;
+    private final AtomicLong added = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchData.open(dataset);
+        int n = BenchData.size(dataset);
+        firstItem = n == 0 ? 1 : BenchData.FIRST_ID;
+        lastItem = n == 0 ? 17 : BenchData.FIRST_ID + n - 1;
+    }
+
+    private int randomItem() {
+        return ThreadLocalRandom.current().nextInt(firstItem, lastItem + 1);
+    }
+
+    // discards bytes but keeps the count so the writes can't be optimized away
+    private static final class CountingSink extends OutputStream {
+        long bytes;
+
+        @Override public void write(int b) { bytes++; }
+        @Override public void write(byte[] b, int off, int len) { bytes += len; }
+    }
+
+    /* reads */
+
+    @Benchmark
+    public JSONArray getAllInventory() {
+        return DatabaseManager.getAllInventory();
+    }
+
+    @Benchmark
+    public JSONArray getLowStock() {
+        return DatabaseManager.getLowStock();
+    }
+
+    @Benchmark
+    public long writeAllInventory() throws IOException {
+        CountingSink out = new CountingSink();
+        DatabaseManager.writeAllInventory(out);
+        return out.bytes;
+    }
+
+    @Benchmark
+    public JSONObject getCheapestOffer() {
+        return DatabaseManager.getCheapestOffer(randomItem(), 25);
+    }
+
+    @Benchmark
+    public long exportTableAsCsv() throws IOException {
+        CountingSink out = new CountingSink();
+        DatabaseManager.exportTableAsCsv("inventory", null, Collections.emptyMap(), DatabaseManager.EXPORT_FETCH_SIZE, out);
+        return out.bytes;
+    }
+
+    /* serialization without the read model */
+
+    @Benchmark
+    public JSONArray sqlToJsonArray() throws SQLException {
+        return DatabaseManager.read(conn -> {
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(INVENTORY_SQL)) {
+                return DatabaseManager.convertResultSetToJson(rs);
+            }
+        });
+    }
+
+    @Benchmark
+    public long sqlToJsonStream() throws SQLException {
+        CountingSink out = new CountingSink();
+        DatabaseManager.read(conn -> {
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(INVENTORY_SQL)) {
+                JsonResultWriter.write(rs, INVENTORY_SQL, out);
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+            return null;
+        });
+        return out.bytes;
+    }
+
+    /* writes */
+
+    @Benchmark
+    public JSONObject updateInventory() {
+        // generated inventory rows follow the 17 seed rows in item id order
+        int id = dataset.equals("seed") ? randomItem() : randomItem() - BenchData.FIRST_ID + 18;
+        return DatabaseManager.updateInventory(id, "{\"stock\":" + ThreadLocalRandom.current().nextInt(100) + ",\"capacity\":100}");
+    }
+
+    // inventory.item is UNIQUE, so each op creates the item it stocks
+    @Benchmark
+    public void addInventory(Blackhole bh) {
+        JSONObject item = DatabaseManager.addItem("{\"name\":\"Bench item " + added.incrementAndGet() + " " + System.nanoTime() + "\"}");
+        bh.consume(DatabaseManager.addInventory("{\"item\":" + item.get("id") + ",\"stock\":5,\"capacity\":10}"));
+    }
+}
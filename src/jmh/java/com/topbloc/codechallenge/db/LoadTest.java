@@ -0,0 +1,410 @@
+package com.topbloc.codechallenge.db;
+
+import com.topbloc.codechallenge.Main;
+import com.topbloc.codechallenge.metrics.LatencyHistogram;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load against the real HTTP stack: Main is started in this JVM on a free port
+ * over a BenchData dataset, then a seeded schedule of requests is sent at a fixed mean
+ * rate while load.sse clients hold /stream/inventory open.
+ *
+ * Arrivals are Poisson and don't wait for earlier responses, and every latency is taken
+ * from the moment the schedule said the request should go out, not from when it was
+ * sent. A stalled server therefore shows up as latency on every request queued behind
+ * it, instead of quietly lowering the request rate (coordinated omission).
+ *
+ * The same seed, rate and dataset give the same request sequence, so two builds can be
+ * compared run for run. Settings are system properties:
+ *
+ *   load.dataset  seed | 10k | 1m                                           (10k)
+ *   load.rate     requests per second, all routes together                   (500)
+ *   load.warmup   seconds run first and not recorded                         (5)
+ *   load.seconds  seconds recorded                                           (30)
+ *   load.mix      route=weight,...  of inventory, low_stock, cheapest, update, export
+ *                                                      (inventory=50,low_stock=10,cheapest=25,update=14,export=1)
+ *   load.sse      /stream/inventory subscribers                              (10)
+ *   load.seed     schedule seed                                              (42)
+ *   load.out      JSON report                                                (target/load-result.json)
+ *   load.baseline an earlier report: print the change per route and exit 1 if a p99 got
+ *                 worse by more than load.threshold percent (10)
+ */
+public final class LoadTest {
+
+    static final String DATASET   = System.getProperty("load.dataset", "10k");
+    static final int RATE         = Integer.getInteger("load.rate", 500);
+    static final int WARMUP_S     = Integer.getInteger("load.warmup", 5);
+    static final int MEASURE_S    = Integer.getInteger("load.seconds", 30);
+    static final String MIX       = System.getProperty("load.mix", "inventory=50,low_stock=10,cheapest=25,update=14,export=1");
+    static final int SSE          = Integer.getInteger("load.sse", 10);
+    static final long SEED        = Long.getLong("load.seed", 42L);
+    static final String OUT       = System.getProperty("load.out", "target/load-result.json");
+    static final String BASELINE  = System.getProperty("load.baseline");
+    static final double THRESHOLD = Double.parseDouble(System.getProperty("load.threshold", "10"));
+
+    // requests still out this long after the last one was due count as errors
+    static final long DRAIN_MS = 30_000;
+
+    private LoadTest() {
+    }
+
+    /* ─────────── routes ─────────── */
+
+    private enum Route {
+        INVENTORY("GET /inventory/:id"),
+        LOW_STOCK("GET /inventory/low-stock"),
+        CHEAPEST("GET /items/:id/restock/:quantity/cheapest"),
+        UPDATE("PUT /inventory/:id"),
+        EXPORT("GET /export?table=inventory");
+
+        final String label;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        Route(String label) {
+            this.label = label;
+        }
+
+        String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    // every recorded latency, for the overall percentiles
+    private static final LatencyHistogram ALL = new LatencyHistogram();
+
+    // ids the schedule draws from, read from the dataset before the server starts
+    private static int firstInventory, lastInventory, firstItem, lastItem;
+
+    // the k-th scheduled request; everything random comes from the schedule's own Random
+    private static HttpRequest request(String base, Route route, Random rnd) {
+        switch (route) {
+            case INVENTORY:
+                return get(base + "/inventory/" + between(rnd, firstInventory, lastInventory));
+            case LOW_STOCK:
+                return get(base + "/inventory/low-stock");
+            case CHEAPEST:
+                return get(base + "/items/" + between(rnd, firstItem, lastItem) + "/restock/" + (1 + rnd.nextInt(50)) + "/cheapest");
+            case UPDATE:
+                String body = "{\"stock\":" + rnd.nextInt(120) + ",\"capacity\":100}";
+                return HttpRequest.newBuilder(URI.create(base + "/inventory/" + between(rnd, firstInventory, lastInventory)))
+                        .timeout(Duration.ofMillis(DRAIN_MS))
+                        .header("Content-Type", "application/json")
+                        .PUT(HttpRequest.BodyPublishers.ofString(body))
+                        .build();
+            default:
+                return get(base + "/export?table=inventory");
+        }
+    }
+
+    private static HttpRequest get(String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofMillis(DRAIN_MS)).GET().build();
+    }
+
+    private static int between(Random rnd, int first, int last) {
+        return first + rnd.nextInt(last - first + 1);
+    }
+
+    // "inventory=50,update=10" -> cumulative weights in Route order
+    private static int[] weights(String mix) {
+        int[] cumulative = new int[Route.values().length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split("=");
+            Route route = Route.valueOf(kv[0].trim().toUpperCase());
+            cumulative[route.ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        for (int i = 1; i < cumulative.length; i++) cumulative[i] += cumulative[i - 1];
+        if (cumulative[cumulative.length - 1] <= 0) throw new IllegalArgumentException("load.mix has no weight: " + mix);
+        return cumulative;
+    }
+
+    private static Route pick(int[] cumulative, Random rnd) {
+        int r = rnd.nextInt(cumulative[cumulative.length - 1]);
+        int i = 0;
+        while (r >= cumulative[i]) i++;
+        return Route.values()[i];
+    }
+
+    /* ─────────── run ─────────── */
+
+    public static void main(String[] args) throws Exception {
+        int[] mix = weights(MIX);
+        BenchData.open(DATASET);
+        idRanges(System.getProperty("db.path"));
+
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        System.setProperty("server.port", Integer.toString(port));
+        Main.main(new String[0]);
+        String base = "http://localhost:" + port;
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        Subscribers subscribers = new Subscribers(port, SSE);
+        subscribers.open();
+
+        System.out.printf("dataset %s on port %d: %d req/s for %d s (+%d s warmup), mix %s, %d SSE subscribers%n",
+                DATASET, port, RATE, MEASURE_S, WARMUP_S, MIX, SSE);
+        Random rnd = new Random(SEED);
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(WARMUP_S);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(MEASURE_S);
+        double meanGapNanos = 1e9 / RATE;
+        AtomicInteger outstanding = new AtomicInteger();
+        AtomicLong maxLag = new AtomicLong();
+        long sent = 0;
+        long intended = start;
+        while (true) {
+            // exponential gaps make a Poisson arrival process at the configured mean rate
+            intended += (long) (-Math.log(1 - rnd.nextDouble()) * meanGapNanos);
+            if (intended >= end) break;
+            Route route = pick(mix, rnd);
+            HttpRequest request = request(base, route, rnd);
+            long now;
+            while ((now = System.nanoTime()) < intended) LockSupport.parkNanos(intended - now);
+            // how far behind the schedule the sender itself is; large values mean the client is the bottleneck
+            if (now - intended > maxLag.get()) maxLag.set(now - intended);
+
+            boolean recorded = intended >= measureFrom;
+            long due = intended;
+            outstanding.incrementAndGet();
+            sent++;
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, failure) -> {
+                long took = System.nanoTime() - due;
+                if (recorded) {
+                    int status = failure == null ? response.statusCode() : -1;
+                    route.statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+                    if (status >= 200 && status < 300) {
+                        route.latency.record(took);
+                        ALL.record(took);
+                    } else {
+                        route.errors.increment();
+                    }
+                }
+                outstanding.decrementAndGet();
+            });
+        }
+        long drainUntil = System.currentTimeMillis() + DRAIN_MS;
+        while (outstanding.get() > 0 && System.currentTimeMillis() < drainUntil) Thread.sleep(10);
+        int stuck = outstanding.get();
+        subscribers.close();
+
+        JSONObject report = report(sent, stuck, maxLag.get(), subscribers);
+        try (Writer w = new FileWriter(OUT)) {
+            w.write(report.toJSONString());
+        }
+        System.out.println(report.toJSONString());
+        System.out.println("report written to " + OUT);
+        int status = BASELINE == null ? 0 : compare(BASELINE, report);
+        System.exit(status);
+    }
+
+    private static void idRanges(String dbPath) throws Exception {
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+             Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT (SELECT MIN(id) FROM inventory), (SELECT MAX(id) FROM inventory),"
+                     + " (SELECT MIN(item) FROM distributor_prices), (SELECT MAX(item) FROM distributor_prices)")) {
+            rs.next();
+            firstInventory = rs.getInt(1);
+            lastInventory = rs.getInt(2);
+            firstItem = rs.getInt(3);
+            lastItem = rs.getInt(4);
+        }
+    }
+
+    /* ─────────── report ─────────── */
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject report(long sent, int stuck, long maxLagNanos, Subscribers subscribers) {
+        JSONObject routes = new JSONObject();
+        long errors = 0;
+        for (Route route : Route.values()) {
+            if (route.latency.count() + route.errors.sum() == 0) continue;
+            routes.put(route.key(), summary(route.label, route.latency, route.errors.sum(), route.statuses));
+            errors += route.errors.sum();
+        }
+        JSONObject total = summary(null, ALL, errors, null);
+        total.put("sent", sent);
+        total.put("unfinished", stuck);
+
+        JSONObject sse = new JSONObject();
+        sse.put("subscribers", SSE);
+        sse.put("connected", subscribers.connected.get());
+        sse.put("events", subscribers.events.sum());
+
+        JSONObject out = new JSONObject();
+        out.put("dataset", DATASET);
+        out.put("rate", RATE);
+        out.put("seconds", MEASURE_S);
+        out.put("warmup_seconds", WARMUP_S);
+        out.put("seed", SEED);
+        out.put("mix", MIX);
+        out.put("java", System.getProperty("java.version"));
+        out.put("threads", System.getProperty("server.threads", "platform"));
+        out.put("routes", routes);
+        out.put("total", total);
+        out.put("sse", sse);
+        out.put("max_send_lag_ms", ms(maxLagNanos));
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject summary(String label, LatencyHistogram latency, long errors, Map<Integer, LongAdder> statuses) {
+        JSONObject s = new JSONObject();
+        if (label != null) s.put("route", label);
+        s.put("requests", latency.count() + errors);
+        s.put("errors", errors);
+        s.put("throughput", Math.round(latency.count() * 10.0 / MEASURE_S) / 10.0);
+        s.put("p50_ms", ms(latency.percentile(50)));
+        s.put("p99_ms", ms(latency.percentile(99)));
+        s.put("p999_ms", ms(latency.percentile(99.9)));
+        s.put("max_ms", ms(latency.percentile(100)));
+        if (statuses != null) {
+            JSONObject codes = new JSONObject();
+            new TreeMap<>(statuses).forEach((code, n) -> codes.put(code < 0 ? "io_error" : code.toString(), n.sum()));
+            s.put("statuses", codes);
+        }
+        return s;
+    }
+
+    // bucket bounds are the histogram's 12.5% resolution, so three decimals say all there is
+    private static double ms(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+
+    // p99 and throughput per route against an earlier report; 1 when a p99 regressed past the threshold
+    private static int compare(String baselinePath, JSONObject report) throws Exception {
+        JSONObject base;
+        try (Reader r = new FileReader(baselinePath)) {
+            base = (JSONObject) new JSONParser().parse(r);
+        }
+        JSONObject before = (JSONObject) base.get("routes"), now = (JSONObject) report.get("routes");
+        int regressions = 0;
+        System.out.printf("%-12s %12s %12s %9s %12s %12s%n", "route", "base p99 ms", "p99 ms", "change", "base req/s", "req/s");
+        List<String> keys = new ArrayList<>(now.keySet());
+        keys.add("total");
+        for (String key : keys) {
+            JSONObject was = key.equals("total") ? (JSONObject) base.get("total") : (JSONObject) before.get(key);
+            JSONObject is = key.equals("total") ? (JSONObject) report.get("total") : (JSONObject) now.get(key);
+            if (was == null) continue;
+            double p99Was = ((Number) was.get("p99_ms")).doubleValue(), p99Now = ((Number) is.get("p99_ms")).doubleValue();
+            double change = p99Was == 0 ? 0 : (p99Now - p99Was) / p99Was * 100.0;
+            boolean regressed = change > THRESHOLD;
+            if (regressed) regressions++;
+            System.out.printf("%-12s %12.3f %12.3f %+8.1f%% %12s %12s%s%n", key, p99Was, p99Now, change,
+                    was.get("throughput"), is.get("throughput"), regressed ? "  REGRESSION" : "");
+        }
+        if (((Number) base.get("rate")).intValue() != RATE || !MIX.equals(base.get("mix"))) {
+            System.out.println("note: the baseline ran a different rate or mix");
+        }
+        System.out.println(regressions == 0 ? "no p99 regressions over " + THRESHOLD + "%"
+                : regressions + " p99 regression(s) over " + THRESHOLD + "%");
+        return regressions == 0 ? 0 : 1;
+    }
+
+    /* ─────────── SSE subscribers ─────────── */
+
+    // one reader thread per stream, counting events until closed
+    private static final class Subscribers {
+        final int port, count;
+        final AtomicInteger connected = new AtomicInteger();
+        final LongAdder events = new LongAdder();
+        private final List<Socket> sockets = new ArrayList<>();
+
+        Subscribers(int port, int count) {
+            this.port = port;
+            this.count = count;
+        }
+
+        // returns once every stream has had its first event, or after 10 s
+        void open() throws InterruptedException {
+            CountDownLatch first = new CountDownLatch(count);
+            for (int i = 0; i < count; i++) {
+                Thread t = new Thread(() -> read(first), "sse-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            if (!first.await(10, TimeUnit.SECONDS)) System.out.println("only " + connected.get() + " of " + count + " SSE streams opened");
+        }
+
+        private void read(CountDownLatch first) {
+            Socket s = new Socket();
+            synchronized (sockets) {
+                sockets.add(s);
+            }
+            boolean counted = false;
+            try {
+                s.connect(new InetSocketAddress("localhost", port), 5_000);
+                s.getOutputStream().write("GET /stream/inventory HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                InputStream in = s.getInputStream();
+                BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (!line.startsWith("data:")) continue;
+                    events.increment();
+                    if (!counted) {
+                        counted = true;
+                        connected.incrementAndGet();
+                        first.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                // closed at the end of the run, or never connected
+            } finally {
+                if (!counted) first.countDown();
+            }
+        }
+
+        void close() {
+            synchronized (sockets) {
+                for (Socket s : sockets) {
+                    try {
+                        s.close();
+                    } catch (IOException ignored) {
+                        // nothing to do
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * JSON against columnar CBOR for the routes that negotiate it: encode* is the server's
+ * cost per response (read model or SQL through the writer into a sink), decode* a
+ * client's (json-simple's parser against CborDecoder, both down to one map per row).
+ * Body sizes, raw and gzipped, are printed once per trial.
+ *
+ *   mvn -P bench test-compile exec:exec@jmh -Djmh.args="ResponseFormatBench -p dataset=10k"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class ResponseFormatBench {
+
+    @Param({"seed", "10k", "1m"})
+    public String dataset;
+
+    // /inventory, /distributors/:id/items, /items/:id/distributors
+    @Param({"inventory", "distributor_items", "item_distributors"})
+    public String route;
+
+    private int id;
+    private byte[] json, cbor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchData.open(dataset);
+        // the generated rows when there are any: distributor 1000 sells ~1% of them, items have three offers
+        id = BenchData.size(dataset) == 0 ? 1 : BenchData.FIRST_ID;
+        json = body(ResultFormat.JSON);
+        cbor = body(ResultFormat.CBOR);
+        System.out.printf("%n%s @ %s: json %d bytes (%d gzipped), cbor %d bytes (%d gzipped), %.0f%% of json%n",
+                route, dataset, json.length, gzipped(json), cbor.length, gzipped(cbor), 100.0 * cbor.length / json.length);
+    }
+
+    private void write(OutputStream out, ResultFormat format) throws IOException {
+        switch (route) {
+            case "inventory":         DatabaseManager.writeAllInventory(out, format); break;
+            case "distributor_items": DatabaseManager.writeOfferingsByDistributor(id, out, format); break;
+            case "item_distributors": DatabaseManager.writeOfferingsByItem(id, out, format); break;
+            default:                  throw new IllegalArgumentException("unknown route " + route);
+        }
+    }
+
+    private byte[] body(ResultFormat format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, format);
+        return out.toByteArray();
+    }
+
+    private static int gzipped(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(body);
+        }
+        return out.size();
+    }
+
+    // discards bytes but keeps the count so the writes can't be optimized away
+    private static final class CountingSink extends OutputStream {
+        long bytes;
+
+        @Override public void write(int b) { bytes++; }
+        @Override public void write(byte[] b, int off, int len) { bytes += len; }
+    }
+
+    /* server: encode */
+
+    @Benchmark
+    public long encodeJson() throws IOException {
+        CountingSink out = new CountingSink();
+        write(out, ResultFormat.JSON);
+        return out.bytes;
+    }
+
+    @Benchmark
+    public long encodeCbor() throws IOException {
+        CountingSink out = new CountingSink();
+        write(out, ResultFormat.CBOR);
+        return out.bytes;
+    }
+
+    /* client: decode */
+
+    @Benchmark
+    public Object decodeJson() throws Exception {
+        return new JSONParser().parse(new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> decodeCbor() throws IOException {
+        return CborDecoder.rows(cbor);
+    }
+}
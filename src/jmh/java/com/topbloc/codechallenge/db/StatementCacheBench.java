@@ -0,0 +1,58 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call latency of the two point lookups with and without the prepared statement
+ * cache (cacheSize=0 prepares and closes a statement on every call, as before the cache).
+ * The read model and price book are switched off so both calls reach SQLite.
+ *
+ *   mvn -P bench test-compile exec:exec@jmh -Djmh.args="StatementCacheBench"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dreadmodel.enabled=false", "-Dpricebook.enabled=false"})
+public class StatementCacheBench {
+
+    @Param({"0", "64"})
+    public String cacheSize;
+
+    @Param({"seed", "10k"})
+    public String dataset;
+
+    private int firstItem, lastItem;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // read once when the pool opens its first connection, so it has to be set before BenchData.open
+        System.setProperty("db.statementCacheSize", cacheSize);
+        BenchData.open(dataset);
+        int n = BenchData.size(dataset);
+        firstItem = n == 0 ? 1 : BenchData.FIRST_ID;
+        lastItem = n == 0 ? 17 : BenchData.FIRST_ID + n - 1;
+    }
+
+    private int randomItem() {
+        return ThreadLocalRandom.current().nextInt(firstItem, lastItem + 1);
+    }
+
+    @Benchmark
+    public JSONArray getInventoryById() {
+        // generated inventory rows follow the 17 seed rows in item id order
+        int id = dataset.equals("seed") ? randomItem() : randomItem() - BenchData.FIRST_ID + 18;
+        return DatabaseManager.getInventoryById(id);
+    }
+
+    @Benchmark
+    public JSONObject getCheapestOffer() {
+        return DatabaseManager.getCheapestOffer(randomItem(), 25);
+    }
+}
@@ -0,0 +1,231 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseBusyException;
+import com.topbloc.codechallenge.db.DatabaseManager;
+import spark.Route;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrency limits per route class, so a spike is turned away at the door instead of
+ * piling up behind the database pool and the Jetty queue until everything times out at once.
+ *
+ *   read     cheap GETs: single rows, lists, look-ups, the change feed
+ *   bulk     GETs that stream a whole table (/export); fewer slots than the pool has readers
+ *   write    POST/PUT/DELETE and /reset
+ *
+ * A request runs if its class has fewer than limit requests in flight, otherwise it waits in
+ * the class's queue for at most admission.<class>.queueTimeoutMs. A full queue, or a wait that
+ * runs out, is answered 503 with Retry-After straight away. Bulk requests also stand aside
+ * while a read or write is queued, so exports only ever get what the other classes leave over.
+ * SSE streams, diagnostics and /metrics are never limited: streams hold no worker thread and
+ * their keep-alives go out from the broadcaster's own thread, which the capped exports can't
+ * starve of a read connection.
+ *
+ * Each limit adapts to the latency it sees (a gradient limiter): while recent latency stays
+ * near the long-run average the limit creeps up, and once requests slow down (queueing
+ * inside SQLite or the pool) it shrinks in proportion, never past its class's bounds. A
+ * request that found the database too busy to run at all (DatabaseBusyException) halves it.
+ */
+final class AdmissionControl {
+
+    static final boolean ENABLED = !"false".equals(System.getProperty("admission.enabled"));
+
+    enum RouteClass {
+        // initial, min and max limit, queue length, queue timeout ms, Retry-After s
+        READ(32, 4, 256, 256, 1_000, 1),
+        // each export holds a read connection while it scans, so at least one is always left to the reads
+        BULK(Math.max(1, DatabaseManager.READ_CONNECTIONS / 2), 1, Math.max(1, DatabaseManager.READ_CONNECTIONS - 1), 4, 2_000, 5),
+        WRITE(16, 2, 64, 512, 2_000, 1);
+
+        final Limiter limiter;
+        final long retryAfterSec;
+
+        RouteClass(int initial, int min, int max, int queue, long queueTimeoutMs, long retryAfterSec) {
+            String p = "admission." + name().toLowerCase(Locale.ROOT) + ".";
+            this.limiter = new Limiter(
+                    Integer.getInteger(p + "initialLimit", initial),
+                    Integer.getInteger(p + "minLimit", min),
+                    Integer.getInteger(p + "maxLimit", max),
+                    Integer.getInteger(p + "maxQueue", queue),
+                    Long.getLong(p + "queueTimeoutMs", queueTimeoutMs));
+            this.retryAfterSec = Long.getLong(p + "retryAfterSec", retryAfterSec);
+        }
+    }
+
+    static {
+        // exports give way to queued reads and writes
+        RouteClass.BULK.limiter.yieldTo(RouteClass.READ.limiter, RouteClass.WRITE.limiter);
+    }
+
+    private AdmissionControl() {
+    }
+
+    static Route wrap(RouteClass cls, Route route) {
+        if (!ENABLED || cls == null) return route;
+        return (req, res) -> {
+            if (!cls.limiter.acquire()) {
+                res.status(503);
+                res.header("Retry-After", Long.toString(cls.retryAfterSec));
+                res.type("application/json");
+                return "{\"error\":\"Server is busy, retry later\",\"retry_after\":" + cls.retryAfterSec + "}";
+            }
+            long t0 = System.nanoTime();
+            boolean busy = false;
+            try {
+                return route.handle(req, res);
+            } catch (DatabaseBusyException e) {
+                busy = true;
+                throw e;
+            } finally {
+                cls.limiter.release(System.nanoTime() - t0, busy);
+            }
+        };
+    }
+
+    // Prometheus text, appended to Metrics.render() by /metrics
+    static String render() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP http_admission_limit Concurrent requests each route class may run, as adapted.\n");
+        sb.append("# TYPE http_admission_limit gauge\n");
+        for (RouteClass c : RouteClass.values()) line(sb, "http_admission_limit", c, null, c.limiter.limit());
+        sb.append("# HELP http_admission_in_flight Requests of each route class running now.\n");
+        sb.append("# TYPE http_admission_in_flight gauge\n");
+        for (RouteClass c : RouteClass.values()) line(sb, "http_admission_in_flight", c, null, c.limiter.inFlight());
+        sb.append("# HELP http_admission_queued Requests of each route class waiting for a slot.\n");
+        sb.append("# TYPE http_admission_queued gauge\n");
+        for (RouteClass c : RouteClass.values()) line(sb, "http_admission_queued", c, null, c.limiter.waiting());
+        sb.append("# HELP http_admission_total Requests by route class and outcome: admitted ran (queued counts those that waited for a slot first), rejected got a 503.\n");
+        sb.append("# TYPE http_admission_total counter\n");
+        for (RouteClass c : RouteClass.values()) {
+            line(sb, "http_admission_total", c, "admitted", c.limiter.admitted.sum());
+            line(sb, "http_admission_total", c, "queued", c.limiter.queued.sum());
+            line(sb, "http_admission_total", c, "rejected", c.limiter.rejected.sum());
+        }
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, RouteClass c, String outcome, long value) {
+        sb.append(name).append("{class=\"").append(c.name().toLowerCase(Locale.ROOT)).append('"');
+        if (outcome != null) sb.append(",outcome=\"").append(outcome).append('"');
+        sb.append("} ").append(value).append('\n');
+    }
+
+    /* ─────────── limiter ─────────── */
+
+    // one class's slots and queue; waiters park on the limiter's monitor
+    static final class Limiter {
+        // recent latency may run this far over the long-run average before the limit shrinks
+        private static final double TOLERANCE = 1.5;
+        private static final double SHORT_WEIGHT = 0.1, LONG_WEIGHT = 0.01, SMOOTHING = 0.2;
+        private static final double BUSY_BACKOFF = 0.5;
+        // how often a bulk waiter looks again at the classes it yields to
+        private static final long YIELD_POLL_MS = 10;
+
+        final int minLimit, maxLimit, maxQueue;
+        final long queueTimeoutMs;
+        final LongAdder admitted = new LongAdder(), queued = new LongAdder(), rejected = new LongAdder();
+
+        private double limit;
+        private int inFlight;
+        // read by the limiters that yield to this one, without this one's lock
+        private volatile int waiting;
+        private double shortRtt, longRtt;
+        private Limiter[] yieldsTo = new Limiter[0];
+
+        Limiter(int initialLimit, int minLimit, int maxLimit, int maxQueue, long queueTimeoutMs) {
+            this.minLimit = Math.max(1, minLimit);
+            this.maxLimit = Math.max(this.minLimit, maxLimit);
+            this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+            this.maxQueue = maxQueue;
+            this.queueTimeoutMs = queueTimeoutMs;
+        }
+
+        void yieldTo(Limiter... others) {
+            yieldsTo = others;
+        }
+
+        // true once a slot is taken (release it), false if the request should be turned away
+        boolean acquire() throws InterruptedException {
+            synchronized (this) {
+                if (mayRun()) return take(false);
+                if (waiting >= maxQueue || queueTimeoutMs <= 0) {
+                    rejected.increment();
+                    return false;
+                }
+                waiting++;
+                try {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+                    while (!mayRun()) {
+                        long leftMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (leftMs <= 0) {
+                            rejected.increment();
+                            return false;
+                        }
+                        // releases elsewhere don't notify this monitor, so yielding waiters poll
+                        wait(yieldsTo.length == 0 ? leftMs : Math.min(leftMs, YIELD_POLL_MS));
+                    }
+                    return take(true);
+                } finally {
+                    waiting--;
+                }
+            }
+        }
+
+        private boolean mayRun() {
+            if (inFlight >= (int) limit) return false;
+            for (Limiter other : yieldsTo) {
+                if (other.waiting > 0) return false;
+            }
+            return true;
+        }
+
+        private boolean take(boolean afterQueueing) {
+            inFlight++;
+            admitted.increment();
+            if (afterQueueing) queued.increment();
+            return true;
+        }
+
+        synchronized void release(long rttNanos) {
+            release(rttNanos, false);
+        }
+
+        // busy: the request timed out waiting on the database, so its latency understates the queueing
+        synchronized void release(long rttNanos, boolean busy) {
+            inFlight--;
+            sample(rttNanos);
+            if (busy) limit = Math.max(minLimit, limit * BUSY_BACKOFF);
+            notifyAll();
+        }
+
+        // gradient = how far recent latency has drifted from the long-run average; below 1 it pulls
+        // the limit down, at 1 a sqrt(limit) step of headroom lets it grow while the slots are in use
+        private void sample(long rttNanos) {
+            shortRtt = shortRtt == 0 ? rttNanos : shortRtt + SHORT_WEIGHT * (rttNanos - shortRtt);
+            longRtt = longRtt == 0 ? rttNanos : longRtt + LONG_WEIGHT * (rttNanos - longRtt);
+            // the long-run average follows recovery at once, so a burst doesn't keep the limit low after it
+            if (shortRtt < longRtt) longRtt = shortRtt;
+
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+            // a class using under half its slots isn't telling the limiter anything about more of them
+            double headroom = gradient == 1.0 && inFlight + 1 >= limit / 2 ? Math.sqrt(limit) : 0;
+            double target = limit * gradient + headroom;
+            limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+        }
+
+        synchronized int limit() {
+            return (int) limit;
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        int waiting() {
+            return waiting;
+        }
+    }
+}
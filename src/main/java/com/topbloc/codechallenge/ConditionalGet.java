@@ -0,0 +1,141 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.db.ResultFormat;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ETag / Last-Modified validators for GET routes, built from DatabaseManager's per-table
+ * write counters. The check is a few array reads and a string compare and runs before
+ * the route, so a client holding current data gets a 304 without SQLite or the in-memory
+ * models being touched.
+ *
+ * Data routes are sent "Cache-Control: no-cache" (keep it, but revalidate every time);
+ * routes without a table list get "no-store". nginx micro-caches the former, see
+ * candy-client/nginx.conf. A data route that throws, or answers with anything but a 2xx
+ * (a 400, AdmissionControl's 503), loses its validators and is sent "no-store" too, so an
+ * error body is never revalidated as if it were the data.
+ *
+ * Routes that negotiate their encoding from Accept (JSON or CBOR) get a separate ETag per
+ * encoding and "Vary: Accept", 304s included, so neither a client nor nginx can take
+ * one encoding's validator or cached body for the other's.
+ */
+final class ConditionalGet {
+
+    // changes on every start, so an ETag handed out by an earlier process never matches
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private ConditionalGet() {
+    }
+
+    // the last ETag built for a route, reused until its data version moves
+    private static final class Tag {
+        final long version;
+        final String etag, cborEtag;
+
+        Tag(long version) {
+            this.version = version;
+            this.etag = "W/\"" + EPOCH + "-" + version + "\"";
+            this.cborEtag = "W/\"" + EPOCH + "-" + version + "-cbor\"";
+        }
+    }
+
+    static Route wrap(String[] tables, Route route) {
+        return wrap(tables, false, route);
+    }
+
+    // tables == null: not cacheable; negotiated: the route's body depends on Accept
+    static Route wrap(String[] tables, boolean negotiated, Route route) {
+        if (tables == null) {
+            return (req, res) -> {
+                res.header("Cache-Control", "no-store");
+                return route.handle(req, res);
+            };
+        }
+        int[] ids = DatabaseManager.tableIds(tables);
+        AtomicReference<Tag> last = new AtomicReference<>(new Tag(DatabaseManager.dataVersion(ids)));
+        return (req, res) -> {
+            // read before the route reads its data: a write landing in between leaves the
+            // ETag older than the body, which only costs the client one extra full response
+            long version = DatabaseManager.dataVersion(ids);
+            long modified = DatabaseManager.lastModified(ids);
+            Tag tag = last.get();
+            if (tag.version != version) last.set(tag = new Tag(version));
+            String etag = tag.etag;
+            if (negotiated) {
+                res.header("Vary", "Accept");
+                if (ResultFormat.forAccept(req.headers("Accept")) == ResultFormat.CBOR) etag = tag.cborEtag;
+            }
+
+            res.header("ETag", etag);
+            res.header("Cache-Control", "no-cache");
+            long now = System.currentTimeMillis();
+            // a Last-Modified in the current second could be followed by another write in
+            // that same second, so it is only sent once the second has passed
+            if (modified > 0 && modified / 1000 < now / 1000) res.header("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(modified)));
+            if (notModified(req, etag, modified, now)) {
+                res.status(304);
+                return "";
+            }
+            Object body;
+            try {
+                body = route.handle(req, res);
+            } catch (Exception e) {
+                uncacheable(res);
+                throw e;
+            }
+            // Spark's route-side response wrapper doesn't delegate status(); the servlet response has it
+            int status = res.raw().getStatus();
+            if (status < 200 || status > 299) uncacheable(res);
+            return body;
+        };
+    }
+
+    // an error body describes no version of the data, so nothing may revalidate it
+    private static void uncacheable(Response res) {
+        res.raw().setHeader("ETag", null);
+        res.raw().setHeader("Last-Modified", null);
+        res.raw().setHeader("Cache-Control", "no-store");
+    }
+
+    private static boolean notModified(Request req, String etag, long modified, long now) {
+        String ifNoneMatch = req.headers("If-None-Match");
+        // If-None-Match wins whenever it is present
+        if (ifNoneMatch != null) return matches(ifNoneMatch, etag);
+        return notModifiedSince(req.headers("If-Modified-Since"), modified, now);
+    }
+
+    // weak comparison against a header like: W/"x", "y"  or  *
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.equals(etag)) return true;
+        String opaque = etag.substring(2);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String c = candidate.trim();
+            if (c.equals("*")) return true;
+            if (c.startsWith("W/")) c = c.substring(2);
+            if (c.equals(opaque)) return true;
+        }
+        return false;
+    }
+
+    static boolean notModifiedSince(String ifModifiedSince, long modified, long now) {
+        if (ifModifiedSince == null) return false;
+        try {
+            long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toInstant().toEpochMilli();
+            // only seconds we would have sent as Last-Modified ourselves can validate
+            return modified > 0 && modified / 1000 < now / 1000 && modified / 1000 <= since / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+}
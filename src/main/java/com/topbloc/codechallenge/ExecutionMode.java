@@ -0,0 +1,108 @@
+package com.topbloc.codechallenge;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import spark.Spark;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.embeddedserver.jetty.SocketConnectorFactory;
+import spark.globalstate.ServletFlag;
+import spark.http.matching.MatcherFilter;
+import spark.route.ServletRoutes;
+import spark.staticfiles.StaticFilesConfiguration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Which threads run requests, picked with -Dserver.threads:
+ *
+ *   platform (default)  Spark's own Jetty on a fixed pool of -Dserver.maxThreads (Jetty's
+ *                       200 when unset). A blocking route, e.g. an /export whose client
+ *                       reads slowly, holds one of those threads until it is done.
+ *   virtual             the same routes on a Jetty server whose executor starts a virtual
+ *                       thread per task, so slow clients cost a parked thread, not a pool
+ *                       slot. JDBC is still bounded, by ConnectionPool's permits.
+ *
+ * The build targets Java 11, so virtual threads (JDK 21+) are looked up reflectively. On
+ * an older runtime "virtual" falls back to an unbounded platform thread per task, which
+ * shows the same queueing behaviour but pays a full thread per slow client.
+ */
+final class ExecutionMode {
+
+    static final String MODE      = System.getProperty("server.threads", "platform");
+    static final int MAX_THREADS  = Integer.getInteger("server.maxThreads", -1);
+    static final int PORT         = Integer.getInteger("server.port", 4567);
+
+    private ExecutionMode() {
+    }
+
+    // call before the first route is mapped
+    static void install() {
+        switch (MODE) {
+            case "platform":
+                Spark.port(PORT);
+                if (MAX_THREADS > 0) Spark.threadPool(MAX_THREADS);
+                break;
+            case "virtual":
+                // Spark's embedded server always builds its own QueuedThreadPool, so routes are
+                // collected the way a servlet deployment would and served by start() below
+                ServletFlag.runFromServlet();
+                break;
+            default:
+                throw new IllegalArgumentException("server.threads must be platform or virtual, not " + MODE);
+        }
+    }
+
+    // call once every route is mapped; returns when the server accepts connections
+    static void start() throws Exception {
+        if (!"virtual".equals(MODE)) {
+            Spark.init();
+            Spark.awaitInitialization();
+            return;
+        }
+        MatcherFilter filter = new MatcherFilter(ServletRoutes.get(), StaticFilesConfiguration.servletInstance, false, false);
+        filter.init(null);
+        // acceptors and selectors run on the executor too; the selector parks like any other blocking call
+        Server server = new Server(new ExecutorThreadPool(executor()));
+        ServerConnector connector = SocketConnectorFactory.createSocketConnector(server, "0.0.0.0", PORT);
+        server.setConnectors(new Connector[]{connector});
+        server.setHandler(new JettyHandler(filter));
+        server.start();
+        // virtual threads are daemons: something has to keep the JVM up
+        Thread keeper = new Thread(() -> {
+            try {
+                server.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "server-join");
+        keeper.start();
+        System.out.println("Serving requests on virtual threads");
+    }
+
+    static ExecutorService executor() {
+        ExecutorService virtual = virtualThreadExecutor();
+        if (virtual != null) return virtual;
+        System.out.println("Virtual threads need Java 21+, running " + System.getProperty("java.version")
+                + ": falling back to a platform thread per request");
+        AtomicLong n = new AtomicLong();
+        return Executors.newCachedThreadPool(r -> new Thread(r, "http-" + n.incrementAndGet()));
+    }
+
+    // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-", 1).factory()), or null before Java 21
+    static ExecutorService virtualThreadExecutor() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+            b = builder.getMethod("name", String.class, long.class).invoke(b, "http-", 1L);
+            ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(b);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseBusyException;
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Single producer behind /stream/inventory. The inventory query runs once per
+ * change (not once per subscriber per tick), each event is serialized once and
+ * the same bytes are queued to every subscriber, and subscribers are drained
+ * with servlet non-blocking writes so an open stream holds no Jetty thread.
+ *
+ * Wire format: full snapshots are unnamed events (the client's onmessage),
+ * deltas are "event: delta" with {"upserted":[rows],"deleted":[ids]}. Every
+ * event carries an id so a reconnecting EventSource can resume from
+ * Last-Event-ID; anything older than the replay window gets a snapshot.
+ */
+public class InventoryBroadcaster {
+
+    static final long SNAPSHOT_INTERVAL_MS  = Long.getLong("sse.snapshotIntervalMs", 60_000L);
+    static final long HEARTBEAT_INTERVAL_MS = Long.getLong("sse.heartbeatIntervalMs", 15_000L);
+    static final long DEBOUNCE_MS           = Long.getLong("sse.debounceMs", 50L);
+    static final int  HISTORY               = Integer.getInteger("sse.history", 512);
+    static final int  MAX_PENDING           = Integer.getInteger("sse.maxPendingFrames", 64);
+
+    private static final byte[] HEARTBEAT = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    // where the inventory rows come from; a failed read throws instead of looking like an empty table
+    interface Source {
+        JSONArray load() throws SQLException;
+    }
+
+    private final Source source;
+    private final ScheduledExecutorService producer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "inventory-broadcaster");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Consumer<String> changeListener = this::onTableChanged;
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    /* producer state, guarded by this */
+    // ids start at wall-clock millis so they keep increasing across restarts
+    private long seq = System.currentTimeMillis();
+    private boolean stale = true;
+    private Map<Long, String> rows = new HashMap<>();
+    private byte[] snapshotFrame;
+    private final ArrayDeque<Event> history = new ArrayDeque<>();
+
+    private static final class Event {
+        final long id;
+        final byte[] frame;
+        Event(long id, byte[] frame) { this.id = id; this.frame = frame; }
+    }
+
+    public InventoryBroadcaster() {
+        this(DatabaseManager::loadAllInventory);
+    }
+
+    InventoryBroadcaster(Source source) {
+        this.source = source;
+    }
+
+    public void start() {
+        DatabaseManager.addChangeListener(changeListener);
+        producer.scheduleWithFixedDelay(this::periodicSnapshot, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        producer.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        DatabaseManager.removeChangeListener(changeListener);
+        producer.shutdownNow();
+        for (Subscriber s : subscribers) s.close();
+    }
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    /* ─────────── producer side ─────────── */
+
+    void onTableChanged(String table) {
+        if (!table.equals("inventory") && !table.equals("items")) return;
+        synchronized (this) {
+            stale = true;
+        }
+        // coalesce bursts of writes into one query
+        if (subscribers.isEmpty() || !refreshQueued.compareAndSet(false, true)) return;
+        producer.schedule(() -> {
+            refreshQueued.set(false);
+            refresh();
+        }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh() {
+        List<Subscriber> targets;
+        synchronized (this) {
+            if (!stale) return;
+            Event delta = tryReload();
+            if (delta == null) return;
+            targets = enqueueAll(delta.frame);
+        }
+        drainAll(targets);
+    }
+
+    // catches writes made behind DatabaseManager's back and keeps idle proxies from timing out
+    private void periodicSnapshot() {
+        if (subscribers.isEmpty()) return;
+        List<Subscriber> targets;
+        synchronized (this) {
+            stale = true;
+            tryReload();
+            targets = enqueueAll(snapshotFrame);
+        }
+        drainAll(targets);
+    }
+
+    private void heartbeat() {
+        List<Subscriber> targets;
+        synchronized (this) {
+            targets = enqueueAll(HEARTBEAT);
+        }
+        drainAll(targets);
+    }
+
+    // re-run the query, rebuild the snapshot frame and return the delta event (null if unchanged)
+    private Event reload() throws SQLException {
+        JSONArray all = source.load();
+        Map<Long, String> next = new HashMap<>(all.size() * 2);
+        JSONArray upserted = new JSONArray();
+        for (Object o : all) {
+            JSONObject row = (JSONObject) o;
+            long id = ((Number) row.get("id")).longValue();
+            String json = row.toJSONString();
+            next.put(id, json);
+            if (!json.equals(rows.get(id))) upserted.add(row);
+        }
+        JSONArray deleted = new JSONArray();
+        for (Long id : rows.keySet()) {
+            if (!next.containsKey(id)) deleted.add(id);
+        }
+        boolean first = snapshotFrame == null;
+        rows = next;
+        stale = false;
+        if (!first && upserted.isEmpty() && deleted.isEmpty()) return null;
+
+        long id = ++seq;
+        snapshotFrame = frame(id, null, all.toJSONString());
+        if (first) return null;
+
+        JSONObject body = new JSONObject();
+        body.put("upserted", upserted);
+        body.put("deleted", deleted);
+        Event e = new Event(id, frame(id, "delta", body.toJSONString()));
+        history.addLast(e);
+        while (history.size() > HISTORY) history.removeFirst();
+        return e;
+    }
+
+    // reload(), or null when the database is busy or the read failed: rows and the snapshot stay as they
+    // were and the state stays stale for the next write or snapshot tick
+    private Event tryReload() {
+        try {
+            return reload();
+        } catch (DatabaseBusyException e) {
+            return null;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static byte[] frame(long id, String event, String data) {
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        sb.append("id: ").append(id).append('\n');
+        if (event != null) sb.append("event: ").append(event).append('\n');
+        sb.append("data: ").append(data).append("\n\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // callers hold the producer lock so frames land in the same order on every subscriber
+    private List<Subscriber> enqueueAll(byte[] frame) {
+        List<Subscriber> targets = new ArrayList<>(subscribers);
+        for (Subscriber s : targets) s.enqueue(frame);
+        return targets;
+    }
+
+    private static void drainAll(List<Subscriber> targets) {
+        for (Subscriber s : targets) s.drain();
+    }
+
+    /* ─────────── subscriber side ─────────── */
+
+    // called on the request thread; returns once the stream is handed to async I/O
+    public void subscribe(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        synchronized (this) {
+            // the very first stream needs a snapshot to start from; load it while a busy database can still get a 503
+            if (snapshotFrame == null) {
+                try {
+                    reload();
+                } catch (SQLException e) {
+                    throw new IOException("Inventory read failed: " + e.getMessage(), e);
+                }
+            }
+        }
+        res.setStatus(200);
+        res.setContentType("text/event-stream");
+        res.setCharacterEncoding("UTF-8");
+        res.setHeader("Cache-Control", "no-cache");
+        res.setHeader("Connection", "keep-alive");
+        res.setHeader("X-Accel-Buffering", "no");
+
+        AsyncContext ctx = req.startAsync(req, res);
+        ctx.setTimeout(0);
+        // commit headers now so Spark leaves the response alone once the route returns
+        res.flushBuffer();
+
+        Subscriber sub = new Subscriber(ctx, res.getOutputStream());
+        ctx.addListener(sub);
+        // non-blocking before the producer can see it: until then isReady() is always true and a
+        // producer drain would block on a slow client, stalling every other stream with it
+        sub.output.setWriteListener(sub);
+
+        long lastEventId = parseId(req.getHeader("Last-Event-ID"));
+        List<Subscriber> targets = Collections.emptyList();
+        synchronized (this) {
+            // first subscriber after a quiet period pays for the query
+            if (stale) {
+                Event delta = tryReload();
+                if (delta != null) targets = enqueueAll(delta.frame);
+            }
+            catchUp(sub, lastEventId);
+            subscribers.add(sub);
+        }
+        drainAll(targets);
+        // the container's first onWritePossible may have found nothing queued yet; this never blocks
+        sub.drain();
+    }
+
+    // replay the deltas a reconnecting client missed, or fall back to a snapshot
+    private void catchUp(Subscriber sub, long lastEventId) {
+        if (lastEventId == seq) return;
+        Event oldest = history.peekFirst();
+        if (lastEventId > 0 && lastEventId < seq && oldest != null && oldest.id <= lastEventId + 1) {
+            for (Event e : history) {
+                if (e.id > lastEventId) sub.enqueue(e.frame);
+            }
+            return;
+        }
+        sub.enqueue(snapshotFrame);
+    }
+
+    private static long parseId(String header) {
+        if (header == null) return -1;
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private final class Subscriber implements WriteListener, AsyncListener {
+        final AsyncContext ctx;
+        final ServletOutputStream output;
+        final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pendingCount = new AtomicInteger();
+        final AtomicBoolean closed = new AtomicBoolean();
+        boolean needsFlush;
+
+        Subscriber(AsyncContext ctx, ServletOutputStream output) {
+            this.ctx = ctx;
+            this.output = output;
+        }
+
+        void enqueue(byte[] frame) {
+            if (pendingCount.incrementAndGet() > MAX_PENDING) {
+                // slow reader: drop the backlog and resync it with the latest snapshot
+                synchronized (this) {
+                    pending.clear();
+                    pendingCount.set(1);
+                    pending.add(snapshotFrame);
+                }
+                return;
+            }
+            pending.add(frame);
+        }
+
+        // write as much as the socket takes without blocking; the container calls back when it can take more
+        synchronized void drain() {
+            if (closed.get()) return;
+            try {
+                while (output.isReady()) {
+                    byte[] next = pending.poll();
+                    if (next == null) {
+                        if (!needsFlush) return;
+                        needsFlush = false;
+                        output.flush();
+                        continue;
+                    }
+                    pendingCount.decrementAndGet();
+                    output.write(next);
+                    needsFlush = true;
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            subscribers.remove(this);
+            try {
+                ctx.complete();
+            } catch (IllegalStateException ignored) {
+                // already completed by the container
+            }
+        }
+
+        @Override public void onWritePossible() { drain(); }
+        @Override public void onError(Throwable t) { close(); }
+
+        @Override public void onComplete(AsyncEvent event) { close(); }
+        @Override public void onTimeout(AsyncEvent event) { close(); }
+        @Override public void onError(AsyncEvent event) { close(); }
+        @Override public void onStartAsync(AsyncEvent event) { }
+    }
+}
@@ -1,16 +1,37 @@
 package com.topbloc.codechallenge;
 
+import com.topbloc.codechallenge.db.DatabaseBusyException;
 import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.db.ResultFormat;
+import com.topbloc.codechallenge.metrics.Metrics;
+import org.json.simple.JSONObject;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import spark.Spark;
 
 import static spark.Spark.*;
 
-
-import java.io.PrintWriter;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 
 public class Main {
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws Exception {
         DatabaseManager.connect();
+        // -Dserver.threads=virtual serves requests on virtual threads, see ExecutionMode
+        ExecutionMode.install();
+
+        // request timing brackets everything else; the route itself is tagged by the route wrappers below
+        before((req, res) -> Metrics.requestStarted());
+        after((req, res) -> Metrics.requestFinished(res.raw().getStatus()));
 
         before((req, res) -> res.header("Access-Control-Allow-Origin", "*"));
 
@@ -28,67 +49,348 @@ public class Main {
         });
 
         // JSON error handler
+        // a request that gave up waiting for the database is overload, not a bad request: 503 and try again;
+        // any other failed query is the server's fault (500)
         exception(Exception.class, (e, req, res) -> {
+            int status = overloaded(e) ? 503 : causedBy(e, SQLException.class) ? 500 : 400;
             res.type("application/json");
-            res.status(400);
+            res.status(status);
+            if (status == 503) res.header("Retry-After", "1");
             String safe = (e.getMessage() == null ? " error" : e.getMessage()).replace("\"", "\\\"");
             res.body("{\"error\":\"" + safe + "\"}");
+            // Spark skips after filters once a route throws
+            Metrics.requestFinished(status);
         });
 
+        // named fixtures: POST /snapshots/big-catalog saves the current data, .../restore brings it back
+        get("/snapshots",                 (req, res) -> { res.type("application/json"); return DatabaseManager.listSnapshots().toJSONString(); });
+        post("/snapshots/:name",          (req, res) -> DatabaseManager.saveSnapshot(req.params("name")).toJSONString());
+        post("/snapshots/:name/restore",  (req, res) -> DatabaseManager.restoreSnapshot(req.params("name")).toJSONString());
+        delete("/snapshots/:name",        (req, res) -> DatabaseManager.deleteSnapshot(req.params("name")).toJSONString());
+
         //  version string
         get("/version", (req, res) -> "TopBloc Code Challenge v1.0");
 
         /* ---Item route---*/
 
-        get("/items",  (req, res) -> DatabaseManager.getItems());
+        // list routes return every row unless asked for pages, see page() below
+        get("/items",  (req, res) -> paged(req) ? page(req, res, "items", 0) : json(res, DatabaseManager::writeItems));
         post("/items", (req, res) -> DatabaseManager.addItem(req.body()));
+        // ?q=sni[&limit=10][&fuzzy=false]: prefix and typo-tolerant name matches, best first, with stock and cheapest offer
+        get("/items/search", (req, res) -> {
+            int limit = req.queryParams("limit") == null ? DatabaseManager.SEARCH_LIMIT_DEFAULT
+                    : Integer.parseInt(req.queryParams("limit"));
+            res.type("application/json");
+            return DatabaseManager.searchItems(req.queryParams("q"), limit, !"false".equals(req.queryParams("fuzzy"))).toJSONString();
+        });
         delete("/items/:id", (req, res) -> DatabaseManager.deleteItem(Integer.parseInt(req.params("id"))).toJSONString());
 
         /* ---  Inventory route---*/
-        get("/inventory",               (req, res) -> DatabaseManager.getAllInventory().toJSONString());
-        get("/inventory/out-of-stock",  (req, res) -> DatabaseManager.getOutOfStock().toJSONString());
-        get("/inventory/overstocked",   (req, res) -> DatabaseManager.getOverstocked().toJSONString());
-        get("/inventory/low-stock",     (req, res) -> DatabaseManager.getLowStock().toJSONString());
-        get("/inventory/:id",           (req, res) -> DatabaseManager.getInventoryById(Integer.parseInt(req.params("id"))).toJSONString());
+        // batch routes go first so "batch" isn't taken for an :id; ?mode=best_effort commits the rows that succeed
+        post("/inventory/batch",        (req, res) -> DatabaseManager.addInventoryBatch(req.body(), atomic(req)).toJSONString());
+        put("/inventory/batch",         (req, res) -> DatabaseManager.updateInventoryBatch(req.body(), atomic(req)).toJSONString());
+        get("/inventory",               (req, res) -> paged(req) ? page(req, res, "inventory", 0) : encoded(req, res, DatabaseManager::writeAllInventory));
+        get("/inventory/out-of-stock",  (req, res) -> json(res, DatabaseManager::writeOutOfStock));
+        get("/inventory/overstocked",   (req, res) -> json(res, DatabaseManager::writeOverstocked));
+        get("/inventory/low-stock",     (req, res) -> json(res, DatabaseManager::writeLowStock));
+        // every panel of the dashboard in one pass: ?low=0.35&over=1&buckets=10 (stock/capacity ratios, histogram buckets)
+        get("/dashboard",               (req, res) -> {
+            double low = req.queryParams("low") == null ? DatabaseManager.DASHBOARD_LOW : Double.parseDouble(req.queryParams("low"));
+            double over = req.queryParams("over") == null ? DatabaseManager.DASHBOARD_OVER : Double.parseDouble(req.queryParams("over"));
+            int buckets = req.queryParams("buckets") == null ? DatabaseManager.DASHBOARD_BUCKETS : Integer.parseInt(req.queryParams("buckets"));
+            return json(res, out -> DatabaseManager.writeDashboard(low, over, buckets, out));
+        });
+        get("/inventory/:id",           (req, res) -> { int id = Integer.parseInt(req.params("id")); return json(res, out -> DatabaseManager.writeInventoryById(id, out)); });
         post("/inventory",              (req, res) -> DatabaseManager.addInventory(req.body()).toJSONString());
         put("/inventory/:id",           (req, res) -> DatabaseManager.updateInventory(Integer.parseInt(req.params("id")), req.body()).toJSONString());
         delete("/inventory/:id",        (req, res) -> DatabaseManager.deleteInventory(Integer.parseInt(req.params("id"))).toJSONString());
+        // {"delta": -1}; ?durability=write_behind acknowledges once journaled (default: -Dstock.durability, sync)
+        post("/inventory/:id/adjust",   (req, res) -> DatabaseManager.adjustStock(Integer.parseInt(req.params("id")), req.body(), durability(req)).toJSONString());
 
         /* --- Distributor routes----*/
-        get("/distributors",                      (req, res) -> DatabaseManager.getDistributors().toJSONString());
+        get("/distributors",                      (req, res) -> paged(req) ? page(req, res, "distributors", 0) : json(res, DatabaseManager::writeDistributors));
         post("/distributors",                     (req, res) -> DatabaseManager.addDistributor(req.body()).toJSONString());
         delete("/distributors/:id",               (req, res) -> DatabaseManager.deleteDistributor(Integer.parseInt(req.params("id"))).toJSONString());
 
-        get("/distributors/:id/items",            (req, res) -> DatabaseManager.getOfferingsByDistributor(Integer.parseInt(req.params("id"))).toJSONString());
+        get("/distributors/:id/items",            (req, res) -> { int id = Integer.parseInt(req.params("id")); return paged(req) ? page(req, res, "distributor_items", id) : encoded(req, res, (out, format) -> DatabaseManager.writeOfferingsByDistributor(id, out, format)); });
         post("/distributors/:id/catalog",         (req, res) -> DatabaseManager.addPrice(Integer.parseInt(req.params("id")), req.body()).toJSONString());
+        post("/distributors/:id/catalog/batch",   (req, res) -> DatabaseManager.addPriceBatch(Integer.parseInt(req.params("id")), req.body(), atomic(req)).toJSONString());
         put("/distributors/:id/catalog/:itemId",  (req, res) -> DatabaseManager.updatePrice(Integer.parseInt(req.params("id")), Integer.parseInt(req.params("itemId")), req.body()).toJSONString());
 
         /* --- distributor look‑ups  --- */
-        get("/items/:id/distributors",            (req, res) -> DatabaseManager.getOfferingsByItem(Integer.parseInt(req.params("id"))).toJSONString());
+        get("/items/:id/distributors",            (req, res) -> { int id = Integer.parseInt(req.params("id")); return paged(req) ? page(req, res, "item_distributors", id) : encoded(req, res, (out, format) -> DatabaseManager.writeOfferingsByItem(id, out, format)); });
         get("/items/:id/restock/:quantity/cheapest", (req, res) -> DatabaseManager.getCheapestOffer(Integer.parseInt(req.params("id")), Integer.parseInt(req.params("quantity"))).toJSONString());
+        // ?limit=N cheapest offers, cheapest first (default 5)
+        get("/items/:id/restock/:quantity/offers", (req, res) -> {
+            int limit = req.queryParams("limit") == null ? 5 : Integer.parseInt(req.queryParams("limit"));
+            res.type("application/json");
+            return DatabaseManager.getTopOffers(Integer.parseInt(req.params("id")), Integer.parseInt(req.params("quantity")), limit).toJSONString();
+        });
 
         /* ---- CSV export---*/
-        get("/export", (req, res) -> { res.type("text/csv"); return DatabaseManager.exportTableAsCsv(req.queryParams("table")); });
+        get("/export", Main::exportCsv);
+        // the inverse: POST the CSV an export wrote (or a sheet in the same columns), optionally gzipped
+        post("/import", (req, res) -> {
+            res.type("application/json");
+            return DatabaseManager.importCsv(req.queryParams("table"), rawBody(req)).toJSONString();
+        });
+
+        /* --- change feed ----*/
+        // ?since=<version>[&limit=N]: rows changed after version; 410 means reload everything and start again
+        get("/changes", (req, res) -> {
+            Long since = req.queryParams("since") == null ? null : Long.parseLong(req.queryParams("since"));
+            int limit = req.queryParams("limit") == null ? DatabaseManager.CHANGES_LIMIT_DEFAULT
+                    : Integer.parseInt(req.queryParams("limit"));
+            JSONObject out = DatabaseManager.changesSince(since, limit);
+            if ("resync".equals(out.get("status"))) res.status(410);
+            res.type("application/json");
+            return out.toJSONString();
+        });
 
         /* --- live inventory stream----*/
+        // one producer queries on change and fans out; open streams hold no worker thread
+        InventoryBroadcaster broadcaster = new InventoryBroadcaster();
+        broadcaster.start();
         get("/stream/inventory", (req, res) -> {
-            res.type("text/event-stream");
-            res.header("Cache-Control", "no-cache");
-            res.header("Connection", "keep-alive");
-            PrintWriter out = res.raw().getWriter();
-            while (!Thread.currentThread().isInterrupted()) {
-                out.print("data: " + DatabaseManager.getAllInventory().toJSONString() + "\n\n");
-                out.flush();
-                Thread.sleep(5000);
-            }
-            return null;
+            broadcaster.subscribe(req.raw(), res.raw());
+            return "";
+        });
+
+        /* --- in-memory model diagnostics ----*/
+        // hit/miss/rebuild counters; ?check=true first compares the model against SQLite
+        get("/debug/readmodel", (req, res) -> {
+            res.type("application/json");
+            return ("true".equals(req.queryParams("check"))
+                    ? DatabaseManager.checkReadModel()
+                    : DatabaseManager.readModelStats()).toJSONString();
+        });
+        get("/debug/pricebook", (req, res) -> {
+            res.type("application/json");
+            return DatabaseManager.priceBookStats().toJSONString();
+        });
+        // index size, pending overlay changes, merges and whether fuzzy matching is available
+        get("/debug/search", (req, res) -> {
+            res.type("application/json");
+            return DatabaseManager.searchIndexStats().toJSONString();
+        });
+        // write-behind adjustments waiting for their flush
+        get("/debug/stock", (req, res) -> {
+            res.type("application/json");
+            return DatabaseManager.stockLedgerStats().toJSONString();
+        });
+        // change log version, compaction floor and how much of it is in memory
+        get("/debug/changes", (req, res) -> {
+            res.type("application/json");
+            return DatabaseManager.changeLogStats().toJSONString();
+        });
+        // -Ddb.storage mode and, for memory_snapshot, when the last copy reached disk
+        get("/debug/storage", (req, res) -> {
+            res.type("application/json");
+            return DatabaseManager.storageStats().toJSONString();
+        });
+        // prepared statement reuse across the pool's connections
+        get("/debug/statements", (req, res) -> {
+            res.type("application/json");
+            return DatabaseManager.statementCacheStats().toJSONString();
+        });
+        // ?limit=N: statements by total time, with bind values and EXPLAIN QUERY PLAN for the slow ones
+        get("/debug/queries", (req, res) -> {
+            res.type("application/json");
+            int limit = req.queryParams("limit") == null ? 20 : Integer.parseInt(req.queryParams("limit"));
+            return DatabaseManager.queryStats(limit).toJSONString();
+        });
+
+        /* --- metrics ----*/
+        // Prometheus text format: per-route latency and errors, plus pool wait and query time
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.render() + AdmissionControl.render();
         });
 
         /* --- Start server ----*/
-        init();
-        awaitInitialization();
-        System.out.println("Spark listening to localhost:4567");
+        ExecutionMode.start();
+        System.out.println("Spark listening to localhost:" + ExecutionMode.PORT);
+
+
+    }
+
+    // tables each GET route's response is built from; their write counters make its ETag.
+    // GET routes missing here (reset, streams, diagnostics) are sent no-store.
+    private static final Map<String, String[]> READS = new HashMap<>();
+    static {
+        String[] inventory = {"inventory", "items"};
+        READS.put("/version", new String[0]);
+        READS.put("/items", new String[]{"items"});
+        READS.put("/items/search", new String[]{"items", "inventory", "distributor_prices", "distributors"});
+        READS.put("/inventory", inventory);
+        READS.put("/inventory/out-of-stock", inventory);
+        READS.put("/inventory/overstocked", inventory);
+        READS.put("/inventory/low-stock", inventory);
+        READS.put("/inventory/:id", inventory);
+        READS.put("/dashboard", new String[]{"inventory", "items", "distributor_prices", "distributors"});
+        READS.put("/distributors", new String[]{"distributors"});
+        READS.put("/distributors/:id/items", new String[]{"distributor_prices", "items"});
+        READS.put("/items/:id/distributors", new String[]{"distributor_prices", "distributors"});
+        READS.put("/items/:id/restock/:quantity/cheapest", new String[]{"distributor_prices", "distributors"});
+        READS.put("/items/:id/restock/:quantity/offers", new String[]{"distributor_prices", "distributors"});
+        READS.put("/export", new String[]{"items", "inventory", "distributors", "distributor_prices"});
+        READS.put("/changes", new String[]{"items", "inventory", "distributors", "distributor_prices"});
+    }
+
+    // unpaged, these answer "Accept: application/cbor" with columnar CBOR (see encoded()); pages stay JSON
+    private static final Set<String> NEGOTIATED = new HashSet<>(Arrays.asList(
+            "/inventory", "/distributors/:id/items", "/items/:id/distributors"));
+
+    // GET routes that write as they read; buffering them to share one response would defeat that
+    private static final Set<String> STREAMED = new HashSet<>(Collections.singletonList("/export"));
+
+    // Spark 2.5 can't report which route template matched, so each route is wrapped at registration
+    // to tag the request with its template; these shadow the static Spark.get/post/put/delete/options imports.
+    // Writes take a slot of their own class (AdmissionControl); preflights are never limited.
+    private static void post(String path, Route route)   { Spark.post(path, timed(Metrics.register("POST", path), writes(route))); }
+    private static void put(String path, Route route)    { Spark.put(path, timed(Metrics.register("PUT", path), writes(route))); }
+    private static void delete(String path, Route route) { Spark.delete(path, timed(Metrics.register("DELETE", path), writes(route))); }
+    private static void options(String path, Route route) { Spark.options(path, timed(Metrics.register("OPTIONS", path), route)); }
+
+    private static Route writes(Route route) {
+        return AdmissionControl.wrap(AdmissionControl.RouteClass.WRITE, route);
+    }
+
+    // GET routes with a table list revalidate (ConditionalGet), share concurrent identical runs (SingleFlight),
+    // and only then take an admission slot, so 304s and coalesced followers don't use one
+    private static void get(String path, Route route) {
+        Metrics.RouteStats stats = Metrics.register("GET", path);
+        String[] tables = READS.get(path);
+        boolean negotiated = NEGOTIATED.contains(path);
+        Route admitted = AdmissionControl.wrap(routeClass(path, tables), route);
+        Route shared = tables == null || STREAMED.contains(path) ? admitted : SingleFlight.wrap(tables, negotiated, stats, admitted);
+        Spark.get(path, timed(stats, ConditionalGet.wrap(tables, negotiated, shared)));
+    }
+
+    // streams, diagnostics and /metrics (GETs without a table list) stay reachable under any load
+    private static AdmissionControl.RouteClass routeClass(String path, String[] tables) {
+        if (path.equals("/reset")) return AdmissionControl.RouteClass.WRITE;
+        if (tables == null) return null;
+        return STREAMED.contains(path) ? AdmissionControl.RouteClass.BULK : AdmissionControl.RouteClass.READ;
+    }
 
+    // the pool's "Timed out waiting for ..." (or a busy SQLite) somewhere in the cause chain
+    private static boolean overloaded(Throwable e) {
+        return causedBy(e, DatabaseBusyException.class);
+    }
+
+    private static boolean causedBy(Throwable e, Class<? extends Throwable> type) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (type.isInstance(t)) return true;
+        }
+        return false;
+    }
+
+    private static Route timed(Metrics.RouteStats stats, Route route) {
+        return (req, res) -> {
+            Metrics.routeMatched(stats);
+            return route.handle(req, res);
+        };
+    }
+
+    @FunctionalInterface
+    interface JsonBody {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // JSON read routes write straight into the response; the "" returned to Spark adds nothing
+    private static Object json(Response res, JsonBody body) throws IOException {
+        res.type("application/json");
+        body.writeTo(res.raw().getOutputStream());
+        return "";
+    }
+
+    @FunctionalInterface
+    interface EncodedBody {
+        void writeTo(OutputStream out, ResultFormat format) throws IOException;
+    }
+
+    // like json(), in whichever encoding the Accept header prefers; JSON unless it asks for application/cbor
+    private static Object encoded(Request req, Response res, EncodedBody body) throws IOException {
+        ResultFormat format = ResultFormat.forAccept(req.headers("Accept"));
+        res.type(format.mediaType);
+        body.writeTo(res.raw().getOutputStream(), format);
+        return "";
+    }
+
+    private static final List<String> PAGE_PARAMS = Arrays.asList("limit", "after", "fields", "sort");
+
+    private static boolean paged(Request req) {
+        for (String p : PAGE_PARAMS) {
+            if (req.queryParams(p) != null) return true;
+        }
+        return false;
+    }
+
+    // ?limit=100&after=<next cursor>&fields=id,item_name&sort=name -> {"data": [...], "next": cursor or null}
+    private static Object page(Request req, Response res, String list, int parentId) {
+        int limit = req.queryParams("limit") == null ? DatabaseManager.PAGE_LIMIT_DEFAULT
+                : Integer.parseInt(req.queryParams("limit"));
+        List<String> fields = req.queryParams("fields") == null ? null
+                : Arrays.asList(req.queryParams("fields").split(","));
+        res.type("application/json");
+        return DatabaseManager.listPage(list, parentId, limit, req.queryParams("after"), fields, req.queryParams("sort")).toJSONString();
+    }
+
+    // batch writes are all-or-nothing unless the caller asks for ?mode=best_effort
+    private static boolean atomic(Request req) {
+        return !"best_effort".equals(req.queryParams("mode"));
+    }
+
+    private static String durability(Request req) {
+        String d = req.queryParams("durability");
+        return d == null ? DatabaseManager.STOCK_DURABILITY : d;
+    }
+
+    // Spark's request wrapper copies the whole body into a byte[] on first read; the request it wraps streams
+    private static InputStream rawBody(Request req) throws IOException {
+        ServletRequest raw = req.raw();
+        while (raw instanceof ServletRequestWrapper) raw = ((ServletRequestWrapper) raw).getRequest();
+        InputStream in = raw.getInputStream();
+        return "gzip".equalsIgnoreCase(req.headers("Content-Encoding")) ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    // query params that control the export itself; every other param is an equality filter on a column
+    private static final Set<String> EXPORT_PARAMS = new HashSet<>(Arrays.asList("table", "columns", "fetchSize", "gzip"));
+
+    // /export?table=inventory[&columns=item_name,amount_in_stock][&item_name=Twix][&fetchSize=500][&gzip=false]
+    private static Object exportCsv(Request req, Response res) throws IOException {
+        // checked before the body starts, so a bad request still gets its 400 from the error handler
+        Set<String> known = DatabaseManager.exportColumns(req.queryParams("table"));
+        if (known == null) throw new IllegalArgumentException("Unknown table " + req.queryParams("table"));
+        List<String> columns = req.queryParams("columns") == null ? null
+                : Arrays.asList(req.queryParams("columns").split(","));
+        if (columns != null) {
+            for (String c : columns) {
+                if (!known.contains(c)) throw new IllegalArgumentException("Unknown column " + c + ", expected " + String.join(",", known));
+            }
+        }
+        // any other parameter naming a column filters on it; the rest (a cache buster like _=123) are ignored
+        Map<String, String> filters = new LinkedHashMap<>();
+        for (String p : req.queryParams()) {
+            if (!EXPORT_PARAMS.contains(p) && known.contains(p)) filters.put(p, req.queryParams(p));
+        }
+        int fetchSize = req.queryParams("fetchSize") == null ? DatabaseManager.EXPORT_FETCH_SIZE
+                : Integer.parseInt(req.queryParams("fetchSize"));
+        String acceptEncoding = req.headers("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip")
+                && !"false".equals(req.queryParams("gzip"));
 
+        // no Content-Length, so Jetty sends the body chunked as the writer fills its buffer
+        res.type("text/csv");
+        res.header("Vary", "Accept-Encoding");
+        if (gzip) res.header("Content-Encoding", "gzip");
+        OutputStream out = res.raw().getOutputStream();
+        if (gzip) out = new GZIPOutputStream(out, 1 << 16);
+        DatabaseManager.exportTableAsCsv(req.queryParams("table"), columns, filters, fetchSize, out);
+        if (gzip) ((GZIPOutputStream) out).finish();
+        // commit so Spark doesn't serialize (or gzip) a body of its own on top
+        res.raw().flushBuffer();
+        return "";
     }
 }
\ No newline at end of file
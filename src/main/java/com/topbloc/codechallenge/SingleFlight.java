@@ -0,0 +1,187 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.db.ResultFormat;
+import com.topbloc.codechallenge.metrics.Metrics;
+import spark.Request;
+import spark.RequestResponseFactory;
+import spark.Response;
+import spark.Route;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Coalesces identical concurrent GETs. Requests for the same path and query string that
+ * arrive while one of them is running, at the same data version (see ConditionalGet),
+ * wait for it instead of running the route again, and all of them are sent the one
+ * response it produced: same status, headers and body bytes.
+ *
+ * The leader runs the route against a buffering response; followers wait at most
+ * coalesce.maxWaitMs for it and then run the route themselves. A write landing while
+ * the leader runs moves the data version, so later arrivals start a flight of their own
+ * rather than share a response that may predate the write. On routes that negotiate
+ * their encoding, JSON and CBOR requests fly separately.
+ */
+final class SingleFlight<T> {
+
+    static final long MAX_WAIT_MS = Long.getLong("coalesce.maxWaitMs", 2_000L);
+    static final boolean ENABLED  = !"false".equals(System.getProperty("coalesce.enabled"));
+
+    private final ConcurrentHashMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+    private final long maxWaitMs;
+
+    SingleFlight(long maxWaitMs) {
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    // work's result, computed once for every caller arriving with key while it runs
+    T run(String key, Metrics.RouteStats stats, Callable<T> work) throws Exception {
+        CompletableFuture<T> mine = new CompletableFuture<>();
+        CompletableFuture<T> flight = inFlight.putIfAbsent(key, mine);
+        if (flight == null) {
+            Metrics.singleFlight(stats, Metrics.FlightOutcome.EXECUTED);
+            try {
+                T result = work.call();
+                mine.complete(result);
+                return result;
+            } catch (Exception | Error e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+        try {
+            T result = flight.get(maxWaitMs, TimeUnit.MILLISECONDS);
+            Metrics.singleFlight(stats, Metrics.FlightOutcome.COALESCED);
+            return result;
+        } catch (TimeoutException e) {
+            Metrics.singleFlight(stats, Metrics.FlightOutcome.TIMEOUT);
+            return work.call();
+        } catch (ExecutionException e) {
+            // the leader's failure is this request's too
+            Metrics.singleFlight(stats, Metrics.FlightOutcome.COALESCED);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /* ─────────── routes ─────────── */
+
+    private static final SingleFlight<Captured> ROUTES = new SingleFlight<>(MAX_WAIT_MS);
+
+    static Route wrap(String[] tables, Metrics.RouteStats stats, Route route) {
+        return wrap(tables, false, stats, route);
+    }
+
+    static Route wrap(String[] tables, boolean negotiated, Metrics.RouteStats stats, Route route) {
+        if (!ENABLED) return route;
+        int[] ids = DatabaseManager.tableIds(tables);
+        return (req, res) -> {
+            String key = req.pathInfo() + '?' + sortedQuery(req) + '@' + DatabaseManager.dataVersion(ids);
+            if (negotiated && ResultFormat.forAccept(req.headers("Accept")) == ResultFormat.CBOR) key += "#cbor";
+            return ROUTES.run(key, stats, () -> capture(req, res, route)).writeTo(res);
+        };
+    }
+
+    // the parameters in a fixed order, so ?a=1&b=2 and ?b=2&a=1 share a flight
+    private static String sortedQuery(Request req) {
+        String q = req.queryString();
+        if (q == null || q.isEmpty()) return "";
+        String[] parts = q.split("&");
+        Arrays.sort(parts);
+        return String.join("&", parts);
+    }
+
+    private static Captured capture(Request req, Response res, Route route) throws Exception {
+        BufferedResponse buffer = new BufferedResponse(res.raw());
+        Object returned = route.handle(req, RequestResponseFactory.create(buffer));
+        buffer.flushWriter();
+        if (returned != null) buffer.body.write(returned.toString().getBytes(StandardCharsets.UTF_8));
+        return new Captured(buffer.status, buffer.contentType, buffer.headers, buffer.body.toByteArray());
+    }
+
+    // one route response, replayed onto each coalesced request
+    static final class Captured {
+        final int status;
+        final String contentType;
+        final List<String[]> headers;
+        final byte[] body;
+
+        Captured(int status, String contentType, List<String[]> headers, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        // the body goes back to Spark rather than onto the stream, so the response is still
+        // uncommitted when outer wrappers (ConditionalGet) look at the status
+        Object writeTo(Response res) {
+            res.status(status);
+            if (contentType != null) res.type(contentType);
+            for (String[] h : headers) res.raw().addHeader(h[0], h[1]);
+            res.raw().setContentLength(body.length);
+            return body;
+        }
+    }
+
+    // collects what the route sets and writes instead of passing it on to the client
+    private static final class BufferedResponse extends HttpServletResponseWrapper {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final List<String[]> headers = new ArrayList<>();
+        int status = HttpServletResponse.SC_OK;
+        String contentType;
+        private PrintWriter writer;
+
+        BufferedResponse(HttpServletResponse raw) {
+            super(raw);
+        }
+
+        @Override public void setStatus(int sc) { status = sc; }
+        @Override public int getStatus() { return status; }
+        @Override public void setContentType(String type) { contentType = type; }
+        @Override public String getContentType() { return contentType; }
+        @Override public void setHeader(String name, String value) {
+            headers.removeIf(h -> h[0].equalsIgnoreCase(name));
+            addHeader(name, value);
+        }
+        @Override public void addHeader(String name, String value) { headers.add(new String[]{name, value}); }
+        @Override public void setContentLength(int len) { }
+        @Override public void setContentLengthLong(long len) { }
+        @Override public void flushBuffer() { }
+        @Override public boolean isCommitted() { return false; }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return new ServletOutputStream() {
+                @Override public void write(int b) { body.write(b); }
+                @Override public void write(byte[] b, int off, int len) { body.write(b, off, len); }
+                @Override public boolean isReady() { return true; }
+                @Override public void setWriteListener(WriteListener listener) { throw new UnsupportedOperationException(); }
+            };
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            if (writer == null) writer = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+            return writer;
+        }
+
+        void flushWriter() {
+            if (writer != null) writer.flush();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.topbloc.codechallenge.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads what CborResultWriter writes, for clients on the JVM and for the tests. rows()
+ * turns a columnar response back into one map per row, keyed like the JSON objects;
+ * read() decodes any single CBOR item.
+ *
+ * Integers come back as Long and floats of every width as Double, which is what
+ * json-simple's parser gives for the same JSON, so decoded rows compare equal to parsed
+ * ones. Text is String, byte strings byte[], arrays List, maps LinkedHashMap, and tags
+ * are dropped in favour of the value they wrap. Integers beyond a long are rejected.
+ */
+public final class CborDecoder {
+
+    private static final Object BREAK = new Object();
+
+    // responses are small enough to hold, and indexing an array beats a read() call per byte
+    private final byte[] in;
+    private int pos;
+
+    public CborDecoder(byte[] in) {
+        this.in = in;
+    }
+
+    public static List<Map<String, Object>> rows(InputStream body) throws IOException {
+        return rows(body.readAllBytes());
+    }
+
+    /** The rows of a columnar response, in order. */
+    public static List<Map<String, Object>> rows(byte[] body) throws IOException {
+        CborDecoder d = new CborDecoder(body);
+        int initial = d.next();
+        if (initial >> 5 != 4) throw new IOException("expected an array, got initial byte " + initial);
+        long count = d.argument(initial);   // -1 for indefinite length
+        List<Map<String, Object>> rows = new ArrayList<>();
+        if (count == 0) return rows;
+
+        Object header = d.read();
+        if (!(header instanceof List)) throw new IOException("expected the column-name array first");
+        @SuppressWarnings("unchecked")
+        List<Object> columns = (List<Object>) header;
+        for (long i = 1; count < 0 || i < count; i++) {
+            Object row = d.item();
+            if (row == BREAK) {
+                if (count < 0) break;
+                throw new IOException("unexpected break");
+            }
+            List<?> values = (List<?>) row;
+            if (values.size() != columns.size()) {
+                throw new IOException("row " + rows.size() + " has " + values.size() + " values for " + columns.size() + " columns");
+            }
+            Map<String, Object> r = new LinkedHashMap<>();
+            for (int k = 0; k < values.size(); k++) r.put((String) columns.get(k), values.get(k));
+            rows.add(r);
+        }
+        return rows;
+    }
+
+    /** The next item in the stream. */
+    public Object read() throws IOException {
+        Object item = item();
+        if (item == BREAK) throw new IOException("unexpected break");
+        return item;
+    }
+
+    private Object item() throws IOException {
+        int initial = next();
+        int major = initial >> 5;
+        switch (major) {
+            case 0: {
+                long v = argument(initial);
+                if (v < 0) throw new IOException("integer does not fit in a long");
+                return v;
+            }
+            case 1: {
+                long v = argument(initial);
+                if (v < 0) throw new IOException("integer does not fit in a long");
+                return -1 - v;
+            }
+            case 2: {
+                long n = argument(initial);
+                if (n < 0) return chunks(2);
+                int start = skip(n);
+                return Arrays.copyOfRange(in, start, start + (int) n);
+            }
+            case 3: {
+                long n = argument(initial);
+                if (n < 0) return new String(chunks(3), StandardCharsets.UTF_8);
+                int start = skip(n);
+                return new String(in, start, (int) n, StandardCharsets.UTF_8);
+            }
+            case 4: {
+                long n = argument(initial);
+                List<Object> list = new ArrayList<>(n < 0 ? 8 : (int) Math.min(n, 1024));
+                for (long i = 0; n < 0 || i < n; i++) {
+                    Object v = item();
+                    if (v == BREAK) {
+                        if (n < 0) break;
+                        throw new IOException("unexpected break");
+                    }
+                    list.add(v);
+                }
+                return list;
+            }
+            case 5: {
+                long n = argument(initial);
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (long i = 0; n < 0 || i < n; i++) {
+                    Object k = item();
+                    if (k == BREAK) {
+                        if (n < 0) break;
+                        throw new IOException("unexpected break");
+                    }
+                    map.put(k, read());
+                }
+                return map;
+            }
+            case 6:
+                argument(initial);
+                return read();
+            default:
+                return simple(initial);
+        }
+    }
+
+    private Object simple(int initial) throws IOException {
+        switch (initial) {
+            case 0xf4: return Boolean.FALSE;
+            case 0xf5: return Boolean.TRUE;
+            case 0xf6:
+            case 0xf7: return null;   // null, undefined
+            case 0xf9: return (double) halfToFloat((int) bigEndian(2));
+            case 0xfa: return (double) Float.intBitsToFloat((int) bigEndian(4));
+            case 0xfb: return Double.longBitsToDouble(bigEndian(8));
+            case 0xff: return BREAK;
+            default:   throw new IOException("unsupported simple value " + initial);
+        }
+    }
+
+    // the head's argument; -1 for indefinite length (additional info 31)
+    private long argument(int initial) throws IOException {
+        int info = initial & 0x1f;
+        if (info < 24) return info;
+        switch (info) {
+            case 24: return bigEndian(1);
+            case 25: return bigEndian(2);
+            case 26: return bigEndian(4);
+            case 27: {
+                long v = bigEndian(8);
+                if (v < 0) throw new IOException("argument does not fit in a long");
+                return v;
+            }
+            case 31: return -1;
+            default: throw new IOException("reserved additional info " + info);
+        }
+    }
+
+    // the chunks of an indefinite-length byte or text string, joined
+    private byte[] chunks(int major) throws IOException {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int b = next(); b != 0xff; b = next()) {
+            if (b >> 5 != major || (b & 0x1f) == 31) throw new IOException("bad chunk in an indefinite-length string");
+            long n = argument(b);
+            int start = skip(n);
+            joined.write(in, start, (int) n);
+        }
+        return joined.toByteArray();
+    }
+
+    // steps over n bytes of string, returning where they start
+    private int skip(long n) throws IOException {
+        if (n > in.length - pos) throw new EOFException();
+        int start = pos;
+        pos += (int) n;
+        return start;
+    }
+
+    private long bigEndian(int n) throws IOException {
+        long v = 0;
+        for (int i = 0; i < n; i++) v = (v << 8) | next();
+        return v;
+    }
+
+    private int next() throws IOException {
+        if (pos == in.length) throw new EOFException();
+        return in[pos++] & 0xff;
+    }
+
+    // IEEE 754 binary16, as in RFC 8949 appendix D
+    private static float halfToFloat(int half) {
+        int exp = (half >> 10) & 0x1f, mant = half & 0x3ff;
+        float v;
+        if (exp == 0) v = mant * 0x1p-24f;
+        else if (exp != 31) v = (mant + 1024) * (float) Math.pow(2, exp - 25);
+        else v = mant == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+        return (half & 0x8000) != 0 ? -v : v;
+    }
+}
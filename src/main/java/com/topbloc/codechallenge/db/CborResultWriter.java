@@ -0,0 +1,248 @@
+package com.topbloc.codechallenge.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes a ResultSet as columnar CBOR (RFC 8949) straight into an OutputStream: an
+ * indefinite-length array whose first element is the array of column names, followed
+ * by one fixed-length array of values per row, in the same column order. Each key is
+ * sent once per response instead of once per row, and numbers go out as binary.
+ *
+ *   [_ ["id", "item_name", "cost"], [3, "Twix", 0.81], [4, "Snickers", 1.2] ]
+ *
+ * Integers take the shortest CBOR head that holds them, doubles go out as float32 when
+ * that is exact and float64 otherwise, text as UTF-8 and SQL NULL as CBOR null.
+ * CborDecoder reads it back.
+ *
+ * Column names and value kinds are worked out once per SQL string, like JsonResultWriter.
+ */
+public final class CborResultWriter {
+
+    // major types, already shifted into the initial byte
+    private static final int UNSIGNED = 0x00, NEGATIVE = 0x20, BYTES = 0x40, TEXT = 0x60, ARRAY = 0x80;
+    private static final int FLOAT32 = 0xfa, FLOAT64 = 0xfb, NULL = 0xf6, INDEFINITE_ARRAY = 0x9f, BREAK = 0xff;
+
+    private static final Map<String, Shape> SHAPES = new ConcurrentHashMap<>();
+
+    // per-query column layout in ResultSet order
+    static final class Shape {
+        final int[] kinds;
+        final byte[] header;    // pre-encoded array of column names
+
+        Shape(int[] kinds, byte[] header) {
+            this.kinds = kinds;
+            this.header = header;
+        }
+    }
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+
+    // also used directly by InventoryReadModel to encode rows that never came from a ResultSet
+    CborResultWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Streams every remaining row of {@code rs}; {@code sql} keys the metadata cache. Does not close {@code out}. */
+    public static void write(ResultSet rs, String sql, OutputStream out) throws SQLException, IOException {
+        Shape shape = SHAPES.get(sql);
+        if (shape == null) {
+            shape = shapeOf(rs.getMetaData());
+            SHAPES.put(sql, shape);
+        }
+        CborResultWriter w = new CborResultWriter(out);
+        w.begin(shape.header);
+        int n = shape.kinds.length;
+        while (rs.next()) {
+            w.row(n);
+            for (int k = 0; k < n; k++) w.writeValue(rs, k + 1, shape.kinds[k]);
+        }
+        w.end();
+    }
+
+    static Shape shapeOf(ResultSetMetaData md) throws SQLException {
+        int n = md.getColumnCount();
+        String[] names = new String[n];
+        int[] kinds = new int[n];
+        for (int i = 1; i <= n; i++) {
+            names[i - 1] = md.getColumnName(i);
+            kinds[i - 1] = JsonResultWriter.kindOf(md.getColumnTypeName(i));
+        }
+        return new Shape(kinds, header(names));
+    }
+
+    // the column-name array that opens a response
+    static byte[] header(String... names) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CborResultWriter w = new CborResultWriter(bytes);
+        try {
+            w.head(ARRAY, names.length);
+            for (String name : names) w.writeString(name);
+            w.drain();
+        } catch (IOException e) {
+            throw new AssertionError(e);   // ByteArrayOutputStream doesn't throw
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeValue(ResultSet rs, int col, int kind) throws SQLException, IOException {
+        switch (kind) {
+            case JsonResultWriter.LONG: {
+                long v = rs.getLong(col);
+                if (v == 0 && rs.wasNull()) writeNull();
+                else writeLong(v);
+                return;
+            }
+            case JsonResultWriter.DOUBLE: {
+                double v = rs.getDouble(col);
+                if (v == 0 && rs.wasNull()) writeNull();
+                else writeDouble(v);
+                return;
+            }
+            case JsonResultWriter.STRING: {
+                String v = rs.getString(col);
+                if (v == null) writeNull();
+                else writeString(v);
+                return;
+            }
+            default:
+                writeObject(rs.getObject(col));
+        }
+    }
+
+    // what sqlite-jdbc's getObject hands back for a column without a declared type
+    private void writeObject(Object v) throws IOException {
+        if (v == null) writeNull();
+        else if (v instanceof Integer || v instanceof Long) writeLong(((Number) v).longValue());
+        else if (v instanceof Number) writeDouble(((Number) v).doubleValue());
+        else if (v instanceof byte[]) writeBytes((byte[]) v);
+        else writeString(v.toString());
+    }
+
+    /* ─────────── encoding ─────────── */
+
+    void begin(byte[] header) throws IOException {
+        put(INDEFINITE_ARRAY);
+        put(header);
+    }
+
+    void row(int columns) throws IOException {
+        head(ARRAY, columns);
+    }
+
+    void end() throws IOException {
+        put(BREAK);
+        drain();
+    }
+
+    void writeNull() throws IOException {
+        put(NULL);
+    }
+
+    void writeLong(long v) throws IOException {
+        // major type 1 carries -1 - v, which is ~v
+        if (v >= 0) head(UNSIGNED, v);
+        else head(NEGATIVE, ~v);
+    }
+
+    void writeDouble(double v) throws IOException {
+        if (pos + 9 > buf.length) drain();
+        float f = (float) v;
+        if (f == v) {
+            int bits = Float.floatToIntBits(f);
+            buf[pos++] = (byte) FLOAT32;
+            buf[pos++] = (byte) (bits >>> 24);
+            buf[pos++] = (byte) (bits >>> 16);
+            buf[pos++] = (byte) (bits >>> 8);
+            buf[pos++] = (byte) bits;
+        } else {
+            // NaN lands here too, as float64
+            buf[pos++] = (byte) FLOAT64;
+            putLong(Double.doubleToLongBits(v));
+        }
+    }
+
+    // ASCII, which nearly every name is, goes byte for byte; anything else through String.getBytes
+    void writeString(String s) throws IOException {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            if (s.charAt(i) >= 0x80) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                head(TEXT, utf8.length);
+                put(utf8);
+                return;
+            }
+        }
+        head(TEXT, n);
+        if (pos + n > buf.length) drain();
+        if (n > buf.length) {
+            put(s.getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        for (int i = 0; i < n; i++) buf[pos++] = (byte) s.charAt(i);
+    }
+
+    private void writeBytes(byte[] b) throws IOException {
+        head(BYTES, b.length);
+        put(b);
+    }
+
+    // major type plus its argument in the shortest of the five encodings
+    private void head(int major, long v) throws IOException {
+        if (pos + 9 > buf.length) drain();
+        if (v < 24) {
+            buf[pos++] = (byte) (major | v);
+        } else if (v < 0x100) {
+            buf[pos++] = (byte) (major | 24);
+            buf[pos++] = (byte) v;
+        } else if (v < 0x10000) {
+            buf[pos++] = (byte) (major | 25);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        } else if (v < 0x100000000L) {
+            buf[pos++] = (byte) (major | 26);
+            buf[pos++] = (byte) (v >>> 24);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        } else {
+            buf[pos++] = (byte) (major | 27);
+            putLong(v);
+        }
+    }
+
+    private void putLong(long v) {
+        for (int shift = 56; shift >= 0; shift -= 8) buf[pos++] = (byte) (v >>> shift);
+    }
+
+    private void put(int b) throws IOException {
+        if (pos == buf.length) drain();
+        buf[pos++] = (byte) b;
+    }
+
+    private void put(byte[] b) throws IOException {
+        if (pos + b.length > buf.length) {
+            drain();
+            if (b.length > buf.length) {
+                out.write(b);
+                return;
+            }
+        }
+        System.arraycopy(b, 0, buf, pos, b.length);
+        pos += b.length;
+    }
+
+    void drain() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+}
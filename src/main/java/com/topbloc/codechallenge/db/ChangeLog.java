@@ -0,0 +1,208 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of row changes behind GET /changes.
+ *
+ * SQLite triggers on the four tables append (version, table, row id, op) to change_log
+ * inside the statement that made the change, so every write path - single rows,
+ * batches, cascades, stock flushes - is logged and commits or rolls back with it.
+ * After each write DatabaseManager tails the new entries into a ring buffer here, so
+ * recent history is answered from memory; older history comes from the table until
+ * compaction drops it, and anything before that gets a resync.
+ *
+ * Versions come from an AUTOINCREMENT key and are never reused, including across a
+ * reset, which moves the floor past every version handed out before it.
+ */
+final class ChangeLog {
+
+    static final int RING_SIZE = Integer.getInteger("changes.ringSize", 4096);
+    // entries kept in the table; compaction runs once RETAIN / 10 more have piled up
+    static final long RETAIN   = Long.getLong("changes.retain", 100_000L);
+
+    static final String[] TABLES = {"items", "inventory", "distributors", "distributor_prices"};
+    private static final String[] OPS = {"insert", "update", "delete"};
+    static final String BULK = "bulk";
+
+    static final class Entry {
+        final long version;
+        final String table;
+        final long rowId;
+        final String op;
+
+        Entry(long version, String table, long rowId, String op) {
+            this.version = version;
+            this.table = table;
+            this.rowId = rowId;
+            this.op = op;
+        }
+    }
+
+    private static final String TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS change_log ("
+                    + " version INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + " table_name TEXT NOT NULL,"
+                    + " row_id INTEGER NOT NULL,"
+                    + " op TEXT NOT NULL)";
+    private static final String SEQ_SQL = "SELECT seq FROM sqlite_sequence WHERE name = 'change_log'";
+    static final String TAIL_SQL = "SELECT version, table_name, row_id, op FROM change_log WHERE version > ? ORDER BY version LIMIT ?";
+
+    // ring of the latest entries, oldest at (next - size) mod RING_SIZE; guarded by this
+    private final Entry[] ring = new Entry[RING_SIZE];
+    private int next, size;
+    // highest version tailed, and the version below which history is gone
+    private long last, floor;
+    // false while the pool is being swapped or the file recreated; writes then go untailed
+    private boolean attached;
+
+    /* ─────────── setup (under DatabaseManager's lifecycle write lock) ─────────── */
+
+    // creates the table and triggers; after a reset the new file's versions continue past the old ones
+    synchronized void open(Connection conn, boolean reset) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute(TABLE_SQL);
+            for (String table : TABLES) {
+                for (String op : OPS) st.execute(triggerSql(table, op));
+            }
+            if (reset) {
+                // every version handed out so far describes data that no longer exists; a restored
+                // snapshot brings its own history, which is just as stale
+                st.execute("DELETE FROM change_log");
+                st.execute("DELETE FROM sqlite_sequence WHERE name = 'change_log'");
+                st.execute("INSERT INTO sqlite_sequence(name, seq) VALUES ('change_log', " + (last + 1) + ")");
+                last = floor = last + 1;
+            } else {
+                try (ResultSet rs = st.executeQuery("SELECT (SELECT seq FROM sqlite_sequence WHERE name = 'change_log'),"
+                        + " (SELECT MIN(version) FROM change_log)")) {
+                    rs.next();
+                    last = rs.getLong(1);
+                    floor = rs.getObject(2) == null ? last : rs.getLong(2) - 1;
+                }
+            }
+        }
+        size = 0;
+        next = 0;
+        attached = true;
+    }
+
+    synchronized void detach() {
+        attached = false;
+    }
+
+    private static String triggerSql(String table, String op) {
+        String ref = op.equals("delete") ? "OLD" : "NEW";
+        return "CREATE TRIGGER IF NOT EXISTS change_log_" + table + "_" + op
+                + " AFTER " + op.toUpperCase() + " ON " + table + " BEGIN"
+                + " INSERT INTO change_log(table_name, row_id, op) VALUES ('" + table + "', " + ref + ".id, '" + op + "');"
+                + dependents(table, ref)
+                + " END";
+    }
+
+    // inventory rows are served joined to their item, so an item coming or going changes them too
+    private static String dependents(String table, String ref) {
+        if (!table.equals("items")) return "";
+        return " INSERT INTO change_log(table_name, row_id, op) SELECT 'inventory', id, 'update' FROM inventory WHERE item = " + ref + ".id;";
+    }
+
+    /* ─────────── bulk imports (on the writer, inside the import's transaction) ─────────── */
+
+    // a bulk import logs one entry per block rather than one (or, for items, two) per row: the insert
+    // trigger is dropped for the transaction and put back by logBulk, or by the rollback
+    void pauseInsertTrigger(Connection conn, String table) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("DROP TRIGGER IF EXISTS change_log_" + table + "_insert");
+        }
+    }
+
+    // rows inserted since pauseInsertTrigger are listed by no entry; a client whose range takes in
+    // this one gets a resync (see DatabaseManager.changesSince) and reloads instead
+    void logBulk(Connection conn, String table) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute(triggerSql(table, "insert"));
+            st.execute("INSERT INTO change_log(table_name, row_id, op) VALUES ('" + table + "', 0, '" + BULK + "')");
+        }
+    }
+
+    /* ─────────── tailing (on the writer, after each write) ─────────── */
+
+    synchronized void tail(Connection conn) throws SQLException {
+        if (!attached) return;
+        PreparedStatement tail = DatabaseManager.prepare(conn, TAIL_SQL);
+        for (;;) {
+            tail.setLong(1, last);
+            tail.setInt(2, RING_SIZE);
+            int n = 0;
+            try (ResultSet rs = tail.executeQuery()) {
+                while (rs.next()) {
+                    Entry e = new Entry(rs.getLong(1), rs.getString(2), rs.getLong(3), rs.getString(4));
+                    ring[next] = e;
+                    next = (next + 1) % RING_SIZE;
+                    size = Math.min(size + 1, RING_SIZE);
+                    last = e.version;
+                    n++;
+                }
+            }
+            if (n < RING_SIZE) break;
+            // a bulk write: only the newest RING_SIZE entries would stay in the ring, so skip to
+            // them; the ring starts over so that what it holds has no gaps
+            try (ResultSet rs = DatabaseManager.prepare(conn, SEQ_SQL).executeQuery()) {
+                if (rs.next() && rs.getLong(1) - RING_SIZE > last) {
+                    last = rs.getLong(1) - RING_SIZE;
+                    size = 0;
+                }
+            }
+        }
+        if (last - floor > RETAIN + RETAIN / 10) {
+            long through = last - RETAIN;
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM change_log WHERE version <= ?")) {
+                ps.setLong(1, through);
+                ps.executeUpdate();
+            }
+            floor = through;
+        }
+    }
+
+    /* ─────────── reads ─────────── */
+
+    synchronized long version() {
+        return last;
+    }
+
+    synchronized long floor() {
+        return floor;
+    }
+
+    // up to limit entries after since from the ring, or null if the ring doesn't reach back that far;
+    // after a restart the ring starts empty while the table still holds everything since the floor
+    synchronized List<Entry> fromRing(long since, int limit) {
+        List<Entry> out = new ArrayList<>();
+        if (since >= last) return out;
+        Entry oldest = size == 0 ? null : ring[(next - size + RING_SIZE) % RING_SIZE];
+        if (oldest == null || oldest.version > since + 1) return null;
+        for (int k = 0; k < size && out.size() < limit; k++) {
+            Entry e = ring[(next - size + k + RING_SIZE) % RING_SIZE];
+            if (e.version > since) out.add(e);
+        }
+        return out;
+    }
+
+    synchronized JSONObject stats() {
+        JSONObject out = new JSONObject();
+        out.put("version", last);
+        out.put("floor", floor);
+        out.put("in_memory", size);
+        out.put("oldest_in_memory", size == 0 ? null : ring[(next - size + RING_SIZE) % RING_SIZE].version);
+        out.put("ring_size", RING_SIZE);
+        out.put("retain", RETAIN);
+        return out;
+    }
+}
@@ -0,0 +1,227 @@
+package com.topbloc.codechallenge.db;
+
+import com.topbloc.codechallenge.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded set of SQLite connections: N query-only readers plus one writer.
+ * SQLite only ever admits a single writer, so writes queue on a lock here
+ * instead of spinning on SQLITE_BUSY; in WAL mode readers never block on it.
+ * Every call reports its acquire wait and hold time to {@link Metrics}. Each
+ * connection carries its own {@link StatementCache}.
+ *
+ * Reads first take a permit from a fair semaphore, sized to the readers unless
+ * -Ddb.permits says otherwise; writes queue on the write lock alone, so a backlog of
+ * reads never holds up a write while the writer connection is idle. With request
+ * threads unbounded (virtual-thread mode, see ExecutionMode) the two are where
+ * callers queue, in arrival order, and together they cap how many threads sit inside
+ * sqlite-jdbc's native calls (permits + 1), which pin a virtual thread to its carrier.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    // tunables - override with -Ddb.readers=8 etc.
+    static final int READERS        = Integer.getInteger("db.readers", Math.max(2, Runtime.getRuntime().availableProcessors()));
+    static final int BUSY_TIMEOUT   = Integer.getInteger("db.busyTimeoutMs", 5000);
+    static final long MMAP_SIZE     = Long.getLong("db.mmapSize", 256L * 1024 * 1024);
+    static final int CACHE_SIZE_KB  = Integer.getInteger("db.cacheSizeKb", 16 * 1024);
+    static final String SYNCHRONOUS = System.getProperty("db.synchronous", "NORMAL");
+    static final long ACQUIRE_TIMEOUT_MS = Long.getLong("db.acquireTimeoutMs", 10_000L);
+    // read permits; 0 = one per reader
+    static final int PERMITS        = Integer.getInteger("db.permits", 0);
+
+    private final String url;
+    private final List<Connection> readers = new ArrayList<>();
+    private final BlockingQueue<Connection> idle;
+    private final Connection writer;
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    // reads only: the writer is gated by writeLock
+    private final Semaphore permits;
+    // filled while the constructor opens connections, read-only afterwards
+    private final Map<Connection, StatementCache> statements = new IdentityHashMap<>();
+    private volatile boolean closed;
+
+    public ConnectionPool(String url) throws SQLException {
+        this(url, READERS);
+    }
+
+    public ConnectionPool(String url, int readerCount) throws SQLException {
+        this(url, readerCount, PERMITS > 0 ? PERMITS : readerCount);
+    }
+
+    public ConnectionPool(String url, int readerCount, int readPermits) throws SQLException {
+        this.url = url;
+        this.permits = new Semaphore(readPermits, true);
+        this.idle = new ArrayBlockingQueue<>(readerCount);
+        // writer first: it is the one that switches a fresh file into WAL mode
+        this.writer = open(false);
+        try {
+            for (int i = 0; i < readerCount; i++) {
+                Connection c = open(true);
+                readers.add(c);
+                idle.add(c);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private Connection open(boolean readOnly) throws SQLException {
+        Connection c = DriverManager.getConnection(url);
+        try (Statement st = c.createStatement()) {
+            st.execute("PRAGMA journal_mode=WAL");
+            st.execute("PRAGMA synchronous=" + SYNCHRONOUS);
+            st.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT);
+            st.execute("PRAGMA mmap_size=" + MMAP_SIZE);
+            st.execute("PRAGMA cache_size=-" + CACHE_SIZE_KB);
+            if (readOnly) st.execute("PRAGMA query_only=1");
+        }
+        statements.put(c, new StatementCache(c, StatementCache.SIZE));
+        return c;
+    }
+
+    public String url() {
+        return url;
+    }
+
+    public int readerCount() {
+        return readers.size();
+    }
+
+    public int permitsAvailable() {
+        return permits.availablePermits();
+    }
+
+    // cached statement for sql on c, which must be the connection handed to the current read/write call
+    PreparedStatement prepare(Connection c, String sql) throws SQLException {
+        StatementCache cache = statements.get(c);
+        if (cache == null) throw new SQLException("Connection does not belong to this pool");
+        return cache.prepare(sql);
+    }
+
+    List<StatementCache> statementCaches() {
+        return new ArrayList<>(statements.values());
+    }
+
+    // run work on an idle reader, waiting up to ACQUIRE_TIMEOUT_MS for one
+    public <T> T read(SqlWork<T> work) throws SQLException {
+        long t0 = System.nanoTime();
+        acquirePermit();
+        try {
+            return readWithPermit(work, t0);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private <T> T readWithPermit(SqlWork<T> work, long t0) throws SQLException {
+        Connection c;
+        try {
+            c = idle.poll(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a read connection");
+        }
+        if (c == null) {
+            Metrics.dbError(false);
+            throw new SQLException("Timed out waiting for a read connection");
+        }
+        long t1 = System.nanoTime();
+        Metrics.connectionWait(false, t1 - t0);
+        try {
+            checkOpen();
+            return work.run(c);
+        } catch (SQLException e) {
+            Metrics.dbError(false);
+            throw e;
+        } finally {
+            statements.get(c).release();
+            idle.offer(c);
+            Metrics.query(false, System.nanoTime() - t1);
+        }
+    }
+
+    // run work on the single writer connection
+    public <T> T write(SqlWork<T> work) throws SQLException {
+        long t0 = System.nanoTime();
+        try {
+            if (!writeLock.tryLock(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Metrics.dbError(true);
+                throw new SQLException("Timed out waiting for the write connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for the write connection");
+        }
+        long t1 = System.nanoTime();
+        Metrics.connectionWait(true, t1 - t0);
+        try {
+            checkOpen();
+            return work.run(writer);
+        } catch (SQLException e) {
+            Metrics.dbError(true);
+            throw e;
+        } finally {
+            statements.get(writer).release();
+            writeLock.unlock();
+            Metrics.query(true, System.nanoTime() - t1);
+        }
+    }
+
+    // waits count towards the caller's connection wait, like the connection acquire that follows
+    private void acquirePermit() throws SQLException {
+        try {
+            if (permits.tryAcquire(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a read connection");
+        }
+        Metrics.dbError(false);
+        throw new SQLException("Timed out waiting for a read connection");
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+    }
+
+    // callers are expected to have drained in-flight work first (see DatabaseManager.lifecycle)
+    @Override
+    public void close() {
+        closed = true;
+        for (StatementCache cache : statements.values()) cache.close();
+        for (Connection c : readers) closeQuietly(c);
+        readers.clear();
+        idle.clear();
+        // checkpoint the WAL back into the main file on the way out
+        if (writer != null) {
+            try (Statement st = writer.createStatement()) {
+                st.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            }
+            closeQuietly(writer);
+        }
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
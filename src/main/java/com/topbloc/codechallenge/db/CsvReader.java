@@ -0,0 +1,109 @@
+package com.topbloc.codechallenge.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull reader for the CSV that exportTableAsCsv writes, and that spreadsheets save:
+ * comma separated, fields with separators, quotes or line breaks in double quotes,
+ * quotes inside them doubled, LF or CRLF line ends. A UTF-8 byte order mark is skipped.
+ *
+ * Records come off a fixed char buffer one at a time, so the heap holds the current
+ * record and nothing else however long the input is. A record longer than
+ * MAX_RECORD_CHARS (an unterminated quote, usually) stops the read with an IOException,
+ * since there's no telling where the next record starts.
+ */
+final class CsvReader {
+
+    static final int MAX_RECORD_CHARS = Integer.getInteger("import.maxRecordChars", 1 << 20);
+
+    private final Reader in;
+    private final char[] buf = new char[1 << 16];
+    private int pos, end;
+    private boolean eof;
+
+    private final StringBuilder field = new StringBuilder();
+    // physical line the next record starts on, and the one the last record started on
+    private long line = 1, recordLine;
+
+    CsvReader(InputStream in) {
+        this.in = new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    // 1-based line the record last returned by next() started on
+    long line() {
+        return recordLine;
+    }
+
+    // the next record's cells, or null at the end of the input
+    String[] next() throws IOException {
+        if (!fill()) return null;
+        if (recordLine == 0 && buf[pos] == '\uFEFF') {
+            pos++;
+            if (!fill()) return null;
+        }
+        recordLine = line;
+        List<String> cells = new ArrayList<>();
+        field.setLength(0);
+        int chars = 0;
+        boolean quoted = false, wasQuoted = false;
+        while (fill()) {
+            char ch = buf[pos++];
+            if (++chars > MAX_RECORD_CHARS) {
+                throw new IOException("line " + recordLine + ": record is longer than " + MAX_RECORD_CHARS + " characters");
+            }
+            if (quoted) {
+                if (ch == '"') {
+                    if (fill() && buf[pos] == '"') {
+                        pos++;
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    if (ch == '\n') line++;
+                    field.append(ch);
+                }
+            } else if (ch == ',') {
+                cells.add(field.toString());
+                field.setLength(0);
+                wasQuoted = false;
+            } else if (ch == '\n' || ch == '\r') {
+                if (ch == '\r' && fill() && buf[pos] == '\n') pos++;
+                line++;
+                cells.add(field.toString());
+                return cells.toArray(new String[0]);
+            } else if (ch == '"' && field.length() == 0 && !wasQuoted) {
+                quoted = wasQuoted = true;
+            } else {
+                field.append(ch);
+            }
+        }
+        if (quoted) throw new IOException("line " + recordLine + ": unterminated quoted field");
+        // last record without a line break
+        cells.add(field.toString());
+        return cells.toArray(new String[0]);
+    }
+
+    // true while there's a char at pos
+    private boolean fill() throws IOException {
+        if (pos < end) return true;
+        if (eof) return false;
+        int n;
+        do {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        pos = 0;
+        end = n;
+        return true;
+    }
+}
@@ -0,0 +1,169 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Everything the dashboard page shows, built from one pass over the inventory join:
+ * the rows themselves, the out-of-stock / overstocked / low-stock panels, totals, a
+ * fill-ratio histogram and what topping every row up to capacity would cost at the
+ * cheapest live offer.
+ *
+ * Rows are written as they arrive, as arrays under a single "columns" header; the
+ * panels are inventory ids into them. Everything else is accumulated and written
+ * after the rows, so the payload costs one row's worth of heap plus the panel ids.
+ *
+ * At the default thresholds the panels hold exactly the rows the out-of-stock,
+ * overstocked and low-stock routes return.
+ */
+final class Dashboard {
+
+    static final double LOW_DEFAULT = 0.35;
+    static final double OVER_DEFAULT = 1.0;
+    static final int BUCKETS_DEFAULT = 10;
+    static final int BUCKETS_MAX = 100;
+
+    private static final String[] COLUMNS =
+            {"id", "item_id", "item_name", "amount_in_stock", "total_capacity", "restock_units", "restock_cost"};
+
+    private final double low, over;
+    private final int buckets;
+    private final JsonResultWriter w;
+
+    private final IdList outOfStock = new IdList(), overstocked = new IdList(), lowStock = new IdList();
+    private final long[] histogram;
+    private long rows, stock, capacity, restockUnits, unpriced, overCapacity, noCapacity;
+    private double restockCost;
+
+    Dashboard(double low, double over, int buckets, OutputStream out) {
+        if (!(low >= 0) || Double.isInfinite(low)) throw new IllegalArgumentException("low must be a ratio of 0 or more");
+        if (!(over >= 0) || Double.isInfinite(over)) throw new IllegalArgumentException("over must be a ratio of 0 or more");
+        if (buckets < 1 || buckets > BUCKETS_MAX) throw new IllegalArgumentException("buckets must be between 1 and " + BUCKETS_MAX);
+        this.low = low;
+        this.over = over;
+        this.buckets = buckets;
+        this.histogram = new long[buckets];
+        this.w = new JsonResultWriter(out);
+    }
+
+    void begin() throws IOException {
+        w.put("{\"columns\":".getBytes(StandardCharsets.UTF_8));
+        JSONArray columns = new JSONArray();
+        columns.addAll(Arrays.asList(COLUMNS));
+        w.put(columns.toJSONString().getBytes(StandardCharsets.UTF_8));
+        w.put(",\"rows\":[".getBytes(StandardCharsets.UTF_8));
+    }
+
+    // one joined row; unitCost is the cheapest live offer for the item, NaN when nobody sells it
+    void row(long id, long item, String name, long stock, long capacity, double unitCost) throws IOException {
+        long units = Math.max(0, capacity - stock);
+        double cost = units == 0 ? 0 : units * unitCost;
+
+        // the same tests as the panel routes' WHERE clauses; SQLite's division by a zero capacity is never true
+        if (stock == 0) outOfStock.add(id);
+        if (stock > capacity * over) overstocked.add(id);
+        if (capacity != 0 && stock * 1.0 / capacity < low) lowStock.add(id);
+
+        if (capacity <= 0) {
+            noCapacity++;
+        } else if (stock > capacity) {
+            overCapacity++;
+        } else {
+            // a full row lands in the top bucket
+            histogram[(int) Math.min(buckets - 1, Math.max(0, stock * buckets / capacity))]++;
+        }
+
+        this.stock += stock;
+        this.capacity += capacity;
+        restockUnits += units;
+        if (Double.isNaN(cost)) unpriced++;
+        else restockCost += cost;
+
+        if (rows++ > 0) w.put(',');
+        w.put('[');
+        w.writeLong(id);
+        w.put(',');
+        w.writeLong(item);
+        w.put(',');
+        if (name == null) w.put("null".getBytes(StandardCharsets.UTF_8));
+        else w.writeString(name);
+        w.put(',');
+        w.writeLong(stock);
+        w.put(',');
+        w.writeLong(capacity);
+        w.put(',');
+        w.writeLong(units);
+        w.put(',');
+        w.writeDouble(cost);
+        w.put(']');
+    }
+
+    @SuppressWarnings("unchecked")
+    void finish(String source) throws IOException {
+        w.put(']');
+        panel("out_of_stock", outOfStock);
+        panel("overstocked", overstocked);
+        panel("low_stock", lowStock);
+
+        JSONObject totals = new JSONObject();
+        totals.put("rows", rows);
+        totals.put("stock", stock);
+        totals.put("capacity", capacity);
+        totals.put("fill", capacity == 0 ? null : stock * 1.0 / capacity);
+        totals.put("out_of_stock", (long) outOfStock.size);
+        totals.put("overstocked", (long) overstocked.size);
+        totals.put("low_stock", (long) lowStock.size);
+        totals.put("restock_units", restockUnits);
+        totals.put("restock_cost", restockCost);
+        // rows short of capacity whose item has no live offer; their cost is left out of restock_cost
+        totals.put("unpriced", unpriced);
+
+        JSONObject fill = new JSONObject();
+        fill.put("bucket_width", 1.0 / buckets);
+        JSONArray counts = new JSONArray();
+        for (long n : histogram) counts.add(n);
+        fill.put("counts", counts);
+        fill.put("over_capacity", overCapacity);
+        fill.put("no_capacity", noCapacity);
+
+        JSONObject thresholds = new JSONObject();
+        thresholds.put("low", low);
+        thresholds.put("over", over);
+        thresholds.put("buckets", (long) buckets);
+
+        field("totals", totals.toJSONString());
+        field("fill_histogram", fill.toJSONString());
+        field("thresholds", thresholds.toJSONString());
+        field("source", "\"" + source + "\"");
+        w.put('}');
+        w.drain();
+    }
+
+    private void panel(String name, IdList ids) throws IOException {
+        w.put((",\"" + name + "\":[").getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < ids.size; i++) {
+            if (i > 0) w.put(',');
+            w.writeLong(ids.ids[i]);
+        }
+        w.put(']');
+    }
+
+    private void field(String name, String json) throws IOException {
+        w.put((",\"" + name + "\":" + json).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class IdList {
+        long[] ids = new long[16];
+        int size;
+
+        void add(long id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.topbloc.codechallenge.db;
+
+import java.sql.SQLException;
+
+/**
+ * A query that never ran because the database was too busy: no pooled connection or
+ * permit came free within db.acquireTimeoutMs, or SQLite gave up on a lock after
+ * db.busyTimeoutMs (SQLITE_BUSY). Unchecked, so it passes the per-method
+ * catch (SQLException) blocks that turn a failed query into an error object and reaches
+ * the HTTP layer, which answers 503 with Retry-After. The SQLException is the cause.
+ */
+public class DatabaseBusyException extends RuntimeException {
+
+    private static final int SQLITE_BUSY = 5;
+
+    DatabaseBusyException(SQLException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    // ConnectionPool's acquire timeouts, or SQLITE_BUSY and its extended codes
+    static boolean isBusy(SQLException e) {
+        return String.valueOf(e.getMessage()).startsWith("Timed out waiting") || (e.getErrorCode() & 0xff) == SQLITE_BUSY;
+    }
+}
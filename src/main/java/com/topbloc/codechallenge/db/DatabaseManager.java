@@ -3,9 +3,22 @@ package com.topbloc.codechallenge.db;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-import java.io.File;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -14,40 +27,296 @@ import org.json.simple.parser.ParseException;
 
 public class DatabaseManager {
 
-    private static final String jdbcPrefix = "jdbc:sqlite:";
-    private static final String dbName = "challenge.db";
+    private static final String dbName = System.getProperty("db.path", "challenge.db");
     private static String connectionString;
-    private static Connection conn;
+    private static volatile ConnectionPool pool;
+
+    // every query holds the read side; connect/reset take the write side so they
+    // only swap the pool once in-flight work has drained
+    private static final ReentrantReadWriteLock lifecycle = new ReentrantReadWriteLock();
+
+    // in-memory copy of inventory + item names serving the inventory read routes
+    private static final InventoryReadModel readModel = new InventoryReadModel();
+    // per-item offers sorted by cost, serving the cheapest/top-N restock lookups
+    private static final PriceBook priceBook = new PriceBook();
+    // write-behind stock deltas from /inventory/:id/adjust, journaled next to the database
+    private static final StockLedger stockLedger = new StockLedger(new File(dbName), StorageMode.journaled(), lifecycle.readLock(), DatabaseManager::applyStockBatch);
+    // row-level history behind GET /changes, filled by triggers and tailed after each write
+    private static final ChangeLog changeLog = new ChangeLog();
+    // normalized item names by word prefix, behind GET /items/search
+    private static final ItemSearchIndex searchIndex = new ItemSearchIndex();
+    // the seeded database that resets copy back, and named fixtures
+    private static final SnapshotStore snapshots = new SnapshotStore(new File(dbName));
 
     static {
         File dbFile = new File(dbName);
-        connectionString = jdbcPrefix + dbFile.getAbsolutePath();
+        // file, or in memory: see StorageMode
+        connectionString = StorageMode.url(dbFile);
     }
 
     public static void connect() {
+        // deltas already in memory go to the current pool before it is replaced
+        flushStock();
+        lifecycle.writeLock().lock();
+        try {
+            // closing the last connection to an in-memory database drops it, so that pool is kept
+            if (!StorageMode.inMemory() || pool == null) {
+                openPool();
+                if (StorageMode.inMemory()) loadInMemory();
+            }
+            applyIndexes();
+            openChangeLog(false);
+            openSearchIndex();
+            openStockLedger();
+            rebuildModels();
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+    }
+
+    private static void openPool() {
+        closePool();
         try {
-            Connection connection = DriverManager.getConnection(connectionString);
+            pool = new ConnectionPool(connectionString);
             System.out.println("Connection to SQLite has been established.");
-            conn = connection;
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
     }
-    // Schema function to reset the database if needed - do not change
+
+    private static void closePool() {
+        changeLog.detach();
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    // back to the seed data: the first reset in a process builds it from the schema functions below
+    // and saves it as a snapshot, later ones restore that snapshot
     public static void resetDatabase() {
+        long start = System.nanoTime();
+        boolean restored;
+        lifecycle.writeLock().lock();
+        try {
+            discardStock();
+            // after the first reset in a process, the seeded database is copied back in one pass
+            restored = restoreSeedSnapshot();
+            if (!restored) {
+                closePool();
+                File dbFile = new File(dbName);
+                // WAL mode keeps two sidecar files next to the database; in memory_snapshot mode
+                // the file is the last snapshot and is replaced by the next one
+                for (String suffix : new String[]{"", "-wal", "-shm"}) {
+                    File f = new File(dbFile.getPath() + suffix);
+                    if (!StorageMode.inMemory() && f.exists()) {
+                        f.delete();
+                    }
+                }
+                connectionString = StorageMode.url(dbFile);
+                openPool();
+                applySchema();
+                applyIndexes();
+                // before seeding, so the seed snapshot carries the FTS table
+                openSearchIndex();
+                seedDatabase();
+                saveSeedSnapshot();
+            }
+            // after seeding: the seed rows are the snapshot, not changes
+            openChangeLog(true);
+            openStockLedger();
+            rebuildModels();
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+        snapshots.resetTimed(restored, (System.nanoTime() - start) / 1_000);
+        for (String table : TABLES) fireChange(table);
+    }
+
+    // unapplied adjustments belong to the data being thrown away; under the lifecycle write lock, so
+    // no adjustment can be accepted against the old data after they are dropped
+    private static void discardStock() {
+        try {
+            stockLedger.discard();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void rebuildModels() {
+        readModel.invalidate();
+        priceBook.invalidate();
+        searchIndex.invalidate();
         try {
-            conn.close();
+            write(conn -> {
+                readModel.rebuild(conn);
+                priceBook.rebuild(conn);
+                searchIndex.rebuild(conn);
+                return null;
+            });
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            // reads fall back to SQLite until the next connect/reset
+            e.printStackTrace();
         }
-        File dbFile = new File(dbName);
-        if (dbFile.exists()) {
-            dbFile.delete();
+    }
+
+    // runs work as one transaction on the writer; on failure the models are reloaded from what SQLite kept
+    private static <T> T writeTransaction(SqlWork<T> work) throws SQLException {
+        return write(conn -> {
+            conn.setAutoCommit(false);
+            try {
+                T result = work.run(conn);
+                conn.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                readModel.rebuild(conn);
+                priceBook.rebuild(conn);
+                searchIndex.rebuild(conn);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        });
+    }
+
+    /* ─────────── connection access ─────────── */
+
+    // a busy database comes out as DatabaseBusyException, past the catch blocks that would turn it into a 200 error body
+    static <T> T read(SqlWork<T> work) throws SQLException {
+        lifecycle.readLock().lock();
+        try {
+            return currentPool().read(work);
+        } catch (SQLException e) {
+            throw busyOr(e);
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    static <T> T write(SqlWork<T> work) throws SQLException {
+        lifecycle.readLock().lock();
+        try {
+            return currentPool().write(conn -> {
+                try {
+                    return work.run(conn);
+                } finally {
+                    tailChanges(conn);
+                }
+            });
+        } catch (SQLException e) {
+            throw busyOr(e);
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    private static SQLException busyOr(SQLException e) {
+        if (DatabaseBusyException.isBusy(e)) throw new DatabaseBusyException(e);
+        return e;
+    }
+
+    // pooled statement for sql on conn; callers close the ResultSet but never the statement
+    static PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        return currentPool().prepare(conn, sql);
+    }
+
+    public static JSONObject statementCacheStats() {
+        long hits = 0, misses = 0, evictions = 0, cached = 0;
+        try {
+            for (StatementCache c : currentPool().statementCaches()) {
+                hits += c.hits();
+                misses += c.misses();
+                evictions += c.evictions();
+                cached += c.cached();
+            }
+        } catch (SQLException e) {
+            // not connected: report zeros
+        }
+        JSONObject out = new JSONObject();
+        out.put("capacity_per_connection", StatementCache.SIZE);
+        out.put("cached", cached);
+        out.put("hits", hits);
+        out.put("misses", misses);
+        out.put("evictions", evictions);
+        return out;
+    }
+
+    // statements by total time with their slow executions and captured plans, see QueryLog
+    public static JSONObject queryStats(int limit) {
+        return QueryLog.top(limit);
+    }
+
+    private static ConnectionPool currentPool() throws SQLException {
+        ConnectionPool p = pool;
+        if (p == null) throw new SQLException("Database is not connected");
+        return p;
+    }
+
+    /* ─────────── change notification ─────────── */
+
+    private static final String[] TABLES = {"items", "inventory", "distributors", "distributor_prices"};
+    private static final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+
+    // per-table write counters and last write time (epoch ms), indexed like TABLES; bumped by fireChange
+    private static final AtomicLongArray tableVersions = new AtomicLongArray(TABLES.length);
+    private static final AtomicLongArray tableModified = new AtomicLongArray(TABLES.length);
+    static {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < TABLES.length; i++) tableModified.set(i, now);
+    }
+
+    // positions of the named tables, resolved once so version checks don't compare strings
+    public static int[] tableIds(String... tables) {
+        int[] ids = new int[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            ids[i] = Arrays.asList(TABLES).indexOf(tables[i]);
+            if (ids[i] < 0) throw new IllegalArgumentException("unknown table " + tables[i]);
+        }
+        return ids;
+    }
+
+    // sum of the tables' write counters: it grows with every write to any of them, so it names one state of their data
+    public static long dataVersion(int[] tableIds) {
+        long v = 0;
+        for (int id : tableIds) v += tableVersions.get(id);
+        return v;
+    }
+
+    public static long lastModified(int[] tableIds) {
+        long t = 0;
+        for (int id : tableIds) t = Math.max(t, tableModified.get(id));
+        return t;
+    }
+
+    // listener receives the name of the table a successful write touched
+    public static void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+
+    public static void removeChangeListener(Consumer<String> listener) {
+        changeListeners.remove(listener);
+    }
+
+    // fire for write results shaped {"status":"ok"|"not_found"}
+    private static JSONObject changed(String table, JSONObject out) {
+        if ("ok".equals(out.get("status"))) fireChange(table);
+        return out;
+    }
+
+    private static void fireChange(String table) {
+        int i = Arrays.asList(TABLES).indexOf(table);
+        if (i >= 0) {
+            tableModified.set(i, System.currentTimeMillis());
+            tableVersions.incrementAndGet(i);
+        }
+        for (Consumer<String> l : changeListeners) {
+            try {
+                l.accept(table);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
         }
-        connectionString = jdbcPrefix + dbFile.getAbsolutePath();
-        connect();
-        applySchema();
-        seedDatabase();
     }
 
     // Schema function to reset the database if needed - do not change
@@ -75,16 +344,42 @@ public class DatabaseManager {
 
         try {
             System.out.println("Applying schema");
-            conn.createStatement().execute(itemsSql);
-            conn.createStatement().execute(inventorySql);
-            conn.createStatement().execute(distributorSql);
-            conn.createStatement().execute(distributorPricesSql);
+            write(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    st.execute(itemsSql);
+                    st.execute(inventorySql);
+                    st.execute(distributorSql);
+                    st.execute(distributorPricesSql);
+                }
+                return null;
+            });
             System.out.println("Schema applied");
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
     }
 
+    // lookup indexes, kept apart from the schema so existing database files pick them up on connect
+    private static void applyIndexes() {
+        String[] indexes = {
+                // cheapest/top-N offers walk this in cost order; also the price book's rebuild order
+                "CREATE INDEX IF NOT EXISTS idx_distributor_prices_item_cost ON distributor_prices(item, cost)",
+                "CREATE INDEX IF NOT EXISTS idx_distributor_prices_distributor ON distributor_prices(distributor)",
+                // keyset pages of one item's offers in id order; (item, cost) can only hand them out in cost order
+                "CREATE INDEX IF NOT EXISTS idx_distributor_prices_item ON distributor_prices(item)"
+        };
+        try {
+            write(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    for (String sql : indexes) st.execute(sql);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     // Schema function to reset the database if needed - do not change
     private static void seedDatabase() {
         String itemsSql = "INSERT INTO items (id, name) VALUES (1, 'Licorice'), (2, 'Good & Plenty'),\n"
@@ -101,10 +396,15 @@ public class DatabaseManager {
 
         try {
             System.out.println("Seeding database");
-            conn.createStatement().execute(itemsSql);
-            conn.createStatement().execute(inventorySql);
-            conn.createStatement().execute(distributorSql);
-            conn.createStatement().execute(distributorPricesSql);
+            write(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    st.execute(itemsSql);
+                    st.execute(inventorySql);
+                    st.execute(distributorSql);
+                    st.execute(distributorPricesSql);
+                }
+                return null;
+            });
             System.out.println("Database seeded");
         } catch (SQLException e) {
             e.printStackTrace();
@@ -113,7 +413,7 @@ public class DatabaseManager {
 
 
     // Helper methods to convert ResultSet to JSON - change if desired, but should not be required
-    private static JSONArray convertResultSetToJson(ResultSet rs) throws SQLException{
+    static JSONArray convertResultSetToJson(ResultSet rs) throws SQLException{
         ResultSetMetaData md = rs.getMetaData();
         int columns = md.getColumnCount();
         List<String> colNames = IntStream.range(0, columns)
@@ -142,12 +442,103 @@ public class DatabaseManager {
         return obj;
     }
 
+    /* ─────────── streaming JSON ─────────── */
+
+    // Same bytes as the JSONArray getters' toJSONString(), written straight into the
+    // response by JsonResultWriter. A failed query is thrown as an IOException rather than
+    // answered with "[]": an empty 200 would get an ETag and be revalidated until the next write.
+    // The routes clients poll hardest also come as columnar CBOR (ResultFormat, CborResultWriter).
+
+    public static void writeItems(OutputStream out) throws IOException { streamJson(out, ITEMS_SQL); }
+    public static void writeAllInventory(OutputStream out) throws IOException {
+        writeAllInventory(out, ResultFormat.JSON);
+    }
+    public static void writeAllInventory(OutputStream out, ResultFormat format) throws IOException {
+        streamInventory(out, format, InventoryReadModel.ALL, ALL_INVENTORY_SQL);
+    }
+    public static void writeOutOfStock(OutputStream out) throws IOException {
+        streamInventory(out, InventoryReadModel.OUT_OF_STOCK, OUT_OF_STOCK_SQL);
+    }
+    public static void writeOverstocked(OutputStream out) throws IOException {
+        streamInventory(out, InventoryReadModel.OVERSTOCKED, OVERSTOCKED_SQL);
+    }
+    public static void writeLowStock(OutputStream out) throws IOException {
+        streamInventory(out, InventoryReadModel.LOW_STOCK, LOW_STOCK_SQL);
+    }
+    public static void writeInventoryById(int id, OutputStream out) throws IOException {
+        streamInventory(out, InventoryReadModel.byId(id), INVENTORY_BY_ID_SQL, id);
+    }
+    public static void writeDistributors(OutputStream out) throws IOException { streamJson(out, DISTRIBUTORS_SQL); }
+    public static void writeOfferingsByDistributor(int distributorId, OutputStream out) throws IOException {
+        writeOfferingsByDistributor(distributorId, out, ResultFormat.JSON);
+    }
+    public static void writeOfferingsByDistributor(int distributorId, OutputStream out, ResultFormat format) throws IOException {
+        streamRows(out, format, OFFERINGS_BY_DISTRIBUTOR_SQL, distributorId);
+    }
+    public static void writeOfferingsByItem(int itemId, OutputStream out) throws IOException {
+        writeOfferingsByItem(itemId, out, ResultFormat.JSON);
+    }
+    public static void writeOfferingsByItem(int itemId, OutputStream out, ResultFormat format) throws IOException {
+        streamRows(out, format, OFFERINGS_BY_ITEM_SQL, itemId);
+    }
+
+    private static void streamInventory(OutputStream out, InventoryReadModel.Filter filter, String sql, int... params)
+            throws IOException {
+        streamInventory(out, ResultFormat.JSON, filter, sql, params);
+    }
+
+    // serves from the read model when it is loaded, otherwise runs sql
+    private static void streamInventory(OutputStream out, ResultFormat format, InventoryReadModel.Filter filter,
+                                        String sql, int... params) throws IOException {
+        if (readModel.write(filter, out, format)) {
+            if (InventoryReadModel.CHECK) checkReadModel();
+            return;
+        }
+        streamRows(out, format, sql, params);
+    }
+
+    private static void streamJson(OutputStream out, String sql, int... params) throws IOException {
+        streamRows(out, ResultFormat.JSON, sql, params);
+    }
+
+    // rows go to a Spool while the read holds its connection, and on to the client once it doesn't
+    private static void streamRows(OutputStream out, ResultFormat format, String sql, int... params) throws IOException {
+        try (Spool spool = new Spool()) {
+            read(conn -> {
+                try {
+                    PreparedStatement ps = prepare(conn, sql);
+                    for (int i = 0; i < params.length; i++) ps.setInt(i + 1, params[i]);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (format == ResultFormat.CBOR) CborResultWriter.write(rs, sql, spool);
+                        else JsonResultWriter.write(rs, sql, spool);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+            spool.copyTo(out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (SQLException e) {
+            throw readFailed(e);
+        }
+    }
+
+    // the SQLException stays the cause, so Main can tell an overloaded pool (503) from a failed query
+    private static IOException readFailed(SQLException e) {
+        return new IOException("Read failed: " + e.getMessage(), e);
+    }
+
     // Controller functions - add your routes here. getItems is provided as an example
     public static JSONArray getItems() {
-        String sql = "SELECT * FROM items";
+        String sql = ITEMS_SQL;
         try {
-            ResultSet set = conn.createStatement().executeQuery(sql);
-            return convertResultSetToJson(set);
+            return read(conn -> {
+                try (ResultSet set = prepare(conn, sql).executeQuery()) {
+                    return convertResultSetToJson(set);
+                }
+            });
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             return null;
@@ -163,7 +554,238 @@ public class DatabaseManager {
                     + " FROM inventory i"
                     + " JOIN items it ON it.id = i.item";
 
+    // read queries, shared by the JSONArray getters and the streaming writers below
+    private static final String ITEMS_SQL = "SELECT * FROM items";
+    private static final String OUT_OF_STOCK_SQL = ALL_INVENTORY_SQL + " WHERE i.stock = 0";
+    private static final String OVERSTOCKED_SQL = ALL_INVENTORY_SQL + " WHERE i.stock > i.capacity";
+    private static final String LOW_STOCK_SQL = ALL_INVENTORY_SQL + " WHERE i.stock * 1.0 / i.capacity < 0.35";
+    private static final String INVENTORY_BY_ID_SQL = ALL_INVENTORY_SQL + " WHERE i.id = ?";
+    private static final String DISTRIBUTORS_SQL =
+            "SELECT id, name " +
+                    "  FROM distributors";
+    private static final String OFFERINGS_BY_DISTRIBUTOR_SQL =
+            "SELECT dp.id" +
+                    "     , it.name    AS item_name" +
+                    "     , dp.cost" +
+                    "  FROM distributor_prices dp" +
+                    "  JOIN items it   ON dp.item = it.id" +
+                    " WHERE dp.distributor = ?";
+    private static final String OFFERINGS_BY_ITEM_SQL =
+            "SELECT dp.id" +
+                    "     , d.name     AS distributor_name" +
+                    "     , dp.cost" +
+                    "  FROM distributor_prices dp" +
+                    "  JOIN distributors d ON dp.distributor = d.id" +
+                    " WHERE dp.item = ?";
+
+
+
+    /* ─────────── keyset pagination ─────────── */
+    // A page is WHERE (sort, id) > (cursor) ORDER BY sort, id LIMIT n over an index on those
+    // columns, so it costs one seek plus n rows however big the table gets. The cursor is the
+    // last row's keys, base64url-encoded; fields= trims the SELECT list itself.
+
+    public static final int PAGE_LIMIT_DEFAULT = 100;
+    public static final int PAGE_LIMIT_MAX = Integer.getInteger("page.maxLimit", 1000);
+
+    // a pageable list: FROM clause, optional parent filter, output column -> SQL expression, sort key -> expression
+    private static final class PagedList {
+        final String from;
+        final String parent;   // column matched against the path id, or null
+        final Map<String, String> columns = new LinkedHashMap<>();
+        final Map<String, String> sorts = new LinkedHashMap<>();
+
+        PagedList(String from, String parent, String... aliasExprPairs) {
+            this.from = from;
+            this.parent = parent;
+            for (int i = 0; i < aliasExprPairs.length; i += 2) {
+                columns.put(aliasExprPairs[i], aliasExprPairs[i + 1]);
+            }
+            // every list pages by id by default; id is also the tiebreaker for the other sorts
+            sorts.put("id", columns.get("id"));
+        }
+
+        PagedList sortable(String key) {
+            sorts.put(key, columns.get(key));
+            return this;
+        }
+    }
+
+    // same columns as the unpaged routes, see ALL_INVENTORY_SQL and the OFFERINGS_* queries
+    private static final Map<String, PagedList> PAGED_LISTS = new HashMap<>();
+    static {
+        PAGED_LISTS.put("inventory", new PagedList("inventory i JOIN items it ON it.id = i.item", null,
+                "id", "i.id",
+                "item_id", "i.item",
+                "item_name", "it.name",
+                "amount_in_stock", "i.stock",
+                "total_capacity", "i.capacity"));
+        PAGED_LISTS.put("items", new PagedList("items", null,
+                "id", "id",
+                "name", "name").sortable("name"));
+        PAGED_LISTS.put("distributors", new PagedList("distributors", null,
+                "id", "id",
+                "name", "name").sortable("name"));
+        PAGED_LISTS.put("distributor_items", new PagedList("distributor_prices dp JOIN items it ON dp.item = it.id", "dp.distributor",
+                "id", "dp.id",
+                "item_name", "it.name",
+                "cost", "dp.cost"));
+        PAGED_LISTS.put("item_distributors", new PagedList("distributor_prices dp JOIN distributors d ON dp.distributor = d.id", "dp.item",
+                "id", "dp.id",
+                "distributor_name", "d.name",
+                "cost", "dp.cost").sortable("cost"));
+    }
+
+    /**
+     * One page of {@code list} ("inventory", "items", "distributors", "distributor_items",
+     * "item_distributors"): {"data": [...], "next": cursor-or-null}. {@code parentId} is the
+     * path id for the two offering lists, {@code after} a cursor from a previous page (null
+     * for the first), {@code fields} the columns to return (null = all), {@code sort} a
+     * sortable column (null = id).
+     */
+    public static JSONObject listPage(String list, int parentId, int limit, String after, List<String> fields, String sort) {
+        PagedList def = PAGED_LISTS.get(list);
+        if (def == null) return error("unknown list " + list);
+        String sortKey = sort == null ? "id" : sort;
+        String sortExpr = def.sorts.get(sortKey);
+        if (sortExpr == null) return error("cannot sort " + list + " by " + sortKey + ", sortable: " + String.join(", ", def.sorts.keySet()));
+        if (limit < 1) return error("limit must be positive");
+        int pageSize = Math.min(limit, PAGE_LIMIT_MAX);
+        List<String> selected = fields == null || fields.isEmpty() ? new ArrayList<>(def.columns.keySet()) : fields;
+        for (String f : selected) {
+            if (!def.columns.containsKey(f)) return error("unknown field " + f);
+        }
+        boolean byId = sortKey.equals("id");
+        Object[] cursor = null;
+        if (after != null) {
+            cursor = decodeCursor(after, sortKey, byId ? 1 : 2);
+            if (cursor == null) return error("invalid cursor");
+        }
+
+        String idExpr = def.columns.get("id");
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (String f : selected) sql.append(def.columns.get(f)).append(" AS ").append(f).append(", ");
+        if (!byId) sql.append(sortExpr).append(" AS page_sort, ");
+        sql.append(idExpr).append(" AS page_id FROM ").append(def.from);
+        List<String> where = new ArrayList<>();
+        if (def.parent != null) where.add(def.parent + " = ?");
+        if (cursor != null) where.add(byId ? idExpr + " > ?" : "(" + sortExpr + ", " + idExpr + ") > (?, ?)");
+        if (!where.isEmpty()) sql.append(" WHERE ").append(String.join(" AND ", where));
+        sql.append(" ORDER BY ").append(byId ? idExpr : sortExpr + ", " + idExpr).append(" LIMIT ?");
+
+        Object[] keys = cursor;
+        try {
+            return read(conn -> {
+                PreparedStatement ps = prepare(conn, sql.toString());
+                int p = 1;
+                if (def.parent != null) ps.setInt(p++, parentId);
+                if (keys != null) for (Object k : keys) ps.setObject(p++, k);
+                // one row past the page says whether there is a next one
+                ps.setInt(p, pageSize + 1);
+                JSONArray data = new JSONArray();
+                Object[] last = null;
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (data.size() == pageSize) {
+                            JSONObject out = new JSONObject();
+                            out.put("data", data);
+                            out.put("next", encodeCursor(sortKey, last));
+                            return out;
+                        }
+                        data.add(convertRowToJson(rs, selected));
+                        last = byId ? new Object[]{rs.getObject("page_id")}
+                                : new Object[]{rs.getObject("page_sort"), rs.getObject("page_id")};
+                    }
+                }
+                JSONObject out = new JSONObject();
+                out.put("data", data);
+                out.put("next", null);
+                return out;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return error(e.getMessage());
+        }
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject err = new JSONObject();
+        err.put("error", message);
+        return err;
+    }
+
+    // ["sort", key values...] as unpadded base64url; clients should treat it as opaque
+    private static String encodeCursor(String sortKey, Object[] keys) {
+        JSONArray a = new JSONArray();
+        a.add(sortKey);
+        a.addAll(Arrays.asList(keys));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(a.toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the cursor's key values, or null if it is malformed or was issued for a different sort
+    private static Object[] decodeCursor(String cursor, String sortKey, int keyCount) {
+        try {
+            Object parsed = PARSER.get().parse(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+            if (!(parsed instanceof JSONArray)) return null;
+            JSONArray a = (JSONArray) parsed;
+            if (a.size() != keyCount + 1 || !sortKey.equals(a.get(0))) return null;
+            Object[] keys = a.subList(1, a.size()).toArray();
+            for (Object k : keys) {
+                if (!(k instanceof Number || k instanceof String)) return null;
+            }
+            return keys;
+        } catch (IllegalArgumentException | ParseException e) {
+            return null;
+        }
+    }
+
+    /* ─────────── inventory read model ─────────── */
+
+    // each inventory query the model answers, with the filter standing in for its WHERE clause
+    private static final Map<String, InventoryReadModel.Filter> MODEL_QUERIES = new LinkedHashMap<>();
+    static {
+        MODEL_QUERIES.put(ALL_INVENTORY_SQL, InventoryReadModel.ALL);
+        MODEL_QUERIES.put(OUT_OF_STOCK_SQL, InventoryReadModel.OUT_OF_STOCK);
+        MODEL_QUERIES.put(OVERSTOCKED_SQL, InventoryReadModel.OVERSTOCKED);
+        MODEL_QUERIES.put(LOW_STOCK_SQL, InventoryReadModel.LOW_STOCK);
+    }
+
+    private static JSONArray fromReadModel(InventoryReadModel.Filter filter) {
+        JSONArray rows = readModel.select(filter);
+        if (rows != null && InventoryReadModel.CHECK) checkReadModel();
+        return rows;
+    }
+
+    public static JSONObject readModelStats() {
+        return readModel.stats();
+    }
 
+    // compares the model's answers with SQLite's under the writer lock and rebuilds it if they differ
+    public static JSONObject checkReadModel() {
+        JSONObject out = new JSONObject();
+        try {
+            boolean consistent = write(conn -> {
+                if (!readModel.loaded()) return true;
+                boolean same = true;
+                for (Map.Entry<String, InventoryReadModel.Filter> q : MODEL_QUERIES.entrySet()) {
+                    ByteArrayOutputStream db = new ByteArrayOutputStream();
+                    try (ResultSet rs = prepare(conn, q.getKey()).executeQuery()) {
+                        JsonResultWriter.write(rs, q.getKey(), db);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    same &= readModel.matches(q.getValue(), db.toByteArray());
+                }
+                if (!same) readModel.rebuild(conn);
+                return same;
+            });
+            out.put("consistent", consistent);
+        } catch (SQLException e) {
+            out.put("error", e.getMessage());
+        }
+        out.putAll(readModel.stats());
+        return out;
+    }
 
     // version helper
     public static JSONObject getVersion() {
@@ -174,20 +796,37 @@ public class DatabaseManager {
 
     // return every inventory record
     public static JSONArray getAllInventory() {
-        try (ResultSet rs = conn.createStatement().executeQuery(ALL_INVENTORY_SQL)) {
-            return convertResultSetToJson(rs);
+        try {
+            return loadAllInventory();
         } catch (SQLException e) {
             e.printStackTrace();
             return new JSONArray();
         }
     }
 
+    // getAllInventory for callers that must tell a failed read from an empty table
+    public static JSONArray loadAllInventory() throws SQLException {
+        JSONArray cached = fromReadModel(InventoryReadModel.ALL);
+        if (cached != null) return cached;
+        return read(conn -> {
+            try (ResultSet rs = prepare(conn, ALL_INVENTORY_SQL).executeQuery()) {
+                return convertResultSetToJson(rs);
+            }
+        });
+    }
+
 
     // inventory items with stock == 0
     public static JSONArray getOutOfStock() {
-        String sql = ALL_INVENTORY_SQL + " WHERE i.stock = 0";
-        try (ResultSet rs = conn.createStatement().executeQuery(sql)) {
-            return convertResultSetToJson(rs);
+        JSONArray cached = fromReadModel(InventoryReadModel.OUT_OF_STOCK);
+        if (cached != null) return cached;
+        String sql = OUT_OF_STOCK_SQL;
+        try {
+            return read(conn -> {
+                try (ResultSet rs = prepare(conn, sql).executeQuery()) {
+                    return convertResultSetToJson(rs);
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return new JSONArray();
@@ -196,9 +835,15 @@ public class DatabaseManager {
 
     // inventory items with stock > capacity
     public static JSONArray getOverstocked() {
-        String sql = ALL_INVENTORY_SQL + " WHERE i.stock > i.capacity";
-        try (ResultSet rs = conn.createStatement().executeQuery(sql)) {
-            return convertResultSetToJson(rs);
+        JSONArray cached = fromReadModel(InventoryReadModel.OVERSTOCKED);
+        if (cached != null) return cached;
+        String sql = OVERSTOCKED_SQL;
+        try {
+            return read(conn -> {
+                try (ResultSet rs = prepare(conn, sql).executeQuery()) {
+                    return convertResultSetToJson(rs);
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return new JSONArray();
@@ -207,9 +852,15 @@ public class DatabaseManager {
 
     // inventory items below 35% capacity
     public static JSONArray getLowStock() {
-        String sql = ALL_INVENTORY_SQL + " WHERE i.stock * 1.0 / i.capacity < 0.35";
-        try (ResultSet rs = conn.createStatement().executeQuery(sql)) {
-            return convertResultSetToJson(rs);
+        JSONArray cached = fromReadModel(InventoryReadModel.LOW_STOCK);
+        if (cached != null) return cached;
+        String sql = LOW_STOCK_SQL;
+        try {
+            return read(conn -> {
+                try (ResultSet rs = prepare(conn, sql).executeQuery()) {
+                    return convertResultSetToJson(rs);
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return new JSONArray();
@@ -218,12 +869,17 @@ public class DatabaseManager {
 
     // single inventory item by its inventory id
     public static JSONArray getInventoryById(int id) {
-        String sql = ALL_INVENTORY_SQL + " WHERE i.id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, id);
-            try (ResultSet rs = ps.executeQuery()) {
-                return convertResultSetToJson(rs);
-            }
+        JSONArray cached = fromReadModel(InventoryReadModel.byId(id));
+        if (cached != null) return cached;
+        String sql = INVENTORY_BY_ID_SQL;
+        try {
+            return read(conn -> {
+                PreparedStatement ps = prepare(conn, sql);
+                ps.setInt(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return convertResultSetToJson(rs);
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return new JSONArray();
@@ -231,11 +887,13 @@ public class DatabaseManager {
     }
     // 1. List all distributors
     public static JSONArray getDistributors() {
-        String sql =
-                "SELECT id, name " +
-                        "  FROM distributors";
-        try (ResultSet rs = conn.createStatement().executeQuery(sql)) {
-            return convertResultSetToJson(rs);
+        String sql = DISTRIBUTORS_SQL;
+        try {
+            return read(conn -> {
+                try (ResultSet rs = prepare(conn, sql).executeQuery()) {
+                    return convertResultSetToJson(rs);
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return new JSONArray();
@@ -244,18 +902,15 @@ public class DatabaseManager {
 
     // 2. Given a distributor ID, list its offerings
     public static JSONArray getOfferingsByDistributor(int distributorId) {
-        String sql =
-                "SELECT dp.id" +
-                        "     , it.name    AS item_name" +
-                        "     , dp.cost" +
-                        "  FROM distributor_prices dp" +
-                        "  JOIN items it   ON dp.item = it.id" +
-                        " WHERE dp.distributor = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, distributorId);
-            try (ResultSet rs = ps.executeQuery()) {
-                return convertResultSetToJson(rs);
-            }
+        String sql = OFFERINGS_BY_DISTRIBUTOR_SQL;
+        try {
+            return read(conn -> {
+                PreparedStatement ps = prepare(conn, sql);
+                ps.setInt(1, distributorId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return convertResultSetToJson(rs);
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return new JSONArray();
@@ -264,51 +919,57 @@ public class DatabaseManager {
 
     // 3. Given an item ID, list all distributor offerings
     public static JSONArray getOfferingsByItem(int itemId) {
-        String sql =
-                "SELECT dp.id" +
-                        "     , d.name     AS distributor_name" +
-                        "     , dp.cost" +
-                        "  FROM distributor_prices dp" +
-                        "  JOIN distributors d ON dp.distributor = d.id" +
-                        " WHERE dp.item = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, itemId);
-            try (ResultSet rs = ps.executeQuery()) {
-                return convertResultSetToJson(rs);
-            }
+        String sql = OFFERINGS_BY_ITEM_SQL;
+        try {
+            return read(conn -> {
+                PreparedStatement ps = prepare(conn, sql);
+                ps.setInt(1, itemId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return convertResultSetToJson(rs);
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return new JSONArray();
         }
     }
-    public static JSONObject getCheapestOffer(int itemId, int quantity) {
-        String sql =
-                "SELECT dp.distributor AS distributor_id" +
-                        "     , d.name        AS distributor_name" +
-                        "     , dp.cost       AS unit_cost" +
-                        "     , dp.cost * ?   AS total_cost" +
-                        "  FROM distributor_prices dp" +
-                        "  JOIN distributors d ON dp.distributor = d.id" +
-                        " WHERE dp.item = ?" +
-                        " ORDER BY dp.cost ASC" +
-                        " LIMIT 1";
-
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    private static final String OFFERS_SQL =
+            "SELECT dp.distributor AS distributor_id" +
+                    "     , d.name        AS distributor_name" +
+                    "     , dp.cost       AS unit_cost" +
+                    "     , dp.cost * ?   AS total_cost" +
+                    "  FROM distributor_prices dp" +
+                    "  JOIN distributors d ON dp.distributor = d.id" +
+                    " WHERE dp.item = ?" +
+                    " ORDER BY dp.cost ASC, dp.id ASC" +
+                    " LIMIT ?";
+
+    // cheapest `limit` offers for restocking quantity units, from the price book when it is loaded
+    private static JSONArray cheapestOffers(int itemId, int quantity, int limit) throws SQLException {
+        JSONArray cached = priceBook.cheapest(itemId, quantity, limit);
+        if (cached != null) return cached;
+        return read(conn -> {
+            PreparedStatement ps = prepare(conn, OFFERS_SQL);
             ps.setInt(1, quantity);
             ps.setInt(2, itemId);
-
+            ps.setInt(3, limit);
             try (ResultSet rs = ps.executeQuery()) {
-                // convertResultSetToJson returns a JSONArray of rows
-                JSONArray results = convertResultSetToJson(rs);
-                if (results.isEmpty()) {
-                    // no offerings found
-                    JSONObject none = new JSONObject();
-                    none.put("message", "No offerings found for item " + itemId);
-                    return none;
-                }
+                return convertResultSetToJson(rs);
+            }
+        });
+    }
 
-                return (JSONObject) results.get(0);
+    public static JSONObject getCheapestOffer(int itemId, int quantity) {
+        try {
+            JSONArray results = cheapestOffers(itemId, quantity, 1);
+            if (results.isEmpty()) {
+                // no offerings found
+                JSONObject none = new JSONObject();
+                none.put("message", "No offerings found for item " + itemId);
+                return none;
             }
+
+            return (JSONObject) results.get(0);
         } catch (SQLException e) {
             e.printStackTrace();
             JSONObject error = new JSONObject();
@@ -316,25 +977,46 @@ public class DatabaseManager {
             return error;
         }
     }
-    private static final JSONParser PARSER = new JSONParser();
+
+    // the `limit` cheapest offers, cheapest first; empty when nobody stocks the item
+    public static JSONArray getTopOffers(int itemId, int quantity, int limit) {
+        try {
+            return cheapestOffers(itemId, quantity, limit);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new JSONArray();
+        }
+    }
+
+    public static JSONObject priceBookStats() {
+        return priceBook.stats();
+    }
+    // id of the row the writer connection inserted last
+    private static final String LAST_INSERT_ID_SQL = "SELECT last_insert_rowid()";
+
+    // JSONParser keeps per-parse state, so each request thread gets its own
+    private static final ThreadLocal<JSONParser> PARSER = ThreadLocal.withInitial(JSONParser::new);
 
     public static JSONObject addItem(String body) {
         try {
-            JSONObject in = (JSONObject) PARSER.parse(body);
+            JSONObject in = (JSONObject) PARSER.get().parse(body);
             String name = ((String) in.get("name")).trim();
             // insert the new item
             String sql = "INSERT INTO items(name) VALUES(?)";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            long id = write(conn -> {
+                PreparedStatement ps = prepare(conn, sql);
                 ps.setString(1, name);
                 ps.executeUpdate();
-            }
 
-            long id;
-            try (Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()")) {
-                rs.next();
-                id = rs.getLong(1);
-            }
+                try (ResultSet rs = prepare(conn, LAST_INSERT_ID_SQL).executeQuery()) {
+                    rs.next();
+                    long newId = rs.getLong(1);
+                    readModel.itemAdded(newId, name);
+                    searchIndex.itemAdded(newId, name);
+                    return newId;
+                }
+            });
+            fireChange("items");
             // build success JSON
             JSONObject out = new JSONObject();
             out.put("id", id);
@@ -360,26 +1042,12 @@ public class DatabaseManager {
 
     public static JSONObject addInventory(String body) {
         try {
-            JSONObject in = (JSONObject) PARSER.parse(body);
+            JSONObject in = (JSONObject) PARSER.get().parse(body);
             long itemId   = (long) in.get("item");
             long stock    = (long) in.get("stock");
             long capacity = (long) in.get("capacity");
 
             String sql = "INSERT INTO inventory(item, stock, capacity) VALUES(?,?,?)";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setLong(1, itemId);
-                ps.setLong(2, stock);
-                ps.setLong(3, capacity);
-                ps.executeUpdate();
-            }
-
-            long newInvId;
-            try (ResultSet rs = conn.createStatement()
-                    .executeQuery("SELECT last_insert_rowid()")) {
-                rs.next();
-                newInvId = rs.getLong(1);
-            }
-
             String lookup =
                     "SELECT i.id      AS inv_id,"
                             + "       i.item    AS item_id,"
@@ -389,7 +1057,21 @@ public class DatabaseManager {
                             + "  FROM inventory i"
                             + "  JOIN items it ON it.id = i.item"
                             + " WHERE i.id = ?";
-            try (PreparedStatement ps = conn.prepareStatement(lookup)) {
+            JSONObject created = write(conn -> {
+                PreparedStatement insert = prepare(conn, sql);
+                insert.setLong(1, itemId);
+                insert.setLong(2, stock);
+                insert.setLong(3, capacity);
+                insert.executeUpdate();
+
+                long newInvId;
+                try (ResultSet rs = prepare(conn, LAST_INSERT_ID_SQL).executeQuery()) {
+                    rs.next();
+                    newInvId = rs.getLong(1);
+                }
+                readModel.inventoryAdded(newInvId, itemId, stock, capacity);
+
+                PreparedStatement ps = prepare(conn, lookup);
                 ps.setLong(1, newInvId);
                 try (ResultSet rs = ps.executeQuery()) {
                     if (!rs.next()) throw new SQLException("Failed to retrieve new inventory row");
@@ -401,7 +1083,9 @@ public class DatabaseManager {
                     out.put("total_capacity",   rs.getLong("total_capacity"));
                     return out;
                 }
-            }
+            });
+            fireChange("inventory");
+            return created;
         } catch (SQLException e) {
             JSONObject err = new JSONObject();
             err.put("error", e.getMessage());
@@ -417,18 +1101,22 @@ public class DatabaseManager {
 
     public static JSONObject updateInventory(int id, String body) {
         try {
-            JSONObject in = (JSONObject) PARSER.parse(body);
+            JSONObject in = (JSONObject) PARSER.get().parse(body);
             String sql = "UPDATE inventory SET stock = ?, capacity = ? WHERE id = ?";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setLong(1, (Long) in.get("stock"));
-                ps.setLong(2, (Long) in.get("capacity"));
+            return changed("inventory", afterStockFlush(() -> write(conn -> {
+                PreparedStatement ps = prepare(conn, sql);
+                long stock = (Long) in.get("stock");
+                long capacity = (Long) in.get("capacity");
+                ps.setLong(1, stock);
+                ps.setLong(2, capacity);
                 ps.setInt(3, id);
                 int updated = ps.executeUpdate();
+                if (updated > 0) readModel.inventoryUpdated(id, stock, capacity);
                 JSONObject out = new JSONObject();
                 out.put("status", updated > 0 ? "ok" : "not_found");
                 return out;
-            }
-        } catch (SQLException|ParseException e) {
+            })));
+        } catch (SQLException | ParseException | IOException e) {
             JSONObject err = new JSONObject();
             err.put("error", e.getMessage());
             return err;
@@ -439,14 +1127,22 @@ public class DatabaseManager {
     public static JSONObject deleteInventory(int id) {
         try {
             String sql = "DELETE FROM inventory WHERE id = ?";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setInt(1, id);
-                int deleted = ps.executeUpdate();
+            return changed("inventory", afterStockFlush(() -> {
+                int deleted = write(conn -> {
+                    PreparedStatement ps = prepare(conn, sql);
+                    ps.setInt(1, id);
+                    return ps.executeUpdate();
+                });
+                if (deleted > 0) {
+                    readModel.inventoryDeleted(id);
+                    // MAX(id) + 1 can hand this id to a new row, which must not inherit a delta that raced in
+                    stockLedger.forget(id);
+                }
                 JSONObject out = new JSONObject();
                 out.put("status", deleted > 0 ? "ok" : "not_found");
                 return out;
-            }
-        } catch (SQLException e) {
+            }));
+        } catch (SQLException | IOException e) {
             JSONObject err = new JSONObject();
             err.put("error", e.getMessage());
             return err;
@@ -455,15 +1151,20 @@ public class DatabaseManager {
 
     public static JSONObject addDistributor(String body) {
         try {
-            JSONObject in = (JSONObject) PARSER.parse(body);
+            JSONObject in = (JSONObject) PARSER.get().parse(body);
             String sql = "INSERT INTO distributors(name) VALUES(?)";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int id = write(conn -> {
+                PreparedStatement ps = prepare(conn, sql);
                 ps.setString(1, (String) in.get("name"));
                 ps.executeUpdate();
-            }
-            ResultSet rs = conn.createStatement()
-                    .executeQuery("SELECT last_insert_rowid() AS id");
-            int id = rs.next() ? rs.getInt("id") : -1;
+                int newId;
+                try (ResultSet rs = prepare(conn, LAST_INSERT_ID_SQL).executeQuery()) {
+                    newId = rs.next() ? rs.getInt(1) : -1;
+                }
+                priceBook.distributorAdded(newId, (String) in.get("name"));
+                return newId;
+            });
+            fireChange("distributors");
             JSONObject out = new JSONObject();
             out.put("status", "ok");
             out.put("id", id);
@@ -479,17 +1180,24 @@ public class DatabaseManager {
 
     public static JSONObject addPrice(int distributorId, String body) {
         try {
-            JSONObject in = (JSONObject) PARSER.parse(body);
+            JSONObject in = (JSONObject) PARSER.get().parse(body);
             String sql = "INSERT INTO distributor_prices(distributor, item, cost) VALUES(?,?,?)";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int id = write(conn -> {
+                long item = (Long) in.get("item");
+                double cost = (Double) in.get("cost");
+                PreparedStatement ps = prepare(conn, sql);
                 ps.setInt(1, distributorId);
-                ps.setLong(2, (Long) in.get("item"));
-                ps.setDouble(3, (Double) in.get("cost"));
+                ps.setLong(2, item);
+                ps.setDouble(3, cost);
                 ps.executeUpdate();
-            }
-            ResultSet rs = conn.createStatement()
-                    .executeQuery("SELECT last_insert_rowid() AS id");
-            int id = rs.next() ? rs.getInt("id") : -1;
+                int newId;
+                try (ResultSet rs = prepare(conn, LAST_INSERT_ID_SQL).executeQuery()) {
+                    newId = rs.next() ? rs.getInt(1) : -1;
+                }
+                priceBook.priceAdded(newId, distributorId, item, cost);
+                return newId;
+            });
+            fireChange("distributor_prices");
             JSONObject out = new JSONObject();
             out.put("status", "ok");
             out.put("id", id);
@@ -504,17 +1212,20 @@ public class DatabaseManager {
 
     public static JSONObject updatePrice(int distributorId, int itemId, String body) {
         try {
-            JSONObject in = (JSONObject) PARSER.parse(body);
+            JSONObject in = (JSONObject) PARSER.get().parse(body);
             String sql = "UPDATE distributor_prices SET cost = ? WHERE distributor = ? AND item = ?";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setDouble(1, (Double) in.get("cost"));
+            return changed("distributor_prices", write(conn -> {
+                PreparedStatement ps = prepare(conn, sql);
+                double cost = (Double) in.get("cost");
+                ps.setDouble(1, cost);
                 ps.setInt(2, distributorId);
                 ps.setInt(3, itemId);
                 int updated = ps.executeUpdate();
+                if (updated > 0) priceBook.priceUpdated(distributorId, itemId, cost);
                 JSONObject out = new JSONObject();
                 out.put("status", updated > 0 ? "ok" : "not_found");
                 return out;
-            }
+            }));
         } catch (SQLException|ParseException e) {
             JSONObject err = new JSONObject();
             err.put("error", e.getMessage());
@@ -525,13 +1236,15 @@ public class DatabaseManager {
     public static JSONObject deleteDistributor(int id) {
         try {
             String sql = "DELETE FROM distributors WHERE id = ?";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            return changed("distributors", write(conn -> {
+                PreparedStatement ps = prepare(conn, sql);
                 ps.setInt(1, id);
                 int deleted = ps.executeUpdate();
+                if (deleted > 0) priceBook.distributorDeleted(id);
                 JSONObject out = new JSONObject();
                 out.put("status", deleted > 0 ? "ok" : "not_found");
                 return out;
-            }
+            }));
         } catch (SQLException e) {
             JSONObject err = new JSONObject();
             err.put("error", e.getMessage());
@@ -539,85 +1252,1541 @@ public class DatabaseManager {
         }
     }
     public static JSONObject deleteItem(int id) {
-        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM items WHERE id = ?")) {
-            ps.setInt(1, id);
-            int deleted = ps.executeUpdate();
-            JSONObject out = new JSONObject();
-            out.put("status", deleted > 0 ? "ok" : "not_found");
-            return out;
-        } catch (SQLException e) {
-            JSONObject err = new JSONObject();
-            err.put("error", e.getMessage());
-            return err;
+        try {
+            // foreign_keys is off, so the schema's ON DELETE CASCADE to inventory and distributor_prices is
+            // done here; /export, the dashboard and write-behind checks read inventory without the items join,
+            // and the restock lookups don't join items either, so neither may outlive the item
+            List<Integer> stock = new ArrayList<>();
+            JSONObject result = changed("items", afterStockFlush(() -> writeTransaction(conn -> {
+                PreparedStatement ps = prepare(conn, "DELETE FROM items WHERE id = ?");
+                ps.setInt(1, id);
+                int deleted = ps.executeUpdate();
+                if (deleted > 0) {
+                    PreparedStatement rows = prepare(conn, "SELECT id FROM inventory WHERE item = ?");
+                    rows.setInt(1, id);
+                    try (ResultSet rs = rows.executeQuery()) {
+                        while (rs.next()) stock.add(rs.getInt(1));
+                    }
+                    PreparedStatement inventory = prepare(conn, "DELETE FROM inventory WHERE item = ?");
+                    inventory.setInt(1, id);
+                    inventory.executeUpdate();
+                    PreparedStatement prices = prepare(conn, "DELETE FROM distributor_prices WHERE item = ?");
+                    prices.setInt(1, id);
+                    prices.executeUpdate();
+                    for (int inventoryId : stock) readModel.inventoryDeleted(inventoryId);
+                    readModel.itemDeleted(id);
+                    priceBook.itemDeleted(id);
+                    searchIndex.itemDeleted(id);
+                }
+                JSONObject out = new JSONObject();
+                out.put("status", deleted > 0 ? "ok" : "not_found");
+                return out;
+            })));
+            for (int inventoryId : stock) stockLedger.forget(inventoryId);
+            // the item's stock and prices went with it
+            changed("inventory", result);
+            return changed("distributor_prices", result);
+        } catch (SQLException | IOException e) {
+            JSONObject err = new JSONObject();
+            err.put("error", e.getMessage());
+            return err;
+        }
+    }
+
+    /* ─────────── dashboard ─────────── */
+
+    public static final double DASHBOARD_LOW = Dashboard.LOW_DEFAULT;
+    public static final double DASHBOARD_OVER = Dashboard.OVER_DEFAULT;
+    public static final int DASHBOARD_BUCKETS = Dashboard.BUCKETS_DEFAULT;
+
+    // the inventory join with each item's cheapest live unit cost, by (item, cost) index lookup per row
+    private static final String DASHBOARD_SQL =
+            "SELECT i.id, i.item, it.name, i.stock, i.capacity"
+                    + " , (SELECT MIN(dp.cost) FROM distributor_prices dp JOIN distributors d ON d.id = dp.distributor"
+                    + "     WHERE dp.item = i.item)"
+                    + " FROM inventory i"
+                    + " JOIN items it ON it.id = i.item";
+
+    // all the dashboard panels in one pass, from the read model and price book when both are loaded,
+    // otherwise from one SQLite scan. low and over are stock/capacity ratios (the panel routes use 0.35 and 1).
+    public static void writeDashboard(double low, double over, int buckets, OutputStream out) throws IOException {
+        PriceBook.CheapestCost costs = priceBook.cheapestCosts();
+        if (costs != null) {
+            Dashboard d = new Dashboard(low, over, buckets, out);
+            d.begin();
+            if (readModel.scan((r, name) -> d.row(r.id, r.item, name, r.stock, r.capacity, costs.of(r.item)))) {
+                d.finish("model");
+                return;
+            }
+            // the model was dropped after the price book answered: nothing has been written yet
+        }
+        // spooled like streamRows, so the scan doesn't hold its connection while the client reads
+        try (Spool spool = new Spool()) {
+            Dashboard d = new Dashboard(low, over, buckets, spool);
+            d.begin();
+            read(conn -> {
+                try (ResultSet rs = prepare(conn, DASHBOARD_SQL).executeQuery()) {
+                    while (rs.next()) {
+                        double cost = rs.getDouble(6);
+                        if (rs.wasNull()) cost = Double.NaN;
+                        d.row(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getLong(4), rs.getLong(5), cost);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+            d.finish("sql");
+            spool.copyTo(out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (SQLException e) {
+            // nothing has reached the client; the handler answers instead
+            throw readFailed(e);
+        }
+    }
+
+    /* ─────────── item search ─────────── */
+    // GET /items/search?q=sni: prefix matches from the search index, topped up with fuzzy matches from
+    // the FTS table while there are fewer than limit, each with its inventory row and cheapest offer
+
+    public static final int SEARCH_LIMIT_DEFAULT = 10;
+    public static final int SEARCH_LIMIT_MAX = Integer.getInteger("search.maxLimit", 50);
+
+    // when the index is off: whole-name prefixes first, then later-word prefixes
+    private static final String SEARCH_FALLBACK_SQL =
+            "SELECT id, name, name LIKE ?1 ESCAPE '\\' AS whole FROM items"
+                    + " WHERE name LIKE ?1 ESCAPE '\\' OR name LIKE ?2 ESCAPE '\\'"
+                    + " ORDER BY whole DESC, name LIMIT ?3";
+    private static final String INVENTORY_FOR_ITEM_SQL = "SELECT id, stock, capacity FROM inventory WHERE item = ?";
+
+    public static JSONObject searchItems(String q, int limit, boolean fuzzy) {
+        if (q == null || q.trim().isEmpty()) return error("q is required");
+        if (limit < 1 || limit > SEARCH_LIMIT_MAX) return error("limit must be between 1 and " + SEARCH_LIMIT_MAX);
+        try {
+            List<ItemSearchIndex.Hit> prefix = searchIndex.prefix(q, limit);
+            List<ItemSearchIndex.Hit> hits = prefix != null ? prefix : read(conn -> searchFallback(conn, q.trim(), limit));
+            if (fuzzy && hits.size() < limit && searchIndex.fuzzyAvailable()) {
+                Set<Long> seen = new HashSet<>();
+                for (ItemSearchIndex.Hit h : hits) seen.add(h.id);
+                int room = limit - hits.size();
+                hits.addAll(read(conn -> searchIndex.fuzzy(conn, q, room, seen)));
+            }
+            JSONArray results = new JSONArray();
+            for (ItemSearchIndex.Hit h : hits) results.add(searchResult(h));
+            JSONObject out = new JSONObject();
+            out.put("query", q);
+            out.put("results", results);
+            return out;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return error(e.getMessage());
+        }
+    }
+
+    public static JSONObject searchIndexStats() {
+        return searchIndex.stats();
+    }
+
+    private static List<ItemSearchIndex.Hit> searchFallback(Connection conn, String q, int limit) throws SQLException {
+        String like = q.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+        PreparedStatement ps = prepare(conn, SEARCH_FALLBACK_SQL);
+        ps.setString(1, like);
+        ps.setString(2, "% " + like);
+        ps.setInt(3, limit);
+        List<ItemSearchIndex.Hit> hits = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String name = rs.getString(2);
+                String match = rs.getInt(3) == 0 ? "word" : name.equalsIgnoreCase(q) ? "exact" : "prefix";
+                hits.add(new ItemSearchIndex.Hit(rs.getLong(1), name, match, 0));
+            }
+        }
+        return hits;
+    }
+
+    private static JSONObject searchResult(ItemSearchIndex.Hit h) throws SQLException {
+        JSONObject o = new JSONObject();
+        o.put("id", h.id);
+        o.put("name", h.name);
+        o.put("match", h.match);
+        if (h.match.equals("fuzzy")) o.put("distance", h.distance);
+        o.put("inventory", inventoryForItem(h.id));
+        JSONArray offers = cheapestOffers((int) h.id, 1, 1);
+        JSONObject cheapest = null;
+        if (!offers.isEmpty()) {
+            JSONObject offer = (JSONObject) offers.get(0);
+            cheapest = new JSONObject();
+            cheapest.put("distributor_id", offer.get("distributor_id"));
+            cheapest.put("distributor_name", offer.get("distributor_name"));
+            cheapest.put("unit_cost", offer.get("unit_cost"));
+        }
+        o.put("cheapest", cheapest);
+        return o;
+    }
+
+    // {id, amount_in_stock, total_capacity} of the item's inventory row, null when it has none
+    private static JSONObject inventoryForItem(long itemId) throws SQLException {
+        long[] row;
+        if (readModel.loaded()) {
+            InventoryReadModel.Row r = readModel.forItem(itemId);
+            row = r == null ? null : new long[]{r.id, r.stock, r.capacity};
+        } else {
+            row = read(conn -> {
+                PreparedStatement ps = prepare(conn, INVENTORY_FOR_ITEM_SQL);
+                ps.setLong(1, itemId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)} : null;
+                }
+            });
+        }
+        if (row == null) return null;
+        JSONObject o = new JSONObject();
+        o.put("id", row[0]);
+        o.put("amount_in_stock", row[1]);
+        o.put("total_capacity", row[2]);
+        return o;
+    }
+
+    // caller holds the lifecycle write lock
+    private static void openSearchIndex() {
+        try {
+            write(conn -> {
+                searchIndex.open(conn);
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* ─────────── stock adjustments ─────────── */
+    // POST /inventory/:id/adjust {"delta": -1}. "sync" applies the delta in its own write and answers
+    // with the new stock; "write_behind" journals it and answers "accepted", see StockLedger. Deltas
+    // commute, so the two can be mixed on one row; absolute writes (PUT, DELETE) flush the pending
+    // deltas first, see afterStockFlush.
+
+    public static final String STOCK_DURABILITY = System.getProperty("stock.durability", "sync");
+
+    private static final String ADJUST_STOCK_SQL = "UPDATE inventory SET stock = stock + ? WHERE id = ? RETURNING stock, capacity";
+    private static final String STOCK_JOURNAL_SQL =
+            "CREATE TABLE IF NOT EXISTS stock_journal (id INTEGER PRIMARY KEY CHECK (id = 1), applied_generation INTEGER NOT NULL)";
+    private static final String MARK_APPLIED_SQL =
+            "INSERT INTO stock_journal(id, applied_generation) VALUES (1, ?)"
+                    + " ON CONFLICT(id) DO UPDATE SET applied_generation = excluded.applied_generation";
+
+    public static JSONObject adjustStock(int id, String body, String durability) {
+        try {
+            JSONObject in = (JSONObject) PARSER.get().parse(body);
+            if (!(in.get("delta") instanceof Long)) return error("delta must be an integer");
+            long delta = (Long) in.get("delta");
+            // no stock moves that far, and the ledger's journal uses it to mark a deleted row
+            if (delta == Long.MIN_VALUE) return error("delta out of range");
+            switch (durability) {
+                case "sync":
+                    return changed("inventory", write(conn -> {
+                        PreparedStatement ps = prepare(conn, ADJUST_STOCK_SQL);
+                        ps.setLong(1, delta);
+                        ps.setInt(2, id);
+                        JSONObject out = new JSONObject();
+                        try (ResultSet rs = ps.executeQuery()) {
+                            if (!rs.next()) {
+                                out.put("status", "not_found");
+                                return out;
+                            }
+                            readModel.inventoryUpdated(id, rs.getLong(1), rs.getLong(2));
+                            out.put("status", "ok");
+                            out.put("stock", rs.getLong(1));
+                        }
+                        return out;
+                    }));
+                case "write_behind":
+                    JSONObject out = new JSONObject();
+                    // a reset can't drop the journals between the check and the append
+                    lifecycle.readLock().lock();
+                    try {
+                        if (!inventoryExists(id)) {
+                            out.put("status", "not_found");
+                            return out;
+                        }
+                        stockLedger.adjust(id, delta);
+                    } finally {
+                        lifecycle.readLock().unlock();
+                    }
+                    out.put("status", "accepted");
+                    return out;
+                default:
+                    return error("durability must be sync or write_behind");
+            }
+        } catch (SQLException | ParseException | IOException e) {
+            return error(e.getMessage());
+        }
+    }
+
+    private static boolean inventoryExists(int id) throws SQLException {
+        if (readModel.loaded()) return !readModel.select(new InventoryReadModel.ById(id)).isEmpty();
+        return read(conn -> {
+            PreparedStatement ps = prepare(conn, "SELECT 1 FROM inventory WHERE id = ?");
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface StockWrite<T> {
+        T run() throws SQLException, IOException;
+    }
+
+    // an absolute stock write (PUT, DELETE) lands after the write-behind deltas accepted before it, or the
+    // next flush would add them on top of the value written; a reset can't drop the ledger in between
+    private static <T> T afterStockFlush(StockWrite<T> write) throws SQLException, IOException {
+        lifecycle.readLock().lock();
+        try {
+            stockLedger.flush();
+            return write.run();
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    // apply every write-behind delta accepted so far; also runs every stock.flushIntervalMs
+    public static void flushStock() {
+        try {
+            stockLedger.flush();
+        } catch (IOException | SQLException | DatabaseBusyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static JSONObject stockLedgerStats() {
+        JSONObject out = stockLedger.stats();
+        out.put("default_durability", STOCK_DURABILITY);
+        return out;
+    }
+
+    // one generation in one transaction, with its number, so a replay after a crash can tell it landed
+    private static void applyStockBatch(StockLedger.Batch batch) throws SQLException {
+        writeTransaction(conn -> {
+            PreparedStatement ps = prepare(conn, ADJUST_STOCK_SQL);
+            for (Map.Entry<Integer, Long> e : batch.deltas.entrySet()) {
+                ps.setLong(1, e.getValue());
+                ps.setInt(2, e.getKey());
+                // rows deleted since the adjustment come back empty; their deltas are dropped
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) readModel.inventoryUpdated(e.getKey(), rs.getLong(1), rs.getLong(2));
+                }
+            }
+            PreparedStatement mark = prepare(conn, MARK_APPLIED_SQL);
+            mark.setLong(1, batch.generation);
+            mark.executeUpdate();
+            return null;
+        });
+        fireChange("inventory");
+    }
+
+    // caller holds the lifecycle write lock; replays journals a crashed process left behind
+    private static void openStockLedger() {
+        try {
+            long applied = write(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    st.execute(STOCK_JOURNAL_SQL);
+                    try (ResultSet rs = st.executeQuery("SELECT applied_generation FROM stock_journal WHERE id = 1")) {
+                        return rs.next() ? rs.getLong(1) : 0L;
+                    }
+                }
+            });
+            List<StockLedger.Batch> replay = stockLedger.open(applied);
+            for (StockLedger.Batch b : replay) {
+                applyStockBatch(b);
+                stockLedger.replayed(b);
+            }
+            if (!replay.isEmpty()) System.out.println("Replayed " + replay.size() + " stock journal(s)");
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* ─────────── change feed ─────────── */
+    // GET /changes?since=<version>: every row changed after that version, once each, with its state now.
+    // Without since the answer is just the current version; a client records it, then loads the full
+    // lists, then polls from it. Versions it can no longer be given (compacted, or from before a reset)
+    // come back as "resync" and it starts over, as does a range that takes in a bulk import (see importCsv).
+
+    public static final int CHANGES_LIMIT_DEFAULT = 500;
+    public static final int CHANGES_LIMIT_MAX = Integer.getInteger("changes.maxLimit", 5000);
+
+    // current state of a table's rows by id, in the shape its list route serves; ids bound as a JSON array
+    private static final Map<String, String> CHANGED_ROWS_SQL = new HashMap<>();
+    static {
+        String ids = " IN (SELECT value FROM json_each(?))";
+        CHANGED_ROWS_SQL.put("items", ITEMS_SQL + " WHERE id" + ids);
+        CHANGED_ROWS_SQL.put("inventory", ALL_INVENTORY_SQL + " WHERE i.id" + ids);
+        CHANGED_ROWS_SQL.put("distributors", DISTRIBUTORS_SQL + " WHERE id" + ids);
+        CHANGED_ROWS_SQL.put("distributor_prices", "SELECT * FROM distributor_prices WHERE id" + ids);
+    }
+
+    public static JSONObject changesSince(Long since, int limit) {
+        if (limit < 1 || limit > CHANGES_LIMIT_MAX) return error("limit must be between 1 and " + CHANGES_LIMIT_MAX);
+        long latest = changeLog.version();
+        JSONObject out = new JSONObject();
+        if (since == null) {
+            out.put("version", latest);
+            out.put("changes", new JSONArray());
+            out.put("more", false);
+            return out;
+        }
+        if (since < changeLog.floor() || since > latest) return resync(since, latest);
+        try {
+            List<ChangeLog.Entry> entries = changeLog.fromRing(since, limit);
+            if (entries == null) {
+                entries = read(conn -> {
+                    PreparedStatement ps = prepare(conn, ChangeLog.TAIL_SQL);
+                    ps.setLong(1, since);
+                    ps.setInt(2, limit);
+                    List<ChangeLog.Entry> found = new ArrayList<>();
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) found.add(new ChangeLog.Entry(rs.getLong(1), rs.getString(2), rs.getLong(3), rs.getString(4)));
+                    }
+                    return found;
+                });
+                // compaction may have dropped part of the range while it was read
+                if (since < changeLog.floor()) return resync(since, changeLog.version());
+            }
+            for (ChangeLog.Entry e : entries) {
+                // a bulk import's rows were never listed one by one
+                if (e.op.equals(ChangeLog.BULK)) return resync(since, changeLog.version());
+            }
+            boolean more = entries.size() == limit;
+            long version = entries.isEmpty() ? latest : entries.get(entries.size() - 1).version;
+            if (!more) version = Math.max(version, latest);
+
+            // last change per row, in version order
+            Map<String, ChangeLog.Entry> lastChange = new LinkedHashMap<>();
+            Map<String, JSONArray> idsByTable = new HashMap<>();
+            for (ChangeLog.Entry e : entries) {
+                String key = e.table + ":" + e.rowId;
+                if (lastChange.remove(key) == null) idsByTable.computeIfAbsent(e.table, t -> new JSONArray()).add(e.rowId);
+                lastChange.put(key, e);
+            }
+            Map<String, Map<Long, JSONObject>> rows = read(conn -> {
+                Map<String, Map<Long, JSONObject>> found = new HashMap<>();
+                for (Map.Entry<String, JSONArray> t : idsByTable.entrySet()) {
+                    PreparedStatement ps = prepare(conn, CHANGED_ROWS_SQL.get(t.getKey()));
+                    ps.setString(1, t.getValue().toJSONString());
+                    Map<Long, JSONObject> byId = new HashMap<>();
+                    try (ResultSet rs = ps.executeQuery()) {
+                        for (Object o : convertResultSetToJson(rs)) {
+                            JSONObject row = (JSONObject) o;
+                            byId.put(((Number) row.get("id")).longValue(), row);
+                        }
+                    }
+                    found.put(t.getKey(), byId);
+                }
+                return found;
+            });
+
+            // a row is sent as it is now, which may be newer than version: applying it again later is harmless
+            JSONArray changes = new JSONArray();
+            for (ChangeLog.Entry e : lastChange.values()) {
+                JSONObject row = rows.get(e.table).get(e.rowId);
+                JSONObject c = new JSONObject();
+                c.put("version", e.version);
+                c.put("table", e.table);
+                c.put("id", e.rowId);
+                c.put("op", row == null ? "delete" : "upsert");
+                if (row != null) c.put("row", row);
+                changes.add(c);
+            }
+            out.put("version", version);
+            out.put("changes", changes);
+            out.put("more", more);
+            return out;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return error(e.getMessage());
+        }
+    }
+
+    private static JSONObject resync(long since, long latest) {
+        JSONObject out = error("changes after version " + since + " are no longer available; reload and continue from version");
+        out.put("status", "resync");
+        out.put("version", latest);
+        return out;
+    }
+
+    public static JSONObject changeLogStats() {
+        return changeLog.stats();
+    }
+
+    // caller holds the lifecycle write lock
+    private static void openChangeLog(boolean reset) {
+        try {
+            write(conn -> {
+                changeLog.open(conn, reset);
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // on the writer after each write; entries of an open transaction wait for the write after its commit
+    private static void tailChanges(Connection conn) {
+        try {
+            if (conn.getAutoCommit()) changeLog.tail(conn);
+        } catch (SQLException e) {
+            // picked up by the next write
+            e.printStackTrace();
+        }
+    }
+
+    /* ─────────── snapshots ─────────── */
+    // POST /snapshots/:name saves the database as a named fixture, POST /snapshots/:name/restore copies
+    // it back over the open database the way a reset copies the seed snapshot. Both go through the
+    // backup API on the writer, so readers see the old data or the new, never a mix.
+
+    public static JSONObject listSnapshots() {
+        return snapshots.list();
+    }
+
+    public static JSONObject saveSnapshot(String name) {
+        if (!SnapshotStore.validName(name)) return error("snapshot names are 1-64 letters, digits, '-' or '_'");
+        // accepted write-behind adjustments are part of what the caller sees, so they go in too
+        flushStock();
+        try {
+            File f = snapshots.namedForWrite(name);
+            backupTo(f);
+            JSONObject out = new JSONObject();
+            out.put("status", "ok");
+            out.put("name", name);
+            out.put("bytes", f.length());
+            return out;
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+            return error(e.getMessage());
+        }
+    }
+
+    public static JSONObject restoreSnapshot(String name) {
+        if (!SnapshotStore.validName(name)) return error("snapshot names are 1-64 letters, digits, '-' or '_'");
+        File f = snapshots.named(name);
+        JSONObject out = new JSONObject();
+        if (!f.isFile()) {
+            out.put("status", "not_found");
+            return out;
+        }
+        long start = System.nanoTime();
+        lifecycle.writeLock().lock();
+        try {
+            discardStock();
+            restoreFrom(f);
+            // a fixture saved by an older build may predate some indexes
+            applyIndexes();
+            openChangeLog(true);
+            openSearchIndex();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // the backup step is one transaction: the database is as it was
+            openChangeLog(false);
+            return error(e.getMessage());
+        } finally {
+            openStockLedger();
+            rebuildModels();
+            lifecycle.writeLock().unlock();
+        }
+        for (String table : TABLES) fireChange(table);
+        out.put("status", "ok");
+        out.put("name", name);
+        out.put("micros", (System.nanoTime() - start) / 1_000);
+        return out;
+    }
+
+    public static JSONObject deleteSnapshot(String name) {
+        if (!SnapshotStore.validName(name)) return error("snapshot names are 1-64 letters, digits, '-' or '_'");
+        JSONObject out = new JSONObject();
+        out.put("status", snapshots.named(name).delete() ? "ok" : "not_found");
+        return out;
+    }
+
+    // caller holds the lifecycle write lock; false if there is no seed snapshot yet or it can't be used
+    private static boolean restoreSeedSnapshot() {
+        File seed = snapshots.seed();
+        if (seed == null || pool == null) return false;
+        try {
+            restoreFrom(seed);
+            // drops whatever FTS reindex the thrown-away data still had coming
+            openSearchIndex();
+            return true;
+        } catch (SQLException e) {
+            // rebuilt from the schema functions instead
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // caller holds the lifecycle write lock
+    private static void saveSeedSnapshot() {
+        try {
+            File f = snapshots.newSeed();
+            backupTo(f);
+            snapshots.seedSaved(f);
+        } catch (SQLException | IOException e) {
+            // every reset rebuilds from the schema functions
+            e.printStackTrace();
+        }
+    }
+
+    private static void backupTo(File f) throws SQLException {
+        write(conn -> {
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("backup to \"" + f.getAbsolutePath() + "\"");
+            }
+            return null;
+        });
+    }
+
+    // caller holds the lifecycle write lock and reopens the change log and stock ledger afterwards
+    private static void restoreFrom(File f) throws SQLException {
+        changeLog.detach();
+        write(conn -> {
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("restore from \"" + f.getAbsolutePath() + "\"");
+                // the applied mark of whichever process saved it means nothing to this one's journals
+                st.execute("DROP TABLE IF EXISTS stock_journal");
+            }
+            return null;
+        });
+    }
+
+    /* ─────────── in-memory storage ─────────── */
+    // -Ddb.storage=memory|memory_snapshot, see StorageMode
+
+    private static final AtomicBoolean diskSnapshotsStarted = new AtomicBoolean();
+    private static final AtomicLong diskSnapshots = new AtomicLong();
+    private static final AtomicLong lastDiskSnapshotMicros = new AtomicLong();
+    private static final AtomicLong lastDiskSnapshotAt = new AtomicLong();
+
+    // caller holds the lifecycle write lock, on a pool just opened over an empty in-memory database
+    private static void loadInMemory() {
+        File disk = new File(dbName);
+        try {
+            if (StorageMode.snapshotted() && disk.length() > 0) {
+                write(conn -> {
+                    try (Statement st = conn.createStatement()) {
+                        st.executeUpdate("restore from \"" + disk.getAbsolutePath() + "\"");
+                    }
+                    return null;
+                });
+                System.out.println("Loaded " + disk + " into memory");
+            }
+            boolean seeded = write(conn -> {
+                try (Statement st = conn.createStatement();
+                     ResultSet rs = st.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'items'")) {
+                    return rs.next();
+                }
+            });
+            if (!seeded) {
+                applySchema();
+                applyIndexes();
+                seedDatabase();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        if (StorageMode.snapshotted() && diskSnapshotsStarted.compareAndSet(false, true)) {
+            ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "db-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = StorageMode.SNAPSHOT_INTERVAL_SEC;
+            snapshotter.scheduleWithFixedDelay(DatabaseManager::snapshotToDisk, interval, interval, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                flushStock();
+                snapshotToDisk();
+            }, "db-snapshot-on-exit"));
+        }
+    }
+
+    // copies the in-memory database over db.path by way of a temp file, so a crash mid-copy keeps the last one
+    public static void snapshotToDisk() {
+        if (!StorageMode.snapshotted()) return;
+        File target = new File(dbName).getAbsoluteFile();
+        File tmp = new File(target.getPath() + ".snapshot-tmp");
+        long start = System.nanoTime();
+        try {
+            Files.deleteIfExists(tmp.toPath());
+            backupTo(tmp);
+            // a WAL left next to the file by a file-mode run would be replayed over the new copy
+            for (String suffix : new String[]{"-wal", "-shm"}) Files.deleteIfExists(new File(target.getPath() + suffix).toPath());
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskSnapshots.incrementAndGet();
+            lastDiskSnapshotMicros.set((System.nanoTime() - start) / 1_000);
+            lastDiskSnapshotAt.set(System.currentTimeMillis());
+        } catch (SQLException | IOException | DatabaseBusyException e) {
+            // the next tick tries again
+            e.printStackTrace();
+        }
+    }
+
+    public static JSONObject storageStats() {
+        JSONObject out = new JSONObject();
+        out.put("mode", StorageMode.MODE);
+        out.put("url", connectionString);
+        out.put("stock_journals", StorageMode.journaled());
+        if (StorageMode.snapshotted()) {
+            out.put("snapshot_interval_sec", StorageMode.SNAPSHOT_INTERVAL_SEC);
+            out.put("snapshots", diskSnapshots.get());
+            out.put("last_snapshot_micros", lastDiskSnapshotMicros.get());
+            out.put("last_snapshot_at", lastDiskSnapshotAt.get());
+        }
+        return out;
+    }
+
+    /* ─────────── batch writes ─────────── */
+    // One transaction per request. Rows go through addBatch/executeBatch in chunks; sqlite-jdbc
+    // doesn't say which entry of a failed batch broke, so a failing chunk is rolled back to its
+    // savepoint and replayed row by row to pin the error on the right row.
+
+    public static final int BATCH_CHUNK_SIZE = Integer.getInteger("batch.chunkSize", 1000);
+
+    @FunctionalInterface
+    private interface RowBinder {
+        void bind(PreparedStatement ps, int row) throws SQLException;
+    }
+
+    // inserts get ids handed out up front, so no last_insert_rowid() round trip per row
+    @FunctionalInterface
+    private interface RowApplier {
+        void applied(int row);
+    }
+
+    // POST /inventory/batch - [{"item":..,"stock":..,"capacity":..}, ...]
+    public static JSONObject addInventoryBatch(String body, boolean atomic) {
+        String sql = "INSERT INTO inventory(id, item, stock, capacity) VALUES(?,?,?,?)";
+        return batch(body, atomic, "inventory", new String[]{"item", "stock", "capacity"}, sql,
+                (rows, ids) -> (ps, k) -> {
+                    ps.setLong(1, ids[k]);
+                    ps.setLong(2, rows[k][0].longValue());
+                    ps.setLong(3, rows[k][1].longValue());
+                    ps.setLong(4, rows[k][2].longValue());
+                },
+                (rows, ids) -> k -> readModel.inventoryAdded(ids[k], rows[k][0].longValue(),
+                        rows[k][1].longValue(), rows[k][2].longValue()));
+    }
+
+    // PUT /inventory/batch - [{"id":..,"stock":..,"capacity":..}, ...]
+    public static JSONObject updateInventoryBatch(String body, boolean atomic) {
+        String sql = "UPDATE inventory SET stock = ?, capacity = ? WHERE id = ?";
+        return batch(body, atomic, null, new String[]{"id", "stock", "capacity"}, sql,
+                (rows, ids) -> (ps, k) -> {
+                    ps.setLong(1, rows[k][1].longValue());
+                    ps.setLong(2, rows[k][2].longValue());
+                    ps.setLong(3, rows[k][0].longValue());
+                },
+                (rows, ids) -> k -> readModel.inventoryUpdated(rows[k][0].longValue(),
+                        rows[k][1].longValue(), rows[k][2].longValue()));
+    }
+
+    // POST /distributors/:id/catalog/batch - [{"item":..,"cost":..}, ...]
+    public static JSONObject addPriceBatch(int distributorId, String body, boolean atomic) {
+        String sql = "INSERT INTO distributor_prices(id, distributor, item, cost) VALUES(?,?,?,?)";
+        return batch(body, atomic, "distributor_prices", new String[]{"item", "cost"}, sql,
+                (rows, ids) -> (ps, k) -> {
+                    ps.setLong(1, ids[k]);
+                    ps.setInt(2, distributorId);
+                    ps.setLong(3, rows[k][0].longValue());
+                    ps.setDouble(4, rows[k][1].doubleValue());
+                },
+                (rows, ids) -> k -> priceBook.priceAdded(ids[k], distributorId, rows[k][0].longValue(),
+                        rows[k][1].doubleValue()));
+    }
+
+    // batch fields that may hold a fraction; the rest (ids, stock, capacity) must be JSON integers, which
+    // json-simple parses as Long, so {"stock":2.7} is the row's error rather than a silent 2
+    private static final Set<String> REAL_BATCH_FIELDS = Collections.singleton("cost");
+
+    @FunctionalInterface
+    private interface BatchPart<T> {
+        T of(Number[][] rows, long[] ids);
+    }
+
+    /*
+     * Shared driver: parses the array, validates each row's fields, assigns ids for inserts
+     * (insertTable != null), runs the batch and builds per-row results. In atomic mode any
+     * failure rolls the whole request back; in best-effort mode the good rows commit.
+     */
+    private static JSONObject batch(String body, boolean atomic, String insertTable, String[] fields, String sql,
+                                    BatchPart<RowBinder> binder, BatchPart<RowApplier> applier) {
+        JSONArray in;
+        try {
+            Object parsed = PARSER.get().parse(body);
+            if (!(parsed instanceof JSONArray)) throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+            in = (JSONArray) parsed;
+        } catch (ParseException e) {
+            JSONObject err = new JSONObject();
+            err.put("error", "Invalid JSON body, expected an array");
+            return err;
+        }
+
+        int n = in.size();
+        Number[][] rows = new Number[n][];
+        String[] errors = new String[n];
+        StringJoiner expected = new StringJoiner(", ", "expected ", "");
+        for (String field : fields) expected.add((REAL_BATCH_FIELDS.contains(field) ? "numeric " : "integer ") + field);
+        for (int k = 0; k < n; k++) {
+            errors[k] = expected.toString();
+            if (!(in.get(k) instanceof JSONObject)) continue;
+            JSONObject row = (JSONObject) in.get(k);
+            Number[] values = new Number[fields.length];
+            boolean ok = true;
+            for (int f = 0; f < fields.length && ok; f++) {
+                Object v = row.get(fields[f]);
+                ok = REAL_BATCH_FIELDS.contains(fields[f]) ? v instanceof Number : v instanceof Long;
+                if (ok) values[f] = (Number) v;
+            }
+            if (ok) {
+                rows[k] = values;
+                errors[k] = null;
+            }
+        }
+
+        int[] counts = new int[n];
+        long[] ids = new long[n];
+        boolean committed;
+        try {
+            SqlWork<Boolean> work = conn -> {
+                conn.setAutoCommit(false);
+                try {
+                    if (insertTable != null) {
+                        long next;
+                        try (ResultSet rs = prepare(conn, "SELECT COALESCE(MAX(id), 0) FROM " + insertTable).executeQuery()) {
+                            rs.next();
+                            next = rs.getLong(1);
+                        }
+                        for (int k = 0; k < n; k++) ids[k] = ++next;
+                    }
+                    executeInChunks(conn, sql, n, binder.of(rows, ids), counts, errors);
+                    boolean failed = Arrays.stream(errors).anyMatch(Objects::nonNull);
+                    if (atomic && failed) {
+                        conn.rollback();
+                        return false;
+                    }
+                    conn.commit();
+                    RowApplier apply = applier.of(rows, ids);
+                    for (int k = 0; k < n; k++) {
+                        if (errors[k] == null && counts[k] > 0) apply.applied(k);
+                    }
+                    return true;
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            };
+            // updates set stock outright, like PUT /inventory/:id
+            committed = insertTable == null ? afterStockFlush(() -> write(work)) : write(work);
+        } catch (SQLException | IOException e) {
+            JSONObject err = new JSONObject();
+            err.put("error", e.getMessage());
+            return err;
+        }
+
+        JSONArray results = new JSONArray();
+        int succeeded = 0, failed = 0;
+        for (int k = 0; k < n; k++) {
+            JSONObject r = new JSONObject();
+            r.put("index", k);
+            if (errors[k] != null) {
+                r.put("status", "error");
+                r.put("error", errors[k]);
+                failed++;
+            } else if (!committed) {
+                r.put("status", "rolled_back");
+            } else if (counts[k] == 0) {
+                r.put("status", "not_found");
+                failed++;
+            } else {
+                r.put("status", "ok");
+                if (insertTable != null) r.put("id", ids[k]);
+                succeeded++;
+            }
+            results.add(r);
+        }
+        if (committed && succeeded > 0) fireChange(insertTable == null ? "inventory" : insertTable);
+
+        JSONObject out = new JSONObject();
+        out.put("mode", atomic ? "atomic" : "best_effort");
+        out.put("status", !committed ? "rolled_back" : failed == 0 ? "ok" : "partial");
+        out.put("succeeded", committed ? succeeded : 0);
+        out.put("failed", failed);
+        out.put("results", results);
+        return out;
+    }
+
+    // runs every row without a prior error; fills counts, and errors for rows SQLite rejects
+    private static void executeInChunks(Connection conn, String sql, int n, RowBinder binder,
+                                        int[] counts, String[] errors) throws SQLException {
+        PreparedStatement ps = prepare(conn, sql);
+        try {
+            for (int from = 0; from < n; from += BATCH_CHUNK_SIZE) {
+                int to = Math.min(n, from + BATCH_CHUNK_SIZE);
+                List<Integer> chunk = new ArrayList<>();
+                for (int k = from; k < to; k++) {
+                    if (errors[k] != null) continue;
+                    binder.bind(ps, k);
+                    ps.addBatch();
+                    chunk.add(k);
+                }
+                if (chunk.isEmpty()) continue;
+                Savepoint sp = conn.setSavepoint();
+                try {
+                    int[] c = ps.executeBatch();
+                    for (int i = 0; i < c.length; i++) counts[chunk.get(i)] = c[i];
+                } catch (SQLException e) {
+                    // the batch is already cleared; undo its partial work and find the bad rows
+                    conn.rollback(sp);
+                    for (int k : chunk) {
+                        binder.bind(ps, k);
+                        try {
+                            counts[k] = ps.executeUpdate();
+                        } catch (SQLException rowError) {
+                            errors[k] = rowError.getMessage();
+                        }
+                    }
+                }
+                conn.releaseSavepoint(sp);
+            }
+        } finally {
+            // the statement is cached, so don't hand it on with rows still queued
+            ps.clearBatch();
         }
     }
 
     /* ─────────── CSV export ─────────── */
 
+    // rows pulled from SQLite per step while streaming an export; override per request or with -Dexport.fetchSize
+    public static final int EXPORT_FETCH_SIZE = Integer.getInteger("export.fetchSize", 1000);
+    // an export holds one of these while it scans into its spool, not while the client downloads
+    public static final int READ_CONNECTIONS = ConnectionPool.READERS;
+
+    // exportable tables: FROM clause plus output column -> SQL expression, in header order
+    private static final class ExportTable {
+        final String from;
+        final Map<String, String> columns = new LinkedHashMap<>();
+
+        ExportTable(String from, String... aliasExprPairs) {
+            this.from = from;
+            for (int i = 0; i < aliasExprPairs.length; i += 2) {
+                columns.put(aliasExprPairs[i], aliasExprPairs[i + 1]);
+            }
+        }
+    }
+
+    private static final Map<String, ExportTable> EXPORT_TABLES = new HashMap<>();
+    static {
+        EXPORT_TABLES.put("items", new ExportTable("items",
+                "id", "id",
+                "name", "name"));
+        EXPORT_TABLES.put("distributors", new ExportTable("distributors",
+                "id", "id",
+                "name", "name"));
+        EXPORT_TABLES.put("inventory", new ExportTable(
+                "inventory i JOIN items it ON it.id = i.item",
+                "inventory_id", "i.id",
+                "item_name", "it.name",
+                "amount_in_stock", "i.stock",
+                "total_capacity", "i.capacity"));
+        EXPORT_TABLES.put("distributor_prices", new ExportTable(
+                "distributor_prices dp"
+                        + " JOIN distributors d ON d.id = dp.distributor"
+                        + " JOIN items it       ON it.id = dp.item",
+                "price_id", "dp.id",
+                "distributor_name", "d.name",
+                "item_name", "it.name",
+                "unit_cost", "dp.cost"));
+    }
+
+    // the export column names of table, in header order, or null if it isn't exportable
+    public static Set<String> exportColumns(String table) {
+        ExportTable def = table == null ? null : EXPORT_TABLES.get(table);
+        return def == null ? null : Collections.unmodifiableSet(def.columns.keySet());
+    }
+
+    // whole table as one String - fine for small tables, use the streaming overload for anything large
     public static String exportTableAsCsv(String table) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try {
+            exportTableAsCsv(table, null, Collections.emptyMap(), EXPORT_FETCH_SIZE, buf);
+        } catch (IOException e) {
+            return "error,\"" + e.getMessage().replace("\"", "\"\"") + "\"\n";
+        }
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
 
-        String sql;
-        switch (table) {
-            case "items":
-            case "distributors":
-                sql = "SELECT * FROM " + table;
-                break;
+    /**
+     * Writes a table as CSV into {@code out}. Rows go from the ResultSet into a Spool
+     * (bounded heap, the rest in a temp file) and reach {@code out} once the read has
+     * let go of its connection and the lifecycle lock. {@code columns} (null = all)
+     * selects and orders output columns, {@code filters} are equality matches on
+     * export column names. Does not close {@code out}.
+     */
+    public static void exportTableAsCsv(String table, List<String> columns, Map<String, String> filters,
+                                        int fetchSize, OutputStream out) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        ExportTable def = table == null ? null : EXPORT_TABLES.get(table);
+        if (def == null) {
+            w.write("error,invalid_table\n");
+            w.flush();
+            return;
+        }
+        List<String> selected = columns == null || columns.isEmpty() ? new ArrayList<>(def.columns.keySet()) : columns;
+        List<String> filterCols = new ArrayList<>(filters.keySet());
+        for (String c : concat(selected, filterCols)) {
+            if (!def.columns.containsKey(c)) {
+                w.write("error,unknown_column " + csvCell(c) + "\n");
+                w.flush();
+                return;
+            }
+        }
 
-            case "inventory":
-                sql =
-                        "SELECT i.id                       AS inventory_id," +
-                                "       it.name                    AS item_name," +
-                                "       i.stock                    AS amount_in_stock," +
-                                "       i.capacity                 AS total_capacity " +
-                                "  FROM inventory i " +
-                                "  JOIN items it ON it.id = i.item";
-                break;
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < selected.size(); i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(def.columns.get(selected.get(i))).append(" AS ").append(selected.get(i));
+        }
+        sql.append(" FROM ").append(def.from);
+        for (int i = 0; i < filterCols.size(); i++) {
+            sql.append(i == 0 ? " WHERE " : " AND ").append(def.columns.get(filterCols.get(i))).append(" = ?");
+        }
 
-            case "distributor_prices":
-                sql =
-                        "SELECT dp.id                      AS price_id," +
-                                "       d.name                     AS distributor_name," +
-                                "       it.name                    AS item_name," +
-                                "       dp.cost                    AS unit_cost " +
-                                "  FROM distributor_prices dp " +
-                                "  JOIN distributors d ON d.id = dp.distributor " +
-                                "  JOIN items it       ON it.id = dp.item";
+        /* header */
+        for (int i = 0; i < selected.size(); i++) {
+            if (i > 0) w.write(',');
+            w.write(selected.get(i));
+        }
+        w.write('\n');
+
+        String failure = null;
+        try (Spool spool = new Spool()) {
+            Writer rows = new BufferedWriter(new OutputStreamWriter(spool, StandardCharsets.UTF_8), 1 << 16);
+            try {
+                read(conn -> {
+                    try {
+                        PreparedStatement ps = prepare(conn, sql.toString());
+                        ps.setFetchSize(fetchSize);
+                        for (int i = 0; i < filterCols.size(); i++) {
+                            ps.setString(i + 1, filters.get(filterCols.get(i)));
+                        }
+                        try (ResultSet rs = ps.executeQuery()) {
+                            int cols = selected.size();
+                            /* rows */
+                            while (rs.next()) {
+                                for (int i = 1; i <= cols; i++) {
+                                    String cell = rs.getString(i);
+                                    rows.write(cell == null ? "" : csvCell(cell));
+                                    if (i < cols) rows.write(',');
+                                }
+                                rows.write('\n');
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                });
+            } catch (SQLException e) {
+                failure = "error,\"" + e.getMessage().replace("\"", "\"\"") + "\"\n";
+            }
+            // the header is still in w's buffer, so a busy database can yet be answered 503
+            rows.flush();
+            w.flush();
+            spool.copyTo(out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (failure != null) w.write(failure);
+        w.flush();
+    }
+
+    // quote cells containing separators, quotes or line breaks; quotes are doubled
+    private static String csvCell(String cell) {
+        boolean quote = false;
+        for (int i = 0; i < cell.length(); i++) {
+            char ch = cell.charAt(i);
+            if (ch == ',' || ch == '"' || ch == '\n' || ch == '\r') {
+                quote = true;
                 break;
+            }
+        }
+        return quote ? "\"" + cell.replace("\"", "\"\"") + "\"" : cell;
+    }
 
-            default:
-                return "error,invalid_table\n";
+    private static List<String> concat(List<String> a, List<String> b) {
+        List<String> all = new ArrayList<>(a);
+        all.addAll(b);
+        return all;
+    }
+
+    /* ─────────── CSV import ─────────── */
+    // POST /import?table= reads what /export writes: a header of export column names, in any order,
+    // then one row per record. The id column (id, inventory_id, price_id) may be left out or blank
+    // for the next free id; item_name and distributor_name are resolved to ids through a name map
+    // loaded once per import. The body is read IMPORT_TRANSACTION_ROWS records at a time outside the
+    // writer lock and each block goes in as one transaction through the batch chunks above, so the
+    // heap holds one block however long the file is. Blocks commit as they go: a bad row costs only
+    // itself, and a body that breaks off keeps the blocks before it. Past IMPORT_WRITE_THROUGH_ROWS
+    // each block is one "bulk" entry in the change log rather than one per row, and an items import
+    // leaves items_fts to a background reindex rather than feeding it row by row.
+
+    public static final int IMPORT_TRANSACTION_ROWS = Integer.getInteger("import.transactionRows", 50_000);
+    // per-line errors listed in the response; "failed" counts the rest too
+    public static final int IMPORT_MAX_ERRORS = Integer.getInteger("import.maxErrors", 100);
+    // a one-block import up to this size updates the in-memory models row by row; anything
+    // larger drops them while it runs and reloads them once at the end
+    private static final int IMPORT_WRITE_THROUGH_ROWS = Integer.getInteger("import.writeThroughRows", 10_000);
+    // rows per multi-row INSERT; one statement step per group is what lets an import outrun the batch routes
+    private static final int IMPORT_ROWS_PER_STATEMENT = Math.max(1, Integer.getInteger("import.rowsPerStatement", 50));
+
+    private enum CellType { TEXT, INTEGER, REAL, ITEM, DISTRIBUTOR }
+
+    // importable tables: the export's id column, then export column, SQL column, cell type triples
+    private static final class ImportTable {
+        // one row, and IMPORT_ROWS_PER_STATEMENT rows
+        final String table, idColumn, sql, groupSql;
+        final String[] columns;
+        final CellType[] types;
+
+        ImportTable(String table, String idColumn, Object... columnSqlTypeTriples) {
+            this.table = table;
+            this.idColumn = idColumn;
+            int n = columnSqlTypeTriples.length / 3;
+            columns = new String[n];
+            types = new CellType[n];
+            StringBuilder cols = new StringBuilder("id"), params = new StringBuilder("?");
+            for (int c = 0; c < n; c++) {
+                columns[c] = (String) columnSqlTypeTriples[3 * c];
+                cols.append(", ").append(columnSqlTypeTriples[3 * c + 1]);
+                params.append(",?");
+                types[c] = (CellType) columnSqlTypeTriples[3 * c + 2];
+            }
+            sql = "INSERT INTO " + table + "(" + cols + ") VALUES(" + params + ")";
+            StringBuilder group = new StringBuilder(sql);
+            for (int r = 1; r < IMPORT_ROWS_PER_STATEMENT; r++) group.append(", (").append(params).append(")");
+            groupSql = group.toString();
         }
+    }
 
-        StringBuilder csv = new StringBuilder();
-        try (Statement st = conn.createStatement();
-             ResultSet rs = st.executeQuery(sql)) {
+    private static final Map<String, ImportTable> IMPORT_TABLES = new HashMap<>();
+    static {
+        IMPORT_TABLES.put("items", new ImportTable("items", "id",
+                "name", "name", CellType.TEXT));
+        IMPORT_TABLES.put("distributors", new ImportTable("distributors", "id",
+                "name", "name", CellType.TEXT));
+        IMPORT_TABLES.put("inventory", new ImportTable("inventory", "inventory_id",
+                "item_name", "item", CellType.ITEM,
+                "amount_in_stock", "stock", CellType.INTEGER,
+                "total_capacity", "capacity", CellType.INTEGER));
+        IMPORT_TABLES.put("distributor_prices", new ImportTable("distributor_prices", "price_id",
+                "distributor_name", "distributor", CellType.DISTRIBUTOR,
+                "item_name", "item", CellType.ITEM,
+                "unit_cost", "cost", CellType.REAL));
+    }
 
-            ResultSetMetaData md = rs.getMetaData();
-            int cols = md.getColumnCount();
+    /**
+     * Inserts the rows of a CSV body into {@code table} and reports how many went in, which
+     * lines failed and why. Reads {@code body} to the end (or to the first record it can't
+     * parse) but does not close it.
+     */
+    public static JSONObject importCsv(String table, InputStream body) {
+        ImportTable def = table == null ? null : IMPORT_TABLES.get(table);
+        if (def == null) return error("table must be one of " + String.join(", ", new TreeSet<>(IMPORT_TABLES.keySet())));
+        long start = System.nanoTime();
+        CsvReader csv = new CsvReader(body);
+        ImportRun run = new ImportRun(def);
+        try {
+            String[] header;
+            try {
+                header = csv.next();
+            } catch (IOException e) {
+                return error(e.getMessage());
+            }
+            if (header == null) return error("Empty body, expected a CSV header line");
+            String problem = run.header(header);
+            if (problem != null) return error(problem);
 
-            /* header */
-            for (int i = 1; i <= cols; i++) {
-                csv.append(md.getColumnName(i));
-                if (i < cols) csv.append(",");
+            List<String[]> block = new ArrayList<>();
+            long[] lines = new long[IMPORT_TRANSACTION_ROWS];
+            boolean more = true;
+            while (more && run.abort == null) {
+                block.clear();
+                try {
+                    String[] record;
+                    while (block.size() < IMPORT_TRANSACTION_ROWS && (record = csv.next()) != null) {
+                        // a blank line
+                        if (record.length == 1 && record[0].isEmpty()) continue;
+                        lines[block.size()] = csv.line();
+                        block.add(record);
+                    }
+                    more = block.size() == IMPORT_TRANSACTION_ROWS;
+                } catch (IOException e) {
+                    // a malformed record, or the client went away; the rows before it still go in
+                    run.abort = e.getMessage() == null ? e.toString() : e.getMessage();
+                }
+                if (block.isEmpty()) break;
+                boolean writeThrough = run.transactions == 0 && !more && run.abort == null
+                        && block.size() <= IMPORT_WRITE_THROUGH_ROWS;
+                try {
+                    run.insert(block, lines, writeThrough);
+                } catch (SQLException e) {
+                    run.abort = e.getMessage();
+                }
             }
-            csv.append("\n");
+        } finally {
+            if (run.modelsDropped) reloadModels(def.table);
+            if (run.searchDeferred) reindexSearch();
+        }
+        return run.result((System.nanoTime() - start) / 1_000_000);
+    }
 
-            /* rows */
-            while (rs.next()) {
-                for (int i = 1; i <= cols; i++) {
-                    String cell = rs.getString(i);
-                    if (cell == null) cell = "";
-                    cell = cell.replace("\"", "\"\"");  // escape quotes
-                    if (cell.contains(",") || cell.contains("\""))
-                        cell = "\"" + cell + "\"";
-                    csv.append(cell);
-                    if (i < cols) csv.append(",");
+    // one import's column positions, name maps and tallies
+    private static final class ImportRun {
+        final ImportTable def;
+        final int[] at;
+        int idAt = -1, width;
+        Map<String, Long> itemIds, distributorIds;
+        long itemsVersion, distributorsVersion;
+
+        long rows, imported, failed;
+        int transactions;
+        final JSONArray errors = new JSONArray();
+        boolean modelsDropped, searchDeferred;
+        String abort;
+
+        ImportRun(ImportTable def) {
+            this.def = def;
+            this.at = new int[def.columns.length];
+            Arrays.fill(at, -1);
+        }
+
+        // maps header names to positions; a message if the header doesn't fit the table
+        String header(String[] names) {
+            width = names.length;
+            List<String> columns = Arrays.asList(def.columns);
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i].trim();
+                int c = columns.indexOf(name);
+                if (c >= 0 ? at[c] >= 0 : name.equals(def.idColumn) && idAt >= 0) return "Duplicate column " + name;
+                if (c >= 0) at[c] = i;
+                else if (name.equals(def.idColumn)) idAt = i;
+                else return "Unknown column " + name + " for " + def.table + ", expected "
+                            + def.idColumn + "," + String.join(",", columns);
+            }
+            for (int c = 0; c < at.length; c++) {
+                if (at[c] < 0) return "Missing column " + def.columns[c] + " for " + def.table;
+            }
+            return null;
+        }
+
+        // one block as one transaction on the writer
+        void insert(List<String[]> block, long[] lines, boolean writeThrough) throws SQLException {
+            int n = block.size();
+            Object[][] values = new Object[n][];
+            long[] ids = new long[n];
+            String[] rowErrors = new String[n];
+            int[] counts = new int[n];
+            write(conn -> {
+                conn.setAutoCommit(false);
+                try {
+                    // dropped in every block: a rollback elsewhere may have reloaded them since the last one
+                    if (!writeThrough) {
+                        dropModels(def.table);
+                        modelsDropped = true;
+                    }
+                    long maxGiven = 0;
+                    for (int k = 0; k < n; k++) {
+                        try {
+                            values[k] = convert(conn, block.get(k));
+                            ids[k] = idAt < 0 ? 0 : id(block.get(k)[idAt]);
+                            maxGiven = Math.max(maxGiven, ids[k]);
+                        } catch (IllegalArgumentException e) {
+                            rowErrors[k] = e.getMessage();
+                        }
+                    }
+                    long next;
+                    try (ResultSet rs = prepare(conn, "SELECT COALESCE(MAX(id), 0) FROM " + def.table).executeQuery()) {
+                        rs.next();
+                        next = Math.max(rs.getLong(1), maxGiven);
+                    }
+                    for (int k = 0; k < n; k++) {
+                        if (rowErrors[k] == null && ids[k] == 0) ids[k] = ++next;
+                    }
+                    if (!writeThrough && def.table.equals("items") && searchIndex.suspendIndexing(conn)) searchDeferred = true;
+                    if (!writeThrough) changeLog.pauseInsertTrigger(conn, def.table);
+                    insertInChunks(conn, def, n, ids, values, counts, rowErrors);
+                    if (!writeThrough) changeLog.logBulk(conn, def.table);
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+                if (writeThrough) {
+                    for (int k = 0; k < n; k++) {
+                        if (rowErrors[k] == null && counts[k] > 0) applyImported(def.table, ids[k], values[k]);
+                    }
                 }
-                csv.append("\n");
+                return null;
+            });
+
+            transactions++;
+            rows += n;
+            int ok = 0;
+            for (int k = 0; k < n; k++) {
+                if (rowErrors[k] == null && counts[k] > 0) {
+                    ok++;
+                    continue;
+                }
+                failed++;
+                if (errors.size() < IMPORT_MAX_ERRORS) {
+                    JSONObject e = new JSONObject();
+                    e.put("line", lines[k]);
+                    e.put("error", rowErrors[k] == null ? "not inserted" : rowErrors[k]);
+                    errors.add(e);
+                }
+            }
+            imported += ok;
+            if (ok > 0) fireChange(def.table);
+        }
+
+        // the record's cells as insert parameters, in def.columns order
+        private Object[] convert(Connection conn, String[] cells) throws SQLException {
+            if (cells.length != width) {
+                throw new IllegalArgumentException("expected " + width + " cells, found " + cells.length);
             }
+            Object[] out = new Object[at.length];
+            for (int c = 0; c < at.length; c++) {
+                String cell = cells[at[c]].trim();
+                String column = def.columns[c];
+                if (cell.isEmpty()) throw new IllegalArgumentException(column + " is empty");
+                switch (def.types[c]) {
+                    case TEXT:
+                        out[c] = cell;
+                        break;
+                    case INTEGER:
+                        try {
+                            out[c] = Long.parseLong(cell);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException(column + " is not an integer: " + cell);
+                        }
+                        break;
+                    case REAL:
+                        double d;
+                        try {
+                            d = Double.parseDouble(cell);
+                        } catch (NumberFormatException e) {
+                            d = Double.NaN;
+                        }
+                        if (Double.isNaN(d) || Double.isInfinite(d)) {
+                            throw new IllegalArgumentException(column + " is not a number: " + cell);
+                        }
+                        out[c] = d;
+                        break;
+                    case ITEM:
+                        out[c] = resolve(conn, true, cell);
+                        break;
+                    case DISTRIBUTOR:
+                        out[c] = resolve(conn, false, cell);
+                        break;
+                }
+            }
+            return out;
+        }
+
+        // 0 for a blank id cell: the row takes the next free id
+        private static long id(String cell) {
+            String s = cell.trim();
+            if (s.isEmpty()) return 0;
+            try {
+                long id = Long.parseLong(s);
+                if (id > 0) return id;
+            } catch (NumberFormatException e) {
+                // same message as a non-positive id
+            }
+            throw new IllegalArgumentException("id is not a positive integer: " + s);
+        }
+
+        // the map is reloaded once a write elsewhere has moved its table on; like a POST
+        // carrying the id, a row can still name an item deleted a moment before
+        private Long resolve(Connection conn, boolean item, String name) throws SQLException {
+            String table = item ? "items" : "distributors";
+            long version = dataVersion(tableIds(table));
+            Map<String, Long> ids = item ? itemIds : distributorIds;
+            if (ids == null || version != (item ? itemsVersion : distributorsVersion)) {
+                ids = new HashMap<>();
+                try (ResultSet rs = prepare(conn, "SELECT name, id FROM " + table).executeQuery()) {
+                    while (rs.next()) ids.put(rs.getString(1), rs.getLong(2));
+                }
+                if (item) {
+                    itemIds = ids;
+                    itemsVersion = version;
+                } else {
+                    distributorIds = ids;
+                    distributorsVersion = version;
+                }
+            }
+            Long id = ids.get(name);
+            if (id == null) throw new IllegalArgumentException("unknown " + (item ? "item " : "distributor ") + name);
+            return id;
+        }
+
+        JSONObject result(long elapsedMs) {
+            JSONObject out = new JSONObject();
+            out.put("table", def.table);
+            out.put("status", abort != null ? "aborted" : failed == 0 ? "ok" : "partial");
+            if (abort != null) out.put("error", abort);
+            out.put("rows", rows);
+            out.put("imported", imported);
+            out.put("failed", failed);
+            out.put("transactions", transactions);
+            out.put("errors", errors);
+            out.put("elapsed_ms", elapsedMs);
+            return out;
+        }
+    }
+
+    /*
+     * executeInChunks for imports: each chunk goes in as multi-row INSERTs, so SQLite (and the JNI
+     * hop) takes one statement step per IMPORT_ROWS_PER_STATEMENT rows instead of one per row, which
+     * roughly doubles the insert rate. A group fails as a whole, so a failing chunk is rolled back to
+     * its savepoint and replayed one row at a time to pin the error on the right line.
+     */
+    private static void insertInChunks(Connection conn, ImportTable def, int n, long[] ids, Object[][] values,
+                                       int[] counts, String[] errors) throws SQLException {
+        PreparedStatement group = prepare(conn, def.groupSql);
+        PreparedStatement single = prepare(conn, def.sql);
+        int width = def.columns.length + 1;
+        int[] chunk = new int[BATCH_CHUNK_SIZE];
+        for (int from = 0; from < n; from += BATCH_CHUNK_SIZE) {
+            int m = 0;
+            for (int k = from; k < Math.min(n, from + BATCH_CHUNK_SIZE); k++) {
+                if (errors[k] == null) chunk[m++] = k;
+            }
+            if (m == 0) continue;
+            Savepoint sp = conn.setSavepoint();
+            try {
+                int i = 0;
+                for (; i + IMPORT_ROWS_PER_STATEMENT <= m; i += IMPORT_ROWS_PER_STATEMENT) {
+                    for (int r = 0; r < IMPORT_ROWS_PER_STATEMENT; r++) bindImported(group, r * width, ids, values, chunk[i + r]);
+                    group.executeUpdate();
+                }
+                for (; i < m; i++) {
+                    bindImported(single, 0, ids, values, chunk[i]);
+                    single.executeUpdate();
+                }
+                for (i = 0; i < m; i++) counts[chunk[i]] = 1;
+            } catch (SQLException e) {
+                conn.rollback(sp);
+                for (int i = 0; i < m; i++) {
+                    bindImported(single, 0, ids, values, chunk[i]);
+                    try {
+                        counts[chunk[i]] = single.executeUpdate();
+                    } catch (SQLException rowError) {
+                        errors[chunk[i]] = rowError.getMessage();
+                    }
+                }
+            }
+            conn.releaseSavepoint(sp);
+        }
+    }
+
+    private static void bindImported(PreparedStatement ps, int offset, long[] ids, Object[][] values, int k) throws SQLException {
+        ps.setLong(offset + 1, ids[k]);
+        for (int c = 0; c < values[k].length; c++) ps.setObject(offset + c + 2, values[k][c]);
+    }
+
+    // the in-memory models holding rows of table; reads fall back to SQLite until reloadModels(table)
+    private static void dropModels(String table) {
+        switch (table) {
+            case "items":
+                readModel.invalidate();
+                searchIndex.invalidate();
+                break;
+            case "inventory":
+                readModel.invalidate();
+                break;
+            default:
+                priceBook.invalidate();
+                break;
+        }
+    }
+
+    // catches items_fts up with a bulk items import, a chunk at a time, see ItemSearchIndex.suspendIndexing
+    private static final ExecutorService searchReindexer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "search-reindex");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static void reindexSearch() {
+        searchReindexer.execute(() -> {
+            while (true) {
+                try {
+                    if (!write(searchIndex::reindexChunk)) return;
+                } catch (DatabaseBusyException e) {
+                    // the writer is taken; the next chunk picks up where this one would have
+                } catch (SQLException e) {
+                    // fuzzy search stays off until the next bulk import, connect or reset
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        });
+    }
+
+    private static void reloadModels(String table) {
+        try {
+            write(conn -> {
+                switch (table) {
+                    case "items":
+                        readModel.rebuild(conn);
+                        searchIndex.rebuild(conn);
+                        break;
+                    case "inventory":
+                        readModel.rebuild(conn);
+                        break;
+                    default:
+                        priceBook.rebuild(conn);
+                        break;
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            return "error,\"" + e.getMessage().replace("\"", "\"\"") + "\"\n";
+            // reads fall back to SQLite until the next connect/reset
+            e.printStackTrace();
+        }
+    }
+
+    // write-through for one imported row; values in the table's ImportTable column order
+    private static void applyImported(String table, long id, Object[] values) {
+        switch (table) {
+            case "items":
+                readModel.itemAdded(id, (String) values[0]);
+                searchIndex.itemAdded(id, (String) values[0]);
+                break;
+            case "distributors":
+                priceBook.distributorAdded(id, (String) values[0]);
+                break;
+            case "inventory":
+                readModel.inventoryAdded(id, (Long) values[0], (Long) values[1], (Long) values[2]);
+                break;
+            case "distributor_prices":
+                priceBook.priceAdded(id, (Long) values[0], (Long) values[1], (Double) values[2]);
+                break;
         }
-        return csv.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,382 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process copy of the inventory/items join behind the inventory read routes.
+ *
+ * Both tables are held as immutable {@link LongPagedMap}s keyed by id; a write
+ * builds the next snapshot and swaps it in, so readers never lock and never see a
+ * half-applied change. DatabaseManager applies mutations from inside its writer
+ * lock, which keeps the model in the same order as SQLite's commits. Rows are
+ * emitted in inventory id order, the order SQLite's scan of the join produces.
+ */
+public final class InventoryReadModel {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("readmodel.enabled", "true"));
+    // verify every model read against SQLite - for debugging, it serializes reads on the writer
+    static final boolean CHECK = Boolean.getBoolean("readmodel.check");
+
+    static final class Row {
+        final long id, item, stock, capacity;
+
+        Row(long id, long item, long stock, long capacity) {
+            this.id = id;
+            this.item = item;
+            this.stock = stock;
+            this.capacity = capacity;
+        }
+    }
+
+    private static final class Snapshot {
+        final LongPagedMap<Row> inventory;
+        final LongPagedMap<String> items;
+        // item -> inventory id; inventory.item is UNIQUE and never updated, so stock changes leave this alone
+        final LongPagedMap<Long> byItem;
+
+        Snapshot(LongPagedMap<Row> inventory, LongPagedMap<String> items, LongPagedMap<Long> byItem) {
+            this.inventory = inventory;
+            this.items = items;
+            this.byItem = byItem;
+        }
+    }
+
+    // row filters matching the WHERE clauses of the inventory SQL
+    @FunctionalInterface
+    interface Filter {
+        boolean test(Row r);
+    }
+
+    static final Filter ALL = r -> true;
+    static final Filter OUT_OF_STOCK = r -> r.stock == 0;
+    static final Filter OVERSTOCKED = r -> r.stock > r.capacity;
+    // SQLite yields NULL (never true) for a zero capacity
+    static final Filter LOW_STOCK = r -> r.capacity != 0 && r.stock * 1.0 / r.capacity < 0.35;
+
+    // point lookup; rows() goes straight to the page instead of scanning
+    static final class ById implements Filter {
+        final long id;
+
+        ById(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean test(Row r) {
+            return r.id == id;
+        }
+    }
+
+    static Filter byId(long id) {
+        return new ById(id);
+    }
+
+    // visits joined rows passing filter in inventory id order, skipping rows whose item is gone like the inner join
+    private static void rows(Snapshot s, Filter filter, LongPagedMap.Visitor<Row> visitor) {
+        LongPagedMap.Visitor<Row> joined = (id, r) -> {
+            if (s.items.get(r.item) != null && filter.test(r)) visitor.visit(id, r);
+        };
+        if (filter instanceof ById) {
+            Row r = s.inventory.get(((ById) filter).id);
+            if (r != null) joined.visit(r.id, r);
+        } else {
+            s.inventory.forEach(joined);
+        }
+    }
+
+    private static final String[] COLUMNS = {"id", "item_id", "item_name", "amount_in_stock", "total_capacity"};
+    private static final List<String> KEY_ORDER = JsonResultWriter.keyOrder(COLUMNS);
+    private static final byte[][] KEYS = new byte[COLUMNS.length][];
+    static {
+        for (int k = 0; k < KEY_ORDER.size(); k++) {
+            KEYS[k] = ((k == 0 ? "{" : ",") + "\"" + KEY_ORDER.get(k) + "\":").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final byte[] CBOR_HEADER = CborResultWriter.header(COLUMNS);
+
+    private volatile Snapshot snapshot;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong lastRebuildMicros = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+
+    boolean loaded() {
+        return ENABLED && snapshot != null;
+    }
+
+    /* ─────────── loading ─────────── */
+
+    // full reload; the caller must keep writers out (DatabaseManager runs this on the writer connection)
+    void rebuild(Connection conn) throws SQLException {
+        if (!ENABLED) return;
+        long start = System.nanoTime();
+        LongPagedMap<String> items;
+        LongPagedMap<Row> inventory;
+        LongPagedMap<Long> byItem;
+        try (Statement st = conn.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT id, name FROM items ORDER BY id")) {
+                LongList keys = new LongList();
+                while (rs.next()) keys.add(rs.getLong(1), rs.getString(2));
+                items = LongPagedMap.ofSorted(keys.keys, keys.values, keys.size);
+            }
+            try (ResultSet rs = st.executeQuery("SELECT id, item, stock, capacity FROM inventory ORDER BY id")) {
+                LongList keys = new LongList();
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    keys.add(id, new Row(id, rs.getLong(2), rs.getLong(3), rs.getLong(4)));
+                }
+                inventory = LongPagedMap.ofSorted(keys.keys, keys.values, keys.size);
+            }
+            try (ResultSet rs = st.executeQuery("SELECT item, id FROM inventory ORDER BY item")) {
+                LongList keys = new LongList();
+                while (rs.next()) keys.add(rs.getLong(1), rs.getLong(2));
+                byItem = LongPagedMap.ofSorted(keys.keys, keys.values, keys.size);
+            }
+        }
+        snapshot = new Snapshot(inventory, items, byItem);
+        rebuilds.incrementAndGet();
+        lastRebuildMicros.set((System.nanoTime() - start) / 1000);
+    }
+
+    // drop the model; reads fall back to SQLite until the next rebuild
+    void invalidate() {
+        snapshot = null;
+    }
+
+    private static final class LongList {
+        long[] keys = new long[64];
+        Object[] values = new Object[64];
+        int size;
+
+        void add(long key, Object value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size++] = value;
+        }
+    }
+
+    /* ─────────── write-through (called under the writer lock) ─────────── */
+
+    void itemAdded(long id, String name) {
+        Snapshot s = snapshot;
+        if (s != null) snapshot = new Snapshot(s.inventory, s.items.with(id, name), s.byItem);
+    }
+
+    void itemDeleted(long id) {
+        Snapshot s = snapshot;
+        if (s != null) snapshot = new Snapshot(s.inventory, s.items.without(id), s.byItem);
+    }
+
+    void inventoryAdded(long id, long item, long stock, long capacity) {
+        Snapshot s = snapshot;
+        if (s == null) return;
+        snapshot = new Snapshot(s.inventory.with(id, new Row(id, item, stock, capacity)), s.items, s.byItem.with(item, id));
+    }
+
+    void inventoryUpdated(long id, long stock, long capacity) {
+        Snapshot s = snapshot;
+        if (s == null) return;
+        Row old = s.inventory.get(id);
+        if (old != null) snapshot = new Snapshot(s.inventory.with(id, new Row(id, old.item, stock, capacity)), s.items, s.byItem);
+    }
+
+    void inventoryDeleted(long id) {
+        Snapshot s = snapshot;
+        if (s == null) return;
+        Row old = s.inventory.get(id);
+        snapshot = new Snapshot(s.inventory.without(id), s.items, old == null ? s.byItem : s.byItem.without(old.item));
+    }
+
+    /* ─────────── reads ─────────── */
+
+    // matching rows in the shape convertResultSetToJson builds, or null when the model can't answer
+    JSONArray select(Filter filter) {
+        Snapshot s = ENABLED ? snapshot : null;
+        if (s == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        JSONArray out = new JSONArray();
+        rows(s, filter, (id, r) -> {
+            String name = s.items.get(r.item);
+            JSONObject o = new JSONObject();
+            o.put("id", box(r.id));
+            o.put("item_id", box(r.item));
+            o.put("item_name", name);
+            o.put("amount_in_stock", box(r.stock));
+            o.put("total_capacity", box(r.capacity));
+            out.add(o);
+        });
+        return out;
+    }
+
+    @FunctionalInterface
+    interface RowVisitor {
+        void visit(Row r, String itemName) throws IOException;
+    }
+
+    // every joined row in inventory id order; false when the model can't answer
+    boolean scan(RowVisitor visitor) throws IOException {
+        Snapshot s = ENABLED ? snapshot : null;
+        if (s == null) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        try {
+            rows(s, ALL, (id, r) -> {
+                try {
+                    visitor.visit(r, s.items.get(r.item));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return true;
+    }
+
+    // item's inventory row, or null when it has none; callers check loaded() first
+    Row forItem(long item) {
+        Snapshot s = snapshot;
+        Long id = s == null ? null : s.byItem.get(item);
+        return id == null ? null : s.inventory.get(id);
+    }
+
+    // sqlite-jdbc hands back Integer when the value fits, Long otherwise
+    private static Number box(long v) {
+        return v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE ? (Number) (int) v : (Number) v;
+    }
+
+    // streams the same bytes select(filter).toJSONString() would; false when the model can't answer
+    boolean write(Filter filter, OutputStream out) throws IOException {
+        return write(filter, out, ResultFormat.JSON);
+    }
+
+    // CBOR comes out byte for byte as CborResultWriter would write the inventory SQL's rows
+    boolean write(Filter filter, OutputStream out, ResultFormat format) throws IOException {
+        Snapshot s = ENABLED ? snapshot : null;
+        if (s == null) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        if (format == ResultFormat.CBOR) encodeCbor(s, filter, out);
+        else encode(s, filter, out);
+        return true;
+    }
+
+    // true when the model's rows for filter are byte-identical to SQLite's; counts towards checks/mismatches
+    boolean matches(Filter filter, byte[] expected) {
+        Snapshot s = snapshot;
+        if (s == null) return true;
+        ByteArrayOutputStream actual = new ByteArrayOutputStream(expected.length);
+        try {
+            encode(s, filter, actual);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);   // ByteArrayOutputStream doesn't throw
+        }
+        boolean same = Arrays.equals(expected, actual.toByteArray());
+        checks.incrementAndGet();
+        if (!same) mismatches.incrementAndGet();
+        return same;
+    }
+
+    private static void encode(Snapshot s, Filter filter, OutputStream out) throws IOException {
+        JsonResultWriter w = new JsonResultWriter(out);
+        boolean[] first = {true};
+        w.put('[');
+        try {
+            rows(s, filter, (id, r) -> {
+                String name = s.items.get(r.item);
+                try {
+                    if (!first[0]) w.put(',');
+                    first[0] = false;
+                    for (int k = 0; k < KEYS.length; k++) {
+                        w.put(KEYS[k]);
+                        switch (KEY_ORDER.get(k)) {
+                            case "id":              w.writeLong(r.id); break;
+                            case "item_id":         w.writeLong(r.item); break;
+                            case "item_name":       w.writeString(name); break;
+                            case "amount_in_stock": w.writeLong(r.stock); break;
+                            default:                w.writeLong(r.capacity); break;
+                        }
+                    }
+                    w.put('}');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        w.put(']');
+        w.drain();
+    }
+
+    // rows in COLUMNS order, the SQL's own, under a single header
+    private static void encodeCbor(Snapshot s, Filter filter, OutputStream out) throws IOException {
+        CborResultWriter w = new CborResultWriter(out);
+        w.begin(CBOR_HEADER);
+        try {
+            rows(s, filter, (id, r) -> {
+                try {
+                    w.row(COLUMNS.length);
+                    w.writeLong(r.id);
+                    w.writeLong(r.item);
+                    w.writeString(s.items.get(r.item));
+                    w.writeLong(r.stock);
+                    w.writeLong(r.capacity);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        w.end();
+    }
+
+    /* ─────────── metrics ─────────── */
+
+    public JSONObject stats() {
+        Snapshot s = snapshot;
+        JSONObject o = new JSONObject();
+        o.put("enabled", ENABLED);
+        o.put("check_mode", CHECK);
+        o.put("loaded", s != null);
+        o.put("inventory_rows", s == null ? 0 : s.inventory.size());
+        o.put("items", s == null ? 0 : s.items.size());
+        o.put("hits", hits.sum());
+        o.put("misses", misses.sum());
+        o.put("rebuilds", rebuilds.get());
+        o.put("last_rebuild_micros", lastRebuildMicros.get());
+        o.put("checks", checks.get());
+        o.put("mismatches", mismatches.get());
+        return o;
+    }
+}
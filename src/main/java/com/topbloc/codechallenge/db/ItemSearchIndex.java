@@ -0,0 +1,555 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prefix index over item names behind GET /items/search.
+ *
+ * Names are normalized (accents stripped, lower case, runs of anything but letters and
+ * digits collapsed to one space) and every word start becomes a term: "snickers bar" is
+ * found by "sni" and by "ba". Whole-name terms and later-word terms are kept in two
+ * arrays sorted by term text, so a prefix is a binary search plus a walk of at most
+ * `limit` entries, whatever the catalog size. Whole-name matches rank first (an exact
+ * name first of all), then later-word matches, each alphabetically.
+ *
+ * The sorted arrays are immutable. Added items go to a small sorted overlay and deleted
+ * ones are masked, and once search.mergeThreshold changes pile up they are merged into
+ * new arrays in one linear pass. Snapshots are swapped through a volatile field and
+ * changes arrive under DatabaseManager's writer lock, like the read model.
+ *
+ * Typo tolerance comes from SQLite: an FTS5 trigram table over items.name, kept in sync
+ * by triggers, returns names sharing trigrams with the query, which are kept when a word
+ * of theirs starts within one or two edits of it. -Dsearch.fts=false leaves it out.
+ */
+final class ItemSearchIndex {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("search.enabled", "true"));
+    static final boolean FTS = Boolean.parseBoolean(System.getProperty("search.fts", "true"));
+    static final int MERGE_THRESHOLD = Integer.getInteger("search.mergeThreshold", 4096);
+    // FTS candidates checked for edit distance per fuzzy search
+    static final int FUZZY_CANDIDATES = Integer.getInteger("search.fuzzyCandidates", 200);
+
+    // one term: the normalized name from `start` on
+    private static final class Term {
+        final String norm, name;
+        final long id;
+        final int start;
+
+        Term(String norm, String name, long id, int start) {
+            this.norm = norm;
+            this.name = name;
+            this.id = id;
+            this.start = start;
+        }
+    }
+
+    private static final Comparator<Term> ORDER = (a, b) -> {
+        int c = compare(a.norm, a.start, b.norm, b.start);
+        return c != 0 ? c : Long.compare(a.id, b.id);
+    };
+
+    // a sorted run of terms as parallel arrays; the name strings are shared by each item's terms
+    private static final class Terms {
+        final String[] norms, names;
+        final long[] ids;
+        final int[] starts;
+        final int size;
+
+        Terms(String[] norms, String[] names, long[] ids, int[] starts, int size) {
+            this.norms = norms;
+            this.names = names;
+            this.ids = ids;
+            this.starts = starts;
+            this.size = size;
+        }
+
+        static Terms of(List<Term> sorted) {
+            int n = sorted.size();
+            Terms t = new Terms(new String[n], new String[n], new long[n], new int[n], n);
+            for (int k = 0; k < n; k++) t.set(k, sorted.get(k));
+            return t;
+        }
+
+        void set(int k, Term term) {
+            norms[k] = term.norm;
+            names[k] = term.name;
+            ids[k] = term.id;
+            starts[k] = term.start;
+        }
+
+        Term get(int k) {
+            return new Term(norms[k], names[k], ids[k], starts[k]);
+        }
+
+        // first position whose term is >= prefix
+        int lowerBound(String prefix) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(norms[mid], starts[mid], prefix, 0) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private static final class Snapshot {
+        final Terms names, words;
+        // sorted overlays of terms added since the last merge
+        final Term[] addedNames, addedWords;
+        // items deleted since the last merge; their terms in names/words are skipped
+        final LongPagedMap<Boolean> removed;
+        final int pending;
+
+        Snapshot(Terms names, Terms words, Term[] addedNames, Term[] addedWords, LongPagedMap<Boolean> removed, int pending) {
+            this.names = names;
+            this.words = words;
+            this.addedNames = addedNames;
+            this.addedWords = addedWords;
+            this.removed = removed;
+            this.pending = pending;
+        }
+    }
+
+    // one search result before the summaries are joined in
+    static final class Hit {
+        final long id;
+        final String name;
+        final String match;
+        final int distance;
+
+        Hit(long id, String name, String match, int distance) {
+            this.id = id;
+            this.name = name;
+            this.match = match;
+            this.distance = distance;
+        }
+    }
+
+    private volatile Snapshot snapshot;
+    // the FTS table and its triggers exist in the open database
+    private volatile boolean ftsReady;
+    // a bulk import has left the FTS table behind items; set by a bulk block and cleared once the
+    // reindex is through, both under the writer lock
+    private volatile boolean stale;
+    // the highest id indexed by the reindex under way, or -1 before its first chunk
+    private long reindexedUpTo = -1;
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder fuzzySearches = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong lastRebuildMicros = new AtomicLong();
+    private final AtomicLong lastMergeMicros = new AtomicLong();
+
+    /* ─────────── normalizing ─────────── */
+
+    static String normalize(String s) {
+        String d = Normalizer.normalize(s, Normalizer.Form.NFKD);
+        StringBuilder sb = new StringBuilder(d.length());
+        boolean gap = false;
+        for (int k = 0; k < d.length(); k++) {
+            char c = d.charAt(k);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) {
+                if (gap && sb.length() > 0) sb.append(' ');
+                gap = false;
+                sb.append(Character.toLowerCase(c));
+            } else {
+                gap = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    // a.substring(aFrom) vs b.substring(bFrom) without the copies
+    private static int compare(String a, int aFrom, String b, int bFrom) {
+        int n = Math.min(a.length() - aFrom, b.length() - bFrom);
+        for (int k = 0; k < n; k++) {
+            int c = a.charAt(aFrom + k) - b.charAt(bFrom + k);
+            if (c != 0) return c;
+        }
+        return (a.length() - aFrom) - (b.length() - bFrom);
+    }
+
+    private static boolean startsWith(String norm, int start, String prefix) {
+        return norm.startsWith(prefix, start);
+    }
+
+    // whole-name term first, then one per later word
+    private static void terms(long id, String name, List<Term> names, List<Term> words) {
+        String norm = normalize(name);
+        if (norm.isEmpty()) return;
+        names.add(new Term(norm, name, id, 0));
+        for (int k = norm.indexOf(' '); k >= 0; k = norm.indexOf(' ', k + 1)) {
+            words.add(new Term(norm, name, id, k + 1));
+        }
+    }
+
+    /* ─────────── setup (under DatabaseManager's lifecycle write lock) ─────────── */
+
+    // FTS triggers; with upTo >= 0 they only act on items whose id is at most upTo, see reindexChunk
+    private static void createTriggers(Statement st, long upTo) throws SQLException {
+        st.execute("CREATE TRIGGER IF NOT EXISTS items_fts_insert AFTER INSERT ON items" + upTo("NEW", upTo) + " BEGIN"
+                + " INSERT INTO items_fts(rowid, name) VALUES (NEW.id, NEW.name); END");
+        st.execute("CREATE TRIGGER IF NOT EXISTS items_fts_delete AFTER DELETE ON items" + upTo("OLD", upTo) + " BEGIN"
+                + " INSERT INTO items_fts(items_fts, rowid, name) VALUES ('delete', OLD.id, OLD.name); END");
+        st.execute("CREATE TRIGGER IF NOT EXISTS items_fts_update AFTER UPDATE OF name ON items" + upTo("OLD", upTo) + " BEGIN"
+                + " INSERT INTO items_fts(items_fts, rowid, name) VALUES ('delete', OLD.id, OLD.name);"
+                + " INSERT INTO items_fts(rowid, name) VALUES (NEW.id, NEW.name); END");
+    }
+
+    private static String upTo(String ref, long upTo) {
+        return upTo < 0 ? "" : " WHEN " + ref + ".id <= " + upTo;
+    }
+
+    private static void dropTriggers(Statement st) throws SQLException {
+        for (String op : new String[]{"insert", "delete", "update"}) st.execute("DROP TRIGGER IF EXISTS items_fts_" + op);
+    }
+
+    // creates the FTS table and its triggers; a database that had none, or whose reindex never
+    // finished, is indexed once here
+    void open(Connection conn) throws SQLException {
+        ftsReady = false;
+        stale = false;
+        reindexedUpTo = -1;
+        if (!FTS) return;
+        try (Statement st = conn.createStatement()) {
+            boolean existed;
+            try (ResultSet rs = st.executeQuery("SELECT 1 FROM sqlite_master WHERE name = 'items_fts'")) {
+                existed = rs.next();
+            }
+            String insertTrigger;
+            try (ResultSet rs = st.executeQuery("SELECT sql FROM sqlite_master WHERE name = 'items_fts_insert'")) {
+                insertTrigger = rs.next() ? rs.getString(1) : null;
+            }
+            st.execute("CREATE VIRTUAL TABLE IF NOT EXISTS items_fts"
+                    + " USING fts5(name, content='items', content_rowid='id', tokenize='trigram')");
+            boolean indexed = existed && insertTrigger != null && !insertTrigger.contains(" WHEN ");
+            if (!indexed) dropTriggers(st);
+            createTriggers(st, -1);
+            if (!indexed) st.execute("INSERT INTO items_fts(items_fts) VALUES ('rebuild')");
+        } catch (SQLException e) {
+            // a SQLite built without FTS5 or its trigram tokenizer: prefix search only
+            if (String.valueOf(e.getMessage()).contains("no such")) {
+                System.out.println("Item search without fuzzy matching: " + e.getMessage());
+                return;
+            }
+            throw e;
+        }
+        ftsReady = true;
+    }
+
+    /*
+     * Bulk loads. Run from the triggers, every item of a large import goes through the trigram
+     * tokenizer inside the import's transactions, which is more than half of what a million-row
+     * import costs. So each bulk block drops the FTS triggers in its own transaction (trigger DDL is
+     * transactional: a rollback puts them back) and the table is reindexed after the import, off the
+     * request, by reindexChunk. Fuzzy search is off until that catches up.
+     *
+     * The reindex walks items in id order, REINDEX_CHUNK rows per transaction, so writes to items
+     * get the writer between chunks. Each chunk recreates the triggers with a WHEN clause covering the
+     * ids indexed so far: a write to an indexed row is followed, one to a row not reached yet is left
+     * to the chunk that reaches it. The last chunk puts back the triggers without one.
+     */
+
+    static final int REINDEX_CHUNK = Integer.getInteger("search.reindexChunk", 20_000);
+
+    // in the caller's transaction on the writer; false when there's no FTS table to keep in step
+    boolean suspendIndexing(Connection conn) throws SQLException {
+        if (!ftsReady) return false;
+        try (Statement st = conn.createStatement()) {
+            dropTriggers(st);
+        }
+        // a reindex under way may already have passed rows this block changes
+        stale = true;
+        reindexedUpTo = -1;
+        return true;
+    }
+
+    // one chunk of the reindex as one transaction on the writer; false once it is done
+    boolean reindexChunk(Connection conn) throws SQLException {
+        if (!stale) return false;
+        long from = Math.max(reindexedUpTo, 0), upTo;
+        int rows;
+        conn.setAutoCommit(false);
+        try (Statement st = conn.createStatement()) {
+            // what the FTS table holds was left behind by the triggers the import dropped
+            if (reindexedUpTo < 0) st.execute("INSERT INTO items_fts(items_fts) VALUES ('delete-all')");
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*), MAX(id) FROM (SELECT id FROM items WHERE id > " + from
+                    + " ORDER BY id LIMIT " + REINDEX_CHUNK + ")")) {
+                rs.next();
+                rows = rs.getInt(1);
+                upTo = rows == 0 ? from : rs.getLong(2);
+            }
+            st.execute("INSERT INTO items_fts(rowid, name) SELECT id, name FROM items WHERE id > " + from + " AND id <= " + upTo);
+            dropTriggers(st);
+            createTriggers(st, rows < REINDEX_CHUNK ? -1 : upTo);
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        if (rows < REINDEX_CHUNK) {
+            stale = false;
+            reindexedUpTo = -1;
+            return false;
+        }
+        reindexedUpTo = upTo;
+        return true;
+    }
+
+    /* ─────────── loading ─────────── */
+
+    // full reload; the caller must keep writers out
+    void rebuild(Connection conn) throws SQLException {
+        if (!ENABLED) return;
+        long start = System.nanoTime();
+        List<Term> names = new ArrayList<>(), words = new ArrayList<>();
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT id, name FROM items")) {
+            while (rs.next()) terms(rs.getLong(1), rs.getString(2), names, words);
+        }
+        names.sort(ORDER);
+        words.sort(ORDER);
+        snapshot = new Snapshot(Terms.of(names), Terms.of(words), new Term[0], new Term[0], LongPagedMap.empty(), 0);
+        rebuilds.incrementAndGet();
+        lastRebuildMicros.set((System.nanoTime() - start) / 1000);
+    }
+
+    // drop the index; searches fall back to SQLite until the next rebuild
+    void invalidate() {
+        snapshot = null;
+    }
+
+    /* ─────────── write-through (called under the writer lock) ─────────── */
+
+    void itemAdded(long id, String name) {
+        Snapshot s = snapshot;
+        if (s == null) return;
+        List<Term> names = new ArrayList<>(1), words = new ArrayList<>();
+        terms(id, name, names, words);
+        Term[] an = s.addedNames, aw = s.addedWords;
+        for (Term t : names) an = insert(an, t);
+        for (Term t : words) aw = insert(aw, t);
+        publish(new Snapshot(s.names, s.words, an, aw, s.removed, s.pending + 1));
+    }
+
+    void itemDeleted(long id) {
+        Snapshot s = snapshot;
+        if (s == null) return;
+        // the base terms are masked; terms added since the last merge go now
+        publish(new Snapshot(s.names, s.words, drop(s.addedNames, id), drop(s.addedWords, id),
+                s.removed.with(id, Boolean.TRUE), s.pending + 1));
+    }
+
+    private static Term[] insert(Term[] sorted, Term t) {
+        int at = Arrays.binarySearch(sorted, t, ORDER);
+        at = at < 0 ? -at - 1 : at;
+        Term[] out = new Term[sorted.length + 1];
+        System.arraycopy(sorted, 0, out, 0, at);
+        out[at] = t;
+        System.arraycopy(sorted, at, out, at + 1, sorted.length - at);
+        return out;
+    }
+
+    private static Term[] drop(Term[] sorted, long id) {
+        int n = 0;
+        for (Term t : sorted) if (t.id != id) n++;
+        if (n == sorted.length) return sorted;
+        Term[] out = new Term[n];
+        int k = 0;
+        for (Term t : sorted) if (t.id != id) out[k++] = t;
+        return out;
+    }
+
+    private void publish(Snapshot s) {
+        if (s.pending < MERGE_THRESHOLD) {
+            snapshot = s;
+            return;
+        }
+        long start = System.nanoTime();
+        snapshot = new Snapshot(merge(s.names, s.addedNames, s.removed), merge(s.words, s.addedWords, s.removed),
+                new Term[0], new Term[0], LongPagedMap.empty(), 0);
+        merges.incrementAndGet();
+        lastMergeMicros.set((System.nanoTime() - start) / 1000);
+    }
+
+    // the live base terms and the overlay, in one linear pass
+    private static Terms merge(Terms base, Term[] added, LongPagedMap<Boolean> removed) {
+        int n = base.size + added.length;
+        Terms out = new Terms(new String[n], new String[n], new long[n], new int[n], 0);
+        int size = 0, b = 0, a = 0;
+        while (b < base.size || a < added.length) {
+            if (b < base.size && removed.get(base.ids[b]) != null) {
+                b++;
+                continue;
+            }
+            boolean takeBase = a == added.length
+                    || (b < base.size && ORDER.compare(base.get(b), added[a]) <= 0);
+            out.set(size++, takeBase ? base.get(b++) : added[a++]);
+        }
+        return new Terms(out.norms, out.names, out.ids, out.starts, size);
+    }
+
+    /* ─────────── search ─────────── */
+
+    boolean loaded() {
+        return ENABLED && snapshot != null;
+    }
+
+    boolean fuzzyAvailable() {
+        return ftsReady && !stale;
+    }
+
+    // up to limit prefix matches, best first; null when the index isn't loaded
+    List<Hit> prefix(String query, int limit) {
+        Snapshot s = ENABLED ? snapshot : null;
+        if (s == null) {
+            misses.increment();
+            return null;
+        }
+        searches.increment();
+        List<Hit> hits = new ArrayList<>();
+        String q = normalize(query);
+        if (q.isEmpty()) return hits;
+        Set<Long> seen = new HashSet<>();
+        collect(s, s.names, s.addedNames, q, limit, seen, hits, true);
+        collect(s, s.words, s.addedWords, q, limit, seen, hits, false);
+        return hits;
+    }
+
+    // walks base and overlay ranges for q side by side, in term order
+    private static void collect(Snapshot s, Terms base, Term[] added, String q, int limit,
+                                Set<Long> seen, List<Hit> hits, boolean wholeName) {
+        int b = base.lowerBound(q);
+        int a = lowerBound(added, q);
+        while (hits.size() < limit) {
+            boolean inBase = b < base.size && startsWith(base.norms[b], base.starts[b], q);
+            boolean inAdded = a < added.length && startsWith(added[a].norm, added[a].start, q);
+            if (!inBase && !inAdded) return;
+            Term t;
+            if (inBase && (!inAdded || ORDER.compare(base.get(b), added[a]) <= 0)) {
+                t = base.get(b++);
+                if (s.removed.get(t.id) != null) continue;
+            } else {
+                t = added[a++];
+            }
+            if (!seen.add(t.id)) continue;
+            String match = !wholeName ? "word" : t.norm.length() == q.length() ? "exact" : "prefix";
+            hits.add(new Hit(t.id, t.name, match, 0));
+        }
+    }
+
+    private static int lowerBound(Term[] sorted, String prefix) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(sorted[mid].norm, sorted[mid].start, prefix, 0) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // names sharing trigrams with query whose words start within maxEdits of it, closest first; skips ids in exclude
+    List<Hit> fuzzy(Connection conn, String query, int limit, Set<Long> exclude) throws SQLException {
+        String q = normalize(query);
+        List<String> grams = new ArrayList<>();
+        for (String word : q.split(" ")) {
+            for (int k = 0; k + 3 <= word.length(); k++) grams.add('"' + word.substring(k, k + 3) + '"');
+        }
+        List<Hit> hits = new ArrayList<>();
+        if (!fuzzyAvailable() || grams.isEmpty()) return hits;
+        fuzzySearches.increment();
+        int maxEdits = q.length() <= 5 ? 1 : 2;
+        PreparedStatement ps = DatabaseManager.prepare(conn,
+                "SELECT i.id, i.name FROM items_fts f JOIN items i ON i.id = f.rowid"
+                        + " WHERE items_fts MATCH ? ORDER BY f.rank LIMIT ?");
+        ps.setString(1, String.join(" OR ", grams));
+        ps.setInt(2, FUZZY_CANDIDATES);
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                if (exclude.contains(id)) continue;
+                String name = rs.getString(2);
+                int d = wordPrefixDistance(q, normalize(name), maxEdits);
+                if (d <= maxEdits) hits.add(new Hit(id, name, "fuzzy", d));
+            }
+        }
+        // stable: equally close names keep FTS's bm25 order
+        hits.sort(Comparator.comparingInt(h -> h.distance));
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    // fewest edits turning q into the start of one of norm's words (maxEdits + 1 when none is that close)
+    static int wordPrefixDistance(String q, String norm, int maxEdits) {
+        int best = maxEdits + 1;
+        for (int w = 0; ; ) {
+            best = Math.min(best, prefixDistance(q, norm, w));
+            int gap = norm.indexOf(' ', w);
+            if (gap < 0) return best;
+            w = gap + 1;
+        }
+    }
+
+    // edits (insert, delete, substitute, swap two neighbours) from q to the closest prefix of norm.substring(from)
+    private static int prefixDistance(String q, String norm, int from) {
+        int m = Math.min(norm.length() - from, q.length() + 2);
+        int[] before = new int[m + 1], prev = new int[m + 1], cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) prev[j] = j;
+        for (int i = 1; i <= q.length(); i++) {
+            cur[0] = i;
+            for (int j = 1; j <= m; j++) {
+                char a = q.charAt(i - 1), b = norm.charAt(from + j - 1);
+                int d = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + (a == b ? 0 : 1));
+                if (i > 1 && j > 1 && a == norm.charAt(from + j - 2) && q.charAt(i - 2) == b) d = Math.min(d, before[j - 2] + 1);
+                cur[j] = d;
+            }
+            int[] t = before;
+            before = prev;
+            prev = cur;
+            cur = t;
+        }
+        int best = Integer.MAX_VALUE;
+        for (int j = 0; j <= m; j++) best = Math.min(best, prev[j]);
+        return best;
+    }
+
+    JSONObject stats() {
+        Snapshot s = snapshot;
+        JSONObject o = new JSONObject();
+        o.put("enabled", ENABLED);
+        o.put("loaded", s != null);
+        o.put("fts", ftsReady);
+        o.put("fts_reindexing", stale);
+        o.put("names", s == null ? 0 : s.names.size + s.addedNames.length);
+        o.put("word_terms", s == null ? 0 : s.words.size + s.addedWords.length);
+        o.put("pending", s == null ? 0 : s.pending);
+        o.put("searches", searches.sum());
+        o.put("fuzzy_searches", fuzzySearches.sum());
+        o.put("misses", misses.sum());
+        o.put("rebuilds", rebuilds.get());
+        o.put("last_rebuild_micros", lastRebuildMicros.get());
+        o.put("merges", merges.get());
+        o.put("last_merge_micros", lastMergeMicros.get());
+        return o;
+    }
+}
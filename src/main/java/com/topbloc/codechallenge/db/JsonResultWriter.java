@@ -0,0 +1,268 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes a ResultSet as a JSON array of objects straight into an OutputStream as
+ * UTF-8, producing the same bytes as {@code convertResultSetToJson(rs).toJSONString()}
+ * without the per-row HashMaps, boxed numbers or intermediate Strings.
+ *
+ * Column names, key order and value kinds are worked out once per SQL string and
+ * cached. Key order mirrors json-simple's JSONObject (a HashMap), and values are
+ * read by index with a typed getter picked from the column's declared type;
+ * columns without one fall back to getObject.
+ */
+public final class JsonResultWriter {
+
+    // value kinds, picked per column from its declared type; CborResultWriter uses them too
+    static final int LONG = 0, DOUBLE = 1, STRING = 2, OBJECT = 3;
+
+    private static final Map<String, Shape> SHAPES = new ConcurrentHashMap<>();
+
+    // per-query column layout, in output order
+    static final class Shape {
+        final int[] columns;    // 1-based ResultSet index
+        final int[] kinds;
+        final byte[][] keys;    // pre-encoded {"name": / ,"name":
+
+        Shape(int[] columns, int[] kinds, byte[][] keys) {
+            this.columns = columns;
+            this.kinds = kinds;
+            this.keys = keys;
+        }
+    }
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+
+    // also used directly by InventoryReadModel to encode rows that never came from a ResultSet
+    JsonResultWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Streams every remaining row of {@code rs}; {@code sql} keys the metadata cache. Does not close {@code out}. */
+    public static void write(ResultSet rs, String sql, OutputStream out) throws SQLException, IOException {
+        Shape shape = SHAPES.get(sql);
+        if (shape == null) {
+            shape = shapeOf(rs.getMetaData());
+            SHAPES.put(sql, shape);
+        }
+        JsonResultWriter w = new JsonResultWriter(out);
+        w.writeRows(rs, shape);
+        w.drain();   // flushing is left to the owner of out
+    }
+
+    // json-simple's key order for an object with these keys
+    static List<String> keyOrder(String... names) {
+        Map<String, Boolean> order = new HashMap<>();
+        for (String name : names) order.put(name, Boolean.TRUE);
+        return new ArrayList<>(order.keySet());
+    }
+
+    static Shape shapeOf(ResultSetMetaData md) throws SQLException {
+        int n = md.getColumnCount();
+        // json-simple puts each column into a HashMap and serializes in its iteration order;
+        // duplicate labels collapse to one key whose value rs.getObject(label) takes from the first match
+        Map<String, Integer> order = new HashMap<>();
+        Map<String, Integer> firstIndex = new HashMap<>();
+        for (int i = 1; i <= n; i++) {
+            String name = md.getColumnName(i);
+            order.put(name, i);
+            firstIndex.putIfAbsent(name, i);
+        }
+        int[] columns = new int[order.size()];
+        int[] kinds = new int[order.size()];
+        byte[][] keys = new byte[order.size()][];
+        int k = 0;
+        for (String name : order.keySet()) {
+            int col = firstIndex.get(name);
+            columns[k] = col;
+            kinds[k] = kindOf(md.getColumnTypeName(col));
+            keys[k] = ((k == 0 ? "{" : ",") + "\"" + JSONValue.escape(name) + "\":").getBytes(StandardCharsets.UTF_8);
+            k++;
+        }
+        return new Shape(columns, kinds, keys);
+    }
+
+    static int kindOf(String typeName) {
+        if (typeName == null) return OBJECT;
+        String t = typeName.toUpperCase(Locale.ROOT);
+        if (t.contains("INT")) return LONG;
+        if (t.contains("REAL") || t.contains("FLOA") || t.contains("DOUB")) return DOUBLE;
+        if (t.contains("CHAR") || t.contains("CLOB") || t.contains("TEXT")) return STRING;
+        return OBJECT;
+    }
+
+    private void writeRows(ResultSet rs, Shape shape) throws SQLException, IOException {
+        put('[');
+        boolean first = true;
+        while (rs.next()) {
+            if (!first) put(',');
+            first = false;
+            if (shape.columns.length == 0) put('{');
+            for (int k = 0; k < shape.columns.length; k++) {
+                put(shape.keys[k]);
+                writeValue(rs, shape.columns[k], shape.kinds[k]);
+            }
+            put('}');
+        }
+        put(']');
+    }
+
+    private void writeValue(ResultSet rs, int col, int kind) throws SQLException, IOException {
+        switch (kind) {
+            case LONG: {
+                long v = rs.getLong(col);
+                if (v == 0 && rs.wasNull()) ascii("null");
+                else writeLong(v);
+                return;
+            }
+            case DOUBLE: {
+                double v = rs.getDouble(col);
+                if (v == 0 && rs.wasNull()) ascii("null");
+                else writeDouble(v);
+                return;
+            }
+            case STRING: {
+                String v = rs.getString(col);
+                if (v == null) ascii("null");
+                else writeString(v);
+                return;
+            }
+            default:
+                writeUtf8(JSONValue.toJSONString(rs.getObject(col)));
+        }
+    }
+
+    /* ─────────── encoding ─────────── */
+
+    // JSON has no NaN or infinity
+    void writeDouble(double v) throws IOException {
+        if (Double.isNaN(v) || Double.isInfinite(v)) ascii("null");
+        else ascii(Double.toString(v));
+    }
+
+    void writeLong(long v) throws IOException {
+        if (v == Long.MIN_VALUE) {
+            ascii(Long.toString(v));
+            return;
+        }
+        if (pos + 20 > buf.length) drain();
+        if (v < 0) {
+            buf[pos++] = '-';
+            v = -v;
+        }
+        int start = pos;
+        do {
+            buf[pos++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        // digits went in backwards
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    // same escaping as JSONValue.escape, encoded as UTF-8
+    void writeString(String s) throws IOException {
+        put('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"':  ascii("\\\""); break;
+                case '\\': ascii("\\\\"); break;
+                case '\b': ascii("\\b"); break;
+                case '\f': ascii("\\f"); break;
+                case '\n': ascii("\\n"); break;
+                case '\r': ascii("\\r"); break;
+                case '\t': ascii("\\t"); break;
+                case '/':  ascii("\\/"); break;
+                default:
+                    if (ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F') || (ch >= 0x2000 && ch <= 0x20FF)) {
+                        unicodeEscape(ch);
+                    } else if (Character.isHighSurrogate(ch) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        codePoint(Character.toCodePoint(ch, s.charAt(++i)));
+                    } else if (Character.isSurrogate(ch)) {
+                        put('?');   // what String.getBytes(UTF_8) does with a lone surrogate
+                    } else {
+                        codePoint(ch);
+                    }
+            }
+        }
+        put('"');
+    }
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private void unicodeEscape(char ch) throws IOException {
+        if (pos + 6 > buf.length) drain();
+        buf[pos++] = '\\';
+        buf[pos++] = 'u';
+        buf[pos++] = HEX[(ch >> 12) & 0xF];
+        buf[pos++] = HEX[(ch >> 8) & 0xF];
+        buf[pos++] = HEX[(ch >> 4) & 0xF];
+        buf[pos++] = HEX[ch & 0xF];
+    }
+
+    private void codePoint(int cp) throws IOException {
+        if (pos + 4 > buf.length) drain();
+        if (cp < 0x80) {
+            buf[pos++] = (byte) cp;
+        } else if (cp < 0x800) {
+            buf[pos++] = (byte) (0xC0 | (cp >> 6));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            buf[pos++] = (byte) (0xE0 | (cp >> 12));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+            buf[pos++] = (byte) (0xF0 | (cp >> 18));
+            buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        }
+    }
+
+    private void writeUtf8(String s) throws IOException {
+        put(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void ascii(String s) throws IOException {
+        if (pos + s.length() > buf.length) drain();
+        for (int i = 0; i < s.length(); i++) buf[pos++] = (byte) s.charAt(i);
+    }
+
+    void put(int b) throws IOException {
+        if (pos == buf.length) drain();
+        buf[pos++] = (byte) b;
+    }
+
+    void put(byte[] b) throws IOException {
+        if (pos + b.length > buf.length) {
+            drain();
+            if (b.length > buf.length) {
+                out.write(b);
+                return;
+            }
+        }
+        System.arraycopy(b, 0, buf, pos, b.length);
+        pos += b.length;
+    }
+
+    void drain() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+}
@@ -0,0 +1,172 @@
+package com.topbloc.codechallenge.db;
+
+import java.util.Arrays;
+
+/**
+ * Immutable long-keyed sorted map stored as a list of small sorted pages.
+ * Updates copy only the page they touch plus the page index, so a writer pays
+ * O(n / PAGE + PAGE) instead of copying the whole map, and readers holding an
+ * older instance are never affected.
+ */
+final class LongPagedMap<V> {
+
+    static final int PAGE = 256;
+
+    private static final LongPagedMap<?> EMPTY = new LongPagedMap<>(new long[0], new Page[0], 0);
+
+    private static final class Page {
+        final long[] keys;
+        final Object[] values;
+
+        Page(long[] keys, Object[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    @FunctionalInterface
+    interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private final long[] firstKeys;
+    private final Page[] pages;
+    private final int size;
+
+    private LongPagedMap(long[] firstKeys, Page[] pages, int size) {
+        this.firstKeys = firstKeys;
+        this.pages = pages;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> LongPagedMap<V> empty() {
+        return (LongPagedMap<V>) EMPTY;
+    }
+
+    // keys must be strictly ascending
+    static <V> LongPagedMap<V> ofSorted(long[] keys, Object[] values, int n) {
+        int pageCount = (n + PAGE - 1) / PAGE;
+        long[] firsts = new long[pageCount];
+        Page[] pages = new Page[pageCount];
+        for (int p = 0; p < pageCount; p++) {
+            int from = p * PAGE, to = Math.min(n, from + PAGE);
+            pages[p] = new Page(Arrays.copyOfRange(keys, from, to), Arrays.copyOfRange(values, from, to));
+            firsts[p] = keys[from];
+        }
+        return new LongPagedMap<>(firsts, pages, n);
+    }
+
+    int size() {
+        return size;
+    }
+
+    // page that holds (or would hold) key
+    private int pageFor(long key) {
+        int i = Arrays.binarySearch(firstKeys, key);
+        if (i >= 0) return i;
+        int insertion = -i - 1;
+        return Math.max(0, insertion - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        if (pages.length == 0) return null;
+        Page page = pages[pageFor(key)];
+        int i = Arrays.binarySearch(page.keys, key);
+        return i >= 0 ? (V) page.values[i] : null;
+    }
+
+    LongPagedMap<V> with(long key, V value) {
+        if (pages.length == 0) {
+            return new LongPagedMap<>(new long[]{key}, new Page[]{new Page(new long[]{key}, new Object[]{value})}, 1);
+        }
+        int p = pageFor(key);
+        Page page = pages[p];
+        int i = Arrays.binarySearch(page.keys, key);
+        if (i >= 0) {
+            Object[] values = page.values.clone();
+            values[i] = value;
+            Page[] nextPages = pages.clone();
+            nextPages[p] = new Page(page.keys, values);
+            return new LongPagedMap<>(firstKeys, nextPages, size);
+        }
+
+        int at = -i - 1;
+        int n = page.keys.length;
+        long[] keys = new long[n + 1];
+        Object[] values = new Object[n + 1];
+        System.arraycopy(page.keys, 0, keys, 0, at);
+        System.arraycopy(page.values, 0, values, 0, at);
+        keys[at] = key;
+        values[at] = value;
+        System.arraycopy(page.keys, at, keys, at + 1, n - at);
+        System.arraycopy(page.values, at, values, at + 1, n - at);
+
+        if (keys.length <= 2 * PAGE) {
+            Page[] nextPages = pages.clone();
+            long[] nextFirsts = firstKeys.clone();
+            nextPages[p] = new Page(keys, values);
+            nextFirsts[p] = keys[0];
+            return new LongPagedMap<>(nextFirsts, nextPages, size + 1);
+        }
+
+        // split an overfull page in two
+        int half = keys.length / 2;
+        Page left = new Page(Arrays.copyOfRange(keys, 0, half), Arrays.copyOfRange(values, 0, half));
+        Page right = new Page(Arrays.copyOfRange(keys, half, keys.length), Arrays.copyOfRange(values, half, keys.length));
+        Page[] nextPages = new Page[pages.length + 1];
+        long[] nextFirsts = new long[pages.length + 1];
+        System.arraycopy(pages, 0, nextPages, 0, p);
+        System.arraycopy(firstKeys, 0, nextFirsts, 0, p);
+        nextPages[p] = left;
+        nextFirsts[p] = left.keys[0];
+        nextPages[p + 1] = right;
+        nextFirsts[p + 1] = right.keys[0];
+        System.arraycopy(pages, p + 1, nextPages, p + 2, pages.length - p - 1);
+        System.arraycopy(firstKeys, p + 1, nextFirsts, p + 2, pages.length - p - 1);
+        return new LongPagedMap<>(nextFirsts, nextPages, size + 1);
+    }
+
+    LongPagedMap<V> without(long key) {
+        if (pages.length == 0) return this;
+        int p = pageFor(key);
+        Page page = pages[p];
+        int i = Arrays.binarySearch(page.keys, key);
+        if (i < 0) return this;
+
+        int n = page.keys.length;
+        if (n == 1) {
+            // drop the page entirely
+            Page[] nextPages = new Page[pages.length - 1];
+            long[] nextFirsts = new long[pages.length - 1];
+            System.arraycopy(pages, 0, nextPages, 0, p);
+            System.arraycopy(firstKeys, 0, nextFirsts, 0, p);
+            System.arraycopy(pages, p + 1, nextPages, p, pages.length - p - 1);
+            System.arraycopy(firstKeys, p + 1, nextFirsts, p, pages.length - p - 1);
+            return new LongPagedMap<>(nextFirsts, nextPages, size - 1);
+        }
+
+        long[] keys = new long[n - 1];
+        Object[] values = new Object[n - 1];
+        System.arraycopy(page.keys, 0, keys, 0, i);
+        System.arraycopy(page.values, 0, values, 0, i);
+        System.arraycopy(page.keys, i + 1, keys, i, n - i - 1);
+        System.arraycopy(page.values, i + 1, values, i, n - i - 1);
+        Page[] nextPages = pages.clone();
+        long[] nextFirsts = firstKeys.clone();
+        nextPages[p] = new Page(keys, values);
+        nextFirsts[p] = keys[0];
+        return new LongPagedMap<>(nextFirsts, nextPages, size - 1);
+    }
+
+    // visits entries in ascending key order
+    @SuppressWarnings("unchecked")
+    void forEach(Visitor<V> visitor) {
+        for (Page page : pages) {
+            for (int i = 0; i < page.keys.length; i++) {
+                visitor.visit(page.keys[i], (V) page.values[i]);
+            }
+        }
+    }
+}
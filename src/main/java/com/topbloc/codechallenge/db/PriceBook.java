@@ -0,0 +1,285 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process price book behind the cheapest/top-N restock lookups.
+ *
+ * Every distributor_prices row is held per item in parallel primitive arrays sorted
+ * by (cost, price id) - the order SQLite walks the (item, cost) index - so the
+ * cheapest offer is the first entry and the top N are a prefix. Like the SQL join,
+ * offers whose distributor no longer exists are skipped at read time rather than
+ * dropped, which keeps deleteDistributor O(log n). Snapshots are immutable and
+ * swapped through a volatile field; mutations arrive under DatabaseManager's writer lock.
+ */
+final class PriceBook {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("pricebook.enabled", "true"));
+
+    // one item's offers, sorted by cost then price id
+    static final class Offers {
+        final long[] ids;
+        final long[] distributors;
+        final double[] costs;
+
+        Offers(long[] ids, long[] distributors, double[] costs) {
+            this.ids = ids;
+            this.distributors = distributors;
+            this.costs = costs;
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        // position of (cost, id) in sort order
+        private int slot(double cost, long id) {
+            int lo = 0, hi = ids.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = Double.compare(costs[mid], cost);
+                if (c < 0 || (c == 0 && ids[mid] < id)) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        Offers with(long id, long distributor, double cost) {
+            int at = slot(cost, id);
+            int n = ids.length;
+            long[] i2 = new long[n + 1];
+            long[] d2 = new long[n + 1];
+            double[] c2 = new double[n + 1];
+            System.arraycopy(ids, 0, i2, 0, at);
+            System.arraycopy(distributors, 0, d2, 0, at);
+            System.arraycopy(costs, 0, c2, 0, at);
+            i2[at] = id;
+            d2[at] = distributor;
+            c2[at] = cost;
+            System.arraycopy(ids, at, i2, at + 1, n - at);
+            System.arraycopy(distributors, at, d2, at + 1, n - at);
+            System.arraycopy(costs, at, c2, at + 1, n - at);
+            return new Offers(i2, d2, c2);
+        }
+
+        // every offer from distributor re-priced at cost; null when nothing matched
+        Offers repriced(long distributor, double cost) {
+            int n = ids.length, matched = 0;
+            for (long d : distributors) if (d == distributor) matched++;
+            if (matched == 0) return null;
+            Integer[] order = new Integer[n];
+            double[] c = costs.clone();
+            for (int k = 0; k < n; k++) {
+                order[k] = k;
+                if (distributors[k] == distributor) c[k] = cost;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int cmp = Double.compare(c[a], c[b]);
+                return cmp != 0 ? cmp : Long.compare(ids[a], ids[b]);
+            });
+            long[] i2 = new long[n];
+            long[] d2 = new long[n];
+            double[] c2 = new double[n];
+            for (int k = 0; k < n; k++) {
+                i2[k] = ids[order[k]];
+                d2[k] = distributors[order[k]];
+                c2[k] = c[order[k]];
+            }
+            return new Offers(i2, d2, c2);
+        }
+    }
+
+    private static final class Snapshot {
+        final LongPagedMap<Offers> byItem;
+        final LongPagedMap<String> distributors;
+
+        Snapshot(LongPagedMap<Offers> byItem, LongPagedMap<String> distributors) {
+            this.byItem = byItem;
+            this.distributors = distributors;
+        }
+    }
+
+    private volatile Snapshot snapshot;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong lastRebuildMicros = new AtomicLong();
+
+    /* ─────────── loading ─────────── */
+
+    // full reload; the caller must keep writers out. Walks idx_distributor_prices_item_cost in order.
+    void rebuild(Connection conn) throws SQLException {
+        if (!ENABLED) return;
+        long start = System.nanoTime();
+        List<Long> itemKeys = new ArrayList<>();
+        List<Offers> itemOffers = new ArrayList<>();
+        LongPagedMap<String> distributors;
+        try (Statement st = conn.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT id, name FROM distributors ORDER BY id")) {
+                long[] keys = new long[16];
+                Object[] names = new Object[16];
+                int n = 0;
+                while (rs.next()) {
+                    if (n == keys.length) {
+                        keys = Arrays.copyOf(keys, n * 2);
+                        names = Arrays.copyOf(names, n * 2);
+                    }
+                    keys[n] = rs.getLong(1);
+                    names[n++] = rs.getString(2);
+                }
+                distributors = LongPagedMap.ofSorted(keys, names, n);
+            }
+            try (ResultSet rs = st.executeQuery(
+                    "SELECT item, id, distributor, cost FROM distributor_prices ORDER BY item, cost, id")) {
+                long current = 0;
+                int n = 0;
+                long[] ids = new long[16], dists = new long[16];
+                double[] costs = new double[16];
+                while (rs.next()) {
+                    long item = rs.getLong(1);
+                    if (n > 0 && item != current) {
+                        itemKeys.add(current);
+                        itemOffers.add(new Offers(Arrays.copyOf(ids, n), Arrays.copyOf(dists, n), Arrays.copyOf(costs, n)));
+                        n = 0;
+                    }
+                    current = item;
+                    if (n == ids.length) {
+                        ids = Arrays.copyOf(ids, n * 2);
+                        dists = Arrays.copyOf(dists, n * 2);
+                        costs = Arrays.copyOf(costs, n * 2);
+                    }
+                    ids[n] = rs.getLong(2);
+                    dists[n] = rs.getLong(3);
+                    costs[n++] = rs.getDouble(4);
+                }
+                if (n > 0) {
+                    itemKeys.add(current);
+                    itemOffers.add(new Offers(Arrays.copyOf(ids, n), Arrays.copyOf(dists, n), Arrays.copyOf(costs, n)));
+                }
+            }
+        }
+        long[] keys = new long[itemKeys.size()];
+        for (int k = 0; k < keys.length; k++) keys[k] = itemKeys.get(k);
+        snapshot = new Snapshot(LongPagedMap.ofSorted(keys, itemOffers.toArray(), keys.length), distributors);
+        rebuilds.incrementAndGet();
+        lastRebuildMicros.set((System.nanoTime() - start) / 1000);
+    }
+
+    // drop the book; lookups fall back to SQLite until the next rebuild
+    void invalidate() {
+        snapshot = null;
+    }
+
+    /* ─────────── write-through (called under the writer lock) ─────────── */
+
+    void distributorAdded(long id, String name) {
+        Snapshot s = snapshot;
+        if (s != null) snapshot = new Snapshot(s.byItem, s.distributors.with(id, name));
+    }
+
+    // its offers stay behind like orphaned rows do in SQLite, hidden until the id comes back
+    void distributorDeleted(long id) {
+        Snapshot s = snapshot;
+        if (s != null) snapshot = new Snapshot(s.byItem, s.distributors.without(id));
+    }
+
+    void priceAdded(long id, long distributor, long item, double cost) {
+        Snapshot s = snapshot;
+        if (s == null) return;
+        Offers old = s.byItem.get(item);
+        Offers next = old == null
+                ? new Offers(new long[]{id}, new long[]{distributor}, new double[]{cost})
+                : old.with(id, distributor, cost);
+        snapshot = new Snapshot(s.byItem.with(item, next), s.distributors);
+    }
+
+    void priceUpdated(long distributor, long item, double cost) {
+        Snapshot s = snapshot;
+        if (s == null) return;
+        Offers old = s.byItem.get(item);
+        Offers next = old == null ? null : old.repriced(distributor, cost);
+        if (next != null) snapshot = new Snapshot(s.byItem.with(item, next), s.distributors);
+    }
+
+    void itemDeleted(long item) {
+        Snapshot s = snapshot;
+        if (s != null) snapshot = new Snapshot(s.byItem.without(item), s.distributors);
+    }
+
+    /* ─────────── lookups ─────────── */
+
+    // up to limit offers for item, cheapest first, as the rows the restock query returns; null when not loaded
+    JSONArray cheapest(long item, long quantity, int limit) {
+        Snapshot s = ENABLED ? snapshot : null;
+        if (s == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        JSONArray out = new JSONArray();
+        Offers offers = s.byItem.get(item);
+        if (offers == null) return out;
+        for (int k = 0; k < offers.size() && out.size() < limit; k++) {
+            String name = s.distributors.get(offers.distributors[k]);
+            if (name == null) continue;   // the join drops offers from deleted distributors
+            JSONObject o = new JSONObject();
+            long d = offers.distributors[k];
+            o.put("distributor_id", d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE ? (Number) (int) d : (Number) d);
+            o.put("distributor_name", name);
+            o.put("unit_cost", offers.costs[k]);
+            o.put("total_cost", offers.costs[k] * quantity);
+            out.add(o);
+        }
+        return out;
+    }
+
+    @FunctionalInterface
+    interface CheapestCost {
+        // unit cost of the cheapest offer from a distributor that still exists, NaN when there is none
+        double of(long item);
+    }
+
+    // cheapest unit costs read from one snapshot, for scans that look up every item; null when not loaded
+    CheapestCost cheapestCosts() {
+        Snapshot s = ENABLED ? snapshot : null;
+        if (s == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return item -> {
+            Offers offers = s.byItem.get(item);
+            if (offers == null) return Double.NaN;
+            for (int k = 0; k < offers.size(); k++) {
+                if (s.distributors.get(offers.distributors[k]) != null) return offers.costs[k];
+            }
+            return Double.NaN;
+        };
+    }
+
+    JSONObject stats() {
+        Snapshot s = snapshot;
+        JSONObject o = new JSONObject();
+        o.put("enabled", ENABLED);
+        o.put("loaded", s != null);
+        o.put("items", s == null ? 0 : s.byItem.size());
+        o.put("distributors", s == null ? 0 : s.distributors.size());
+        o.put("hits", hits.sum());
+        o.put("misses", misses.sum());
+        o.put("rebuilds", rebuilds.get());
+        o.put("last_rebuild_micros", lastRebuildMicros.get());
+        return o;
+    }
+}
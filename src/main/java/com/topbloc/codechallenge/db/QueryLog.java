@@ -0,0 +1,268 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-statement timing under StatementCache: every PreparedStatement it hands out is
+ * wrapped so each execution adds its time and row count to that SQL's totals. A query's
+ * time is executeQuery plus every next() on its rows (TimedResultSet), so rows a route
+ * streams out count, but the time spent writing them to the client doesn't.
+ *
+ * An execution slower than db.slowQueryMs (100) is logged with its bind parameters and
+ * row count. The first time a statement is slow, its EXPLAIN QUERY PLAN is captured on
+ * the same connection and kept, flagged for full scans and temp B-trees. Logging is
+ * limited to one line a second per statement.
+ *
+ * When nothing is slow the cost is a proxied call per bind and execute, two nanoTime
+ * reads per row and a few adders per execution. A negative db.slowQueryMs leaves
+ * statements unwrapped altogether. Statements made with createStatement (schema setup,
+ * compaction) aren't seen.
+ */
+final class QueryLog {
+
+    static final long SLOW_MS = Long.getLong("db.slowQueryMs", 100L);
+    static final boolean ENABLED = SLOW_MS >= 0;
+    private static final long SLOW_NANOS = SLOW_MS * 1_000_000L;
+    private static final long LOG_INTERVAL_NANOS = 1_000_000_000L;
+
+    private static final ConcurrentHashMap<String, Stats> STATEMENTS = new ConcurrentHashMap<>();
+
+    private QueryLog() {
+    }
+
+    /* ─────────── totals per SQL string ─────────── */
+
+    static final class Stats {
+        final String sql;
+        final LongAdder calls = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder slow = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        // written once, on the first slow execution
+        volatile List<String> plan;
+        volatile boolean fullScan, tempBTree;
+        // the most recent slow execution
+        volatile long lastSlowNanos, lastSlowRows, lastSlowAt;
+        volatile Object[] lastSlowParams;
+        private final AtomicLong lastLogged = new AtomicLong(System.nanoTime() - LOG_INTERVAL_NANOS);
+        private final LongAdder unlogged = new LongAdder();
+
+        Stats(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    static PreparedStatement wrap(PreparedStatement ps, String sql, Connection conn) {
+        if (!ENABLED) return ps;
+        Stats stats = STATEMENTS.computeIfAbsent(sql, Stats::new);
+        return (PreparedStatement) Proxy.newProxyInstance(QueryLog.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new StatementHandler(ps, stats, conn));
+    }
+
+    private static void finish(Stats stats, Connection conn, Object[] params, long nanos, long rows) {
+        stats.calls.increment();
+        stats.nanos.add(nanos);
+        stats.rows.add(rows);
+        stats.maxNanos.accumulateAndGet(nanos, Math::max);
+        if (nanos < SLOW_NANOS) return;
+
+        stats.slow.increment();
+        stats.lastSlowNanos = nanos;
+        stats.lastSlowRows = rows;
+        stats.lastSlowParams = params.clone();
+        stats.lastSlowAt = System.currentTimeMillis();
+        if (stats.plan == null) explain(stats, conn);
+
+        long now = System.nanoTime(), last = stats.lastLogged.get();
+        if (now - last < LOG_INTERVAL_NANOS || !stats.lastLogged.compareAndSet(last, now)) {
+            stats.unlogged.increment();
+            return;
+        }
+        long skipped = stats.unlogged.sumThenReset();
+        System.out.println(String.format("slow query %.1f ms, %d rows: %s params %s plan %s%s%s", nanos / 1e6, rows,
+                oneLine(stats.sql), Arrays.toString(params), stats.plan,
+                stats.fullScan ? " [full scan]" : "", stats.tempBTree ? " [temp b-tree]" : "")
+                + (skipped > 0 ? " (" + skipped + " more slow since the last line)" : ""));
+    }
+
+    // SQLite binds nothing for EXPLAIN's parameters, which leaves the plan unchanged
+    private static void explain(Stats stats, Connection conn) {
+        List<String> plan = new ArrayList<>();
+        boolean fullScan = false, tempBTree = false;
+        try (PreparedStatement ps = conn.prepareStatement("EXPLAIN QUERY PLAN " + stats.sql);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String detail = rs.getString("detail");
+                plan.add(detail);
+                // "SCAN t" and "SCAN t USING INDEX x" both visit every row; "SCAN CONSTANT ROW" is a VALUES list
+                if (detail.startsWith("SCAN ") && !detail.startsWith("SCAN CONSTANT")) fullScan = true;
+                if (detail.contains("TEMP B-TREE")) tempBTree = true;
+            }
+        } catch (SQLException e) {
+            plan.add("EXPLAIN failed: " + e.getMessage());
+        }
+        stats.fullScan = fullScan;
+        stats.tempBTree = tempBTree;
+        stats.plan = plan;
+    }
+
+    private static String oneLine(String sql) {
+        return sql.replaceAll("\\s+", " ").trim();
+    }
+
+    /* ─────────── interception ─────────── */
+
+    // what a TimedResultSet reports to when its rows are done
+    interface Execution {
+        void finished(long nanos, long rows);
+    }
+
+    // binds are copied as they're set so a slow execution can be logged with them
+    private static final class StatementHandler implements InvocationHandler, Execution {
+        private final PreparedStatement ps;
+        private final Stats stats;
+        private final Connection conn;
+        private Object[] params = new Object[0];
+        // the last query's rows, in case its caller never closed them
+        private TimedResultSet open;
+
+        StatementHandler(PreparedStatement ps, Stats stats, Connection conn) {
+            this.ps = ps;
+            this.stats = stats;
+            this.conn = conn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "executeQuery":
+                    if (args == null) {
+                        // running the statement again closes its previous result set
+                        if (open != null) open.done();
+                        long t0 = System.nanoTime();
+                        ResultSet rs = (ResultSet) call(method, args);
+                        open = new TimedResultSet(rs, this, System.nanoTime() - t0);
+                        return open;
+                    }
+                    break;
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                case "execute":
+                case "executeBatch":
+                case "executeLargeBatch":
+                    if (args == null) {
+                        if (open != null) open.done();
+                        long t0 = System.nanoTime();
+                        Object result = call(method, args);
+                        finish(stats, conn, params, System.nanoTime() - t0, rows(result));
+                        return result;
+                    }
+                    break;
+                case "clearParameters":
+                    if (open != null) open.done();
+                    Arrays.fill(params, null);
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        // new binds mean the last query is over, whether or not its rows were closed
+                        if (open != null) open.done();
+                        int i = (Integer) args[0] - 1;
+                        if (i >= params.length) params = Arrays.copyOf(params, i + 1);
+                        if (i >= 0) params[i] = args[1];
+                    }
+            }
+            return call(method, args);
+        }
+
+        @Override
+        public void finished(long nanos, long rows) {
+            finish(stats, conn, params, nanos, rows);
+        }
+
+        private Object call(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(ps, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        // update counts, summed for a batch; execute()'s boolean counts as none
+        private static long rows(Object result) {
+            if (result instanceof Number) return Math.max(0, ((Number) result).longValue());
+            long n = 0;
+            if (result instanceof int[]) for (int c : (int[]) result) n += Math.max(0, c);
+            if (result instanceof long[]) for (long c : (long[]) result) n += Math.max(0, c);
+            return n;
+        }
+    }
+
+    /* ─────────── report ─────────── */
+
+    // statements by total time, most first
+    @SuppressWarnings("unchecked")
+    static JSONObject top(int limit) {
+        List<Stats> all = new ArrayList<>(STATEMENTS.values());
+        all.removeIf(s -> s.calls.sum() == 0);
+        all.sort((a, b) -> Long.compare(b.nanos.sum(), a.nanos.sum()));
+        JSONArray statements = new JSONArray();
+        for (Stats s : all.subList(0, Math.min(limit, all.size()))) {
+            long calls = s.calls.sum(), nanos = s.nanos.sum();
+            JSONObject o = new JSONObject();
+            o.put("sql", oneLine(s.sql));
+            o.put("calls", calls);
+            o.put("total_ms", round(nanos / 1e6));
+            o.put("mean_ms", round(nanos / 1e6 / calls));
+            o.put("max_ms", round(s.maxNanos.get() / 1e6));
+            o.put("rows", s.rows.sum());
+            o.put("slow", s.slow.sum());
+            List<String> plan = s.plan;
+            if (plan != null) {
+                JSONArray steps = new JSONArray();
+                steps.addAll(plan);
+                o.put("plan", steps);
+                o.put("full_scan", s.fullScan);
+                o.put("temp_btree", s.tempBTree);
+                JSONObject last = new JSONObject();
+                last.put("ms", round(s.lastSlowNanos / 1e6));
+                last.put("rows", s.lastSlowRows);
+                last.put("params", Arrays.toString(s.lastSlowParams));
+                last.put("at", s.lastSlowAt);
+                o.put("last_slow", last);
+            }
+            statements.add(o);
+        }
+        JSONObject out = new JSONObject();
+        out.put("enabled", ENABLED);
+        out.put("slow_threshold_ms", SLOW_MS);
+        out.put("statements_seen", all.size());
+        out.put("statements", statements);
+        return out;
+    }
+
+    private static double round(double ms) {
+        return Math.round(ms * 1000) / 1000.0;
+    }
+}
@@ -0,0 +1,46 @@
+package com.topbloc.codechallenge.db;
+
+import java.util.Locale;
+
+/**
+ * Body encodings the row-list routes can produce. JSON is the default and the only one
+ * browsers see; CBOR (CborResultWriter) is served to clients whose Accept header asks
+ * for application/cbor at least as strongly as for JSON.
+ */
+public enum ResultFormat {
+    JSON("application/json"),
+    CBOR("application/cbor");
+
+    public final String mediaType;
+
+    ResultFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    // Accept: application/cbor, application/json;q=0.5  -> CBOR; no header or no mention of cbor -> JSON
+    public static ResultFormat forAccept(String accept) {
+        if (accept == null || !accept.toLowerCase(Locale.ROOT).contains("cbor")) return JSON;
+        double cbor = 0, json = -1, wildcard = -1;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String p = parts[i].trim();
+                if (p.startsWith("q=") || p.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(p.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (type.equals("application/cbor")) cbor = Math.max(cbor, q);
+            else if (type.equals("application/json")) json = Math.max(json, q);
+            else if (type.equals("*/*") || type.equals("application/*")) wildcard = Math.max(wildcard, q);
+        }
+        // an explicit JSON entry outranks the wildcards; a tie goes to CBOR, which a client only names if it reads it
+        double jsonQ = json >= 0 ? json : wildcard;
+        return cbor > 0 && cbor >= jsonQ ? CBOR : JSON;
+    }
+}
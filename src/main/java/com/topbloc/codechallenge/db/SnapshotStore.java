@@ -0,0 +1,111 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Database files that resets and restores copy from with SQLite's backup API.
+ *
+ * The seed snapshot is the freshly seeded database, taken by the first reset in a process
+ * that has to build it with applySchema/seedDatabase; every later reset copies it back
+ * over the open database in one pass instead of recreating the file. It lives in the temp
+ * directory and goes with the process, so a change to the seed data is never stale.
+ *
+ * Named snapshots are fixtures saved on request into <db file>-snapshots/<name>.db and
+ * kept until deleted.
+ */
+final class SnapshotStore {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final String SUFFIX = ".db";
+
+    private final File dir;
+    private volatile File seed;
+
+    // reset timings, guarded by this
+    private long resets, restoredResets;
+    private long lastResetMicros, lastRestoreMicros, lastRebuildMicros;
+
+    SnapshotStore(File database) {
+        File db = database.getAbsoluteFile();
+        this.dir = new File(db.getParentFile(), db.getName() + "-snapshots");
+    }
+
+    static boolean validName(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    File named(String name) {
+        return new File(dir, name + SUFFIX);
+    }
+
+    // the directory is made on first save
+    File namedForWrite(String name) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        return named(name);
+    }
+
+    /* ─────────── seed snapshot ─────────── */
+
+    // null until a reset has built the seed data once
+    File seed() {
+        File f = seed;
+        return f != null && f.isFile() ? f : null;
+    }
+
+    File newSeed() throws IOException {
+        File f = File.createTempFile("challenge-seed-", SUFFIX);
+        f.deleteOnExit();
+        return f;
+    }
+
+    void seedSaved(File f) {
+        seed = f;
+    }
+
+    /* ─────────── stats ─────────── */
+
+    synchronized void resetTimed(boolean restored, long micros) {
+        resets++;
+        lastResetMicros = micros;
+        if (restored) {
+            restoredResets++;
+            lastRestoreMicros = micros;
+        } else {
+            lastRebuildMicros = micros;
+        }
+    }
+
+    JSONObject list() {
+        JSONArray snapshots = new JSONArray();
+        File[] files = dir.listFiles((d, n) -> n.endsWith(SUFFIX) && validName(n.substring(0, n.length() - SUFFIX.length())));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                JSONObject s = new JSONObject();
+                s.put("name", f.getName().substring(0, f.getName().length() - SUFFIX.length()));
+                s.put("bytes", f.length());
+                s.put("modified", f.lastModified());
+                snapshots.add(s);
+            }
+        }
+        JSONObject reset = new JSONObject();
+        synchronized (this) {
+            reset.put("resets", resets);
+            reset.put("from_seed_snapshot", restoredResets);
+            reset.put("last_micros", lastResetMicros);
+            reset.put("last_restore_micros", lastRestoreMicros);
+            reset.put("last_rebuild_micros", lastRebuildMicros);
+        }
+        reset.put("seed_snapshot", seed() != null);
+        JSONObject out = new JSONObject();
+        out.put("snapshots", snapshots);
+        out.put("reset", reset);
+        return out;
+    }
+}
@@ -0,0 +1,78 @@
+package com.topbloc.codechallenge.db;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * A response body produced while a read holds its connection and the lifecycle lock, kept
+ * here until the read is over and only then copied to the client. A slow or stalled download
+ * then holds neither, so it can't keep a reset waiting and every other request queued behind
+ * the reset. The first MEMORY_LIMIT bytes stay on the heap; anything past that goes to a
+ * temp file, so an export of any size still takes a bounded amount of memory.
+ */
+final class Spool extends OutputStream {
+
+    static final int MEMORY_LIMIT = Integer.getInteger("spool.memoryBytes", 1 << 20);
+
+    private byte[] buf = new byte[8192];
+    private int count;
+    private File file;
+    private OutputStream spill;
+
+    @Override
+    public void write(int b) throws IOException {
+        if (spill != null || count == MEMORY_LIMIT) {
+            spill().write(b);
+            return;
+        }
+        ensure(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int fits = spill != null ? 0 : Math.min(len, MEMORY_LIMIT - count);
+        if (fits > 0) {
+            ensure(count + fits);
+            System.arraycopy(b, off, buf, count, fits);
+            count += fits;
+        }
+        if (fits < len) spill().write(b, off + fits, len - fits);
+    }
+
+    private void ensure(int capacity) {
+        if (capacity > buf.length) buf = Arrays.copyOf(buf, Math.min(MEMORY_LIMIT, Math.max(capacity, buf.length * 2)));
+    }
+
+    private OutputStream spill() throws IOException {
+        if (spill == null) {
+            file = File.createTempFile("spool-", ".tmp");
+            spill = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        }
+        return spill;
+    }
+
+    // everything written so far, in order
+    void copyTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+        if (spill != null) {
+            spill.flush();
+            Files.copy(file.toPath(), out);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spill == null) return;
+        try {
+            spill.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.topbloc.codechallenge.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// unit of JDBC work run against a borrowed connection
+@FunctionalInterface
+public interface SqlWork<T> {
+    T run(Connection conn) throws SQLException;
+}
@@ -0,0 +1,94 @@
+package com.topbloc.codechallenge.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prepared statements of one pooled connection, keyed by SQL, least recently used
+ * evicted first. The pool hands a connection to one caller at a time, so the map
+ * needs no locking.
+ *
+ * Callers never close what {@link #prepare} returns (only their ResultSets). A
+ * statement evicted mid-call - or every statement when the cache size is 0 - is
+ * parked and closed by {@link #release} once the pool takes the connection back,
+ * so nothing is closed under a caller still reading from it and nothing leaks.
+ */
+final class StatementCache {
+
+    // statements kept per connection - override with -Ddb.statementCacheSize; 0 disables caching
+    static final int SIZE = Integer.getInteger("db.statementCacheSize", 64);
+
+    private final Connection conn;
+    private final int capacity;
+    private final Map<String, PreparedStatement> lru;
+    private final List<PreparedStatement> retired = new ArrayList<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile int cached;
+
+    StatementCache(Connection conn, int capacity) {
+        this.conn = conn;
+        this.capacity = capacity;
+        this.lru = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= StatementCache.this.capacity) return false;
+                retired.add(eldest.getValue());
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = lru.get(sql);
+        if (ps != null) {
+            hits.increment();
+            return ps;
+        }
+        misses.increment();
+        ps = QueryLog.wrap(conn.prepareStatement(sql), sql, conn);
+        if (capacity > 0) {
+            lru.put(sql, ps);
+            cached = lru.size();
+        } else {
+            retired.add(ps);
+        }
+        return ps;
+    }
+
+    // end of a pool call: close whatever was evicted or never cached during it
+    void release() {
+        if (retired.isEmpty()) return;
+        for (PreparedStatement ps : retired) closeQuietly(ps);
+        retired.clear();
+    }
+
+    void close() {
+        release();
+        for (PreparedStatement ps : lru.values()) closeQuietly(ps);
+        lru.clear();
+        cached = 0;
+    }
+
+    long hits()      { return hits.sum(); }
+    long misses()    { return misses.sum(); }
+    long evictions() { return evictions.sum(); }
+    int cached()     { return cached; }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
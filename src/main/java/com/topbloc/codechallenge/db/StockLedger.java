@@ -0,0 +1,377 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Write-behind stock deltas for POST /inventory/:id/adjust.
+ *
+ * An adjustment is appended to the current generation's journal file and added to a
+ * per-row LongAdder, so concurrent sales of the same row don't contend on one counter
+ * and none of them touch SQLite. A flusher thread seals the generation every
+ * FLUSH_INTERVAL_MS (sooner past FLUSH_THRESHOLD adjustments), collapses it to one
+ * delta per row and hands it to DatabaseManager, which applies it in one transaction
+ * together with the generation number. Only then is the journal file deleted.
+ *
+ * The journal is written before the adjustment is acknowledged, so a crashed process
+ * loses nothing: on the next start, generations newer than the last applied one are
+ * replayed. Like the database itself (db.synchronous=NORMAL), it is not forced to disk
+ * per write, so power loss can drop the last moments.
+ */
+final class StockLedger {
+
+    static final long FLUSH_INTERVAL_MS = Long.getLong("stock.flushIntervalMs", 50L);
+    static final long FLUSH_THRESHOLD   = Long.getLong("stock.flushThreshold", 10_000L);
+
+    // journal record: inventory id, delta
+    private static final int RECORD = Integer.BYTES + Long.BYTES;
+    // in place of a delta: the row was deleted, drop what its generation holds for it so far
+    private static final long FORGET = Long.MIN_VALUE;
+    private static final String SUFFIX = ".journal";
+
+    // one generation's deltas, collapsed per row; what DatabaseManager applies in a single transaction
+    static final class Batch {
+        final long generation;
+        final Map<Integer, Long> deltas;
+        final long adjustments;
+        // null when the ledger isn't journaled
+        final File journal;
+
+        Batch(long generation, Map<Integer, Long> deltas, long adjustments, File journal) {
+            this.generation = generation;
+            this.deltas = deltas;
+            this.adjustments = adjustments;
+            this.journal = journal;
+        }
+    }
+
+    @FunctionalInterface
+    interface Applier {
+        void apply(Batch batch) throws SQLException;
+    }
+
+    private final class Generation {
+        final long number;
+        final File file;
+        // opened by the first append, so a generation nobody adjusts leaves no file behind
+        private volatile FileChannel journal;
+        final ConcurrentHashMap<Integer, LongAdder> deltas = new ConcurrentHashMap<>();
+        final LongAdder adjustments = new LongAdder();
+        // adjusters inside append(); sealing waits for it to drain
+        final LongAdder inFlight = new LongAdder();
+        volatile boolean sealed;
+
+        Generation(long number) {
+            this.number = number;
+            this.file = journaled ? journalFile(number) : null;
+        }
+
+        void append(int id, long delta) throws IOException {
+            if (file != null) {
+                FileChannel channel = channel();
+                ByteBuffer record = ByteBuffer.allocate(RECORD).putInt(id).putLong(delta);
+                record.flip();
+                // one write per record reaches the OS before the caller is acknowledged
+                while (record.hasRemaining()) channel.write(record);
+            }
+            if (delta == FORGET) {
+                deltas.remove(id);
+                return;
+            }
+            deltas.computeIfAbsent(id, k -> new LongAdder()).add(delta);
+            adjustments.increment();
+        }
+
+        private FileChannel channel() throws IOException {
+            FileChannel c = journal;
+            if (c != null) return c;
+            synchronized (this) {
+                if (journal == null) {
+                    journal = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                return journal;
+            }
+        }
+
+        // call once sealed and drained
+        Batch toBatch() throws IOException {
+            if (journal != null) journal.close();
+            Map<Integer, Long> collapsed = new TreeMap<>();
+            for (Map.Entry<Integer, LongAdder> e : deltas.entrySet()) {
+                long sum = e.getValue().sum();
+                if (sum != 0) collapsed.put(e.getKey(), sum);
+            }
+            return new Batch(number, collapsed, adjustments.sum(), file);
+        }
+    }
+
+    private final File dir;
+    private final String prefix;
+    private final Applier applier;
+    // DatabaseManager's lifecycle read lock: a flush takes it before this ledger's monitor, the order
+    // a reset holding the write side reaches discard() in, so the two can't deadlock
+    private final Lock applyLock;
+    private final boolean journaled;
+
+    private volatile Generation current;
+    // sealed batches still to apply, oldest first; guarded by this
+    private final ArrayDeque<Batch> queued = new ArrayDeque<>();
+    private boolean recovered;
+
+    private final AtomicBoolean flusherStarted = new AtomicBoolean();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "stock-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedAdjustments = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+    private final AtomicLong lastFlushMicros = new AtomicLong();
+
+    // journals live next to the database as <db file>-stock-<generation>.journal; an unjournaled
+    // ledger (in-memory database, see StorageMode) keeps its deltas in memory only
+    StockLedger(File database, boolean journaled, Lock applyLock, Applier applier) {
+        this.dir = database.getAbsoluteFile().getParentFile();
+        this.prefix = database.getName() + "-stock-";
+        this.journaled = journaled;
+        this.applyLock = applyLock;
+        this.applier = applier;
+    }
+
+    private File journalFile(long generation) {
+        return new File(dir, prefix + generation + SUFFIX);
+    }
+
+    /* ─────────── adjusting ─────────── */
+
+    void adjust(int id, long delta) throws IOException {
+        startFlusher();
+        for (;;) {
+            Generation g = current;
+            if (g == null) throw new IOException("Stock journal is not open");
+            g.inFlight.increment();
+            try {
+                // re-checked after announcing ourselves: a sealer that missed us sees sealed first
+                if (!g.sealed) {
+                    g.append(id, delta);
+                    if (g.adjustments.sum() >= FLUSH_THRESHOLD) flushSoon();
+                    return;
+                }
+            } finally {
+                g.inFlight.decrement();
+            }
+        }
+    }
+
+    // the row was deleted (DatabaseManager flushed just before): drop deltas that raced in since, so a
+    // row that is later given the same id doesn't inherit them, after a restart's replay included
+    void forget(int id) throws IOException {
+        for (;;) {
+            Generation g = current;
+            if (g == null) return;
+            g.inFlight.increment();
+            try {
+                if (!g.sealed) {
+                    if (g.deltas.containsKey(id)) g.append(id, FORGET);
+                    return;
+                }
+            } finally {
+                g.inFlight.decrement();
+            }
+        }
+    }
+
+    private void startFlusher() {
+        if (!flusherStarted.compareAndSet(false, true)) return;
+        flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushSoon() {
+        if (!flushQueued.compareAndSet(false, true)) return;
+        flusher.execute(() -> {
+            flushQueued.set(false);
+            flushQuietly();
+        });
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | SQLException | DatabaseBusyException e) {
+            // the batch stays queued and is retried on the next tick
+            e.printStackTrace();
+        }
+    }
+
+    /* ─────────── flushing ─────────── */
+
+    // seal the current generation and apply everything queued, oldest first
+    void flush() throws IOException, SQLException {
+        applyLock.lock();
+        try {
+            flushLocked();
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    private synchronized void flushLocked() throws IOException, SQLException {
+        Generation g = current;
+        if (g != null && g.adjustments.sum() > 0) queued.addLast(seal(g, new Generation(g.number + 1)));
+        long start = System.nanoTime();
+        int applied = 0;
+        while (!queued.isEmpty()) {
+            Batch b = queued.peekFirst();
+            try {
+                if (!b.deltas.isEmpty()) applier.apply(b);
+            } catch (SQLException | DatabaseBusyException e) {
+                // later generations must not land before this one: the applied mark only moves forward
+                failedFlushes.incrementAndGet();
+                throw e;
+            }
+            queued.removeFirst();
+            deleteJournal(b.journal);
+            flushes.incrementAndGet();
+            flushedAdjustments.addAndGet(b.adjustments);
+            applied++;
+        }
+        if (applied > 0) lastFlushMicros.set((System.nanoTime() - start) / 1_000);
+    }
+
+    private Batch seal(Generation g, Generation next) throws IOException {
+        current = next;
+        g.sealed = true;
+        while (g.inFlight.sum() != 0) Thread.yield();
+        return g.toBatch();
+    }
+
+    /* ─────────── lifecycle (DatabaseManager holds the writer side of its lifecycle lock) ─────────── */
+
+    // first open in this process: journals newer than the applied mark, in order, for the caller to
+    // replay; later opens (reconnects) return nothing, their deltas are still in memory
+    synchronized List<Batch> open(long appliedGeneration) throws IOException {
+        if (recovered) return Collections.emptyList();
+        recovered = true;
+        List<Batch> replay = new ArrayList<>();
+        long last = appliedGeneration;
+        for (long generation : journaled ? journalGenerations() : Collections.<Long>emptyList()) {
+            File f = journalFile(generation);
+            if (generation <= appliedGeneration) {
+                // applied, but the process died before deleting it
+                Files.deleteIfExists(f.toPath());
+                continue;
+            }
+            Batch b = read(generation, f);
+            if (b.deltas.isEmpty()) {
+                // nothing to apply (empty, a torn first record, or deltas that cancel out): replaying it
+                // would only cost a write and tell every reader the inventory changed
+                Files.deleteIfExists(f.toPath());
+                continue;
+            }
+            replay.add(b);
+            last = Math.max(last, generation);
+        }
+        current = new Generation(last + 1);
+        return replay;
+    }
+
+    // a replayed batch has been applied
+    void replayed(Batch b) throws IOException {
+        deleteJournal(b.journal);
+    }
+
+    private static void deleteJournal(File f) throws IOException {
+        if (f != null) Files.deleteIfExists(f.toPath());
+    }
+
+    // database recreated: drop every unapplied delta and journal; the caller keeps adjusters and flushes out
+    synchronized void discard() throws IOException {
+        Generation g = current;
+        if (g != null) {
+            seal(g, new Generation(g.number + 1));
+            deleteJournal(g.file);
+        }
+        queued.clear();
+        if (!journaled) return;
+        for (long generation : journalGenerations()) {
+            if (current == null || generation != current.number) Files.deleteIfExists(journalFile(generation).toPath());
+        }
+    }
+
+    private List<Long> journalGenerations() {
+        List<Long> out = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return out;
+        for (String name : names) {
+            if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) continue;
+            try {
+                out.add(Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    // a torn last record (crash mid-write) was never acknowledged and is ignored
+    private static Batch read(long generation, File f) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        Map<Integer, Long> deltas = new TreeMap<>();
+        long n = 0;
+        while (buf.remaining() >= RECORD) {
+            int id = buf.getInt();
+            long delta = buf.getLong();
+            if (delta == FORGET) {
+                deltas.remove(id);
+                continue;
+            }
+            deltas.merge(id, delta, Long::sum);
+            n++;
+        }
+        deltas.values().removeIf(d -> d == 0);
+        return new Batch(generation, deltas, n, f);
+    }
+
+    /* ─────────── stats ─────────── */
+
+    JSONObject stats() {
+        Generation g = current;
+        long pendingAdjustments = g == null ? 0 : g.adjustments.sum();
+        int queuedBatches;
+        synchronized (this) {
+            queuedBatches = queued.size();
+            for (Batch b : queued) pendingAdjustments += b.adjustments;
+        }
+        JSONObject out = new JSONObject();
+        out.put("generation", g == null ? 0 : g.number);
+        out.put("pending_adjustments", pendingAdjustments);
+        out.put("pending_rows", g == null ? 0 : g.deltas.size());
+        out.put("queued_batches", queuedBatches);
+        out.put("flushes", flushes.get());
+        out.put("flushed_adjustments", flushedAdjustments.get());
+        out.put("failed_flushes", failedFlushes.get());
+        out.put("last_flush_micros", lastFlushMicros.get());
+        out.put("flush_interval_ms", FLUSH_INTERVAL_MS);
+        return out;
+    }
+}
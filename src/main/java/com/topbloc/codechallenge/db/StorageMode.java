@@ -0,0 +1,56 @@
+package com.topbloc.codechallenge.db;
+
+import java.io.File;
+
+/**
+ * Where the database lives, picked at startup with -Ddb.storage (or DB_STORAGE):
+ *
+ *   file (default)    db.path on disk in WAL mode, every commit durable per db.synchronous.
+ *   memory            an in-memory database shared by the pool's connections; nothing
+ *                     touches disk, not even stock journals, and it starts from the seed data.
+ *   memory_snapshot   in memory, loaded from db.path at startup and copied back to it every
+ *                     db.snapshotIntervalSec seconds and on shutdown. A crash loses what was
+ *                     written since the last copy.
+ *
+ * The in-memory database uses SQLite's memdb VFS rather than a shared-cache ":memory:"
+ * database: shared cache answers a reader that meets the writer's table lock with
+ * SQLITE_LOCKED at once, which busy_timeout doesn't wait out, while memdb connections lock
+ * like separate file connections (rollback journal in memory; WAL needs shared memory).
+ */
+final class StorageMode {
+
+    static final String MODE = System.getProperty("db.storage",
+            System.getenv("DB_STORAGE") == null ? "file" : System.getenv("DB_STORAGE"));
+    static final long SNAPSHOT_INTERVAL_SEC = Long.getLong("db.snapshotIntervalSec", 30L);
+
+    static {
+        if (!MODE.equals("file") && !MODE.equals("memory") && !MODE.equals("memory_snapshot")) {
+            throw new IllegalArgumentException("db.storage must be file, memory or memory_snapshot, not " + MODE);
+        }
+    }
+
+    private StorageMode() {
+    }
+
+    static boolean inMemory() {
+        return !MODE.equals("file");
+    }
+
+    // copied to disk by the snapshot thread
+    static boolean snapshotted() {
+        return MODE.equals("memory_snapshot");
+    }
+
+    // stock journals only help if the data they replay onto survives the process
+    static boolean journaled() {
+        return !MODE.equals("memory");
+    }
+
+    // memdb databases whose name starts with "/" are shared by every connection in the process
+    // and live until the last one closes; the file's path keeps them apart per db.path
+    static String url(File database) {
+        String path = database.getAbsolutePath().replace('\\', '/');
+        if (!path.startsWith("/")) path = "/" + path;
+        return inMemory() ? "jdbc:sqlite:file:" + path + "?vfs=memdb" : "jdbc:sqlite:" + database.getAbsolutePath();
+    }
+}
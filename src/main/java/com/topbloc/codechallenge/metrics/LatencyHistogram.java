@@ -0,0 +1,75 @@
+package com.topbloc.codechallenge.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear nanosecond histogram in the style of HdrHistogram: every power of two is
+ * split into 8 linear sub-buckets, so any recorded value lands in a bucket no wider
+ * than 12.5% of it. Recording is one index computation plus an atomic increment -
+ * no locks and no allocation - so it is safe to call on every request.
+ *
+ * Readers see a best-effort view: buckets are read one by one while writers keep
+ * recording, which is what a Prometheus scrape expects.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    // values below SUB get one bucket each; then SUB buckets per power of two up to 2^62
+    static final int BUCKETS = (62 - SUB_BITS + 2) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        sumNanos.add(nanos);
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        return (msb - SUB_BITS + 1) * SUB + (int) ((v >>> (msb - SUB_BITS)) & (SUB - 1));
+    }
+
+    // exclusive upper bound of bucket i, in nanoseconds
+    static long upperBound(int i) {
+        if (i < SUB) return i + 1;
+        int msb = i / SUB + SUB_BITS - 1;
+        long sub = i % SUB;
+        long bound = (SUB + sub + 1) << (msb - SUB_BITS);
+        return bound > 0 ? bound : Long.MAX_VALUE;   // the top bucket's bound overflows
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    // values recorded below limitNanos, counting only buckets that end at or before it
+    public long countBelow(long limitNanos) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= limitNanos; i++) n += counts.get(i);
+        return n;
+    }
+
+    // upper bound of the bucket holding the given percentile (0-100); 0 when empty
+    public long percentile(double p) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,202 @@
+package com.topbloc.codechallenge.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide request and database metrics, rendered in Prometheus text format.
+ *
+ * Route stats are registered once at startup. The request thread carries a small
+ * mutable {@link Current} in a ThreadLocal - start time and the route being served -
+ * so the before/after filters and the connection pool record without allocating or
+ * locking. Database timings are attributed to the route that issued them.
+ */
+public final class Metrics {
+
+    // bucket bounds exported for every histogram, in seconds
+    private static final double[] LE = {
+            0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+            0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] LE_NANOS = new long[LE.length];
+    static {
+        for (int i = 0; i < LE.length; i++) LE_NANOS[i] = Math.round(LE[i] * 1e9);
+    }
+
+    private static final int READ = 0, WRITE = 1;
+    private static final String[] POOLS = {"read", "write"};
+
+    /** Counters for one route template, e.g. GET /inventory/:id. */
+    public static final class RouteStats {
+        final String method, path;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder clientErrors = new LongAdder();
+        final LongAdder serverErrors = new LongAdder();
+        final LatencyHistogram[] connectionWait = {new LatencyHistogram(), new LatencyHistogram()};
+        final LatencyHistogram[] query = {new LatencyHistogram(), new LatencyHistogram()};
+        final LongAdder[] dbErrors = {new LongAdder(), new LongAdder()};
+        final LongAdder[] flights = new LongAdder[FlightOutcome.values().length];
+
+        RouteStats(String method, String path) {
+            this.method = method;
+            this.path = path;
+            for (int i = 0; i < flights.length; i++) flights[i] = new LongAdder();
+        }
+    }
+
+    /** What a coalescing GET did: ran the route, shared another request's run, or gave up waiting for it. */
+    public enum FlightOutcome {
+        EXECUTED, COALESCED, TIMEOUT
+    }
+
+    private static final class Current {
+        long start;
+        RouteStats route;
+    }
+
+    private static final List<RouteStats> ROUTES = new CopyOnWriteArrayList<>();
+    // requests no route matched, and database work done outside a request (startup, SSE producer)
+    private static final RouteStats UNMATCHED = new RouteStats("", "unmatched");
+    private static final RouteStats BACKGROUND = new RouteStats("", "background");
+    private static final ThreadLocal<Current> CURRENT = ThreadLocal.withInitial(Current::new);
+
+    private Metrics() {
+    }
+
+    public static RouteStats register(String method, String path) {
+        RouteStats r = new RouteStats(method, path);
+        ROUTES.add(r);
+        return r;
+    }
+
+    /* ─────────── request hooks ─────────── */
+
+    public static void requestStarted() {
+        Current c = CURRENT.get();
+        c.start = System.nanoTime();
+        c.route = UNMATCHED;
+    }
+
+    public static void routeMatched(RouteStats route) {
+        CURRENT.get().route = route;
+    }
+
+    public static void requestFinished(int status) {
+        Current c = CURRENT.get();
+        RouteStats r = c.route;
+        if (r == null) return;   // no requestStarted on this thread, or already recorded
+        r.latency.record(System.nanoTime() - c.start);
+        // Spark only writes its 404 after the after filters have run
+        if (r == UNMATCHED && status < 400) status = 404;
+        if (status >= 500) r.serverErrors.increment();
+        else if (status >= 400) r.clientErrors.increment();
+        c.route = null;
+    }
+
+    public static void singleFlight(RouteStats route, FlightOutcome outcome) {
+        route.flights[outcome.ordinal()].increment();
+    }
+
+    /* ─────────── database hooks (called from ConnectionPool) ─────────── */
+
+    private static RouteStats dbRoute() {
+        RouteStats r = CURRENT.get().route;
+        return r == null ? BACKGROUND : r;
+    }
+
+    public static void connectionWait(boolean write, long nanos) {
+        dbRoute().connectionWait[write ? WRITE : READ].record(nanos);
+    }
+
+    public static void query(boolean write, long nanos) {
+        dbRoute().query[write ? WRITE : READ].record(nanos);
+    }
+
+    public static void dbError(boolean write) {
+        dbRoute().dbErrors[write ? WRITE : READ].increment();
+    }
+
+    /* ─────────── exposition ─────────── */
+
+    public static String render() {
+        List<RouteStats> routes = new ArrayList<>(ROUTES);
+        routes.add(UNMATCHED);
+        List<RouteStats> dbRoutes = new ArrayList<>(routes);
+        dbRoutes.add(BACKGROUND);
+        StringBuilder sb = new StringBuilder(16 * 1024);
+
+        sb.append("# HELP http_server_requests_seconds Request latency by route, before filter to after filter.\n");
+        sb.append("# TYPE http_server_requests_seconds histogram\n");
+        for (RouteStats r : routes) histogram(sb, "http_server_requests_seconds", labels(r, null), r.latency);
+
+        sb.append("# HELP http_server_errors_total Responses with a 4xx or 5xx status by route.\n");
+        sb.append("# TYPE http_server_errors_total counter\n");
+        for (RouteStats r : routes) {
+            sb.append("http_server_errors_total{").append(labels(r, null)).append(",class=\"4xx\"} ").append(r.clientErrors.sum()).append('\n');
+            sb.append("http_server_errors_total{").append(labels(r, null)).append(",class=\"5xx\"} ").append(r.serverErrors.sum()).append('\n');
+        }
+
+        sb.append("# HELP http_server_singleflight_total Coalescing GETs by outcome: executed ran the route, coalesced shared a run in flight, timeout gave up waiting for it.\n");
+        sb.append("# TYPE http_server_singleflight_total counter\n");
+        for (RouteStats r : routes) {
+            long executed = r.flights[FlightOutcome.EXECUTED.ordinal()].sum();
+            if (executed == 0) continue;
+            for (FlightOutcome o : FlightOutcome.values()) {
+                sb.append("http_server_singleflight_total{").append(labels(r, null)).append(",outcome=\"")
+                        .append(o.name().toLowerCase(Locale.ROOT)).append("\"} ").append(r.flights[o.ordinal()].sum()).append('\n');
+            }
+        }
+
+        sb.append("# HELP db_connection_wait_seconds Time spent waiting for a pooled connection.\n");
+        sb.append("# TYPE db_connection_wait_seconds histogram\n");
+        for (RouteStats r : dbRoutes) {
+            for (int p = READ; p <= WRITE; p++) {
+                if (r.connectionWait[p].count() > 0) histogram(sb, "db_connection_wait_seconds", labels(r, POOLS[p]), r.connectionWait[p]);
+            }
+        }
+
+        sb.append("# HELP db_query_seconds Time a connection was held to run a DatabaseManager query.\n");
+        sb.append("# TYPE db_query_seconds histogram\n");
+        for (RouteStats r : dbRoutes) {
+            for (int p = READ; p <= WRITE; p++) {
+                if (r.query[p].count() > 0) histogram(sb, "db_query_seconds", labels(r, POOLS[p]), r.query[p]);
+            }
+        }
+
+        sb.append("# HELP db_errors_total SQLExceptions raised by DatabaseManager queries.\n");
+        sb.append("# TYPE db_errors_total counter\n");
+        for (RouteStats r : dbRoutes) {
+            for (int p = READ; p <= WRITE; p++) {
+                long n = r.dbErrors[p].sum();
+                if (n > 0) sb.append("db_errors_total{").append(labels(r, POOLS[p])).append("} ").append(n).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String labels(RouteStats r, String pool) {
+        StringBuilder sb = new StringBuilder();
+        if (!r.method.isEmpty()) sb.append("method=\"").append(r.method).append("\",");
+        sb.append("route=\"").append(r.path.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        if (pool != null) sb.append(",pool=\"").append(pool).append('"');
+        return sb.toString();
+    }
+
+    private static void histogram(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+        // +Inf and _count come from the same bucket walk so the series stays monotonic mid-scrape
+        long total = h.count();
+        for (int i = 0; i < LE.length; i++) {
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(seconds(LE[i])).append("\"} ")
+                    .append(Math.min(total, h.countBelow(LE_NANOS[i]))).append('\n');
+        }
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(total).append('\n');
+        sb.append(name).append("_sum{").append(labels).append("} ").append(seconds(h.sumNanos() / 1e9)).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(total).append('\n');
+    }
+
+    private static String seconds(double s) {
+        return String.format(Locale.ROOT, "%.9g", s).replaceAll("\\.?0+(e|$)", "$1");
+    }
+}
@@ -0,0 +1,405 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.db.HeldReader;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+    private static Future<Boolean> acquireAsync(ExecutorService pool, AdmissionControl.Limiter limiter) {
+        return pool.submit(limiter::acquire);
+    }
+
+    private static void awaitQueued(AdmissionControl.Limiter limiter) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (limiter.waiting() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+    }
+
+    @Test
+    void fullQueue_isRejectedAtOnce() throws Exception {
+        AdmissionControl.Limiter limiter = new AdmissionControl.Limiter(1, 1, 1, 1, 30_000);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(limiter.acquire());
+            Future<Boolean> waiter = acquireAsync(pool, limiter);
+            awaitQueued(limiter);
+            assertFalse(waiter.isDone());
+
+            // the one queue place is taken
+            long t0 = System.nanoTime();
+            assertFalse(limiter.acquire());
+            assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(1));
+
+            limiter.release(1_000_000);
+            assertTrue(waiter.get(10, TimeUnit.SECONDS));
+            assertEquals(2, limiter.admitted.sum());
+            assertEquals(1, limiter.queued.sum());
+            assertEquals(1, limiter.rejected.sum());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void queuedRequest_givesUpAfterItsTimeout() throws Exception {
+        AdmissionControl.Limiter limiter = new AdmissionControl.Limiter(1, 1, 1, 10, 50);
+        assertTrue(limiter.acquire());
+        long t0 = System.nanoTime();
+        assertFalse(limiter.acquire());
+        assertTrue(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(1, limiter.rejected.sum());
+    }
+
+    // bulk has free slots, but a queued read goes first
+    @Test
+    void bulk_standsAsideWhileAReadIsQueued() throws Exception {
+        AdmissionControl.Limiter read = new AdmissionControl.Limiter(1, 1, 1, 10, 30_000);
+        AdmissionControl.Limiter bulk = new AdmissionControl.Limiter(2, 1, 2, 10, 30_000);
+        bulk.yieldTo(read);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            assertTrue(read.acquire());
+            Future<Boolean> queuedRead = acquireAsync(pool, read);
+            awaitQueued(read);
+            Future<Boolean> export = acquireAsync(pool, bulk);
+            Thread.sleep(200);
+            assertFalse(export.isDone());
+            assertEquals(0, bulk.inFlight());
+
+            read.release(1_000_000);
+            assertTrue(queuedRead.get(10, TimeUnit.SECONDS));
+            assertTrue(export.get(10, TimeUnit.SECONDS));
+            assertEquals(1, bulk.queued.sum());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void limit_growsWhileLatencyHolds_andShrinksWhenItRises() throws Exception {
+        AdmissionControl.Limiter limiter = new AdmissionControl.Limiter(20, 2, 200, 100, 0);
+        // keep most of the slots busy so the limiter sees them in use
+        for (int i = 0; i < 12; i++) assertTrue(limiter.acquire());
+        for (int i = 0; i < 200; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(2));
+        }
+        int grown = limiter.limit();
+        assertTrue(grown > 20, "limit " + grown);
+
+        // requests now take ten times as long
+        for (int i = 0; i < 50; i++) {
+            if (limiter.acquire()) limiter.release(TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        int shrunk = limiter.limit();
+        assertTrue(shrunk < grown / 2, grown + " -> " + shrunk);
+        assertTrue(shrunk >= 2);
+    }
+
+    @Test
+    void idleSlots_dontGrowTheLimit() throws Exception {
+        AdmissionControl.Limiter limiter = new AdmissionControl.Limiter(20, 2, 200, 100, 0);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(2));
+        }
+        assertEquals(20, limiter.limit());
+    }
+
+    @Test
+    void busyDatabase_halvesTheLimit() throws Exception {
+        AdmissionControl.Limiter limiter = new AdmissionControl.Limiter(20, 2, 200, 100, 0);
+        assertTrue(limiter.acquire());
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(2), true);
+        assertTrue(limiter.limit() <= 10, "limit " + limiter.limit());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(2), true);
+        }
+        assertEquals(2, limiter.limit());
+    }
+
+    /* a database too busy to answer */
+
+    // the only read connection and the write lock are both held: reads and writes get 503 with Retry-After, not a 200 error body
+    @Test
+    void exhaustedPool_isAnswered503(@TempDir Path dir) throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process server = new ProcessBuilder(java, "-Xmx256m",
+                "-Dserver.port=" + port,
+                "-Ddb.path=" + dir.resolve("busy.db").toAbsolutePath(),
+                "-Ddb.readers=1", "-Ddb.acquireTimeoutMs=200", "-Ddb.busyTimeoutMs=200",
+                "-cp", System.getProperty("java.class.path"),
+                BusyServer.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("busy.log").toFile())
+                .start();
+        try {
+            HttpURLConnection read = until503(port, "GET", "/distributors");
+            assertEquals("1", read.getHeaderField("Retry-After"));
+            assertNull(read.getHeaderField("ETag"));
+            assertTrue(new String(read.getErrorStream().readAllBytes()).contains("Timed out waiting for a read connection"));
+
+            HttpURLConnection write = until503(port, "POST", "/distributors");
+            assertEquals("1", write.getHeaderField("Retry-After"));
+        } finally {
+            server.destroy();
+            server.waitFor(30, TimeUnit.SECONDS);
+        }
+    }
+
+    // one read slot, no queue: a GET turned away while the slot waits on the held connection must not
+    // carry the data version's validators, or it would be revalidated (and replayed by nginx) as the data
+    @Test
+    void shedGet_hasNoValidators(@TempDir Path dir) throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process server = new ProcessBuilder(java, "-Xmx256m",
+                "-Dserver.port=" + port,
+                "-Ddb.path=" + dir.resolve("shed.db").toAbsolutePath(),
+                "-Ddb.readers=1", "-Ddb.acquireTimeoutMs=3000", "-Ddb.busyTimeoutMs=200",
+                "-Dadmission.read.initialLimit=1", "-Dadmission.read.minLimit=1", "-Dadmission.read.maxLimit=1",
+                "-Dadmission.read.maxQueue=0",
+                "-cp", System.getProperty("java.class.path"),
+                BusyServer.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("shed.log").toFile())
+                .start();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            long deadline = System.currentTimeMillis() + 60_000;
+            while (true) {
+                // holds the read slot until the pool gives up on the connection the child holds
+                Future<Integer> blocker = pool.submit(() -> status(port, "/distributors"));
+                Thread.sleep(300);
+                HttpURLConnection shed = (HttpURLConnection) new URL("http://localhost:" + port + "/items").openConnection();
+                shed.setConnectTimeout(TIMEOUT_MS);
+                shed.setReadTimeout(TIMEOUT_MS);
+                int code;
+                String body = "";
+                try {
+                    code = shed.getResponseCode();
+                    try (InputStream in = code < 400 ? shed.getInputStream() : shed.getErrorStream()) {
+                        if (in != null) body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    }
+                } catch (IOException e) {
+                    code = -1;
+                }
+                if (code == 503 && body.contains("Server is busy")) {
+                    assertNull(shed.getHeaderField("ETag"));
+                    assertNull(shed.getHeaderField("Last-Modified"));
+                    assertEquals("no-store", shed.getHeaderField("Cache-Control"));
+                    assertEquals("1", shed.getHeaderField("Retry-After"));
+                    break;
+                }
+                blocker.get();
+                if (System.currentTimeMillis() > deadline) fail("/items was never shed, last status " + code);
+            }
+        } finally {
+            pool.shutdownNow();
+            server.destroy();
+            server.waitFor(30, TimeUnit.SECONDS);
+        }
+    }
+
+    // the child's holds go in once the server is up, so poll until they bite
+    private static HttpURLConnection until503(int port, String method, String path) throws Exception {
+        long deadline = System.currentTimeMillis() + 60_000;
+        int last = -1;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                HttpURLConnection c = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+                c.setRequestMethod(method);
+                c.setConnectTimeout(TIMEOUT_MS);
+                c.setReadTimeout(TIMEOUT_MS);
+                if (method.equals("POST")) {
+                    c.setDoOutput(true);
+                    c.getOutputStream().write("{\"name\":\"Busy Sweets\"}".getBytes(StandardCharsets.UTF_8));
+                }
+                last = c.getResponseCode();
+                if (last == 503) return c;
+                try (InputStream in = last < 400 ? c.getInputStream() : c.getErrorStream()) {
+                    if (in != null) in.readAllBytes();
+                }
+            } catch (IOException e) {
+                // not listening yet
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError(method + " " + path + " never got a 503, last status " + last);
+    }
+
+    // child JVM entry point: the real server, then a thread holding the one read connection
+    // and a second connection holding SQLite's write lock
+    public static final class BusyServer {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            Main.main(args);
+            HeldReader.hold();
+            Connection c = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("db.path"));
+            c.createStatement().execute("BEGIN IMMEDIATE");
+        }
+    }
+
+    /* stress test: mvn test -Dtest=AdmissionControlTest -Dbench=true */
+
+    static final int EXPORTERS = 16, READERS = 4, CATALOG_ROWS = 50_000;
+    static final long MEASURE_MS = 10_000;
+    static final int TIMEOUT_MS = 10_000;
+
+    // cheap reads (GET /distributors, a query on a pooled read connection) while exporters hammer /export?table=inventory, with and without admission control
+    @Test
+    @EnabledIfSystemProperty(named = "bench", matches = "true")
+    void stress_cheapReadsWhileExportsAreHammered(@TempDir Path dir) throws Exception {
+        StringBuilder report = new StringBuilder(String.format("%n%-10s %12s %12s %10s %12s %12s%n",
+                "admission", "read p50 ms", "read p99 ms", "read fails", "exports ok", "exports 503"));
+        int port = 4700;
+        for (String enabled : Arrays.asList("false", "true")) {
+            port++;
+            Process server = startServer(enabled, port, dir.resolve("admission-" + enabled + ".db"));
+            try {
+                int p = port;
+                AtomicInteger exportsOk = new AtomicInteger(), exportsShed = new AtomicInteger();
+                ConcurrentLinkedQueue<Long> samples = new ConcurrentLinkedQueue<>();
+                ExecutorService clients = Executors.newFixedThreadPool(EXPORTERS + READERS);
+                long end = System.currentTimeMillis() + MEASURE_MS;
+                for (int c = 0; c < EXPORTERS; c++) {
+                    clients.submit(() -> {
+                        while (System.currentTimeMillis() < end) {
+                            int status = status(p, "/export?table=inventory&gzip=false");
+                            if (status == 200) exportsOk.incrementAndGet();
+                            else if (status == 503) {
+                                exportsShed.incrementAndGet();
+                                // a well-behaved client waits out Retry-After
+                                sleep(TimeUnit.SECONDS.toMillis(AdmissionControl.RouteClass.BULK.retryAfterSec));
+                            }
+                        }
+                    });
+                }
+                Thread.sleep(1_000);
+                for (int c = 0; c < READERS; c++) {
+                    clients.submit(() -> {
+                        while (System.currentTimeMillis() < end) samples.add(get(p, "/distributors"));
+                    });
+                }
+                clients.shutdown();
+                assertTrue(clients.awaitTermination(MEASURE_MS + 4L * TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                long[] reads = samples.stream().mapToLong(Long::longValue).toArray();
+                report.append(String.format("%-10s %12.2f %12.2f %10d %12d %12d%n", enabled,
+                        percentile(reads, 0.50) / 1e6, percentile(reads, 0.99) / 1e6, failures(reads),
+                        exportsOk.get(), exportsShed.get()));
+            } finally {
+                server.destroy();
+                server.waitFor(30, TimeUnit.SECONDS);
+            }
+        }
+        report.append(String.format("%d exporters (%d-row inventory, no think time) and %d readers for %d ms%n",
+                EXPORTERS, CATALOG_ROWS + 17, READERS, MEASURE_MS));
+        System.out.println(report);
+    }
+
+    private static Process startServer(String admission, int port, Path db) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xmx512m",
+                "-Dadmission.enabled=" + admission,
+                "-Dserver.port=" + port,
+                "-Ddb.path=" + db.toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                Server.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(db.resolveSibling("admission-" + admission + ".log").toFile())
+                .start();
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (get(port, "/version") > 0) return p;
+            Thread.sleep(200);
+        }
+        p.destroy();
+        throw new AssertionError("server did not start");
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the response status after reading the whole body, -1 if the request failed
+    private static int status(int port, String path) {
+        try {
+            HttpURLConnection c = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+            c.setConnectTimeout(TIMEOUT_MS);
+            c.setReadTimeout(TIMEOUT_MS);
+            int status = c.getResponseCode();
+            try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+                if (in != null) in.readAllBytes();
+            }
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // nanoseconds for a 200, -1 for anything else
+    private static long get(int port, String path) {
+        long t0 = System.nanoTime();
+        return status(port, path) == 200 ? System.nanoTime() - t0 : -1;
+    }
+
+    private static int failures(long[] samples) {
+        int n = 0;
+        for (long s : samples) if (s < 0) n++;
+        return n;
+    }
+
+    // failures rank above every success
+    private static double percentile(long[] samples, double p) {
+        if (samples.length == 0) return Double.NaN;
+        long[] sorted = new long[samples.length];
+        for (int i = 0; i < samples.length; i++) sorted[i] = samples[i] < 0 ? TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS) : samples[i];
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    // child JVM entry point: seed data plus a large inventory in db.path, then the real server
+    public static final class Server {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("db.path"));
+                 Statement st = c.createStatement()) {
+                st.execute("WITH RECURSIVE n(x) AS (SELECT 100 UNION ALL SELECT x + 1 FROM n WHERE x < " + (99 + CATALOG_ROWS) + ")"
+                        + " INSERT INTO items(id, name) SELECT x, 'Stress candy ' || x FROM n");
+                st.execute("INSERT INTO inventory(item, stock, capacity) SELECT id, id % 50, 100 FROM items WHERE id >= 100");
+            }
+            Main.main(args);
+        }
+    }
+}
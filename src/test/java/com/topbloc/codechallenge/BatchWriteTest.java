@@ -0,0 +1,117 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchWriteTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    private static String status(JSONObject out, int index) {
+        return (String) ((JSONObject) ((JSONArray) out.get("results")).get(index)).get("status");
+    }
+
+    private static int stockOf(int inventoryId) {
+        return ((Number) ((JSONObject) DatabaseManager.getInventoryById(inventoryId).get(0)).get("amount_in_stock")).intValue();
+    }
+
+    @Test
+    void updateBatch_atomicRollsBackOnError() {
+        // row 1 is malformed, so nothing is applied
+        JSONObject out = DatabaseManager.updateInventoryBatch(
+                "[{\"id\":3,\"stock\":1,\"capacity\":25},{\"id\":4,\"stock\":\"x\",\"capacity\":50}]", true);
+        assertEquals("rolled_back", out.get("status"));
+        assertEquals("rolled_back", status(out, 0));
+        assertEquals("error", status(out, 1));
+        assertEquals(15, stockOf(3));
+    }
+
+    // a fraction where an integer belongs is the row's error, not truncated
+    @Test
+    void fractionalIntegers_areRowErrors() {
+        JSONObject out = DatabaseManager.updateInventoryBatch(
+                "[{\"id\":3,\"stock\":2.7,\"capacity\":25},{\"id\":4.0,\"stock\":1,\"capacity\":50},{\"id\":5,\"stock\":3,\"capacity\":9e1}]", false);
+        for (int k = 0; k < 3; k++) {
+            JSONObject row = (JSONObject) ((JSONArray) out.get("results")).get(k);
+            assertEquals("error", row.get("status"));
+            assertEquals("expected integer id, integer stock, integer capacity", row.get("error"));
+        }
+        assertEquals(15, stockOf(3));
+
+        // cost is the one field that takes a fraction; item still may not
+        JSONObject prices = DatabaseManager.addPriceBatch(1, "[{\"item\":5,\"cost\":0.35},{\"item\":6.5,\"cost\":1}]", false);
+        assertEquals("ok", status(prices, 0));
+        assertEquals("error", status(prices, 1));
+        assertEquals("expected integer item, numeric cost", ((JSONObject) ((JSONArray) prices.get("results")).get(1)).get("error"));
+    }
+
+    @Test
+    void updateBatch_bestEffortKeepsGoodRows() {
+        JSONObject out = DatabaseManager.updateInventoryBatch(
+                "[{\"id\":3,\"stock\":1,\"capacity\":25},{\"id\":999,\"stock\":1,\"capacity\":1},{\"id\":4,\"stock\":2,\"capacity\":50}]", false);
+        assertEquals("partial", out.get("status"));
+        assertEquals("ok", status(out, 0));
+        assertEquals("not_found", status(out, 1));
+        assertEquals(1, stockOf(3));
+        assertEquals(2, stockOf(4));
+    }
+
+    @Test
+    void insertBatch_constraintErrorsLandOnTheirRow() {
+        DatabaseManager.addItem("{\"name\":\"Fizz Wiz\"}");   // id 18, no inventory yet
+        // item 2 already has an inventory row (inventory.item is UNIQUE)
+        String body = "[{\"item\":18,\"stock\":5,\"capacity\":10},{\"item\":2,\"stock\":1,\"capacity\":1}]";
+
+        JSONObject atomic = DatabaseManager.addInventoryBatch(body, true);
+        assertEquals("rolled_back", atomic.get("status"));
+        assertEquals("error", status(atomic, 1));
+        assertEquals(17, DatabaseManager.getAllInventory().size());
+
+        JSONObject best = DatabaseManager.addInventoryBatch(body, false);
+        assertEquals("partial", best.get("status"));
+        assertEquals(1, ((Number) best.get("succeeded")).intValue());
+        long id = (Long) ((JSONObject) ((JSONArray) best.get("results")).get(0)).get("id");
+        assertEquals(5, stockOf((int) id));
+    }
+
+    @Test
+    void catalogBatch_feedsCheapestOffer() {
+        JSONObject out = DatabaseManager.addPriceBatch(1, "[{\"item\":10,\"cost\":0.01},{\"item\":17,\"cost\":2}]", true);
+        assertEquals("ok", out.get("status"));
+        assertEquals("Candy Corp", DatabaseManager.getCheapestOffer(10, 1).get("distributor_name"));
+        assertEquals(2, DatabaseManager.getOfferingsByItem(17).size());
+    }
+
+    @Test
+    void tenThousandRows_oneTransaction() {
+        StringBuilder items = new StringBuilder("[");
+        for (int k = 0; k < 10_000; k++) {
+            if (k > 0) items.append(',');
+            items.append("{\"item\":").append(10_000 + k).append(",\"stock\":").append(k % 50).append(",\"capacity\":50}");
+        }
+        items.append(']');
+        long start = System.nanoTime();
+        JSONObject added = DatabaseManager.addInventoryBatch(items.toString(), true);
+        long insertMs = (System.nanoTime() - start) / 1_000_000;
+        assertEquals("ok", added.get("status"));
+        assertEquals(10_000, ((Number) added.get("succeeded")).intValue());
+
+        StringBuilder prices = new StringBuilder("[");
+        for (int k = 0; k < 10_000; k++) {
+            if (k > 0) prices.append(',');
+            prices.append("{\"item\":").append(10_000 + k).append(",\"cost\":").append(k % 97 / 10.0).append('}');
+        }
+        prices.append(']');
+        start = System.nanoTime();
+        assertEquals("ok", DatabaseManager.addPriceBatch(2, prices.toString(), false).get("status"));
+        long priceMs = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println("batch of 10k: inventory insert " + insertMs + " ms, catalog insert " + priceMs + " ms");
+        assertTrue(insertMs < 5_000 && priceMs < 5_000, insertMs + " / " + priceMs);
+    }
+}
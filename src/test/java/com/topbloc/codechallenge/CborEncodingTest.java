@@ -0,0 +1,163 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.CborDecoder;
+import com.topbloc.codechallenge.db.CborResultWriter;
+import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.db.JsonResultWriter;
+import com.topbloc.codechallenge.db.ResultFormat;
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CborEncodingTest {
+
+    @BeforeAll  static void open()  { DatabaseManager.connect(); }
+    @BeforeEach void reset()        { DatabaseManager.resetDatabase(); }
+
+    interface Writer {
+        void writeTo(OutputStream out, ResultFormat format) throws IOException;
+    }
+
+    private static byte[] bytes(Writer w, ResultFormat format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w.writeTo(out, format);
+        return out.toByteArray();
+    }
+
+    // the CBOR rows decode to exactly the objects json-simple parses from the JSON body
+    private static int assertSameRows(Writer w) throws Exception {
+        byte[] json = bytes(w, ResultFormat.JSON);
+        byte[] cbor = bytes(w, ResultFormat.CBOR);
+        JSONArray parsed = (JSONArray) new JSONParser().parse(new String(json, StandardCharsets.UTF_8));
+        List<Map<String, Object>> decoded = CborDecoder.rows(cbor);
+        assertEquals(parsed, decoded);
+        return parsed.size();
+    }
+
+    @Test
+    void inventory_decodesToTheJsonRows() throws Exception {
+        DatabaseManager.addItem("{\"name\":\"Crème brûlée bites\"}");
+        DatabaseManager.addInventory("{\"item\":18,\"stock\":70000,\"capacity\":5000000000}");
+        DatabaseManager.updateInventory(2, "{\"stock\":0,\"capacity\":300}");
+        assertTrue(assertSameRows(DatabaseManager::writeAllInventory) > 10);
+
+        // the columns go once, so the body shrinks with the row count
+        byte[] json = bytes(DatabaseManager::writeAllInventory, ResultFormat.JSON);
+        byte[] cbor = bytes(DatabaseManager::writeAllInventory, ResultFormat.CBOR);
+        assertTrue(cbor.length * 2 < json.length, cbor.length + " vs " + json.length);
+    }
+
+    @Test
+    void offerings_decodeToTheJsonRows() throws Exception {
+        int rows = 0;
+        for (int d = 1; d <= 4; d++) {
+            int id = d;
+            rows += assertSameRows((out, f) -> DatabaseManager.writeOfferingsByDistributor(id, out, f));
+        }
+        for (int item = 1; item <= 17; item++) {
+            int id = item;
+            rows += assertSameRows((out, f) -> DatabaseManager.writeOfferingsByItem(id, out, f));
+        }
+        assertTrue(rows > 0);
+        // no rows still carries the header
+        assertEquals(0, assertSameRows((out, f) -> DatabaseManager.writeOfferingsByItem(999, out, f)));
+        assertEquals(0x9f, bytes((out, f) -> DatabaseManager.writeOfferingsByItem(999, out, f), ResultFormat.CBOR)[0] & 0xff);
+    }
+
+    @Test
+    void values_keepTheirTypeAndPrecision() throws Exception {
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement st = c.createStatement()) {
+            st.execute("CREATE TABLE t(i INTEGER, r REAL, s TEXT)");
+            st.execute("INSERT INTO t VALUES (-1, 0.1, 'a/b \"q\" ☃ 🍬'), (NULL, NULL, NULL),"
+                    + " (9223372036854775807, 1.5, ''), (-9223372036854775808, -2.0E300, 'x'), (24, 0.0, 'y'), (-25, 1e-7, 'z')");
+            String typed = "SELECT * FROM t";
+            String untyped = "SELECT i + 0 AS i, r * 1 AS r, s || '' AS s, x'00ff' AS b FROM t";
+            for (String sql : new String[]{typed, untyped}) {
+                ByteArrayOutputStream json = new ByteArrayOutputStream(), cbor = new ByteArrayOutputStream();
+                try (ResultSet rs = st.executeQuery(sql)) {
+                    JsonResultWriter.write(rs, sql, json);
+                }
+                try (ResultSet rs = st.executeQuery(sql)) {
+                    CborResultWriter.write(rs, sql, cbor);
+                }
+                List<Map<String, Object>> rows = CborDecoder.rows(cbor.toByteArray());
+                assertEquals(6, rows.size());
+                if (sql.equals(typed)) {
+                    assertEquals(new JSONParser().parse(json.toString(StandardCharsets.UTF_8)), rows);
+                }
+                assertEquals(Long.MAX_VALUE, rows.get(2).get("i"));
+                assertEquals(Long.MIN_VALUE, rows.get(3).get("i"));
+                assertEquals(-25L, rows.get(5).get("i"));
+                assertEquals(0.1, rows.get(0).get("r"));
+                assertEquals(1e-7, rows.get(5).get("r"));
+                assertEquals("a/b \"q\" ☃ 🍬", rows.get(0).get("s"));
+                assertNull(rows.get(1).get("s"));
+            }
+        }
+    }
+
+    // the read model's CBOR is byte for byte what the SQL path writes
+    @Test
+    void sqlPath_writesTheSameBytes(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Dreadmodel.enabled=false",
+                "-Ddb.path=" + dir.resolve("sql.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                SqlInventory.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(2, TimeUnit.MINUTES));
+        assertEquals(0, p.exitValue(), output);
+
+        String[] lines = output.trim().split("\n");
+        byte[] sql = Base64.getDecoder().decode(lines[lines.length - 1].trim());
+        assertArrayEquals(bytes(DatabaseManager::writeAllInventory, ResultFormat.CBOR), sql);
+    }
+
+    public static final class SqlInventory {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DatabaseManager.writeAllInventory(out, ResultFormat.CBOR);
+            System.out.println(Base64.getEncoder().encodeToString(out.toByteArray()));
+        }
+    }
+
+    @Test
+    void accept_picksCborOnlyWhenAskedFor() {
+        assertEquals(ResultFormat.JSON, ResultFormat.forAccept(null));
+        assertEquals(ResultFormat.JSON, ResultFormat.forAccept("*/*"));
+        assertEquals(ResultFormat.JSON, ResultFormat.forAccept("text/html,application/xhtml+xml,*/*;q=0.8"));
+        assertEquals(ResultFormat.CBOR, ResultFormat.forAccept("application/cbor"));
+        assertEquals(ResultFormat.CBOR, ResultFormat.forAccept("Application/CBOR, */*;q=0.1"));
+        assertEquals(ResultFormat.CBOR, ResultFormat.forAccept("application/json;q=0.5, application/cbor"));
+        assertEquals(ResultFormat.CBOR, ResultFormat.forAccept("application/json, application/cbor"));
+        assertEquals(ResultFormat.JSON, ResultFormat.forAccept("application/json, application/cbor;q=0.5"));
+        assertEquals(ResultFormat.JSON, ResultFormat.forAccept("application/cbor;q=0"));
+        assertEquals(ResultFormat.JSON, ResultFormat.forAccept("application/cbor;q=oops"));
+    }
+}
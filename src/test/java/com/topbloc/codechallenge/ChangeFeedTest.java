@@ -0,0 +1,251 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeFeedTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    private static long latest() {
+        return (Long) DatabaseManager.changesSince(null, 1).get("version");
+    }
+
+    private static JSONArray changes(JSONObject out) {
+        assertNull(out.get("error"), () -> out.toJSONString());
+        return (JSONArray) out.get("changes");
+    }
+
+    private static JSONObject change(JSONArray changes, int index) {
+        return (JSONObject) changes.get(index);
+    }
+
+    @Test
+    void noChanges_emptyDelta() {
+        long v = latest();
+        JSONObject out = DatabaseManager.changesSince(v, 100);
+        assertTrue(changes(out).isEmpty());
+        assertEquals(v, out.get("version"));
+        assertEquals(false, out.get("more"));
+    }
+
+    @Test
+    void everyTableIsLogged_oncePerRow_withItsCurrentState() {
+        long v = latest();
+        DatabaseManager.updateInventory(3, "{\"stock\":1,\"capacity\":25}");
+        DatabaseManager.updateInventory(3, "{\"stock\":2,\"capacity\":25}");
+        DatabaseManager.addDistributor("{\"name\":\"Sugar Rush\"}");
+        DatabaseManager.updatePrice(1, 1, "{\"cost\":0.5}");
+        DatabaseManager.deleteInventory(5);
+
+        JSONObject out = DatabaseManager.changesSince(v, 100);
+        JSONArray changes = changes(out);
+        assertEquals(4, changes.size(), changes::toJSONString);
+        // row 3 appears once, at its last change, with the stock it has now
+        JSONObject inv = change(changes, 0);
+        assertEquals("inventory", inv.get("table"));
+        assertEquals(3L, inv.get("id"));
+        assertEquals("upsert", inv.get("op"));
+        assertEquals(2, ((Number) ((JSONObject) inv.get("row")).get("amount_in_stock")).intValue());
+        assertEquals("Smarties", ((JSONObject) inv.get("row")).get("item_name"));
+        assertEquals("distributors", change(changes, 1).get("table"));
+        assertEquals("distributor_prices", change(changes, 2).get("table"));
+        assertEquals("delete", change(changes, 3).get("op"));
+        assertNull(change(changes, 3).get("row"));
+        assertEquals(latest(), out.get("version"));
+
+        // and nothing after it
+        assertTrue(changes(DatabaseManager.changesSince((Long) out.get("version"), 100)).isEmpty());
+    }
+
+    @Test
+    void deletingAnItem_removesItsInventoryRow() {
+        long v = latest();
+        assertEquals("ok", DatabaseManager.deleteItem(3).get("status"));
+        JSONArray changes = changes(DatabaseManager.changesSince(v, 100));
+        boolean inventoryGone = false;
+        for (Object o : changes) {
+            JSONObject c = (JSONObject) o;
+            if ("inventory".equals(c.get("table")) && Long.valueOf(3).equals(c.get("id"))) inventoryGone = "delete".equals(c.get("op"));
+        }
+        assertTrue(inventoryGone, changes::toJSONString);
+    }
+
+    @Test
+    void pages_walkTheLogInOrder() {
+        long v = latest();
+        for (int stock = 1; stock <= 5; stock++) DatabaseManager.updateInventory(stock, "{\"stock\":0,\"capacity\":99}");
+        JSONObject first = DatabaseManager.changesSince(v, 3);
+        assertEquals(3, changes(first).size());
+        assertEquals(true, first.get("more"));
+        JSONObject rest = DatabaseManager.changesSince((Long) first.get("version"), 3);
+        assertEquals(2, changes(rest).size());
+        assertEquals(false, rest.get("more"));
+        assertEquals(5L, change(changes(rest), 1).get("id"));
+    }
+
+    @Test
+    void history_beyondTheRing_comesFromTheTable() {
+        long v = latest();
+        // one logged update per element, more than the in-memory ring holds
+        StringBuilder body = new StringBuilder("[");
+        for (int k = 0; k < 4_500; k++) {
+            if (k > 0) body.append(',');
+            body.append("{\"id\":").append(k % 17 + 1).append(",\"stock\":").append(k).append(",\"capacity\":99}");
+        }
+        assertEquals("ok", DatabaseManager.updateInventoryBatch(body.append(']').toString(), true).get("status"));
+
+        JSONObject out = DatabaseManager.changesSince(v, DatabaseManager.CHANGES_LIMIT_MAX);
+        assertEquals(17, changes(out).size());
+        assertEquals(false, out.get("more"));
+        assertEquals(v + 4_500, out.get("version"));
+    }
+
+    // a write logging several rings' worth is tailed by skipping to its newest entries
+    @Test
+    void bulkWrite_leavesOnlyItsNewestEntriesInTheRing() {
+        long v = latest();
+        StringBuilder body = new StringBuilder("[");
+        for (int k = 0; k < 10_000; k++) {
+            if (k > 0) body.append(',');
+            body.append("{\"id\":").append(k % 17 + 1).append(",\"stock\":").append(k).append(",\"capacity\":99}");
+        }
+        assertEquals("ok", DatabaseManager.updateInventoryBatch(body.append(']').toString(), true).get("status"));
+
+        JSONObject stats = DatabaseManager.changeLogStats();
+        assertEquals(v + 10_000, stats.get("version"));
+        assertEquals(v + 10_000 - 4_096 + 1, stats.get("oldest_in_memory"));
+        assertEquals(17, changes(DatabaseManager.changesSince(v, DatabaseManager.CHANGES_LIMIT_MAX)).size());
+        assertEquals(17, changes(DatabaseManager.changesSince(v + 9_000, DatabaseManager.CHANGES_LIMIT_MAX)).size());
+    }
+
+    // an import past the write-through size logs one entry per block, which can't be listed row by row
+    @Test
+    void bulkImport_isOneEntry_andAsksForAResync() {
+        long v = latest();
+        StringBuilder csv = new StringBuilder("name\n");
+        for (int k = 0; k < 10_001; k++) csv.append("Bulk candy ").append(k).append('\n');
+        JSONObject out = DatabaseManager.importCsv("items", new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)));
+        assertEquals(10_001L, out.get("imported"));
+
+        assertEquals(v + 1, latest());
+        assertEquals("resync", DatabaseManager.changesSince(v, 100).get("status"));
+        assertTrue(changes(DatabaseManager.changesSince(latest(), 100)).isEmpty());
+
+        // the per-row trigger is back afterwards
+        long after = latest();
+        DatabaseManager.addItem("{\"name\":\"After the import\"}");
+        JSONArray changes = changes(DatabaseManager.changesSince(after, 100));
+        assertEquals(1, changes.size(), changes::toJSONString);
+        assertEquals("items", change(changes, 0).get("table"));
+        assertEquals("After the import", ((JSONObject) change(changes, 0).get("row")).get("name"));
+    }
+
+    @Test
+    void reset_andUnknownVersions_askForAResync() {
+        long before = latest();
+        DatabaseManager.updateInventory(3, "{\"stock\":1,\"capacity\":25}");
+        DatabaseManager.resetDatabase();
+        assertEquals("resync", DatabaseManager.changesSince(before, 100).get("status"));
+        assertEquals("resync", DatabaseManager.changesSince(latest() + 1, 100).get("status"));
+        assertTrue(latest() > before);
+        assertNotNull(DatabaseManager.changesSince(latest(), 0).get("error"));
+    }
+
+    /* restarts */
+
+    // a new process starts with an empty ring; what an earlier one logged still comes from the table
+    @Test
+    void changesBeforeARestart_comeFromTheTable(@TempDir Path dir) throws Exception {
+        String db = dir.resolve("restart.db").toAbsolutePath().toString();
+        String first = runRestart(db, "write");
+        assertTrue(first.contains("since="), first);
+        String since = first.substring(first.indexOf("since=") + 6).trim().split("\\s")[0];
+        String second = runRestart(db, since);
+        assertTrue(second.contains("changes=1 table=distributors"), second);
+    }
+
+    private static String runRestart(String db, String arg) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Ddb.path=" + db,
+                "-cp", System.getProperty("java.class.path"),
+                Restart.class.getName(), arg)
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(1, TimeUnit.MINUTES));
+        assertEquals(0, p.exitValue(), output);
+        return output;
+    }
+
+    public static final class Restart {
+        public static void main(String[] args) {
+            if (args[0].equals("write")) {
+                DatabaseManager.resetDatabase();
+                long since = latest();
+                DatabaseManager.addDistributor("{\"name\":\"Restart Candy Co\"}");
+                System.out.println("since=" + since);
+                return;
+            }
+            DatabaseManager.connect();
+            JSONArray changes = changes(DatabaseManager.changesSince(Long.parseLong(args[0]), 100));
+            System.out.println("changes=" + changes.size()
+                    + (changes.isEmpty() ? "" : " table=" + change(changes, 0).get("table")));
+        }
+    }
+
+    /* compaction */
+
+    // a child JVM with a tiny retention, so compaction runs after a few hundred writes
+    @Test
+    void compaction_dropsOldHistory(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java,
+                "-Ddb.path=" + dir.resolve("compact.db").toAbsolutePath(),
+                "-Dchanges.retain=100",
+                "-Dchanges.ringSize=16",
+                "-cp", System.getProperty("java.class.path"),
+                Compact.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(1, TimeUnit.MINUTES));
+        assertTrue(output.contains("oldest=resync"), output);
+        assertTrue(output.contains("recent=3"), output);
+        // what is left in the table: never more than retain + retain / 10
+        assertTrue(output.contains("retained=ok"), output);
+    }
+
+    public static final class Compact {
+        public static void main(String[] args) {
+            DatabaseManager.resetDatabase();
+            long start = latest();
+            for (int k = 0; k < 300; k++) DatabaseManager.updateInventory(k % 3 + 1, "{\"stock\":" + k + ",\"capacity\":99}");
+            System.out.println("oldest=" + DatabaseManager.changesSince(start, 100).get("status"));
+            // 50 back is past the 16-entry ring but inside what the table keeps
+            System.out.println("recent=" + changes(DatabaseManager.changesSince(latest() - 50, 100)).size());
+            JSONObject stats = DatabaseManager.changeLogStats();
+            long retained = (Long) stats.get("version") - (Long) stats.get("floor");
+            System.out.println("retained=" + (retained <= 110 ? "ok" : retained));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.db.ResultFormat;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConditionalGetTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    private static final int[] ITEMS = DatabaseManager.tableIds("items");
+    private static final int[] INVENTORY = DatabaseManager.tableIds("inventory");
+    private static final int[] PRICES = DatabaseManager.tableIds("distributor_prices");
+
+    /* data versions */
+
+    @Test
+    void writesBumpOnlyTheirTable() {
+        long items = DatabaseManager.dataVersion(ITEMS), inventory = DatabaseManager.dataVersion(INVENTORY);
+        assertEquals("ok", DatabaseManager.updateInventory(3, "{\"stock\":1,\"capacity\":2}").get("status"));
+        assertEquals(inventory + 1, DatabaseManager.dataVersion(INVENTORY));
+        assertEquals(items, DatabaseManager.dataVersion(ITEMS));
+    }
+
+    @Test
+    void writesThatChangeNothing_leaveTheVersionAlone() {
+        long inventory = DatabaseManager.dataVersion(INVENTORY);
+        assertEquals("not_found", DatabaseManager.updateInventory(999, "{\"stock\":1,\"capacity\":2}").get("status"));
+        assertEquals("not_found", DatabaseManager.deleteInventory(999).get("status"));
+        assertEquals(inventory, DatabaseManager.dataVersion(INVENTORY));
+    }
+
+    @Test
+    void deleteItem_alsoBumpsPrices() {
+        long prices = DatabaseManager.dataVersion(PRICES);
+        assertEquals("ok", DatabaseManager.deleteItem(10).get("status"));
+        assertTrue(DatabaseManager.dataVersion(PRICES) > prices);
+    }
+
+    @Test
+    void reset_bumpsEveryTable() {
+        int[] all = DatabaseManager.tableIds("items", "inventory", "distributors", "distributor_prices");
+        long before = DatabaseManager.dataVersion(all);
+        DatabaseManager.resetDatabase();
+        assertEquals(before + 4, DatabaseManager.dataVersion(all));
+    }
+
+    /* failed reads */
+
+    // a read that fails must not come back as an empty 200, which would be given an ETag and revalidated
+    @Test
+    void failedStreamedReads_areThrown(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Dreadmodel.enabled=false", "-Dpricebook.enabled=false",
+                "-Ddb.path=" + dir.resolve("broken.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                BrokenReads.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(2, TimeUnit.MINUTES));
+        assertEquals(0, p.exitValue(), output);
+        assertTrue(output.contains("offerings json: threw, wrote 0"), output);
+        assertTrue(output.contains("offerings cbor: threw, wrote 0"), output);
+        assertTrue(output.contains("dashboard: threw, wrote 0"), output);
+    }
+
+    public static final class BrokenReads {
+        interface Read {
+            void writeTo(ByteArrayOutputStream out) throws IOException;
+        }
+
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("db.path"));
+                 Statement st = c.createStatement()) {
+                st.execute("DROP TABLE distributor_prices");
+            }
+            run("offerings json", out -> DatabaseManager.writeOfferingsByItem(1, out, ResultFormat.JSON));
+            run("offerings cbor", out -> DatabaseManager.writeOfferingsByItem(1, out, ResultFormat.CBOR));
+            run("dashboard", out -> DatabaseManager.writeDashboard(DatabaseManager.DASHBOARD_LOW,
+                    DatabaseManager.DASHBOARD_OVER, DatabaseManager.DASHBOARD_BUCKETS, out));
+        }
+
+        private static void run(String name, Read read) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            String outcome;
+            try {
+                read.writeTo(out);
+                outcome = "returned";
+            } catch (IOException e) {
+                outcome = e.getCause() instanceof SQLException ? "threw" : "threw " + e;
+            }
+            System.out.println(name + ": " + outcome + ", wrote " + out.size());
+        }
+    }
+
+    /* validators */
+
+    @Test
+    void ifNoneMatch_usesWeakComparison() {
+        String etag = "W/\"abc-7\"";
+        assertTrue(ConditionalGet.matches(etag, etag));
+        assertTrue(ConditionalGet.matches("\"abc-7\"", etag));
+        assertTrue(ConditionalGet.matches("W/\"abc-6\", W/\"abc-7\"", etag));
+        assertTrue(ConditionalGet.matches("*", etag));
+        assertFalse(ConditionalGet.matches("W/\"abc-6\"", etag));
+    }
+
+    @Test
+    void ifModifiedSince_onlyValidatesSecondsThatHavePassed() {
+        DateTimeFormatter http = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+        long modified = 1_700_000_000_500L;
+        String sameSecond = http.format(Instant.ofEpochMilli(modified));
+        assertTrue(ConditionalGet.notModifiedSince(sameSecond, modified, modified + 5_000));
+        assertFalse(ConditionalGet.notModifiedSince(http.format(Instant.ofEpochMilli(modified - 1_000)), modified, modified + 5_000));
+        // still inside the write's second: another write could land in it unseen
+        assertFalse(ConditionalGet.notModifiedSince(sameSecond, modified, modified + 100));
+        assertFalse(ConditionalGet.notModifiedSince("yesterday", modified, modified + 5_000));
+    }
+}
@@ -0,0 +1,200 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.ConnectionPool;
+import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.db.SqlWork;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionPoolTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    /* mixed load */
+
+    @Test
+    void mixedReadsAndWrites_manyThreads() throws Exception {
+        int threads = 16, rounds = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int t = 0; t < threads; t++) {
+            int invId = t + 1;   // seed data has 17 inventory rows, one writer thread per row
+            pool.submit(() -> {
+                try {
+                    start.await();
+                    for (int r = 1; r <= rounds; r++) {
+                        // a pooled read; getAllInventory is answered by the read model and never reaches a reader
+                        int offerings = DatabaseManager.getOfferingsByItem(10).size();
+                        if (offerings != 2) throw new AssertionError("saw " + offerings + " offerings");
+                        JSONObject res = DatabaseManager.updateInventory(invId,
+                                String.format("{\"stock\":%d,\"capacity\":%d}", r, rounds));
+                        if (!"ok".equals(res.get("status"))) throw new AssertionError(res.toJSONString());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(2, TimeUnit.MINUTES));
+        assertTrue(errors.isEmpty(), () -> "errors: " + errors);
+
+        for (int invId = 1; invId <= threads; invId++) {
+            JSONObject row = (JSONObject) DatabaseManager.getInventoryById(invId).get(0);
+            assertEquals(rounds, ((Number) row.get("amount_in_stock")).intValue());
+        }
+    }
+
+    /* read scaling */
+
+    @Test
+    void readThroughput_scalesWithCores() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        measureReads(1, 200);  // warm-up
+        double single = measureReads(1, 500);
+        JSONObject before = DatabaseManager.statementCacheStats();
+        double parallel = measureReads(cores, 500);
+        long prepared = (long) DatabaseManager.statementCacheStats().get("hits") - (long) before.get("hits");
+        System.out.printf("getDistributors reads/s: 1 thread=%.0f, %d threads=%.0f (x%.2f)%n",
+                single, cores, parallel, parallel / single);
+
+        // a single-core box can't show scaling, only that nothing got slower
+        // every read ran its query on a pooled reader rather than being answered from a cache
+        assertTrue(prepared >= parallel / 4, "only " + prepared + " statements ran");
+        if (cores >= 4) assertTrue(parallel > single * 1.5, "reads did not scale across cores");
+        else assertTrue(parallel > single * 0.5);
+    }
+
+    /* statement cache */
+
+    @Test
+    void repeatedQueries_reusePreparedStatements() {
+        JSONObject before = DatabaseManager.statementCacheStats();
+        for (int r = 0; r < 100; r++) {
+            assertEquals(2, DatabaseManager.getOfferingsByItem(10).size());
+            assertEquals("ok", DatabaseManager.updateInventory(1, "{\"stock\":" + r + ",\"capacity\":100}").get("status"));
+        }
+        JSONObject after = DatabaseManager.statementCacheStats();
+
+        // at most one prepare per connection that served the query; every other call is a hit
+        long misses = (long) after.get("misses") - (long) before.get("misses");
+        long hits = (long) after.get("hits") - (long) before.get("hits");
+        assertTrue(misses <= 2 + Runtime.getRuntime().availableProcessors() + 1, "misses " + misses);
+        assertTrue(hits >= 200 - misses, "hits " + hits);
+    }
+
+    /* permits */
+
+    @Test
+    void permits_capConcurrentJdbcWork(@TempDir Path dir) throws Exception {
+        int permits = 2;
+        AtomicInteger inside = new AtomicInteger(), peak = new AtomicInteger();
+        AtomicInteger reading = new AtomicInteger(), readPeak = new AtomicInteger();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        try (ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + dir.resolve("permits.db"), 4, permits)) {
+            ExecutorService callers = Executors.newFixedThreadPool(12);
+            for (int t = 0; t < 12; t++) {
+                boolean write = t % 4 == 0;
+                callers.submit(() -> {
+                    try {
+                        SqlWork<Void> work = c -> {
+                            peak.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                            if (!write) readPeak.accumulateAndGet(reading.incrementAndGet(), Math::max);
+                            try {
+                                Thread.sleep(20);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            if (!write) reading.decrementAndGet();
+                            inside.decrementAndGet();
+                            return null;
+                        };
+                        if (write) pool.write(work); else pool.read(work);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+            }
+            callers.shutdown();
+            assertTrue(callers.awaitTermination(1, TimeUnit.MINUTES));
+            assertTrue(errors.isEmpty(), () -> "errors: " + errors);
+            // 4 readers + the writer could have run 5 at once without the gate; the writer isn't gated by it
+            assertEquals(permits, readPeak.get());
+            assertTrue(peak.get() <= permits + 1, "peak " + peak.get());
+            assertEquals(permits, pool.permitsAvailable());
+        }
+    }
+
+    // every reader busy and more reads queued: a write still gets the idle writer straight away
+    @Test
+    void write_doesNotQueueBehindReads(@TempDir Path dir) throws Exception {
+        int readers = 2;
+        try (ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + dir.resolve("writes.db"), readers)) {
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger reading = new AtomicInteger();
+            ExecutorService callers = Executors.newFixedThreadPool(readers + 2);
+            List<Future<?>> reads = new ArrayList<>();
+            for (int t = 0; t < readers + 2; t++) {
+                reads.add(callers.submit(() -> pool.read(c -> {
+                    reading.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                })));
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (reading.get() < readers && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals(readers, reading.get());
+            // the extra reads are queued behind the readers by now
+            Thread.sleep(50);
+
+            long t0 = System.nanoTime();
+            pool.write(c -> {
+                try (Statement st = c.createStatement()) {
+                    st.execute("CREATE TABLE IF NOT EXISTS t(x)");
+                }
+                return null;
+            });
+            long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+            release.countDown();
+            for (Future<?> f : reads) f.get(1, TimeUnit.MINUTES);
+            callers.shutdown();
+            assertTrue(waitedMs < 500, "write waited " + waitedMs + " ms behind reads");
+        }
+    }
+
+    private static double measureReads(int threads, long millis) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicLong ops = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        for (int t = 0; t < threads; t++) {
+            pool.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    if (DatabaseManager.getDistributors() == null) throw new AssertionError("read failed");
+                    ops.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        return ops.get() * 1000.0 / millis;
+    }
+}
@@ -0,0 +1,202 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CsvExportTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    private static String export(String table, List<String> columns, Map<String, String> filters) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DatabaseManager.exportTableAsCsv(table, columns, filters, 100, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void columnsAndFilters() throws IOException {
+        Map<String, String> filters = new HashMap<>();
+        filters.put("item_name", "Twix");
+        String csv = export("inventory", Arrays.asList("item_name", "amount_in_stock"), filters);
+        assertEquals("item_name,amount_in_stock\nTwix,17\n", csv);
+    }
+
+    @Test
+    void quotesSeparatorsInCells() throws IOException {
+        DatabaseManager.addItem("{\"name\":\"Salt, \\\"Sea\\\" Taffy\"}");
+        String csv = export("items", null, Collections.singletonMap("name", "Salt, \"Sea\" Taffy"));
+        assertEquals("id,name\n18,\"Salt, \"\"Sea\"\" Taffy\"\n", csv);
+    }
+
+    @Test
+    void unknownColumnAndTable() throws IOException {
+        assertEquals("error,invalid_table\n", export("nope", null, Collections.emptyMap()));
+        assertTrue(export("items", Collections.singletonList("cost"), Collections.emptyMap())
+                .startsWith("error,unknown_column"));
+    }
+
+    // over HTTP a bad table or column is a 400, and a parameter that names no column (a cache buster) is no filter
+    @Test
+    void route_rejectsBadColumns_andIgnoresOtherParams(@TempDir Path dir) throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process server = new ProcessBuilder(java, "-Xmx256m",
+                "-Dserver.port=" + port,
+                "-Ddb.path=" + dir.resolve("route.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                Server.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("route.log").toFile())
+                .start();
+        try {
+            String base = "http://localhost:" + port + "/export?gzip=false&table=";
+            long deadline = System.currentTimeMillis() + 60_000;
+            while (status(base + "items") != 200) {
+                assertTrue(System.currentTimeMillis() < deadline, "server did not start");
+                Thread.sleep(200);
+            }
+            HttpURLConnection busted = (HttpURLConnection) new URL(base + "inventory&_=1700000000&item_name=Twix&columns=item_name").openConnection();
+            assertEquals(200, busted.getResponseCode());
+            assertEquals("item_name\nTwix\n", new String(busted.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+            assertEquals(400, status(base + "nope"));
+            assertEquals(400, status(base + "items&columns=id,cost"));
+        } finally {
+            server.destroy();
+            server.waitFor(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private static int status(String url) {
+        try {
+            HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+            int status = c.getResponseCode();
+            try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+                if (in != null) in.readAllBytes();
+            }
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public static final class Server {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            Main.main(args);
+        }
+    }
+
+    /* client I/O happens outside the lifecycle lock */
+
+    @FunctionalInterface
+    interface Download {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // a client that stopped reading must not keep a reset (and every request queued behind it) waiting
+    @Test
+    void stalledDownload_doesNotHoldUpAReset() throws Exception {
+        assertResetPasses(out -> DatabaseManager.exportTableAsCsv("inventory", null, Collections.emptyMap(), 100, out));
+        assertResetPasses(DatabaseManager::writeDistributors);
+    }
+
+    private static void assertResetPasses(Download download) throws Exception {
+        CountDownLatch writing = new CountDownLatch(1), release = new CountDownLatch(1);
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> client = pool.submit(() -> {
+                download.writeTo(stalled);
+                return null;
+            });
+            assertTrue(writing.await(10, TimeUnit.SECONDS), "nothing written");
+            pool.submit(DatabaseManager::resetDatabase).get(10, TimeUnit.SECONDS);
+            assertFalse(client.isDone());
+            release.countDown();
+            client.get(10, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    /* flat memory */
+
+    // exports a million inventory rows in a child JVM whose heap couldn't hold the CSV as a String
+    @Test
+    void millionRowExport_smallHeap(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xmx32m",
+                "-Ddb.path=" + dir.resolve("big.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                LargeExport.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(5, TimeUnit.MINUTES));
+        assertEquals(0, p.exitValue(), output);
+        assertTrue(output.contains("lines=1000018"), output);  // header + 17 seed rows + 1M synthetic
+    }
+
+    public static final class LargeExport {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("db.path"));
+                 Statement st = c.createStatement()) {
+                st.execute("WITH RECURSIVE n(x) AS (SELECT 100 UNION ALL SELECT x + 1 FROM n WHERE x < 1000099)"
+                        + " INSERT INTO items(id, name) SELECT x, 'Synthetic candy ' || x FROM n");
+                st.execute("INSERT INTO inventory(item, stock, capacity) SELECT id, id % 50, 100 FROM items WHERE id >= 100");
+            }
+
+            long[] lines = {0};
+            OutputStream counter = new OutputStream() {
+                @Override public void write(int b) { if (b == '\n') lines[0]++; }
+                @Override public void write(byte[] b, int off, int len) {
+                    for (int i = off; i < off + len; i++) if (b[i] == '\n') lines[0]++;
+                }
+            };
+            DatabaseManager.exportTableAsCsv("inventory", null, Collections.emptyMap(),
+                    DatabaseManager.EXPORT_FETCH_SIZE, counter);
+            Runtime rt = Runtime.getRuntime();
+            System.out.println("lines=" + lines[0] + " heapUsedMb=" + (rt.totalMemory() - rt.freeMemory()) / (1 << 20));
+        }
+    }
+}
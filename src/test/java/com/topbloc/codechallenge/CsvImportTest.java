@@ -0,0 +1,275 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CsvImportTest {
+
+    @BeforeAll  static void open()  { DatabaseManager.connect(); }
+    @BeforeEach void reset()        { DatabaseManager.resetDatabase(); }
+
+    private static JSONObject importCsv(String table, String csv) {
+        return DatabaseManager.importCsv(table, new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String export(String table) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DatabaseManager.exportTableAsCsv(table, null, Collections.emptyMap(), 100, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject error(JSONObject out, int k) {
+        return (JSONObject) ((JSONArray) out.get("errors")).get(k);
+    }
+
+    @Test
+    void exportedRows_importBackUnchanged() throws Exception {
+        String before = export("inventory");
+        // empty the table through the API, then feed the export back in
+        JSONArray rows = (JSONArray) new JSONParser().parse(DatabaseManager.getAllInventory().toJSONString());
+        for (Object r : rows) DatabaseManager.deleteInventory(((Long) ((JSONObject) r).get("id")).intValue());
+        assertEquals("inventory_id,item_name,amount_in_stock,total_capacity\n", export("inventory"));
+
+        JSONObject out = importCsv("inventory", before);
+        assertEquals("ok", out.get("status"), out.toJSONString());
+        assertEquals(17L, out.get("imported"));
+        assertEquals(1, out.get("transactions"));
+        assertEquals(before, export("inventory"));
+        assertEquals(Boolean.TRUE, DatabaseManager.checkReadModel().get("consistent"));
+    }
+
+    @Test
+    void namesResolve_andMissingIdsAreHandedOut() throws Exception {
+        // quoted cells, CRLF, a BOM and columns in another order than the export's
+        JSONObject items = importCsv("items", "\uFEFFname\r\n\"Salt, \"\"Sea\"\" Taffy\"\r\nFizz Wiz\r\n");
+        assertEquals("ok", items.get("status"), items.toJSONString());
+        assertEquals("id,name\n18,\"Salt, \"\"Sea\"\" Taffy\"\n19,Fizz Wiz\n",
+                export("items").replaceAll("(?m)^([1-9]|1[0-7]),.*\n", ""));
+
+        JSONObject inventory = importCsv("inventory",
+                "total_capacity,amount_in_stock,item_name\n40,12,\"Salt, \"\"Sea\"\" Taffy\"\n9,3,Fizz Wiz\n");
+        assertEquals(2L, inventory.get("imported"), inventory.toJSONString());
+        JSONObject taffy = (JSONObject) DatabaseManager.getInventoryById(18).get(0);
+        assertEquals("Salt, \"Sea\" Taffy", taffy.get("item_name"));
+        assertEquals(12, ((Number) taffy.get("amount_in_stock")).intValue());
+
+        JSONObject prices = importCsv("distributor_prices",
+                "price_id,distributor_name,item_name,unit_cost\n,Candy Corp,Fizz Wiz,0.05\n500,Candy Corp,Salt, \"Sea\" Taffy,0.4\n");
+        // the second row has five cells once its unquoted comma splits it
+        assertEquals("partial", prices.get("status"));
+        assertEquals(1L, prices.get("imported"));
+        assertEquals(3L, error(prices, 0).get("line"));
+        assertEquals(0.05, ((JSONObject) DatabaseManager.getCheapestOffer(19, 1)).get("unit_cost"));
+
+        // the models took the rows as they went in
+        assertEquals("Fizz Wiz", ((JSONObject) ((JSONArray) DatabaseManager.searchItems("fizz", 1, false).get("results")).get(0)).get("name"));
+        assertEquals(Boolean.TRUE, DatabaseManager.checkReadModel().get("consistent"));
+    }
+
+    @Test
+    void badLines_areReportedAndTheRestGoIn() {
+        DatabaseManager.addItem("{\"name\":\"Mike and Ike\"}");
+        JSONObject out = importCsv("inventory", "item_name,amount_in_stock,total_capacity\n"
+                + "Nope,1,2\n"                 // line 2: unknown item
+                + "Twix,1,2\n"                 // line 3: Twix already has a row (UNIQUE inventory.item)
+                + "\n"                         // blank lines are skipped
+                + "Mike and Ike,x,2\n"         // line 5: not a number
+                + "Mike and Ike,1\n"           // line 6: short row
+                + "\"Mike\nand Ike\",1,2\n"    // lines 7-8: a quoted line break, unknown item
+                + "Mike and Ike,5,10\n");      // line 9: fine
+        assertEquals("partial", out.get("status"), out.toJSONString());
+        assertEquals(6L, out.get("rows"));
+        assertEquals(1L, out.get("imported"));
+        assertEquals(5L, out.get("failed"));
+        long[] lines = {2, 3, 5, 6, 7};
+        for (int k = 0; k < lines.length; k++) assertEquals(lines[k], error(out, k).get("line"));
+        assertEquals("unknown item Nope", error(out, 0).get("error"));
+        assertTrue(((String) error(out, 1).get("error")).contains("UNIQUE"));
+        assertEquals("amount_in_stock is not an integer: x", error(out, 2).get("error"));
+        assertEquals("expected 3 cells, found 2", error(out, 3).get("error"));
+    }
+
+    @Test
+    void headerAndTableProblems_stopBeforeAnyRow() {
+        assertNotNull(importCsv("nope", "id,name\n1,a\n").get("error"));
+        assertNotNull(importCsv("items", "").get("error"));
+        assertEquals("Unknown column cost for items, expected id,name", importCsv("items", "name,cost\nA,1\n").get("error"));
+        assertEquals("Missing column unit_cost for distributor_prices",
+                importCsv("distributor_prices", "distributor_name,item_name\nCandy Corp,Twix\n").get("error"));
+        assertEquals("Duplicate column name", importCsv("items", "name,name\nA,B\n").get("error"));
+    }
+
+    @Test
+    void unterminatedQuote_keepsTheRowsBeforeIt() throws IOException {
+        JSONObject out = importCsv("items", "name\nFizz Wiz\n\"Jawbreaker\nWiz Bang\n");
+        assertEquals("aborted", out.get("status"));
+        assertEquals("line 3: unterminated quoted field", out.get("error"));
+        assertEquals(1L, out.get("imported"));
+        assertTrue(export("items").contains("18,Fizz Wiz\n"));
+    }
+
+    // more rows than one transaction holds: several blocks, and the models reloaded after
+    @Test
+    void largeImport_spansTransactions() throws Exception {
+        int n = DatabaseManager.IMPORT_TRANSACTION_ROWS * 2 + 10;
+        JSONObject out = DatabaseManager.importCsv("items", new Lines(n, "name", k -> "Imported candy " + k));
+        assertEquals("ok", out.get("status"), out.toJSONString());
+        assertEquals((long) n, out.get("imported"));
+        assertEquals(3, out.get("transactions"));
+        assertEquals("Imported candy 100009", ((JSONObject) ((JSONArray) DatabaseManager.searchItems("imported candy 100009", 1, false)
+                .get("results")).get(0)).get("name"));
+        assertEquals(Boolean.TRUE, DatabaseManager.checkReadModel().get("consistent"));
+    }
+
+    /* flat memory */
+
+    // a million offers through a heap that holds one transaction's worth; the price book, which
+    // would hold them all once loaded, is left out
+    @Test
+    void millionRowImport_smallHeap(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xmx48m", "-Dpricebook.enabled=false",
+                "-Ddb.path=" + dir.resolve("big.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                LargeImport.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(5, TimeUnit.MINUTES));
+        assertEquals(0, p.exitValue(), output);
+        assertTrue(output.contains("imported=1000000 failed=0"), output);
+    }
+
+    public static final class LargeImport {
+        static final String[] DISTRIBUTORS = {"Candy Corp", "The Sweet Suite", "Dentists Hate Us"};
+        static final String[] ITEMS = {"Licorice", "Twix", "Snickers", "M&Ms", "Skittles", "Good & Plenty"};
+
+        public static void main(String[] args) {
+            DatabaseManager.resetDatabase();
+            JSONObject out = DatabaseManager.importCsv("distributor_prices", new Lines(1_000_000,
+                    "distributor_name,item_name,unit_cost",
+                    k -> DISTRIBUTORS[k % 3] + ",\"" + ITEMS[k % 6] + "\"," + (k % 1000) / 100.0));
+            System.out.println("imported=" + out.get("imported") + " failed=" + out.get("failed")
+                    + " elapsed_ms=" + out.get("elapsed_ms"));
+        }
+    }
+
+    /* benchmark: mvn test -Dtest=CsvImportTest -Dbench=true */
+
+    @Test
+    @EnabledIfSystemProperty(named = "bench", matches = "true")
+    void benchmark_rowsPerSecond(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xmx1500m",
+                "-Ddb.path=" + dir.resolve("import.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                Benchmark.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(15, TimeUnit.MINUTES));
+        System.out.println(output);
+        assertEquals(0, p.exitValue(), output);
+
+        Matcher m = Pattern.compile("(?m)^(\\w+) .* = +([\\d,]+) rows/s").matcher(output);
+        int tables = 0;
+        while (m.find()) {
+            tables++;
+            double rate = Double.parseDouble(m.group(2).replace(",", ""));
+            assertTrue(rate >= TARGET_ROWS_PER_SEC.get(m.group(1)), m.group(1) + " at " + m.group(2) + " rows/s");
+        }
+        assertEquals(3, tables, output);
+    }
+
+    // rows per second each table's import must sustain; items_fts is reindexed after the items import returns
+    static final Map<String, Integer> TARGET_ROWS_PER_SEC = Map.of(
+            "items", 100_000,
+            "inventory", 100_000,
+            "distributor_prices", 100_000);
+
+    public static final class Benchmark {
+        static final int ROWS = 1_000_000;
+
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            DatabaseManager.connect();
+            Runtime rt = Runtime.getRuntime();
+            // a million new items, then a stock row and two offers for each, all named
+            report("items", DatabaseManager.importCsv("items", new Lines(ROWS, "name", k -> "Imported candy " + k)));
+            // each import timed on its own, not against the items_fts reindex
+            long reindex = System.nanoTime();
+            while (Boolean.TRUE.equals(DatabaseManager.searchIndexStats().get("fts_reindexing"))) Thread.sleep(10);
+            System.out.printf("items_fts reindexed in %,d ms after the import%n", (System.nanoTime() - reindex) / 1_000_000);
+            report("inventory", DatabaseManager.importCsv("inventory", new Lines(ROWS,
+                    "item_name,amount_in_stock,total_capacity", k -> "Imported candy " + k + "," + (k % 50) + ",100")));
+            report("distributor_prices", DatabaseManager.importCsv("distributor_prices", new Lines(2 * ROWS,
+                    "distributor_name,item_name,unit_cost",
+                    k -> (k % 2 == 0 ? "Candy Corp" : "The Sweet Suite") + ",Imported candy " + k / 2 + "," + (k % 997) / 100.0)));
+            System.gc();
+            System.out.printf("heap after: %d MB used of %d MB max%n", (rt.totalMemory() - rt.freeMemory()) >> 20, rt.maxMemory() >> 20);
+        }
+
+        static void report(String table, JSONObject out) {
+            long rows = (Long) out.get("imported"), ms = (Long) out.get("elapsed_ms");
+            System.out.printf("%-20s %,10d rows in %,7d ms = %,9.0f rows/s  (%s, %d failed, %d transactions)%n",
+                    table, rows, ms, rows * 1000.0 / Math.max(1, ms), out.get("status"), out.get("failed"), out.get("transactions"));
+        }
+    }
+
+    // a header, then line(k) for k in [0, rows), generated as it is read
+    static final class Lines extends InputStream {
+        private final InputStream lines;
+
+        Lines(int rows, String header, IntFunction<String> line) {
+            this.lines = new SequenceInputStream(new Enumeration<InputStream>() {
+                int k = -1;
+
+                @Override
+                public boolean hasMoreElements() {
+                    return k < rows;
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    String s = k < 0 ? header : line.apply(k);
+                    k++;
+                    return new ByteArrayInputStream((s + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            });
+        }
+
+        @Override
+        public int read() throws IOException {
+            return lines.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return lines.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DashboardTest {
+
+    @BeforeAll  static void open()  { DatabaseManager.connect(); }
+    @BeforeEach void reset()        { DatabaseManager.resetDatabase(); }
+
+    interface Writer {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static Object parse(Writer w) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w.writeTo(out);
+        return new JSONParser().parse(out.toString(StandardCharsets.UTF_8));
+    }
+
+    private static JSONObject dashboard(double low, double over, int buckets) throws Exception {
+        return (JSONObject) parse(out -> DatabaseManager.writeDashboard(low, over, buckets, out));
+    }
+
+    private static JSONObject dashboard() throws Exception {
+        return dashboard(DatabaseManager.DASHBOARD_LOW, DatabaseManager.DASHBOARD_OVER, DatabaseManager.DASHBOARD_BUCKETS);
+    }
+
+    // inventory ids of the rows a panel route returns
+    private static List<Long> ids(Writer route) throws Exception {
+        List<Long> ids = new ArrayList<>();
+        for (Object o : (JSONArray) parse(route)) ids.add((Long) ((JSONObject) o).get("id"));
+        return ids;
+    }
+
+    @Test
+    void panels_matchTheirRoutes() throws Exception {
+        // a zero capacity and an overfilled row, so every branch has something in it
+        DatabaseManager.addItem("{\"name\":\"Fizz Wiz\"}");
+        DatabaseManager.addInventory("{\"item\":18,\"stock\":0,\"capacity\":0}");
+        DatabaseManager.updateInventory(2, "{\"stock\":90,\"capacity\":40}");
+
+        JSONObject d = dashboard();
+        assertEquals("model", d.get("source"));
+        assertEquals(ids(DatabaseManager::writeOutOfStock), d.get("out_of_stock"));
+        assertEquals(ids(DatabaseManager::writeOverstocked), d.get("overstocked"));
+        assertEquals(ids(DatabaseManager::writeLowStock), d.get("low_stock"));
+
+        JSONArray rows = (JSONArray) d.get("rows");
+        JSONArray all = (JSONArray) parse(DatabaseManager::writeAllInventory);
+        assertEquals(all.size(), rows.size());
+        for (int k = 0; k < rows.size(); k++) {
+            JSONArray row = (JSONArray) rows.get(k);
+            JSONObject expected = (JSONObject) all.get(k);
+            assertEquals(expected.get("id"), row.get(0));
+            assertEquals(expected.get("item_name"), row.get(2));
+            assertEquals(expected.get("amount_in_stock"), row.get(3));
+            assertEquals(expected.get("total_capacity"), row.get(4));
+        }
+
+        JSONObject totals = (JSONObject) d.get("totals");
+        assertEquals((long) rows.size(), totals.get("rows"));
+        assertEquals((long) ((JSONArray) d.get("low_stock")).size(), totals.get("low_stock"));
+        JSONObject fill = (JSONObject) d.get("fill_histogram");
+        long bucketed = 0;
+        for (Object n : (JSONArray) fill.get("counts")) bucketed += (Long) n;
+        assertEquals(1L, fill.get("no_capacity"));
+        assertTrue((Long) fill.get("over_capacity") >= 1);
+        assertEquals(rows.size(), bucketed + (Long) fill.get("over_capacity") + (Long) fill.get("no_capacity"));
+    }
+
+    @Test
+    void restockCost_isTheGapAtTheCheapestOffer() throws Exception {
+        JSONObject d = dashboard();
+        double total = 0;
+        long unpriced = 0;
+        for (Object o : (JSONArray) d.get("rows")) {
+            JSONArray row = (JSONArray) o;
+            long item = (Long) row.get(1), stock = (Long) row.get(3), capacity = (Long) row.get(4);
+            long units = (Long) row.get(5);
+            assertEquals(Math.max(0, capacity - stock), units);
+            JSONObject offer = DatabaseManager.getCheapestOffer((int) item, 1);
+            if (units == 0) {
+                assertEquals(0.0, row.get(6));
+            } else if (offer.get("unit_cost") == null) {
+                assertNull(row.get(6));
+                unpriced++;
+            } else {
+                double expected = units * ((Number) offer.get("unit_cost")).doubleValue();
+                assertEquals(expected, ((Number) row.get(6)).doubleValue(), 1e-9);
+                total += expected;
+            }
+        }
+        JSONObject totals = (JSONObject) d.get("totals");
+        assertEquals(total, ((Number) totals.get("restock_cost")).doubleValue(), 1e-6);
+        assertEquals(unpriced, totals.get("unpriced"));
+    }
+
+    @Test
+    void thresholds_areConfigurable() throws Exception {
+        JSONArray defaultLow = (JSONArray) dashboard().get("low_stock");
+        JSONObject wide = dashboard(0.9, 0.5, 4);
+        JSONArray wideLow = (JSONArray) wide.get("low_stock");
+        assertTrue(wideLow.containsAll(defaultLow));
+        assertTrue(wideLow.size() > defaultLow.size());
+        assertTrue(((JSONArray) wide.get("overstocked")).size() > ((JSONArray) dashboard().get("overstocked")).size());
+        assertEquals(4, ((JSONArray) ((JSONObject) wide.get("fill_histogram")).get("counts")).size());
+        assertEquals(0.9, ((JSONObject) wide.get("thresholds")).get("low"));
+
+        assertThrows(IllegalArgumentException.class, () -> dashboard(-1, 1, 10));
+        assertThrows(IllegalArgumentException.class, () -> dashboard(0.35, Double.NaN, 10));
+        assertThrows(IllegalArgumentException.class, () -> dashboard(0.35, 1, 0));
+    }
+
+    // with both models off the same payload comes from one SQL scan
+    @Test
+    void sqlScan_givesTheSamePayload(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Dreadmodel.enabled=false", "-Dpricebook.enabled=false",
+                "-Ddb.path=" + dir.resolve("sql.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                SqlDashboard.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(2, TimeUnit.MINUTES));
+        assertEquals(0, p.exitValue(), output);
+
+        JSONObject sql = (JSONObject) new JSONParser().parse(output.substring(output.lastIndexOf("\n{") + 1).trim());
+        assertEquals("sql", sql.remove("source"));
+        JSONObject model = dashboard();
+        assertEquals("model", model.remove("source"));
+        assertEquals(model, sql);
+    }
+
+    public static final class SqlDashboard {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DatabaseManager.writeDashboard(DatabaseManager.DASHBOARD_LOW, DatabaseManager.DASHBOARD_OVER,
+                    DatabaseManager.DASHBOARD_BUCKETS, out);
+            System.out.println(out.toString(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -5,6 +5,14 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.junit.jupiter.api.*;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
@@ -48,6 +56,31 @@ class DatabaseManagerTest {
         assertEquals(0, after);
     }
 
+    // the row itself goes, not only its join: /export, the by-id route and stock adjustments all miss it
+    @Test
+    void deleteItem_removesTheInventoryRow() throws Exception {
+        JSONObject row = (JSONObject) DatabaseManager.getAllInventory()
+                .stream()
+                .filter(o -> ((Number) ((JSONObject) o).get("item_id")).longValue() == 1L)
+                .findFirst()
+                .get();
+        int inventoryId = ((Number) row.get("id")).intValue();
+        assertTrue(((Number) row.get("amount_in_stock")).longValue() > 0);
+
+        assertEquals("ok", DatabaseManager.deleteItem(1).get("status"));
+
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("db.path", "challenge.db"));
+             Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM inventory WHERE item = 1")) {
+            assertEquals(0, rs.getInt(1));
+        }
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        DatabaseManager.exportTableAsCsv("inventory", null, Collections.emptyMap(), 100, csv);
+        assertFalse(csv.toString(StandardCharsets.UTF_8).contains("Licorice"));
+        assertTrue(DatabaseManager.getInventoryById(inventoryId).isEmpty());
+        assertEquals("not_found", DatabaseManager.adjustStock(inventoryId, "{\"delta\":1}", "write_behind").get("status"));
+    }
+
     /*  inventory */
 
     @Test
@@ -0,0 +1,233 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExecutionModeTest {
+
+    @Test
+    void executor_runsEveryTaskOnItsOwnThread() throws Exception {
+        ExecutorService executor = ExecutionMode.executor();
+        try {
+            // more blocked tasks than a fixed pool would hold, all running at once
+            int tasks = 300;
+            CountDownLatch running = new CountDownLatch(tasks), release = new CountDownLatch(1);
+            for (int t = 0; t < tasks; t++) {
+                executor.execute(() -> {
+                    running.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            assertTrue(running.await(30, TimeUnit.SECONDS));
+            release.countDown();
+
+            String name = executor.submit(() -> Thread.currentThread().getName()).get();
+            assertTrue(name.startsWith("http-"), name);
+            // on 21+ the tasks must really be virtual
+            assertEquals(Runtime.version().feature() >= 21, ExecutionMode.virtualThreadExecutor() != null);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /* load test: mvn test -Dtest=ExecutionModeTest -Dbench=true */
+
+    static final int MAX_THREADS = 32, SLOW_CLIENTS = 2 * MAX_THREADS, API_CLIENTS = 4;
+    static final int SSE_STEP = 250, SSE_MAX = 4000;
+    static final long MEASURE_MS = 5_000;
+    static final int TIMEOUT_MS = 5_000;
+
+    // each mode in its own child JVM on a fresh seed database; the platform pool is kept small so it saturates quickly
+    @Test
+    @EnabledIfSystemProperty(named = "bench", matches = "true")
+    void loadTest_platformVersusVirtual(@TempDir Path dir) throws Exception {
+        StringBuilder report = new StringBuilder(String.format("%n%-9s %12s %12s %10s %12s%n",
+                "mode", "api p50 ms", "api p99 ms", "api fails", "max sse"));
+        int port = 4600;
+        for (String mode : Arrays.asList("platform", "virtual")) {
+            port++;
+            Process server = startServer(mode, port, dir.resolve(mode + ".db"));
+            try {
+                long[] api = apiLatencyUnderSlowClients(port);
+                int sse = maxSseClients(port);
+                report.append(String.format("%-9s %12.2f %12.2f %10d %12d%n", mode,
+                        percentile(api, 0.50) / 1e6, percentile(api, 0.99) / 1e6, failures(api), sse));
+            } finally {
+                server.destroy();
+                server.waitFor(30, TimeUnit.SECONDS);
+            }
+        }
+        report.append(String.format("%d stalled uploads vs a %d-thread platform pool, %d API clients for %d ms;"
+                + " SSE clients added %d at a time up to %d%n", SLOW_CLIENTS, MAX_THREADS, API_CLIENTS, MEASURE_MS, SSE_STEP, SSE_MAX));
+        System.out.println(report);
+    }
+
+    private static Process startServer(String mode, int port, Path db) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xmx512m",
+                "-Dserver.threads=" + mode,
+                "-Dserver.maxThreads=" + MAX_THREADS,
+                "-Dserver.port=" + port,
+                "-Ddb.path=" + db.toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                Server.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(db.resolveSibling(mode + ".log").toFile())
+                .start();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (get(port, "/version") > 0) return p;
+            Thread.sleep(200);
+        }
+        p.destroy();
+        throw new AssertionError(mode + " server did not start");
+    }
+
+    // p99 of GET /inventory/3 while slow clients each hold a request open; a timeout counts as -1
+    private static long[] apiLatencyUnderSlowClients(int port) throws Exception {
+        List<Socket> slow = new ArrayList<>();
+        try {
+            // a POST whose body never arrives: the route blocks reading it on its request thread
+            for (int i = 0; i < SLOW_CLIENTS; i++) {
+                Socket s = new Socket();
+                s.connect(new InetSocketAddress("localhost", port), TIMEOUT_MS);
+                OutputStream out = s.getOutputStream();
+                out.write(("POST /items HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+                        + "Content-Length: 64\r\n\r\n{").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                slow.add(s);
+            }
+            Thread.sleep(500);
+
+            ExecutorService clients = Executors.newFixedThreadPool(API_CLIENTS);
+            ConcurrentLinkedQueue<Long> samples = new ConcurrentLinkedQueue<>();
+            long end = System.currentTimeMillis() + MEASURE_MS;
+            for (int c = 0; c < API_CLIENTS; c++) {
+                clients.submit(() -> {
+                    while (System.currentTimeMillis() < end) samples.add(get(port, "/inventory/3"));
+                });
+            }
+            clients.shutdown();
+            assertTrue(clients.awaitTermination(MEASURE_MS + 2L * TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            return samples.stream().mapToLong(Long::longValue).toArray();
+        } finally {
+            for (Socket s : slow) s.close();
+        }
+    }
+
+    // nanoseconds for a 200, -1 for anything else
+    private static long get(int port, String path) {
+        long t0 = System.nanoTime();
+        try {
+            HttpURLConnection c = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+            c.setConnectTimeout(TIMEOUT_MS);
+            c.setReadTimeout(TIMEOUT_MS);
+            try (InputStream in = c.getInputStream()) {
+                in.readAllBytes();
+            }
+            return c.getResponseCode() == 200 ? System.nanoTime() - t0 : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // open streams in steps until one of a step's clients misses its first event
+    private static int maxSseClients(int port) throws Exception {
+        List<Socket> open = new ArrayList<>();
+        ExecutorService connectors = Executors.newFixedThreadPool(16);
+        try {
+            while (open.size() < SSE_MAX) {
+                List<Future<Socket>> step = new ArrayList<>();
+                for (int i = 0; i < SSE_STEP; i++) step.add(connectors.submit(() -> openStream(port)));
+                AtomicInteger failed = new AtomicInteger();
+                for (Future<Socket> f : step) {
+                    Socket s = f.get();
+                    if (s == null) failed.incrementAndGet(); else open.add(s);
+                }
+                if (failed.get() > 0) break;
+            }
+            return open.size();
+        } finally {
+            connectors.shutdownNow();
+            for (Socket s : open) s.close();
+        }
+    }
+
+    // connected socket once the snapshot event has arrived, or null
+    private static Socket openStream(int port) {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress("localhost", port), TIMEOUT_MS);
+            s.setSoTimeout(TIMEOUT_MS);
+            s.getOutputStream().write("GET /stream/inventory HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[8192];
+            StringBuilder seen = new StringBuilder();
+            while (seen.indexOf("data: ") < 0) {
+                int n = in.read(buf);
+                if (n < 0) throw new IOException("closed");
+                seen.append(new String(buf, 0, n, StandardCharsets.US_ASCII));
+            }
+            return s;
+        } catch (IOException e) {
+            // includes read timeouts
+            closeQuietly(s);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+
+    private static int failures(long[] samples) {
+        int n = 0;
+        for (long s : samples) if (s < 0) n++;
+        return n;
+    }
+
+    // failures rank above every success
+    private static double percentile(long[] samples, double p) {
+        if (samples.length == 0) return Double.NaN;
+        long[] sorted = new long[samples.length];
+        for (int i = 0; i < samples.length; i++) sorted[i] = samples[i] < 0 ? TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS) : samples[i];
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    // child JVM entry point: fresh seed data in db.path, then the real server
+    public static final class Server {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            Main.main(args);
+        }
+    }
+}
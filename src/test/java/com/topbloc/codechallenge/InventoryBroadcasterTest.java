@@ -0,0 +1,297 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.*;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InventoryBroadcasterTest {
+
+    @BeforeAll  static void open()  { DatabaseManager.connect(); }
+    @BeforeEach void reset()        { DatabaseManager.resetDatabase(); }
+
+    private InventoryBroadcaster broadcaster;
+
+    @BeforeEach
+    void start() {
+        broadcaster = new InventoryBroadcaster();
+        broadcaster.start();
+    }
+
+    @AfterEach
+    void stop() {
+        broadcaster.stop();
+    }
+
+    /* ─────────── a servlet stream the test controls ─────────── */
+
+    // a client socket: while not ready it takes nothing, like a full send buffer
+    static final class Stream extends ServletOutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        volatile boolean ready = true;
+        volatile WriteListener listener;
+        // writes made in blocking mode (before setWriteListener) or while not ready
+        volatile int violations;
+        volatile boolean completed;
+        // how many subscribers the producer could see when the stream went non-blocking
+        private final IntSupplier subscribers;
+        volatile int subscribersAtListener = -1;
+
+        Stream(IntSupplier subscribers) {
+            this.subscribers = subscribers;
+        }
+
+        @Override public synchronized void write(int b) { check(); bytes.write(b); }
+        @Override public synchronized void write(byte[] b, int off, int len) { check(); bytes.write(b, off, len); }
+        @Override public boolean isReady() { return ready; }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            this.listener = listener;
+            subscribersAtListener = subscribers.getAsInt();
+            // the container calls back once the stream turns non-blocking
+            try {
+                listener.onWritePossible();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void check() {
+            if (listener == null || !ready) violations++;
+        }
+
+        void becomeReady() throws Exception {
+            ready = true;
+            listener.onWritePossible();
+        }
+
+        synchronized List<Frame> frames() {
+            List<Frame> out = new ArrayList<>();
+            for (String block : bytes.toString(StandardCharsets.UTF_8).split("\n\n")) {
+                if (!block.isEmpty() && !block.startsWith(":")) out.add(new Frame(block));
+            }
+            return out;
+        }
+    }
+
+    // one SSE event: snapshots have no event name, deltas are "delta"
+    static final class Frame {
+        long id = -1;
+        String event, data;
+
+        Frame(String block) {
+            for (String line : block.split("\n")) {
+                if (line.startsWith("id: ")) id = Long.parseLong(line.substring(4));
+                else if (line.startsWith("event: ")) event = line.substring(7);
+                else if (line.startsWith("data: ")) data = line.substring(6);
+            }
+        }
+
+        boolean snapshot() { return event == null; }
+
+        Object json() throws Exception { return new JSONParser().parse(data); }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == long.class) return 0L;
+        if (type == int.class) return 0;
+        return null;
+    }
+
+    // GET /stream/inventory with an optional Last-Event-ID, onto stream
+    private Stream subscribe(Long lastEventId) throws Exception {
+        Stream stream = new Stream(broadcaster::subscriberCount);
+        int before = broadcaster.subscriberCount();
+        AsyncContext ctx = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{AsyncContext.class},
+                (proxy, m, args) -> {
+                    if (m.getName().equals("complete")) stream.completed = true;
+                    return defaultValue(m.getReturnType());
+                });
+        HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, m, args) -> {
+                    if (m.getName().equals("startAsync")) return ctx;
+                    if (m.getName().equals("getHeader") && "Last-Event-ID".equals(args[0])) {
+                        return lastEventId == null ? null : lastEventId.toString();
+                    }
+                    return defaultValue(m.getReturnType());
+                });
+        HttpServletResponse res = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                (proxy, m, args) -> m.getName().equals("getOutputStream") ? stream : defaultValue(m.getReturnType()));
+        broadcaster.subscribe(req, res);
+        // a stream the producer can reach must already be non-blocking, or a drain could block on it
+        assertEquals(before, stream.subscribersAtListener, "subscriber published before setWriteListener");
+        return stream;
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("timed out waiting for " + what);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void setStock(int inventoryId, int stock) {
+        assertEquals("ok", DatabaseManager.updateInventory(inventoryId, "{\"stock\":" + stock + ",\"capacity\":500}").get("status"));
+    }
+
+    // writes one change and waits for the delta it produces to reach stream
+    private static Frame nextDelta(Stream stream, int inventoryId, int stock) throws Exception {
+        int before = stream.frames().size();
+        setStock(inventoryId, stock);
+        await(() -> stream.frames().size() > before, "a delta");
+        return stream.frames().get(before);
+    }
+
+    /* ─────────── tests ─────────── */
+
+    @Test
+    void firstFrame_isASnapshot_thenChangesArriveAsDeltas() throws Exception {
+        Stream s = subscribe(null);
+        assertEquals(1, s.frames().size());
+        Frame snapshot = s.frames().get(0);
+        assertTrue(snapshot.snapshot());
+        assertEquals(DatabaseManager.getAllInventory().size(), ((JSONArray) snapshot.json()).size());
+
+        Frame delta = nextDelta(s, 3, 123);
+        assertEquals("delta", delta.event);
+        assertEquals(snapshot.id + 1, delta.id);
+        JSONObject body = (JSONObject) delta.json();
+        JSONArray upserted = (JSONArray) body.get("upserted");
+        assertEquals(1, upserted.size());
+        assertEquals(3L, ((JSONObject) upserted.get(0)).get("id"));
+        assertEquals(123L, ((JSONObject) upserted.get(0)).get("amount_in_stock"));
+        assertTrue(((JSONArray) body.get("deleted")).isEmpty());
+
+        assertEquals("ok", DatabaseManager.deleteInventory(3).get("status"));
+        await(() -> s.frames().size() == 3, "the delete's delta");
+        JSONObject deleted = (JSONObject) s.frames().get(2).json();
+        assertEquals(List.of(3L), deleted.get("deleted"));
+        assertEquals(0, s.violations);
+    }
+
+    @Test
+    void reconnect_replaysMissedDeltas_orFallsBackToASnapshot() throws Exception {
+        Stream keeper = subscribe(null);
+        long seen = keeper.frames().get(0).id;
+        Frame d1 = nextDelta(keeper, 1, 11);
+        Frame d2 = nextDelta(keeper, 2, 22);
+
+        // resuming from the snapshot's id: exactly the two deltas, in order
+        Stream resumed = subscribe(seen);
+        List<Frame> replay = resumed.frames();
+        assertEquals(2, replay.size());
+        assertEquals(d1.id, replay.get(0).id);
+        assertEquals(d2.id, replay.get(1).id);
+        assertEquals("delta", replay.get(1).event);
+
+        // already current: nothing to send
+        assertTrue(subscribe(d2.id).frames().isEmpty());
+
+        // older than the history reaches, or an id from some other process: a snapshot at the latest id
+        for (long stale : new long[]{seen - 5, d2.id + 1_000, 0}) {
+            List<Frame> frames = subscribe(stale).frames();
+            assertEquals(1, frames.size(), "Last-Event-ID " + stale);
+            assertTrue(frames.get(0).snapshot());
+            assertEquals(d2.id, frames.get(0).id);
+        }
+    }
+
+    @Test
+    void slowReader_isResyncedWithASnapshot_notBufferedWithoutBound() throws Exception {
+        Stream keeper = subscribe(null);
+        Stream slow = subscribe(null);
+        slow.ready = false;
+
+        // one more frame than a subscriber may have waiting
+        int frames = InventoryBroadcaster.MAX_PENDING + 1;
+        Frame last = null;
+        for (int k = 1; k <= frames; k++) last = nextDelta(keeper, 1, k);
+
+        slow.becomeReady();
+        List<Frame> received = slow.frames();
+        // the initial snapshot, then the resync snapshot in place of the backlog
+        assertEquals(2, received.size());
+        assertTrue(received.get(1).snapshot());
+        assertEquals(last.id, received.get(1).id);
+        JSONArray rows = (JSONArray) received.get(1).json();
+        JSONObject first = (JSONObject) rows.get(0);
+        assertEquals(1L, first.get("id"));
+        assertEquals((long) frames, first.get("amount_in_stock"));
+
+        // and it goes on with deltas from there
+        Frame after = nextDelta(slow, 2, 7);
+        assertEquals("delta", after.event);
+        assertEquals(last.id + 1, after.id);
+        assertEquals(0, slow.violations);
+        assertEquals(0, keeper.violations);
+    }
+
+    @Test
+    void failedRead_keepsTheLastSnapshot_insteadOfBroadcastingDeletions() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+        broadcaster.stop();
+        broadcaster = new InventoryBroadcaster(() -> {
+            if (failing.get()) {
+                failures.incrementAndGet();
+                throw new SQLException("no such table: inventory");
+            }
+            return DatabaseManager.loadAllInventory();
+        });
+        broadcaster.start();
+
+        Stream s = subscribe(null);
+        int total = ((JSONArray) s.frames().get(0).json()).size();
+        assertTrue(total > 1);
+
+        failing.set(true);
+        setStock(3, 77);
+        await(() -> failures.get() > 0, "the failed reload");
+        // a stream opened while the read fails still starts from the full snapshot
+        List<Frame> late = subscribe(null).frames();
+        assertEquals(1, late.size());
+        assertEquals(total, ((JSONArray) late.get(0).json()).size());
+        assertEquals(1, s.frames().size(), "nothing broadcast for a failed read");
+
+        // once reads work again the next change is a plain delta against the kept rows
+        failing.set(false);
+        Frame delta = nextDelta(s, 3, 78);
+        assertEquals("delta", delta.event);
+        JSONObject body = (JSONObject) delta.json();
+        assertTrue(((JSONArray) body.get("deleted")).isEmpty());
+        JSONArray upserted = (JSONArray) body.get("upserted");
+        assertEquals(1, upserted.size());
+        assertEquals(78L, ((JSONObject) upserted.get(0)).get("amount_in_stock"));
+    }
+
+    @Test
+    void stop_completesEveryStream() throws Exception {
+        Stream s = subscribe(null);
+        assertEquals(1, broadcaster.subscriberCount());
+        broadcaster.stop();
+        assertTrue(s.completed);
+        assertEquals(0, broadcaster.subscriberCount());
+    }
+}
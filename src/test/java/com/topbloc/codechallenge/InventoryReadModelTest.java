@@ -0,0 +1,86 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InventoryReadModelTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    private static String streamed(JsonResultWriterTest.Streamer s) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        s.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void addStocked(String name, long stock, long capacity) {
+        long itemId = (Long) DatabaseManager.addItem("{\"name\":\"" + name + "\"}").get("id");
+        JSONObject inv = DatabaseManager.addInventory(
+                String.format("{\"item\":%d,\"stock\":%d,\"capacity\":%d}", itemId, stock, capacity));
+        assertNull(inv.get("error"), inv.toJSONString());
+    }
+
+    private static void assertConsistent() {
+        JSONObject check = DatabaseManager.checkReadModel();
+        assertEquals(Boolean.TRUE, check.get("consistent"), check.toJSONString());
+    }
+
+    @Test
+    void loadedAfterReset_servesReads() throws IOException {
+        JSONObject stats = DatabaseManager.readModelStats();
+        assertEquals(Boolean.TRUE, stats.get("loaded"));
+        long hits = (Long) stats.get("hits");
+
+        JSONArray all = DatabaseManager.getAllInventory();
+        assertEquals(all.toJSONString(), streamed(DatabaseManager::writeAllInventory));
+        assertEquals(hits + 2, (long) (Long) DatabaseManager.readModelStats().get("hits"));
+        assertConsistent();
+    }
+
+    @Test
+    void writesAreVisibleImmediately() throws IOException {
+        JSONObject item = DatabaseManager.addItem("{\"name\":\"Jawbreaker\"}");
+        long itemId = (Long) item.get("id");
+        JSONObject inv = DatabaseManager.addInventory(String.format("{\"item\":%d,\"stock\":0,\"capacity\":10}", itemId));
+        long invId = (Long) inv.get("id");
+
+        assertTrue(streamed(DatabaseManager::writeOutOfStock).contains("Jawbreaker"));
+        assertConsistent();
+
+        DatabaseManager.updateInventory((int) invId, "{\"stock\":50,\"capacity\":10}");
+        assertFalse(streamed(DatabaseManager::writeOutOfStock).contains("Jawbreaker"));
+        assertTrue(streamed(DatabaseManager::writeOverstocked).contains("Jawbreaker"));
+        assertEquals(1, DatabaseManager.getInventoryById((int) invId).size());
+        assertConsistent();
+
+        // no cascade: the inventory row stays but the join hides it
+        DatabaseManager.deleteItem((int) itemId);
+        assertEquals("[]", streamed(out -> DatabaseManager.writeInventoryById((int) invId, out)));
+        assertConsistent();
+
+        DatabaseManager.deleteInventory((int) invId);
+        assertConsistent();
+    }
+
+    @Test
+    void filtersMatchSql() throws IOException {
+        // zero capacity: SQLite's division yields NULL, so the row is never low stock
+        addStocked("Empty Shelf", 0, 0);
+        DatabaseManager.updateInventory(3, "{\"stock\":1,\"capacity\":100}");
+        // a value past int range comes back from sqlite-jdbc as Long
+        addStocked("Bulk Gumballs", 9999999999L, 1);
+        assertConsistent();   // compares all, out-of-stock, overstocked and low-stock against SQLite
+        assertTrue(streamed(DatabaseManager::writeLowStock).contains("\"amount_in_stock\":1,"));
+        assertTrue(streamed(DatabaseManager::writeOverstocked).contains("9999999999"));
+        assertEquals(0, (long) (Long) DatabaseManager.readModelStats().get("mismatches"));
+    }
+}
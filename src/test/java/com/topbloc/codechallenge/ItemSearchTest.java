@@ -0,0 +1,257 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ItemSearchTest {
+
+    @BeforeAll  static void open()  { DatabaseManager.connect(); }
+    @BeforeEach void reset()        { DatabaseManager.resetDatabase(); }
+
+    private static JSONArray search(String q, int limit, boolean fuzzy) {
+        JSONObject out = DatabaseManager.searchItems(q, limit, fuzzy);
+        assertNull(out.get("error"), out.toJSONString());
+        return (JSONArray) out.get("results");
+    }
+
+    private static List<String> names(JSONArray results) {
+        List<String> names = new ArrayList<>();
+        for (Object r : results) names.add((String) ((JSONObject) r).get("name"));
+        return names;
+    }
+
+    private static String match(JSONArray results, int k) {
+        return (String) ((JSONObject) results.get(k)).get("match");
+    }
+
+    @Test
+    void wholeNamePrefixes_comeBeforeLaterWords() {
+        assertEquals(Arrays.asList("Skittles", "Smarties", "Snickers", "Sour Patch Kids", "Starburst"),
+                names(search("s", 10, false)));
+        // no name starts with "co"; "cola bottles" sorts before "corn"
+        JSONArray co = search("co", 10, false);
+        assertEquals(Arrays.asList("Wax Cola Bottles", "Candy Corn"), names(co));
+        assertEquals("word", match(co, 0));
+
+        JSONArray twix = search("TWIX", 10, false);
+        assertEquals("exact", match(twix, 0));
+        assertEquals(Arrays.asList("Peach Rings", "Sour Patch Kids", "Circus Peanuts", "Good & Plenty"), names(search("p", 10, false)));
+        assertEquals(3, search("s", 3, false).size());
+    }
+
+    @Test
+    void queries_areNormalizedLikeNames() {
+        assertEquals(Arrays.asList("Peach Rings"), names(search("  PÉACH ri", 10, false)));
+        assertEquals(Arrays.asList("M&Ms"), names(search("m&m", 10, false)));
+        assertEquals(Arrays.asList("Good & Plenty"), names(search("good plen", 10, false)));
+        assertNotNull(DatabaseManager.searchItems("  ", 10, true).get("error"));
+        assertNotNull(DatabaseManager.searchItems("s", 0, true).get("error"));
+    }
+
+    @Test
+    void results_carryStockAndCheapestOffer() {
+        JSONObject snickers = (JSONObject) search("snickers", 1, false).get(0);
+        assertEquals(10L, snickers.get("id"));
+        JSONObject inventory = (JSONObject) snickers.get("inventory");
+        assertEquals(43L, inventory.get("amount_in_stock"));
+        assertEquals(65L, inventory.get("total_capacity"));
+        JSONObject cheapest = (JSONObject) snickers.get("cheapest");
+        JSONObject expected = DatabaseManager.getCheapestOffer(10, 1);
+        assertEquals(expected.get("distributor_name"), cheapest.get("distributor_name"));
+        assertEquals(expected.get("unit_cost"), cheapest.get("unit_cost"));
+
+        // a new item has neither
+        DatabaseManager.addItem("{\"name\":\"Fizz Wiz\"}");
+        JSONObject fizz = (JSONObject) search("fizz", 1, false).get(0);
+        assertNull(fizz.get("inventory"));
+        assertNull(fizz.get("cheapest"));
+        DatabaseManager.addInventory("{\"item\":18,\"stock\":3,\"capacity\":9}");
+        assertEquals(3L, ((JSONObject) ((JSONObject) search("fizz", 1, false).get(0)).get("inventory")).get("amount_in_stock"));
+    }
+
+    @Test
+    void addAndDelete_keepTheIndexInStep() {
+        DatabaseManager.addItem("{\"name\":\"Fizz Wiz\"}");
+        assertEquals(Arrays.asList("Fizz Wiz"), names(search("wi", 10, false)));
+
+        DatabaseManager.deleteItem(18);
+        assertTrue(search("wi", 10, false).isEmpty());
+        DatabaseManager.deleteItem(9);
+        assertTrue(names(search("t", 10, false)).stream().noneMatch("Twix"::equals));
+
+        // id 18 comes back under another name
+        DatabaseManager.addItem("{\"name\":\"Wiz Bang\"}");
+        assertEquals(Arrays.asList("Wiz Bang"), names(search("wi", 10, false)));
+    }
+
+    @Test
+    void manyChanges_areMergedIntoTheSortedArrays() {
+        long mergesBefore = (Long) DatabaseManager.searchIndexStats().get("merges");
+        int added = 4_200;
+        for (int i = 0; i < added; i++) DatabaseManager.addItem("{\"name\":\"Bulk candy " + i + "\"}");
+        for (int id = 18; id < 18 + added; id += 2) DatabaseManager.deleteItem(id);
+        assertTrue((Long) DatabaseManager.searchIndexStats().get("merges") > mergesBefore);
+
+        // the odd-numbered candies are left, in name order ("bulk candy 4101" sorts before "bulk candy 411")
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i < added; i += 2) {
+            if (Integer.toString(i).startsWith("41")) expected.add("Bulk candy " + i);
+        }
+        expected.sort(String::compareTo);
+        assertEquals(expected.subList(0, 50), names(search("bulk candy 41", 50, false)));
+        assertEquals(Arrays.asList("Bulk candy 4199"), names(search("bulk candy 4199", 50, false)));
+        assertTrue(search("bulk candy 4198", 50, false).isEmpty());
+    }
+
+    @Test
+    void typos_fallBackToFuzzyMatches() {
+        JSONArray results = search("snikers", 10, true);
+        assertEquals("Snickers", names(results).get(0));
+        assertEquals("fuzzy", match(results, 0));
+        assertEquals(1, ((JSONObject) results.get(0)).get("distance"));
+
+        assertEquals("Butterfinger", names(search("buterfing", 10, true)).get(0));
+        assertEquals("Gummy Bears", names(search("gumy", 10, true)).get(0));
+        // prefix matches stay first and aren't repeated
+        JSONArray sk = search("skit", 10, true);
+        assertEquals("Skittles", names(sk).get(0));
+        assertEquals(1, names(sk).stream().filter("Skittles"::equals).count());
+        assertTrue(search("snikers", 10, false).isEmpty());
+        // FTS follows writes through its triggers
+        DatabaseManager.addItem("{\"name\":\"Jawbreaker\"}");
+        assertEquals("Jawbreaker", names(search("jawbraeker", 10, true)).get(0));
+    }
+
+    // a bulk import leaves items_fts to a background reindex; writes racing it must leave the table in step
+    @Test
+    void bulkImport_isReindexedForFuzzySearch() throws Exception {
+        StringBuilder csv = new StringBuilder("name\n");
+        for (int k = 0; k < 30_000; k++) csv.append("Toffee crunch ").append(k).append('\n');
+        JSONObject out = DatabaseManager.importCsv("items", new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)));
+        assertEquals(30_000L, out.get("imported"), out.toJSONString());
+
+        DatabaseManager.deleteItem(18);          // the first imported row
+        DatabaseManager.deleteItem(30_016);      // the last one
+        DatabaseManager.addItem("{\"name\":\"Jawbreaker\"}");
+
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (Boolean.TRUE.equals(DatabaseManager.searchIndexStats().get("fts_reindexing"))) {
+            assertTrue(System.currentTimeMillis() < deadline, "reindex did not finish");
+            Thread.sleep(20);
+        }
+        assertEquals("Toffee crunch 12345", names(search("tofee crunch 12345", 10, true)).get(0));
+        assertEquals("Jawbreaker", names(search("jawbraeker", 10, true)).get(0));
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("db.path", "challenge.db"));
+             Statement st = c.createStatement()) {
+            // compares the index against items itself
+            st.execute("INSERT INTO items_fts(items_fts, rank) VALUES ('integrity-check', 1)");
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM items_fts WHERE items_fts MATCH 'Toffee crunch'")) {
+                assertEquals(29_998, rs.getInt(1));
+            }
+        }
+    }
+
+    /* benchmark: mvn test -Dtest=ItemSearchTest -Dbench=true */
+
+    @Test
+    @EnabledIfSystemProperty(named = "bench", matches = "true")
+    void benchmark_1mItems(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xmx1500m",
+                "-Ddb.path=" + dir.resolve("search.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                Benchmark.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(15, TimeUnit.MINUTES));
+        System.out.println(output);
+        assertEquals(0, p.exitValue(), output);
+    }
+
+    public static final class Benchmark {
+        static final int ITEMS = 1_000_000, SEARCHES = 20_000;
+        static final String[] WORDS = {"sour", "gummy", "choco", "mint", "fizz", "caramel", "berry", "crunch", "toffee", "nougat",
+                "lemon", "cherry", "peanut", "honey", "maple", "cocoa", "vanilla", "licorice", "marsh", "jelly"};
+
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            String url = "jdbc:sqlite:" + System.getProperty("db.path");
+            try (Connection c = DriverManager.getConnection(url); Statement st = c.createStatement()) {
+                // "<word> <word> <id>", e.g. "Mint Toffee 48213"
+                st.execute("CREATE TEMP TABLE w(k INTEGER PRIMARY KEY, word TEXT)");
+                for (int k = 0; k < WORDS.length; k++) {
+                    st.execute("INSERT INTO w VALUES (" + k + ", '" + Character.toUpperCase(WORDS[k].charAt(0)) + WORDS[k].substring(1) + "')");
+                }
+                st.execute("WITH RECURSIVE n(x) AS (SELECT 100 UNION ALL SELECT x + 1 FROM n WHERE x < " + (99 + ITEMS) + ")"
+                        + " INSERT INTO items(id, name) SELECT x, a.word || ' ' || b.word || ' ' || x"
+                        + "   FROM n JOIN w a ON a.k = x % 20 JOIN w b ON b.k = (x / 20) % 20");
+                st.execute("INSERT INTO inventory(item, stock, capacity) SELECT id, id % 50, 100 FROM items WHERE id >= 100 AND id % 3 = 0");
+            }
+            long t0 = System.nanoTime();
+            DatabaseManager.connect();   // indexes the bulk-loaded rows, FTS included
+            long loadMs = (System.nanoTime() - t0) / 1_000_000;
+
+            Random rnd = new Random(42);
+            String[] queries = new String[SEARCHES];
+            for (int k = 0; k < SEARCHES; k++) {
+                String w = WORDS[rnd.nextInt(WORDS.length)];
+                // a 1-4 character prefix, a word plus the start of the next, or a number fragment
+                switch (k % 3) {
+                    case 0:  queries[k] = w.substring(0, 1 + rnd.nextInt(Math.min(4, w.length()))); break;
+                    case 1:  queries[k] = w + " " + WORDS[rnd.nextInt(WORDS.length)].substring(0, 2); break;
+                    default: queries[k] = Integer.toString(1_000 + rnd.nextInt(ITEMS - 1_000)).substring(0, 3); break;
+                }
+            }
+            // warm up
+            for (int k = 0; k < 5_000; k++) DatabaseManager.searchItems(queries[k], 10, false);
+
+            long[] took = new long[SEARCHES];
+            int empty = 0;
+            for (int k = 0; k < SEARCHES; k++) {
+                long s = System.nanoTime();
+                JSONObject out = DatabaseManager.searchItems(queries[k], 10, false);
+                took[k] = System.nanoTime() - s;
+                if (((JSONArray) out.get("results")).isEmpty()) empty++;
+            }
+            Arrays.sort(took);
+            long[] fuzzy = new long[200];
+            for (int k = 0; k < fuzzy.length; k++) {
+                long s = System.nanoTime();
+                DatabaseManager.searchItems("caramle tofee", 10, true);
+                fuzzy[k] = System.nanoTime() - s;
+            }
+            Arrays.sort(fuzzy);
+            System.out.printf("%d items (+17 seed), index + FTS load %d ms%n", ITEMS, loadMs);
+            System.out.printf("prefix search, limit 10 with summaries: p50 %.1f us, p99 %.1f us, max %.1f us (%d of %d empty)%n",
+                    took[SEARCHES / 2] / 1e3, took[SEARCHES * 99 / 100] / 1e3, took[SEARCHES - 1] / 1e3, empty, SEARCHES);
+            System.out.printf("fuzzy search \"caramle tofee\": p50 %.1f ms, p99 %.1f ms%n",
+                    fuzzy[fuzzy.length / 2] / 1e6, fuzzy[fuzzy.length * 99 / 100] / 1e6);
+            System.out.println(DatabaseManager.searchIndexStats().toJSONString());
+        }
+    }
+}
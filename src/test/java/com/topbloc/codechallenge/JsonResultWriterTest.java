@@ -0,0 +1,56 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonResultWriterTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    @FunctionalInterface
+    interface Streamer { void writeTo(ByteArrayOutputStream out) throws IOException; }
+
+    private static void assertSameBytes(JSONArray expected, Streamer streamed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        streamed.writeTo(out);
+        assertEquals(expected.toJSONString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertArrayEquals(expected.toJSONString().getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+
+    @Test
+    void seedData_matchesJsonSimple() throws IOException {
+        assertSameBytes(DatabaseManager.getItems(), DatabaseManager::writeItems);
+        assertSameBytes(DatabaseManager.getAllInventory(), DatabaseManager::writeAllInventory);
+        assertSameBytes(DatabaseManager.getOutOfStock(), DatabaseManager::writeOutOfStock);
+        assertSameBytes(DatabaseManager.getOverstocked(), DatabaseManager::writeOverstocked);
+        assertSameBytes(DatabaseManager.getLowStock(), DatabaseManager::writeLowStock);
+        assertSameBytes(DatabaseManager.getInventoryById(3), out -> DatabaseManager.writeInventoryById(3, out));
+        assertSameBytes(DatabaseManager.getInventoryById(999), out -> DatabaseManager.writeInventoryById(999, out));
+        assertSameBytes(DatabaseManager.getDistributors(), DatabaseManager::writeDistributors);
+        assertSameBytes(DatabaseManager.getOfferingsByDistributor(2), out -> DatabaseManager.writeOfferingsByDistributor(2, out));
+        assertSameBytes(DatabaseManager.getOfferingsByItem(10), out -> DatabaseManager.writeOfferingsByItem(10, out));
+    }
+
+    @Test
+    void escapingAndUnicode_matchJsonSimple() throws IOException {
+        String[] names = {"Quote\"Slash/Back\\", "Tab\tNew\nLine\r", "Ünïcødé 🍬", "line\u2028sep", "ctl\u0001\u007f\u0085"};
+        for (String name : names) {
+            JSONObject body = new JSONObject();
+            body.put("name", name);
+            JSONObject item = DatabaseManager.addItem(body.toJSONString());
+            DatabaseManager.addInventory(String.format("{\"item\":%d,\"stock\":0,\"capacity\":3}", (Long) item.get("id")));
+        }
+        assertSameBytes(DatabaseManager.getItems(), DatabaseManager::writeItems);
+        assertSameBytes(DatabaseManager.getAllInventory(), DatabaseManager::writeAllInventory);
+        assertSameBytes(DatabaseManager.getOutOfStock(), DatabaseManager::writeOutOfStock);
+    }
+}
@@ -0,0 +1,90 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.metrics.LatencyHistogram;
+import com.topbloc.codechallenge.metrics.Metrics;
+import org.junit.jupiter.api.*;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    /* histogram */
+
+    @Test
+    void percentiles_withinBucketResolution() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100_000; v++) h.record(v * 1000);   // 1µs .. 100ms, uniform
+
+        assertEquals(100_000, h.count());
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            double exact = p / 100 * 100_000 * 1000;
+            double got = h.percentile(p);
+            assertTrue(got >= exact && got <= exact * 1.125 + 1, () -> "p" + p + " = " + got + ", exact " + exact);
+        }
+        // a bucket only counts toward le= once it ends at or below the bound
+        long below = h.countBelow(1_000_000);
+        assertTrue(below <= 1000 && below > 1000 / 1.125, () -> "countBelow(1ms) = " + below);
+    }
+
+    @Test
+    void record_isAllocationFreeAndSubMicrosecond() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LatencyHistogram h = new LatencyHistogram();
+        Metrics.RouteStats route = Metrics.register("GET", "/test/hot-path");
+        int n = 200_000;
+        // warm up so the JIT has compiled the paths being measured
+        for (int i = 0; i < n; i++) {
+            h.record(i);
+            Metrics.requestStarted();
+            Metrics.routeMatched(route);
+            Metrics.requestFinished(200);
+        }
+
+        long tid = Thread.currentThread().getId();
+        long bytes = mx.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            Metrics.requestStarted();
+            Metrics.routeMatched(route);
+            Metrics.query(false, i);
+            Metrics.requestFinished(i % 10 == 0 ? 404 : 200);
+        }
+        long perRequest = (System.nanoTime() - t0) / n;
+        long allocated = mx.getThreadAllocatedBytes(tid) - bytes;
+
+        // a few hundred bytes of slack for LongAdder cells striping on first contention
+        assertTrue(allocated < 1024, () -> "allocated " + allocated + " bytes over " + n + " requests");
+        assertTrue(perRequest < 1000, () -> perRequest + "ns per request");
+    }
+
+    /* exposition */
+
+    @Test
+    void render_prometheusText() {
+        Metrics.RouteStats route = Metrics.register("GET", "/test/render");
+        Metrics.requestStarted();
+        Metrics.routeMatched(route);
+        DatabaseManager.getItems();   // not served by the in-memory models, so it takes a reader
+        Metrics.requestFinished(500);
+
+        String text = Metrics.render();
+        String labels = "method=\"GET\",route=\"/test/render\"";
+        assertTrue(text.contains("# TYPE http_server_requests_seconds histogram\n"));
+        assertTrue(text.contains("http_server_requests_seconds_count{" + labels + "} 1\n"), text);
+        assertTrue(text.contains("http_server_requests_seconds_bucket{" + labels + ",le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("http_server_requests_seconds_bucket{" + labels + ",le=\"5e-05\"} "));
+        assertTrue(text.contains("http_server_errors_total{" + labels + ",class=\"5xx\"} 1\n"));
+        assertTrue(text.contains("db_connection_wait_seconds_count{" + labels + ",pool=\"read\"} 1\n"), text);
+        assertTrue(text.contains("db_query_seconds_count{" + labels + ",pool=\"read\"} 1\n"));
+        // every sample line is "name{labels} value"
+        for (String line : text.split("\n")) {
+            if (!line.startsWith("#")) assertTrue(line.matches("[a-z_]+\\{[^}]*\\} [0-9.e+-]+"), line);
+        }
+    }
+}
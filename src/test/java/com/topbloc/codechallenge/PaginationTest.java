@@ -0,0 +1,127 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaginationTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    // walks every page of a list and returns the rows in page order
+    private static List<JSONObject> walk(String list, int parentId, int limit, List<String> fields, String sort) {
+        List<JSONObject> rows = new ArrayList<>();
+        String after = null;
+        int pages = 0;
+        do {
+            JSONObject page = DatabaseManager.listPage(list, parentId, limit, after, fields, sort);
+            assertNull(page.get("error"), () -> page.toJSONString());
+            JSONArray data = (JSONArray) page.get("data");
+            assertTrue(data.size() <= limit);
+            for (Object o : data) rows.add((JSONObject) o);
+            after = (String) page.get("next");
+            assertTrue(++pages <= 100, "cursor never ran out");
+        } while (after != null);
+        return rows;
+    }
+
+    /* keyset walk */
+
+    @Test
+    void inventoryPages_coverEveryRowInIdOrder() {
+        List<JSONObject> rows = walk("inventory", 0, 5, null, null);
+        assertEquals(17, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(i + 1, ((Number) rows.get(i).get("id")).intValue());
+        }
+        // same rows, same columns as the unpaged route
+        JSONArray all = DatabaseManager.getAllInventory();
+        for (Object o : all) {
+            JSONObject row = (JSONObject) o;
+            assertEquals(row, rows.get(((Number) row.get("id")).intValue() - 1));
+        }
+    }
+
+    @Test
+    void lastFullPage_hasNoNextCursor() {
+        JSONObject page = DatabaseManager.listPage("distributors", 0, 3, null, null, null);
+        assertEquals(3, ((JSONArray) page.get("data")).size());
+        assertNull(page.get("next"));
+    }
+
+    @Test
+    void pagesStayConsistent_whenRowsAreAddedBehindTheCursor() {
+        JSONObject first = DatabaseManager.listPage("items", 0, 10, null, null, null);
+        DatabaseManager.addItem("{\"name\":\"Jawbreaker\"}");
+        JSONObject second = DatabaseManager.listPage("items", 0, 10, (String) first.get("next"), null, null);
+        JSONArray data = (JSONArray) second.get("data");
+        // ids 11..17 plus the new item, no repeats from page one
+        assertEquals(8, data.size());
+        assertEquals(11, ((Number) ((JSONObject) data.get(0)).get("id")).intValue());
+        assertEquals("Jawbreaker", ((JSONObject) data.get(7)).get("name"));
+    }
+
+    /* sorting */
+
+    @Test
+    void itemsByName_walkInNameOrder() {
+        List<JSONObject> rows = walk("items", 0, 4, null, "name");
+        assertEquals(17, rows.size());
+        for (int i = 1; i < rows.size(); i++) {
+            String prev = (String) rows.get(i - 1).get("name"), cur = (String) rows.get(i).get("name");
+            assertTrue(prev.compareTo(cur) < 0, prev + " before " + cur);
+        }
+    }
+
+    @Test
+    void itemOffersByCost_breakTiesById() {
+        // item 13 (Starburst): 0.77 from distributor 2, 0.07 from distributor 3; add a tie at 0.07
+        DatabaseManager.addPrice(1, "{\"item\":13,\"cost\":0.07}");
+        List<JSONObject> rows = walk("item_distributors", 13, 1, null, "cost");
+        assertEquals(3, rows.size());
+        assertEquals(Arrays.asList(0.07, 0.07, 0.77),
+                Arrays.asList(rows.get(0).get("cost"), rows.get(1).get("cost"), rows.get(2).get("cost")));
+        assertTrue(((Number) rows.get(0).get("id")).longValue() < ((Number) rows.get(1).get("id")).longValue());
+    }
+
+    @Test
+    void distributorItems_pageWithinTheParent() {
+        List<JSONObject> rows = walk("distributor_items", 3, 2, null, null);
+        assertEquals(8, rows.size());   // Dentists Hate Us carries 8 items in the seed data
+    }
+
+    /* projection */
+
+    @Test
+    void fields_limitTheColumnsReturned() {
+        JSONObject page = DatabaseManager.listPage("inventory", 0, 2, null, Arrays.asList("item_name", "amount_in_stock"), null);
+        for (Object o : (JSONArray) page.get("data")) {
+            assertEquals(2, ((JSONObject) o).size());
+            assertTrue(((JSONObject) o).containsKey("item_name"));
+        }
+        // the cursor still carries the id even though it wasn't selected
+        JSONObject next = DatabaseManager.listPage("inventory", 0, 2, (String) page.get("next"), Arrays.asList("item_name"), null);
+        assertEquals("Smarties", ((JSONObject) ((JSONArray) next.get("data")).get(0)).get("item_name"));
+    }
+
+    /* bad input */
+
+    @Test
+    void invalidInput_isReportedAsError() {
+        assertNotNull(DatabaseManager.listPage("inventory", 0, 10, null, Arrays.asList("cost"), null).get("error"));
+        assertNotNull(DatabaseManager.listPage("inventory", 0, 10, null, null, "item_name").get("error"));
+        assertNotNull(DatabaseManager.listPage("inventory", 0, 0, null, null, null).get("error"));
+        assertNotNull(DatabaseManager.listPage("inventory", 0, 10, "not-a-cursor", null, null).get("error"));
+        // a cursor only fits the sort it was issued for
+        String byName = (String) DatabaseManager.listPage("items", 0, 2, null, null, "name").get("next");
+        assertNotNull(DatabaseManager.listPage("items", 0, 2, byName, null, null).get("error"));
+    }
+}
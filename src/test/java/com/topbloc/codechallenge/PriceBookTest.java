@@ -0,0 +1,177 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PriceBookTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    private static String cheapestName(int itemId) {
+        return (String) DatabaseManager.getCheapestOffer(itemId, 10).get("distributor_name");
+    }
+
+    @Test
+    void seedData_cheapestAndTopN() {
+        assertTrue((Boolean) DatabaseManager.priceBookStats().get("loaded"));
+        // Snickers: The Sweet Suite 0.25, Dentists Hate Us 0.47
+        JSONArray top = DatabaseManager.getTopOffers(10, 100, 5);
+        assertEquals(2, top.size());
+        assertEquals("The Sweet Suite", ((JSONObject) top.get(0)).get("distributor_name"));
+        assertEquals(25.0, ((JSONObject) top.get(0)).get("total_cost"));
+        assertEquals(2, ((JSONObject) top.get(0)).get("distributor_id"));
+        assertEquals(0.47, ((JSONObject) top.get(1)).get("unit_cost"));
+        assertEquals(1, DatabaseManager.getTopOffers(10, 100, 1).size());
+        assertNotNull(DatabaseManager.getCheapestOffer(999, 1).get("message"));
+    }
+
+    @Test
+    void writesReorderOffers() {
+        DatabaseManager.updatePrice(3, 10, "{\"cost\":0.05}");
+        assertEquals("Dentists Hate Us", cheapestName(10));
+
+        JSONObject d = DatabaseManager.addDistributor("{\"name\":\"Bulk Barn\"}");
+        int bulk = ((Number) d.get("id")).intValue();
+        DatabaseManager.addPrice(bulk, "{\"item\":10,\"cost\":0.01}");
+        assertEquals("Bulk Barn", cheapestName(10));
+
+        DatabaseManager.deleteDistributor(bulk);
+        assertEquals("Dentists Hate Us", cheapestName(10));
+        assertEquals(2, DatabaseManager.getTopOffers(10, 1, 10).size());
+
+        DatabaseManager.deleteItem(10);
+        assertTrue(DatabaseManager.getTopOffers(10, 1, 10).isEmpty());
+        assertTrue(DatabaseManager.getOfferingsByItem(10).isEmpty());
+    }
+
+    /* benchmark: mvn test -Dtest=PriceBookTest -Dbench=true */
+
+    // 10k items x 500 distributors in a child JVM; compares the price book with the SQL it replaced
+    @Test
+    @EnabledIfSystemProperty(named = "bench", matches = "true")
+    void benchmark_10kItemsX500Distributors(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xmx1g",
+                "-Ddb.path=" + dir.resolve("prices.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                Benchmark.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(15, TimeUnit.MINUTES));
+        System.out.println(output);
+        assertEquals(0, p.exitValue(), output);
+        assertTrue(output.contains("\"mismatches\":0"), output);
+    }
+
+    public static final class Benchmark {
+        static final int ITEMS = 10_000, DISTRIBUTORS = 500, LOOKUPS = 20_000;
+
+        // the pre-price-book query
+        static final String LEGACY_SQL =
+                "SELECT dp.distributor AS distributor_id, d.name AS distributor_name, dp.cost AS unit_cost, dp.cost * ? AS total_cost"
+                        + "  FROM distributor_prices dp JOIN distributors d ON dp.distributor = d.id"
+                        + " WHERE dp.item = ? ORDER BY dp.cost ASC LIMIT 1";
+
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            String url = "jdbc:sqlite:" + System.getProperty("db.path");
+            try (Connection c = DriverManager.getConnection(url); Statement st = c.createStatement()) {
+                st.execute("DELETE FROM distributor_prices");
+                st.execute("WITH RECURSIVE n(x) AS (SELECT 100 UNION ALL SELECT x + 1 FROM n WHERE x < " + (99 + ITEMS) + ")"
+                        + " INSERT INTO items(id, name) SELECT x, 'Bench candy ' || x FROM n");
+                st.execute("WITH RECURSIVE n(x) AS (SELECT 100 UNION ALL SELECT x + 1 FROM n WHERE x < " + (99 + DISTRIBUTORS) + ")"
+                        + " INSERT INTO distributors(id, name) SELECT x, 'Bench distributor ' || x FROM n");
+                // pseudo-random costs in cents so ties happen
+                st.execute("INSERT INTO distributor_prices(distributor, item, cost)"
+                        + " SELECT d.id, i.id, ((i.id * 7919 + d.id * 104729) % 1000) / 100.0"
+                        + "   FROM items i CROSS JOIN distributors d WHERE i.id >= 100 AND d.id >= 100");
+            }
+            long t0 = System.nanoTime();
+            DatabaseManager.connect();   // picks up the bulk-loaded rows
+            long rebuildMs = (System.nanoTime() - t0) / 1_000_000;
+
+            Random rnd = new Random(42);
+            int[] items = new int[LOOKUPS];
+            for (int k = 0; k < LOOKUPS; k++) items[k] = 100 + rnd.nextInt(ITEMS);
+
+            long[] book = new long[LOOKUPS];
+            for (int k = 0; k < LOOKUPS; k++) {
+                long s = System.nanoTime();
+                DatabaseManager.getCheapestOffer(items[k], 10);
+                book[k] = System.nanoTime() - s;
+            }
+
+            int mismatches = 0;
+            long[] indexed, unindexed;
+            try (Connection c = DriverManager.getConnection(url)) {
+                indexed = timeSql(c, items);
+                for (int k = 0; k < 500; k++) {
+                    try (PreparedStatement ps = c.prepareStatement(LEGACY_SQL)) {
+                        ps.setInt(1, 10);
+                        ps.setInt(2, items[k]);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            rs.next();
+                            JSONObject fromBook = DatabaseManager.getCheapestOffer(items[k], 10);
+                            if (rs.getDouble("unit_cost") != (Double) fromBook.get("unit_cost")) mismatches++;
+                        }
+                    }
+                }
+                try (Statement st = c.createStatement()) {
+                    st.execute("DROP INDEX idx_distributor_prices_item_cost");
+                    st.execute("DROP INDEX idx_distributor_prices_distributor");
+                }
+                unindexed = timeSql(c, Arrays.copyOf(items, 200));   // full scans; a sample is plenty
+            }
+            System.out.println("{\"items\":" + ITEMS + ",\"distributors\":" + DISTRIBUTORS
+                    + ",\"rebuild_ms\":" + rebuildMs
+                    + ",\"price_book\":" + summary(book)
+                    + ",\"sql_indexed\":" + summary(indexed)
+                    + ",\"sql_unindexed\":" + summary(unindexed)
+                    + ",\"mismatches\":" + mismatches + "}");
+        }
+
+        static long[] timeSql(Connection c, int[] items) throws SQLException {
+            long[] times = new long[items.length];
+            for (int k = 0; k < items.length; k++) {
+                long s = System.nanoTime();
+                try (PreparedStatement ps = c.prepareStatement(LEGACY_SQL)) {
+                    ps.setInt(1, 10);
+                    ps.setInt(2, items[k]);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        rs.getString("distributor_name");
+                    }
+                }
+                times[k] = System.nanoTime() - s;
+            }
+            return times;
+        }
+
+        static String summary(long[] nanos) {
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            return String.format("{\"n\":%d,\"p50_us\":%.1f,\"p99_us\":%.1f}", sorted.length,
+                    sorted[sorted.length / 2] / 1000.0, sorted[(int) (sorted.length * 0.99)] / 1000.0);
+        }
+    }
+}
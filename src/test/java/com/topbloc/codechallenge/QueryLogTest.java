@@ -0,0 +1,112 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryLogTest {
+
+    @BeforeAll  static void open()  { DatabaseManager.connect(); }
+    @BeforeEach void reset()        { DatabaseManager.resetDatabase(); }
+
+    // the entry whose SQL contains the fragment, or null
+    private static JSONObject statement(JSONObject stats, String fragment) {
+        for (Object o : (JSONArray) stats.get("statements")) {
+            JSONObject s = (JSONObject) o;
+            if (((String) s.get("sql")).contains(fragment)) return s;
+        }
+        return null;
+    }
+
+    private static long calls(String fragment) {
+        JSONObject s = statement(DatabaseManager.queryStats(1000), fragment);
+        return s == null ? 0 : (Long) s.get("calls");
+    }
+
+    @Test
+    void everyExecution_addsItsRowsAndTime() throws Exception {
+        String offerings = "WHERE dp.item = ?";
+        long before = calls(offerings);
+        for (int i = 0; i < 3; i++) DatabaseManager.writeOfferingsByItem(1, new ByteArrayOutputStream());
+        JSONObject s = statement(DatabaseManager.queryStats(1000), offerings);
+        assertNotNull(s);
+        assertEquals(before + 3, s.get("calls"));
+        assertTrue((Long) s.get("rows") >= 3, s.toJSONString());
+        assertTrue(((Number) s.get("total_ms")).doubleValue() > 0);
+
+        String update = "UPDATE inventory SET stock = ?, capacity = ? WHERE id = ?";
+        long updates = calls(update);
+        DatabaseManager.updateInventory(3, "{\"stock\":5,\"capacity\":10}");
+        DatabaseManager.updateInventory(99_999, "{\"stock\":5,\"capacity\":10}");
+        JSONObject u = statement(DatabaseManager.queryStats(1000), update);
+        assertEquals(updates + 2, u.get("calls"));
+
+        // sorted by total time, and limited
+        JSONArray top = (JSONArray) DatabaseManager.queryStats(2).get("statements");
+        assertTrue(top.size() <= 2);
+        if (top.size() == 2) {
+            assertTrue(((Number) ((JSONObject) top.get(0)).get("total_ms")).doubleValue()
+                    >= ((Number) ((JSONObject) top.get(1)).get("total_ms")).doubleValue());
+        }
+    }
+
+    // a zero threshold makes every statement slow, so each gets its plan captured
+    @Test
+    void slowStatements_carryTheirPlanAndBinds(@TempDir Path dir) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Ddb.slowQueryMs=0", "-Dreadmodel.enabled=false",
+                "-Ddb.path=" + dir.resolve("slow.db").toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                SlowQueries.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(2, TimeUnit.MINUTES));
+        assertEquals(0, p.exitValue(), output);
+        assertTrue(output.contains("slow query "), output);
+
+        String json = output.substring(output.lastIndexOf("\n{") + 1).trim();
+        JSONObject stats = (JSONObject) new JSONParser().parse(json);
+        assertEquals(0L, stats.get("slow_threshold_ms"));
+
+        // the stock ratio can't use an index
+        JSONObject lowStock = statement(stats, "i.stock * 1.0 / i.capacity < 0.35");
+        assertNotNull(lowStock, json);
+        assertEquals(true, lowStock.get("full_scan"), lowStock.toJSONString());
+        assertFalse(((JSONArray) lowStock.get("plan")).isEmpty());
+
+        JSONObject byId = statement(stats, "WHERE i.id = ?");
+        assertEquals(false, byId.get("full_scan"), byId.toJSONString());
+        assertEquals("[3]", ((JSONObject) byId.get("last_slow")).get("params"));
+
+        JSONObject update = statement(stats, "UPDATE inventory SET stock = ?, capacity = ? WHERE id = ?");
+        JSONObject last = (JSONObject) update.get("last_slow");
+        assertEquals("[5, 10, 3]", last.get("params"));
+        assertEquals(1L, last.get("rows"));
+    }
+
+    public static final class SlowQueries {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.resetDatabase();
+            DatabaseManager.writeLowStock(new ByteArrayOutputStream());
+            DatabaseManager.writeInventoryById(3, new ByteArrayOutputStream());
+            DatabaseManager.updateInventory(3, "{\"stock\":5,\"capacity\":10}");
+            System.out.println(DatabaseManager.queryStats(1000).toJSONString());
+        }
+    }
+}
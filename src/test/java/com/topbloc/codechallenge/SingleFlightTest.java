@@ -0,0 +1,108 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.metrics.Metrics;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    // callers that reach run() with the same key while the leader is held share its one result
+    @Test
+    void concurrentIdenticalCalls_runOnce() throws Exception {
+        SingleFlight<Object> flight = new SingleFlight<>(30_000);
+        Metrics.RouteStats route = Metrics.register("GET", "/test/single-flight");
+        AtomicInteger runs = new AtomicInteger(), arrived = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        int callers = 32;
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(pool.submit(() -> {
+                    arrived.incrementAndGet();
+                    return flight.run("/inventory?@7", route, () -> {
+                        runs.incrementAndGet();
+                        release.await();
+                        return new Object();
+                    });
+                }));
+            }
+            while (arrived.get() < callers) Thread.sleep(5);
+            Thread.sleep(200);
+            release.countDown();
+
+            Object first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<Object> f : results) assertSame(first, f.get(10, TimeUnit.SECONDS));
+            assertEquals(1, runs.get());
+        } finally {
+            pool.shutdownNow();
+        }
+        String rendered = Metrics.render();
+        assertTrue(rendered.contains("http_server_singleflight_total{method=\"GET\",route=\"/test/single-flight\",outcome=\"executed\"} 1"), rendered);
+        assertTrue(rendered.contains("http_server_singleflight_total{method=\"GET\",route=\"/test/single-flight\",outcome=\"coalesced\"} " + (callers - 1)), rendered);
+    }
+
+    @Test
+    void differentKeys_orSequentialCalls_runSeparately() throws Exception {
+        SingleFlight<Integer> flight = new SingleFlight<>(30_000);
+        Metrics.RouteStats route = Metrics.register("GET", "/test/single-flight-keys");
+        AtomicInteger runs = new AtomicInteger();
+        assertEquals(1, flight.run("/inventory?@7", route, runs::incrementAndGet));
+        assertEquals(2, flight.run("/inventory?@7", route, runs::incrementAndGet));
+        // a write moved the data version
+        assertEquals(3, flight.run("/inventory?@8", route, runs::incrementAndGet));
+    }
+
+    @Test
+    void slowLeader_followerStopsWaitingAndRunsItself() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<>(50);
+        Metrics.RouteStats route = Metrics.register("GET", "/test/single-flight-timeout");
+        CountDownLatch leaderRunning = new CountDownLatch(1), release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> leader = pool.submit(() -> flight.run("k", route, () -> {
+                leaderRunning.countDown();
+                release.await();
+                return "leader";
+            }));
+            assertTrue(leaderRunning.await(10, TimeUnit.SECONDS));
+            assertEquals("follower", flight.run("k", route, () -> "follower"));
+            release.countDown();
+            assertEquals("leader", leader.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(Metrics.render().contains("route=\"/test/single-flight-timeout\",outcome=\"timeout\"} 1"));
+    }
+
+    @Test
+    void leaderFailure_reachesItsFollowers() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<>(30_000);
+        Metrics.RouteStats route = Metrics.register("GET", "/test/single-flight-error");
+        CountDownLatch leaderRunning = new CountDownLatch(1), release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = pool.submit(() -> flight.run("k", route, () -> {
+                leaderRunning.countDown();
+                release.await();
+                throw new IllegalStateException("boom");
+            }));
+            assertTrue(leaderRunning.await(10, TimeUnit.SECONDS));
+            Future<String> follower = pool.submit(() -> flight.run("k", route, () -> "ran"));
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<String> f : new Future[]{leader, follower}) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> f.get(10, TimeUnit.SECONDS));
+                assertEquals("boom", e.getCause().getMessage());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
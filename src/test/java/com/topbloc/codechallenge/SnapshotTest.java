@@ -0,0 +1,95 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+    @AfterEach  void cleanUp()         { DatabaseManager.deleteSnapshot("fixture"); }
+
+    private static JSONObject resetStats() {
+        return (JSONObject) DatabaseManager.listSnapshots().get("reset");
+    }
+
+    private static int stockOf(int inventoryId) {
+        return ((Number) ((JSONObject) DatabaseManager.getInventoryById(inventoryId).get(0)).get("amount_in_stock")).intValue();
+    }
+
+    @Test
+    void reset_copiesTheSeedSnapshotBack() {
+        DatabaseManager.updateInventory(3, "{\"stock\":1,\"capacity\":25}");
+        DatabaseManager.addItem("{\"name\":\"Fizz Wiz\"}");
+        DatabaseManager.deleteDistributor(1);
+
+        long restoredBefore = (Long) resetStats().get("from_seed_snapshot");
+        DatabaseManager.resetDatabase();
+        assertEquals(restoredBefore + 1, resetStats().get("from_seed_snapshot"));
+        assertEquals(true, resetStats().get("seed_snapshot"));
+
+        assertEquals(15, stockOf(3));
+        assertEquals(17, DatabaseManager.getItems().size());
+        assertEquals(3, DatabaseManager.getDistributors().size());
+        // the read model and the price book follow the restored data
+        assertEquals(true, DatabaseManager.checkReadModel().get("consistent"));
+        assertEquals("Candy Corp", DatabaseManager.getCheapestOffer(1, 1).get("distributor_name"));
+        // and new rows get the same ids they would on a fresh file
+        assertEquals(18L, DatabaseManager.addItem("{\"name\":\"Fizz Wiz\"}").get("id"));
+    }
+
+    @Test
+    void resetTime_isReported() {
+        for (int i = 0; i < 20; i++) DatabaseManager.resetDatabase();
+        JSONObject stats = resetStats();
+        System.out.printf("reset: %d us from the seed snapshot, %d us rebuilding%n",
+                stats.get("last_restore_micros"), stats.get("last_rebuild_micros"));
+        assertTrue((Long) stats.get("last_restore_micros") > 0);
+    }
+
+    @Test
+    void namedSnapshot_roundTrips() {
+        DatabaseManager.updateInventory(3, "{\"stock\":1,\"capacity\":25}");
+        DatabaseManager.addItem("{\"name\":\"Fizz Wiz\"}");
+        assertEquals("ok", DatabaseManager.saveSnapshot("fixture").get("status"));
+
+        DatabaseManager.resetDatabase();
+        assertEquals(15, stockOf(3));
+
+        long version = (Long) DatabaseManager.changesSince(null, 1).get("version");
+        assertEquals("ok", DatabaseManager.restoreSnapshot("fixture").get("status"));
+        assertEquals(1, stockOf(3));
+        assertEquals(18, DatabaseManager.getItems().size());
+        assertEquals(true, DatabaseManager.checkReadModel().get("consistent"));
+        // followers of the change feed have to reload
+        assertEquals("resync", DatabaseManager.changesSince(version, 10).get("status"));
+
+        JSONArray listed = (JSONArray) DatabaseManager.listSnapshots().get("snapshots");
+        assertEquals("fixture", ((JSONObject) listed.get(0)).get("name"));
+    }
+
+    @Test
+    void namedSnapshot_includesAcceptedWriteBehindAdjustments() {
+        DatabaseManager.adjustStock(3, "{\"delta\":-5}", "write_behind");
+        DatabaseManager.saveSnapshot("fixture");
+        DatabaseManager.resetDatabase();
+        DatabaseManager.restoreSnapshot("fixture");
+        assertEquals(10, stockOf(3));
+        // the ledger keeps working on the restored data
+        DatabaseManager.adjustStock(3, "{\"delta\":-1}", "write_behind");
+        DatabaseManager.flushStock();
+        assertEquals(9, stockOf(3));
+    }
+
+    @Test
+    void badNames_andMissingSnapshots() {
+        assertNotNull(DatabaseManager.saveSnapshot("../escape").get("error"));
+        assertNotNull(DatabaseManager.restoreSnapshot("").get("error"));
+        assertEquals("not_found", DatabaseManager.restoreSnapshot("nope").get("status"));
+        assertEquals("not_found", DatabaseManager.deleteSnapshot("nope").get("status"));
+    }
+}
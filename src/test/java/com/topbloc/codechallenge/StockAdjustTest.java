@@ -0,0 +1,233 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StockAdjustTest {
+
+    @BeforeAll  static void open()      { DatabaseManager.connect(); }
+    @BeforeEach void reset()           { DatabaseManager.resetDatabase(); }
+
+    private static long stock(int invId) {
+        JSONObject row = (JSONObject) DatabaseManager.getInventoryById(invId).get(0);
+        return ((Number) row.get("amount_in_stock")).longValue();
+    }
+
+    private static JSONObject adjust(int invId, long delta, String durability) {
+        return DatabaseManager.adjustStock(invId, "{\"delta\":" + delta + "}", durability);
+    }
+
+    /* sync */
+
+    @Test
+    void sync_appliesTheDeltaAndReturnsTheNewStock() {
+        // inventory row 3 (Smarties) starts at 15
+        long version = DatabaseManager.dataVersion(DatabaseManager.tableIds("inventory"));
+        JSONObject res = adjust(3, -1, "sync");
+        assertEquals("ok", res.get("status"));
+        assertEquals(14L, res.get("stock"));
+        assertEquals(14, stock(3));
+        assertEquals(version + 1, DatabaseManager.dataVersion(DatabaseManager.tableIds("inventory")));
+    }
+
+    @Test
+    void badInput_isReported() {
+        assertEquals("not_found", adjust(999, 1, "sync").get("status"));
+        assertEquals("not_found", adjust(999, 1, "write_behind").get("status"));
+        assertNotNull(DatabaseManager.adjustStock(3, "{\"delta\":1.5}", "sync").get("error"));
+        assertNotNull(DatabaseManager.adjustStock(3, "{}", "sync").get("error"));
+        assertNotNull(adjust(3, 1, "eventually").get("error"));
+    }
+
+    /* write-behind */
+
+    @Test
+    void writeBehind_landsOnFlush_withoutLosingConcurrentDeltas() throws Exception {
+        int threads = 8, perThread = 2_000;
+        long restocked = stock(4);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    // every sale on row 3, a restock on row 4 now and then, all racing the flusher
+                    JSONObject res = i % 10 == 0 ? adjust(4, 2, "write_behind") : adjust(3, -1, "write_behind");
+                    if (!"accepted".equals(res.get("status"))) errors.add(new AssertionError(res.toJSONString()));
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        double perSecond = threads * perThread / ((System.nanoTime() - start) / 1e9);
+        System.out.printf("write-behind adjustments/s: %.0f%n", perSecond);
+        assertTrue(errors.isEmpty(), () -> "errors: " + errors);
+
+        DatabaseManager.flushStock();
+        int sales = threads * perThread * 9 / 10, restocks = threads * perThread / 10;
+        assertEquals(15 - sales, stock(3));
+        assertEquals(restocked + 2L * restocks, stock(4));
+        assertEquals(0L, DatabaseManager.stockLedgerStats().get("pending_adjustments"));
+    }
+
+    @Test
+    void syncAndWriteBehind_mixOnOneRow() {
+        assertEquals("accepted", adjust(3, 5, "write_behind").get("status"));
+        assertEquals(14L, adjust(3, -1, "sync").get("stock"));   // the queued +5 hasn't landed yet
+        DatabaseManager.flushStock();
+        assertEquals(19, stock(3));
+    }
+
+    // a PUT sets the stock outright: deltas accepted before it must not be added on top at the next flush
+    @Test
+    void absoluteWrites_areNotUndoneByEarlierDeltas() {
+        assertEquals("accepted", adjust(1, -1, "write_behind").get("status"));
+        assertEquals("ok", DatabaseManager.updateInventory(1, "{\"stock\":10,\"capacity\":500}").get("status"));
+        DatabaseManager.flushStock();
+        assertEquals(10, stock(1));
+
+        assertEquals("accepted", adjust(2, -3, "write_behind").get("status"));
+        assertEquals("ok", DatabaseManager.updateInventoryBatch("[{\"id\":2,\"stock\":10,\"capacity\":500}]", true).get("status"));
+        DatabaseManager.flushStock();
+        assertEquals(10, stock(2));
+    }
+
+    // the next insert takes a deleted row's id; it must start from its own stock
+    @Test
+    void deletedRow_leavesNoDeltasForTheNextRowWithItsId() {
+        int last = 0;
+        for (Object o : DatabaseManager.getAllInventory()) last = Math.max(last, ((Number) ((JSONObject) o).get("id")).intValue());
+        assertEquals("accepted", adjust(last, 7, "write_behind").get("status"));
+        assertEquals("ok", DatabaseManager.deleteInventory(last).get("status"));
+
+        long item = ((Number) DatabaseManager.addItem("{\"name\":\"Fun Dip\"}").get("id")).longValue();
+        JSONObject added = DatabaseManager.addInventory("{\"item\":" + item + ",\"stock\":4,\"capacity\":9}");
+        assertEquals(last, ((Number) added.get("id")).intValue());
+        DatabaseManager.flushStock();
+        assertEquals(4, stock(last));
+    }
+
+    @Test
+    void reset_discardsUnflushedDeltas() {
+        assertEquals("accepted", adjust(3, -10, "write_behind").get("status"));
+        DatabaseManager.resetDatabase();
+        DatabaseManager.flushStock();
+        assertEquals(15, stock(3));
+    }
+
+    // resets drop the ledger under the lifecycle lock that adjusters and flushes also take; none of them may hang
+    @Test
+    void resets_racingAdjustmentsAndFlushes_dontDeadlock() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        try {
+            for (int t = 0; t < 2; t++) {
+                pool.submit(() -> {
+                    while (!stop.get()) {
+                        JSONObject res = adjust(3, -1, "write_behind");
+                        if (!"accepted".equals(res.get("status"))) errors.add(new AssertionError(res.toJSONString()));
+                    }
+                });
+            }
+            pool.submit(() -> {
+                while (!stop.get()) DatabaseManager.flushStock();
+            });
+            Future<?> resets = pool.submit(() -> {
+                for (int i = 0; i < 20; i++) DatabaseManager.resetDatabase();
+            });
+            resets.get(1, TimeUnit.MINUTES);
+        } finally {
+            stop.set(true);
+            pool.shutdown();
+        }
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        assertTrue(errors.isEmpty(), () -> "errors: " + errors);
+
+        DatabaseManager.resetDatabase();
+        DatabaseManager.flushStock();
+        assertEquals(15, stock(3));
+        assertEquals(0L, DatabaseManager.stockLedgerStats().get("pending_adjustments"));
+    }
+
+    /* crash recovery */
+
+    // a child JVM journals adjustments and halts before any flush; the next start replays them
+    @Test
+    void journal_isReplayedAfterACrash(@TempDir Path dir) throws Exception {
+        String db = dir.resolve("crash.db").toAbsolutePath().toString();
+        String crashed = runChild(db, "crash");
+        assertTrue(crashed.contains("journaled"), crashed);
+        assertTrue(new File(db + "-stock-1.journal").exists(), crashed);
+
+        String restarted = runChild(db, "read");
+        assertTrue(restarted.contains("Replayed 1 stock journal(s)"), restarted);
+        assertTrue(restarted.contains("stock=" + (15 - 500)), restarted);
+        assertFalse(new File(db + "-stock-1.journal").exists());
+    }
+
+    // a process that never adjusts leaves no journal, and one left empty is dropped rather than replayed
+    @Test
+    void emptyJournals_areNeitherLeftNorReplayed(@TempDir Path dir) throws Exception {
+        String db = dir.resolve("idle.db").toAbsolutePath().toString();
+        runChild(db, "reset");
+        String restarted = runChild(db, "read");
+        assertTrue(restarted.contains("stock=15"), restarted);
+        assertFalse(restarted.contains("Replayed"), restarted);
+        assertArrayEquals(new String[0], dir.toFile().list((d, name) -> name.endsWith(".journal")));
+
+        File empty = new File(db + "-stock-7.journal");
+        assertTrue(empty.createNewFile());
+        restarted = runChild(db, "read");
+        assertFalse(restarted.contains("Replayed"), restarted);
+        assertFalse(empty.exists());
+    }
+
+    private static String runChild(String db, String mode) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java,
+                "-Ddb.path=" + db,
+                "-Dstock.flushIntervalMs=600000",
+                "-cp", System.getProperty("java.class.path"),
+                Crash.class.getName(), mode)
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(1, TimeUnit.MINUTES));
+        return output;
+    }
+
+    public static final class Crash {
+        public static void main(String[] args) {
+            if (args[0].equals("crash")) {
+                DatabaseManager.resetDatabase();
+                for (int i = 0; i < 500; i++) adjust(3, -1, "write_behind");
+                System.out.println("journaled");
+                System.out.flush();
+                // no shutdown hooks, no flush: as abrupt as the JVM allows
+                Runtime.getRuntime().halt(0);
+            }
+            if (args[0].equals("reset")) {
+                DatabaseManager.resetDatabase();
+                return;
+            }
+            DatabaseManager.connect();
+            System.out.println("stock=" + stock(3));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// db.storage is read once per JVM, so each mode runs in a child JVM
+class StorageModeTest {
+
+    @Test
+    void memory_touchesNoFiles(@TempDir Path dir) throws Exception {
+        String out = runChild(dir, "memory", "write");
+        assertTrue(out.contains("stock=14"), out);
+        assertTrue(out.contains("url=jdbc:sqlite:file:"), out);
+        // no database, WAL or stock journal next to db.path
+        assertArrayEquals(new String[0], dir.toFile().list(), out);
+
+        // and nothing survives the process
+        String again = runChild(dir, "memory", "read");
+        assertTrue(again.contains("stock=15"), again);
+    }
+
+    @Test
+    void memorySnapshot_survivesARestart(@TempDir Path dir) throws Exception {
+        String out = runChild(dir, "memory_snapshot", "write");
+        assertTrue(out.contains("stock=14"), out);
+        // written by the shutdown hook
+        assertTrue(dir.resolve("storage.db").toFile().length() > 0, out);
+
+        String again = runChild(dir, "memory_snapshot", "read");
+        assertTrue(again.contains("Loaded"), again);
+        assertTrue(again.contains("stock=14"), again);
+    }
+
+    private static String runChild(Path dir, String mode, String action, String... jvmArgs) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> cmd = new ArrayList<>(Arrays.asList(java,
+                "-Ddb.storage=" + mode,
+                "-Ddb.path=" + dir.resolve("storage.db").toAbsolutePath()));
+        cmd.addAll(Arrays.asList(jvmArgs));
+        cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Child.class.getName(), action));
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(p.waitFor(2, TimeUnit.MINUTES));
+        return output;
+    }
+
+    /* write throughput: mvn test -Dtest=StorageModeTest -Dbench=true */
+
+    static final int WRITERS = 4, WRITES_PER_WRITER = 5_000;
+
+    @Test
+    @EnabledIfSystemProperty(named = "bench", matches = "true")
+    void writeThroughput_perMode(@TempDir Path dir) throws Exception {
+        StringBuilder report = new StringBuilder(String.format("%n%-16s %-9s %12s%n", "storage", "sync", "writes/s"));
+        for (String mode : Arrays.asList("file", "memory", "memory_snapshot")) {
+            for (String synchronous : Arrays.asList("FULL", "NORMAL")) {
+                // synchronous only applies to the file
+                if (!mode.equals("file") && synchronous.equals("FULL")) continue;
+                Path run = dir.resolve(mode + "-" + synchronous);
+                run.toFile().mkdirs();
+                String out = runChild(run, mode, "bench", "-Ddb.synchronous=" + synchronous, "-Ddb.snapshotIntervalSec=1");
+                String rate = out.substring(out.indexOf("writes/s=") + 9).trim().split("\\s")[0];
+                report.append(String.format("%-16s %-9s %12s%n", mode, mode.equals("file") ? synchronous : "-", rate));
+            }
+        }
+        report.append(String.format("%d writers x %d writes: inventory updates, every 10th an item plus its inventory row%n",
+                WRITERS, WRITES_PER_WRITER));
+        System.out.println(report);
+    }
+
+    public static final class Child {
+        public static void main(String[] args) throws Exception {
+            DatabaseManager.connect();
+            switch (args[0]) {
+                case "write":
+                    DatabaseManager.adjustStock(3, "{\"delta\":-1}", "write_behind");
+                    DatabaseManager.flushStock();
+                    break;
+                case "bench":
+                    DatabaseManager.resetDatabase();
+                    System.out.println("writes/s=" + Math.round(writeLoad()));
+                    break;
+                default:
+                    break;
+            }
+            JSONObject row = (JSONObject) DatabaseManager.getInventoryById(3).get(0);
+            System.out.println("stock=" + row.get("amount_in_stock"));
+            System.out.println("url=" + DatabaseManager.storageStats().get("url"));
+        }
+
+        // updates on the seed rows mixed with item + inventory inserts, from several threads
+        private static double writeLoad() throws Exception {
+            ExecutorService pool = Executors.newFixedThreadPool(WRITERS);
+            long start = System.nanoTime();
+            List<Future<?>> done = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                int writer = w;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < WRITES_PER_WRITER; i++) {
+                        if (i % 10 == 0) {
+                            JSONObject item = DatabaseManager.addItem("{\"name\":\"Bench " + writer + "-" + i + "\"}");
+                            DatabaseManager.addInventory("{\"item\":" + item.get("id") + ",\"stock\":1,\"capacity\":10}");
+                        } else {
+                            DatabaseManager.updateInventory(i % 17 + 1, "{\"stock\":" + i + ",\"capacity\":100}");
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : done) f.get();
+            pool.shutdown();
+            return WRITERS * WRITES_PER_WRITER / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+}
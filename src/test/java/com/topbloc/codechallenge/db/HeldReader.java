@@ -0,0 +1,34 @@
+package com.topbloc.codechallenge.db;
+
+import java.util.concurrent.CountDownLatch;
+
+// test fixture: takes one of DatabaseManager's read connections and never gives it back, for
+// child-JVM servers that need the reader pool exhausted
+public final class HeldReader {
+
+    private HeldReader() {
+    }
+
+    // returns once the connection is taken
+    public static void hold() throws InterruptedException {
+        CountDownLatch taken = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                DatabaseManager.read(conn -> {
+                    taken.countDown();
+                    try {
+                        Thread.sleep(Long.MAX_VALUE);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "held-reader");
+        t.setDaemon(true);
+        t.start();
+        taken.await();
+    }
+}